@@ -0,0 +1,515 @@
+/*
+ *  gnu/regexp/JavaRegexEngine.java
+ *  Copyright (C) 2026
+ *
+ *  This library is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2.1 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package gnu.regexp;
+
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Runs an RE with java.util.regex instead of the token chain, which is
+ * much faster on long input.
+ *
+ * Only patterns whose meaning is the same for both engines are translated.
+ * This engine finds the leftmost match the way Perl does, trying the
+ * alternatives in order, where the token chain takes the longest of the
+ * leftmost matches; the two agree as long as the pattern has no repeated
+ * groups, no stingy operators and no alternation, except between plain
+ * words none of which begins another. Anything else (and execution
+ * flags, and input that isn't a CharSequence) is left to the token chain.
+ */
+final class JavaRegexEngine {
+  private static final String WORD = "\\p{javaLetterOrDigit}_";
+
+  private final Pattern pattern;
+
+  private JavaRegexEngine(Pattern pattern) {
+    this.pattern = pattern;
+  }
+
+  /**
+   * Returns null if the pattern can't be translated.
+   */
+  static JavaRegexEngine compile(char[] pattern, int cflags, RESyntax syntax,
+				 int numSubs) {
+    String s = translate(pattern, cflags, syntax);
+    if (s == null)
+      return null;
+    int flags = 0;
+    if ((cflags & RE.REG_ICASE) != 0)
+      flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+    Pattern p;
+    try {
+      p = Pattern.compile(s, flags);
+    } catch (PatternSyntaxException e) {
+      return null;
+    }
+    if (p.matcher("").groupCount() != numSubs)
+      return null;
+    return new JavaRegexEngine(p);
+  }
+
+  /**
+   * Returns the java.util.regex form of a pattern, or null if it has a
+   * construct this engine doesn't handle.
+   */
+  static String translate(char[] pattern, int cflags, RESyntax syntax) {
+    if (syntax != RESyntax.RE_SYNTAX_PERL5 && syntax != RESyntax.RE_SYNTAX_PERL5_S)
+      return null;
+    boolean dotNewline = syntax == RESyntax.RE_SYNTAX_PERL5_S
+      || (cflags & RE.REG_DOT_NEWLINE) != 0;
+    String newline = (cflags & RE.REG_MULTILINE) != 0
+      ? syntax.getLineSeparator() : null;
+    StringBuffer sb = new StringBuffer(pattern.length * 2);
+    boolean icase = (cflags & RE.REG_ICASE) != 0;
+    if (!translate(pattern, 0, pattern.length, icase, dotNewline, newline,
+		   new int[1], sb))
+      return null;
+    return sb.toString();
+  }
+
+  // Translates pattern[begin..end), parsing it the same way RE.initialize()
+  // does. groups[0] counts the capturing groups opened so far.
+  private static boolean translate(char[] pattern, int begin, int end,
+				   boolean icase, boolean dotNewline,
+				   String newline, int[] groups,
+				   StringBuffer sb) {
+    int index = begin;
+    // True if the last thing translated can take a quantifier.
+    boolean atom = false;
+    // True if the last thing translated was a quantifier.
+    boolean quantified = false;
+    while (index < end) {
+      char ch = pattern[index++];
+      boolean bk = ch == '\\';
+      if (bk) {
+	if (index == end)
+	  return false;
+	ch = pattern[index++];
+      }
+      if (ch == 0)
+	return false;
+      if (!bk && ch == '|')
+	return false;
+      if (!bk && (ch == '*' || ch == '+' || ch == '?')) {
+	if (quantified)
+	  return false; // Stingy.
+	if (!atom)
+	  return false;
+	sb.append(ch);
+	quantified = true;
+	atom = false;
+	continue;
+      }
+      if (!bk && ch == '{') {
+	int close = getInterval(pattern, index, end);
+	if (close == -2)
+	  return false;
+	if (close > 0) {
+	  if (quantified || !atom)
+	    return false;
+	  sb.append(pattern, index - 1, close + 1 - (index - 1));
+	  index = close + 1;
+	  quantified = true;
+	  atom = false;
+	  continue;
+	}
+	// Otherwise '{' is an ordinary character.
+      }
+      quantified = false;
+      if (!bk && ch == '[') {
+	index = translateList(pattern, index, end, icase, sb);
+	if (index < 0)
+	  return false;
+	atom = true;
+      } else if (!bk && ch == '(') {
+	boolean pure = false;
+	if (index + 1 < end && pattern[index] == '?') {
+	  switch (pattern[index + 1]) {
+	  case ':':
+	    pure = true;
+	    index += 2;
+	    break;
+	  case '#':
+	    // A comment.
+	    index = findClose(pattern, index, end);
+	    if (index < 0)
+	      return false;
+	    ++index;
+	    atom = false;
+	    continue;
+	  default:
+	    return false; // Lookahead.
+	  }
+	}
+	int close = findClose(pattern, index, end);
+	if (close < 0)
+	  return false;
+	if (pure) {
+	  sb.append("(?:");
+	} else {
+	  sb.append('(');
+	  ++groups[0];
+	}
+	String[] words = getWords(pattern, index, close, icase);
+	if (words != null) {
+	  for (int i = 0; i < words.length; i++) {
+	    if (i > 0)
+	      sb.append('|');
+	    appendLiteral(words[i], sb);
+	  }
+	} else if (!translate(pattern, index, close, icase, dotNewline,
+			      newline, groups, sb))
+	  return false;
+	sb.append(')');
+	index = close + 1;
+	// The token chain prefers the longest number of repetitions of a
+	// group, not the greediest.
+	atom = false;
+      } else if (!bk && ch == ')') {
+	return false;
+      } else if (!bk && ch == '^') {
+	if (newline != null) {
+	  // Elsewhere the token chain only matches after a newline that
+	  // precedes the place where the match was tried.
+	  if (index != 1)
+	    return false;
+	  sb.append("(?:^|(?<=");
+	  appendLiteral(newline, sb);
+	  sb.append("))");
+	} else
+	  sb.append('^');
+	atom = false;
+      } else if (!bk && ch == '$') {
+	if (newline != null) {
+	  sb.append("(?=");
+	  appendLiteral(newline, sb);
+	  sb.append("|\\z)");
+	} else
+	  sb.append("\\z");
+	atom = false;
+      } else if (!bk && ch == '.') {
+	sb.append(dotNewline ? "(?s:.)" : "[^\\n]");
+	atom = true;
+      } else if (bk && Character.isDigit(ch)) {
+	if (ch < '1' || ch > '9' || ch - '0' > groups[0])
+	  return false;
+	if (icase)
+	  return false; // The token chain compares the exact text.
+	sb.append("(?:\\").append(ch).append(')');
+	atom = true;
+      } else if (bk && ch == 'A') {
+	sb.append('^');
+	atom = false;
+      } else if (bk && ch == 'Z') {
+	sb.append("\\z");
+	atom = false;
+      } else if (bk && ch == 'b') {
+	sb.append("\\b");
+	atom = false;
+      } else if (bk && ch == 'B') {
+	sb.append("\\B");
+	atom = false;
+      } else if (bk && ch == '<') {
+	sb.append("(?<![" + WORD + "])(?=[" + WORD + "])");
+	atom = false;
+      } else if (bk && ch == '>') {
+	sb.append("(?<=[" + WORD + "])(?![" + WORD + "])");
+	atom = false;
+      } else if (bk && "dDsSwW".indexOf(ch) >= 0) {
+	sb.append(Character.isUpperCase(ch) ? "[^" : "[");
+	sb.append(getClass(Character.toLowerCase(ch)));
+	sb.append(']');
+	atom = true;
+      } else {
+	if (bk && icase && "nrt".indexOf(ch) >= 0) {
+	  // The token chain compares the characters after these without
+	  // ignoring case.
+	  return false;
+	}
+	if (bk && ch == 'n')
+	  ch = '\n';
+	else if (bk && ch == 'r')
+	  ch = '\r';
+	else if (bk && ch == 't')
+	  ch = '\t';
+	appendLiteral(ch, sb);
+	atom = true;
+      }
+    }
+    return true;
+  }
+
+  // If pattern[begin..end) is an alternation of plain words, such as
+  // "href|src", none of which begins another, returns the words. At most
+  // one of them can match at any position, so both engines agree.
+  private static String[] getWords(char[] pattern, int begin, int end,
+				   boolean icase) {
+    Vector words = new Vector();
+    StringBuffer word = new StringBuffer();
+    for (int i = begin; i <= end; i++) {
+      if (i == end || pattern[i] == '|') {
+	if (word.length() == 0)
+	  return null;
+	words.addElement(icase ? word.toString().toLowerCase() : word.toString());
+	word.setLength(0);
+	continue;
+      }
+      char ch = pattern[i];
+      if (ch == '\\') {
+	if (++i == end)
+	  return null;
+	ch = pattern[i];
+	if (Character.isLetterOrDigit(ch))
+	  return null; // Not a plain character.
+      } else if ("[](){}.*+?^$".indexOf(ch) >= 0)
+	return null;
+      if (ch == 0 || ch >= 128)
+	return null;
+      word.append(ch);
+    }
+    if (words.size() < 2)
+      return null;
+    for (int i = 0; i < words.size(); i++)
+      for (int j = 0; j < words.size(); j++)
+	if (i != j && ((String) words.elementAt(i)).startsWith((String) words.elementAt(j)))
+	  return null;
+    String[] array = new String[words.size()];
+    words.copyInto(array);
+    return array;
+  }
+
+  // Returns the index of the '}' closing an interval that starts at
+  // pattern[index]: {n}, {n,} or {n,m}. Returns -1 if the '{' is an
+  // ordinary character, or -2 if it's hard to tell.
+  private static int getInterval(char[] pattern, int index, int end) {
+    for (int j = index; j < end && pattern[j] != '}'; j++)
+      if (pattern[j] == '\\' || pattern[j] >= 128)
+	return -2;
+    int i = index;
+    while (i < end && Character.isDigit(pattern[i]))
+      ++i;
+    if (i == index || i == end)
+      return -1;
+    if (pattern[i] == ',') {
+      ++i;
+      while (i < end && Character.isDigit(pattern[i]))
+	++i;
+      if (i == end)
+	return -1;
+    }
+    if (pattern[i] != '}')
+      return -1;
+    if (i - index > 6)
+      return -2; // Huge counts.
+    return i;
+  }
+
+  // Returns the index of the ')' that closes the group starting at
+  // pattern[index], found the way RE.initialize() finds it (brackets are
+  // not special), or -1.
+  private static int findClose(char[] pattern, int index, int end) {
+    int nested = 0;
+    while (index < end) {
+      char ch = pattern[index];
+      if (ch == '\\') {
+	index += 2;
+	continue;
+      }
+      if (ch == '(')
+	++nested;
+      else if (ch == ')') {
+	if (nested == 0)
+	  return index;
+	--nested;
+      }
+      ++index;
+    }
+    return -1;
+  }
+
+  // Translates a list whose '[' is at pattern[index-1]. Returns the index
+  // after its ']', or -1.
+  private static int translateList(char[] pattern, int index, int end,
+				   boolean icase, StringBuffer sb) {
+    if (index == end)
+      return -1;
+    boolean negative = false;
+    char ch = pattern[index];
+    if (ch == '^') {
+      negative = true;
+      if (++index == end)
+	return -1;
+      ch = pattern[index];
+    }
+    StringBuffer items = new StringBuffer();
+    boolean nested = false;
+    char lastChar = 0;
+    if (ch == ']') {
+      lastChar = ch;
+      if (++index == end)
+	return -1;
+    }
+    while ((ch = pattern[index++]) != ']') {
+      if (ch == 0)
+	return -1;
+      if (ch == '-' && lastChar != 0) {
+	if (index == end)
+	  return -1;
+	if ((ch = pattern[index]) == ']') {
+	  appendClassChar(lastChar, items);
+	  lastChar = '-';
+	} else {
+	  if (lastChar > ch)
+	    return -1; // Matches nothing in the token chain.
+	  if (icase && !isCaseless(lastChar, ch))
+	    return -1;
+	  appendClassChar(lastChar, items);
+	  items.append('-');
+	  appendClassChar(ch, items);
+	  lastChar = 0;
+	  index++;
+	}
+      } else if (ch == '\\') {
+	if (index == end)
+	  return -1;
+	char esc = pattern[index];
+	if (lastChar != 0)
+	  appendClassChar(lastChar, items);
+	lastChar = 0;
+	if ("dswDSW".indexOf(esc) >= 0) {
+	  if (Character.isUpperCase(esc)) {
+	    items.append("[^").append(getClass(Character.toLowerCase(esc))).append(']');
+	    nested = true;
+	  } else
+	    items.append(getClass(esc));
+	} else if (esc == 'n') {
+	  lastChar = '\n';
+	} else if (esc == 't') {
+	  lastChar = '\t';
+	} else if (esc == 'r') {
+	  lastChar = '\r';
+	} else {
+	  lastChar = esc;
+	}
+	++index;
+      } else {
+	if (lastChar != 0)
+	  appendClassChar(lastChar, items);
+	lastChar = ch;
+      }
+      if (index == end)
+	return -1;
+    }
+    if (lastChar != 0)
+      appendClassChar(lastChar, items);
+    // In java.util.regex a negated list doesn't negate the lists nested in
+    // it.
+    if (negative && nested)
+      return -1;
+    if (items.length() == 0)
+      return -1;
+    sb.append(negative ? "[^" : "[").append(items).append(']');
+    return index;
+  }
+
+  // Returns true if ignoring case means the same for a range in both
+  // engines: the token chain compares the lower case forms of the
+  // character and the ends of the range.
+  private static boolean isCaseless(char lo, char hi) {
+    if (lo >= 'a' && hi <= 'z')
+      return true;
+    if (lo >= 'A' && hi <= 'Z')
+      return true;
+    if (hi < 'A')
+      return true;
+    if (lo > 'Z' && hi < 'a')
+      return true;
+    return lo > 'z' && hi < 128;
+  }
+
+  private static String getClass(char ch) {
+    switch (ch) {
+    case 'd':
+      return "\\p{javaDigit}";
+    case 's':
+      return "\\p{javaWhitespace}";
+    default:
+      return WORD;
+    }
+  }
+
+  private static void appendLiteral(String s, StringBuffer sb) {
+    for (int i = 0; i < s.length(); i++)
+      appendLiteral(s.charAt(i), sb);
+  }
+
+  private static void appendLiteral(char ch, StringBuffer sb) {
+    if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9'))
+      sb.append(ch);
+    else
+      appendEscape(ch, sb);
+  }
+
+  private static void appendClassChar(char ch, StringBuffer sb) {
+    appendLiteral(ch, sb);
+  }
+
+  private static void appendEscape(char ch, StringBuffer sb) {
+    String hex = Integer.toHexString(ch);
+    sb.append("\\u");
+    for (int i = hex.length(); i < 4; i++)
+      sb.append('0');
+    sb.append(hex);
+  }
+
+  /**
+   * Returns the first match at or after index, as RE.getMatch() would.
+   */
+  REMatch getMatch(CharSequence input, int index, int numSubs) {
+    Matcher m = pattern.matcher(input);
+    if (!m.find(index))
+      return null;
+    // The token chain never tries to match at the end of the input unless
+    // it starts there.
+    if (m.start() == input.length() && index < input.length())
+      return null;
+    REMatch match = new REMatch(numSubs, index, 0);
+    match.finish(m);
+    return match;
+  }
+
+  /**
+   * Returns true if the input from index to the end matches, as
+   * RE.isMatch() would.
+   */
+  boolean isMatch(CharSequence input, int index) {
+    Matcher m = pattern.matcher(input);
+    m.region(index, input.length());
+    m.useAnchoringBounds(false);
+    m.useTransparentBounds(true);
+    return m.matches();
+  }
+
+  String getPattern() {
+    return pattern.pattern();
+  }
+}
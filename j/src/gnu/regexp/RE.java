@@ -114,6 +114,33 @@ public class RE extends REToken {
     /** Minimum length, in characters, of any possible match. */
     private int minimumLength;
 
+  // Set if java.util.regex can run this expression; see JavaRegexEngine.
+  private transient JavaRegexEngine engine;
+
+  /**
+   * Engine: always run expressions with the token chain.
+   */
+  public static final int ENGINE_INTERPRETED = 0;
+
+  /**
+   * Engine: run expressions with java.util.regex when they mean the same
+   * there (the default).
+   */
+  public static final int ENGINE_JAVA = 1;
+
+  private static volatile int defaultEngine = ENGINE_JAVA;
+
+  /**
+   * Sets the engine used by expressions constructed from now on.
+   */
+  public static void setDefaultEngine(int engine) {
+    defaultEngine = engine;
+  }
+
+  public static int getDefaultEngine() {
+    return defaultEngine;
+  }
+
   /**
    * Compilation flag. Do  not  differentiate  case.   Subsequent
    * searches  using  this  RE will be case insensitive.
@@ -216,6 +243,7 @@ public class RE extends REToken {
    */
   public RE(Object pattern) throws REException {
     this(pattern,0,RESyntax.RE_SYNTAX_PERL5,0,0);
+    initializeEngine(pattern,0,RESyntax.RE_SYNTAX_PERL5);
   }
 
   /**
@@ -231,6 +259,7 @@ public class RE extends REToken {
    */
   public RE(Object pattern, int cflags) throws REException {
     this(pattern,cflags,RESyntax.RE_SYNTAX_PERL5,0,0);
+    initializeEngine(pattern,cflags,RESyntax.RE_SYNTAX_PERL5);
   }
 
   /**
@@ -247,6 +276,7 @@ public class RE extends REToken {
    */
   public RE(Object pattern, int cflags, RESyntax syntax) throws REException {
     this(pattern,cflags,syntax,0,0);
+    initializeEngine(pattern,cflags,syntax);
   }
 
   // internal constructor used for alternation
@@ -267,6 +297,26 @@ public class RE extends REToken {
     // For use by subclasses
     protected RE() { super(0); }
 
+    // Called once the top-level expression has been parsed.
+  void initializeEngine(Object patternObj, int cflags, RESyntax syntax) {
+    if (defaultEngine != ENGINE_JAVA)
+      return;
+    char[] pattern;
+    if (patternObj instanceof char[])
+      pattern = (char[]) patternObj;
+    else
+      pattern = patternObj.toString().toCharArray();
+    engine = JavaRegexEngine.compile(pattern, cflags, syntax, numSubs);
+  }
+
+  /**
+   * Returns true if this expression is run by java.util.regex rather
+   * than the token chain.
+   */
+  public boolean isCompiled() {
+    return engine != null;
+  }
+
     // The meat of construction
   protected void initialize(Object patternObj, int cflags, RESyntax syntax, int myIndex, int nextSub) throws REException {
       char[] pattern;
@@ -821,6 +871,11 @@ public class RE extends REToken {
    * @param eflags The logical OR of any execution flags above.
    */
   public boolean isMatch(Object input,int index,int eflags) {
+    if (engine != null && eflags == 0 && input instanceof CharSequence) {
+      CharSequence s = (CharSequence) input;
+      if (index >= 0 && index <= s.length())
+	return engine.isMatch(s, index);
+    }
     return isMatchImpl(makeCharIndexed(input,index),index,eflags);
   }
 
@@ -998,6 +1053,12 @@ public class RE extends REToken {
    * @param buffer The StringBuffer to save pre-match text in.
    * @return An REMatch instance referencing the match, or null if none.  */
   public REMatch getMatch(Object input, int index, int eflags, StringBuffer buffer) {
+    if (engine != null && eflags == 0 && buffer == null
+	&& input instanceof CharSequence) {
+      CharSequence s = (CharSequence) input;
+      if (index >= 0 && index <= s.length())
+	return engine.getMatch(s, index, numSubs);
+    }
     return getMatchImpl(makeCharIndexed(input,index),index,eflags,buffer);
   }
 
@@ -19,6 +19,7 @@
 
 package gnu.regexp;
 import java.io.Serializable;
+import java.util.regex.Matcher;
 
 /**
  * An instance of this class represents a match
@@ -103,6 +104,23 @@ public final class REMatch implements Serializable, Cloneable {
 	next = null; // cut off alternates
     }
 
+    /** Fills in a match found by JavaRegexEngine. */
+    void finish(Matcher m) {
+	offset = m.start();
+	int groups = m.groupCount();
+	for (int i = 0; i < start.length; i++) {
+	    int x = i <= groups ? m.start(i) : -1;
+	    if (x == -1) {
+		start[i] = end[i] = -1;
+	    } else {
+		start[i] = x - offset;
+		end[i] = m.end(i) - offset;
+	    }
+	}
+	matchedText = m.group();
+	next = null;
+    }
+
     /** Clears the current match and moves the offset to the new index. */
     void clear(int index) {
 	offset = index;
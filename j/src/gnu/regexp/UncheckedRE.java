@@ -82,6 +82,7 @@ public final class UncheckedRE extends RE {
   public UncheckedRE(Object pattern, int cflags, RESyntax syntax) {
       try {
 	  initialize(pattern,cflags,syntax,0,0);
+	  initializeEngine(pattern,cflags,syntax);
       } catch (REException e) { 
 	  throw new RuntimeException(e.getMessage());
       }
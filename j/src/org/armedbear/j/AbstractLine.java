@@ -25,10 +25,40 @@ public abstract class AbstractLine implements Line
     private Line prev;
     private Line next;
     private int lineNumber = -1;
+    private LineNumbering numbering;
     private int originalLineNumber = -1;
     private int hidden;
     private Annotation annotation;
 
+    // Incremental parsing state (see Formatter.parseBufferIncrementally).
+    private volatile Formatter parser;
+    private String parsedText;
+    private int startState;
+    private int endState;
+
+    // The index of the buffer's lines that this line was last put in.
+    private volatile LineIndex index;
+
+    /*package*/ final void setIndex(LineIndex index)
+    {
+        this.index = index;
+    }
+
+    // Tells the formatter that last parsed this line and the index it was
+    // last put in (if any) that the text of the line has changed, or, if
+    // line is null, that the links between lines have changed. A line that
+    // has just been linked into a buffer hasn't been parsed or indexed yet,
+    // but the lines it's linked to have.
+    protected final void changed(Line line)
+    {
+        final Formatter p = parser;
+        if (p != null)
+            p.lineChanged(line);
+        final LineIndex i = index;
+        if (i != null)
+            i.lineChanged(this, line == null);
+    }
+
     public final synchronized Line previous()
     {
         return prev;
@@ -37,6 +67,7 @@ public abstract class AbstractLine implements Line
     public final synchronized void setPrevious(Line line)
     {
         prev = line;
+        changed(null);
     }
 
     public final synchronized Line next()
@@ -47,6 +78,7 @@ public abstract class AbstractLine implements Line
     public final synchronized void setNext(Line line)
     {
         next = line;
+        changed(null);
     }
 
     public final synchronized void insertAfter(Line line)
@@ -64,12 +96,24 @@ public abstract class AbstractLine implements Line
 
     public final synchronized int lineNumber()
     {
+        if (numbering != null)
+            return lineNumber - numbering.getOrigin();
         return lineNumber;
     }
 
     public final synchronized void setLineNumber(int n)
     {
-        lineNumber = n;
+        if (numbering != null)
+            lineNumber = n + numbering.getOrigin();
+        else
+            lineNumber = n;
+    }
+
+    /*package*/ final synchronized void setLineNumber(LineNumbering numbering,
+        int n)
+    {
+        this.numbering = numbering;
+        setLineNumber(n);
     }
 
     public final synchronized int originalLineNumber()
@@ -209,7 +253,7 @@ public abstract class AbstractLine implements Line
 
     public final boolean isBefore(Line line)
     {
-        return lineNumber < line.lineNumber();
+        return lineNumber() < line.lineNumber();
     }
 
     // Derived classes override this!
@@ -234,6 +278,31 @@ public abstract class AbstractLine implements Line
         this.annotation = annotation;
     }
 
+    public final synchronized boolean isParsed(int state)
+    {
+        return parsedText != null && parsedText == getText() &&
+            startState == state;
+    }
+
+    public final synchronized boolean isParsedBy(Formatter parser)
+    {
+        return this.parser == parser;
+    }
+
+    public final synchronized int getEndState()
+    {
+        return endState;
+    }
+
+    public final synchronized void setParsed(Formatter parser, int startState,
+        int endState)
+    {
+        this.parser = parser;
+        parsedText = getText();
+        this.startState = startState;
+        this.endState = endState;
+    }
+
     public final String toString()
     {
         FastStringBuffer sb = new FastStringBuffer();
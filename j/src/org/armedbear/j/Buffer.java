@@ -33,6 +33,8 @@ import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
@@ -610,6 +612,25 @@ public class Buffer extends SystemBuffer
         return rwlock.isWriteLocked();
     }
 
+    // Optimistic reads. A reader that doesn't take the read lock gets a
+    // stamp here before reading and calls validate() afterwards; if
+    // validate() returns false, a writer got in and the results must be
+    // discarded.
+    public final long tryOptimisticRead()
+    {
+        return rwlock.tryOptimisticRead();
+    }
+
+    public final boolean validate(long stamp)
+    {
+        return rwlock.validate(stamp);
+    }
+
+    public final String getLockStatistics()
+    {
+        return rwlock.getStatistics();
+    }
+
     public boolean isVisible()
     {
         for (EditorIterator it = new EditorIterator(); it.hasNext();)
@@ -954,6 +975,83 @@ public class Buffer extends SystemBuffer
         this.lastModified = lastModified;
     }
 
+    // The file whose directory is being watched for this buffer (see
+    // FileWatcher), and whether anything has happened to it since
+    // checkFileChanged() last returned.
+    private volatile File watchedFile;
+    private volatile boolean fileChanged;
+
+    private final FileWatcher.Listener fileListener = new FileWatcher.Listener() {
+        public void filesChanged(File dir, Set names)
+        {
+            final File file = watchedFile;
+            if (file == null)
+                return;
+            if (names != null && !names.contains(file.getName()))
+                return;
+            if (names == null || !Editor.getBufferList().contains(Buffer.this)) {
+                // Events were lost or the directory went away, or the
+                // buffer has been killed. Start over if need be.
+                FileWatcher.getInstance().unwatch(dir, this);
+                watchedFile = null;
+            }
+            fileChanged = true;
+            reactivateLater();
+        }
+    };
+
+    // Returns true if the buffer's file may have changed on disk since the
+    // last call, so the caller needs to check it. Returns false only if the
+    // file's directory is being watched and nothing has happened to the
+    // file.
+    public final boolean checkFileChanged()
+    {
+        final File file = getFile();
+        if (file == null || file.isRemote())
+            return true;
+        if (!file.equals(watchedFile)) {
+            unwatchFile();
+            FileWatcher watcher = FileWatcher.getInstance();
+            if (watcher != null && watcher.watch(file.getParentFile(), fileListener))
+                watchedFile = file;
+            fileChanged = false;
+            return true;
+        }
+        if (!fileChanged)
+            return false;
+        fileChanged = false;
+        return true;
+    }
+
+    private void unwatchFile()
+    {
+        final File file = watchedFile;
+        if (file != null) {
+            watchedFile = null;
+            FileWatcher.getInstance().unwatch(file.getParentFile(), fileListener);
+        }
+    }
+
+    private static final AtomicBoolean reactivatePending = new AtomicBoolean();
+
+    // Checks the buffers for changes on disk if the editor's window is
+    // active. (Otherwise that happens when the window is activated.)
+    private static void reactivateLater()
+    {
+        if (!reactivatePending.compareAndSet(false, true))
+            return;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run()
+            {
+                reactivatePending.set(false);
+                Editor editor = Editor.currentEditor();
+                if (editor != null && editor.getFrame() != null &&
+                    editor.getFrame().isActive())
+                    editor.getFrame().reactivate();
+            }
+        });
+    }
+
     protected void loadFile(File toBeLoaded)
     {
         try {
@@ -962,7 +1060,10 @@ public class Buffer extends SystemBuffer
                 mode.loadFile(this, toBeLoaded);
             else {
                 final String encoding = toBeLoaded.getEncoding();
-                load(toBeLoaded.getInputStream(), encoding);
+                if (compression == null && isLargeFile(toBeLoaded, encoding))
+                    loadMapped(toBeLoaded, encoding);
+                else
+                    load(toBeLoaded.getInputStream(), encoding);
                 if (encoding != null)
                     saveProperties(); // Remember encoding for next time.
             }
@@ -2183,13 +2284,21 @@ public class Buffer extends SystemBuffer
     {
         if (lineNumber < 0)
             return null;
+        final LineIndex index = getLineIndex();
+        final Line line = index.getLine(lineNumber);
+        if (line != null && line.lineNumber() == lineNumber)
+            return line;
+        if (line == null && lineNumber >= index.getLineCount())
+            return null;
+        // The index is out of date (the buffer has been changed without
+        // being marked as modified). Walk the list.
         int n = 0;
-        Line line = getFirstLine();
-        while (line != null && n != lineNumber) {
-            line = line.next();
+        Line l = getFirstLine();
+        while (l != null && n != lineNumber) {
+            l = l.next();
             ++n;
         }
-        return line;
+        return l;
     }
 
     /**
@@ -2204,18 +2313,13 @@ public class Buffer extends SystemBuffer
     {
         if (offset < 0)
             offset = 0;
-        Line line = getFirstLine();
-        while (line != null && line.originalLineNumber() != lineNumber)
-            line = line.next();
+        final LineIndex index = getLineIndex();
+        Line line = index.findOriginal(lineNumber, true);
         if (line != null)
             return new Position(line, Math.min(offset, line.length()));
-        if (line == null) {
-            // We didn't find the exact line we were looking for. Find the
-            // line with the next highest original line number.
-            line = getFirstLine();
-            while (line != null && line.originalLineNumber() < lineNumber)
-                line = line.next();
-        }
+        // We didn't find the exact line we were looking for. Find the line
+        // with the next highest original line number.
+        line = index.findOriginal(lineNumber, false);
         if (line != null)
             return new Position(line, 0);
         return getEnd();
@@ -2224,6 +2328,9 @@ public class Buffer extends SystemBuffer
     // Convert position into absolute character offset from start of buffer.
     public int getAbsoluteOffset(Position pos)
     {
+        final long absoluteOffset = getLineIndex().getAbsoluteOffset(pos);
+        if (absoluteOffset >= 0)
+            return absoluteOffset <= Integer.MAX_VALUE ? (int) absoluteOffset : -1;
         Line targetLine = pos.getLine();
         int offset = 0;
         Line line = getFirstLine();
@@ -2240,6 +2347,14 @@ public class Buffer extends SystemBuffer
     // Convert absolute character offset from start of buffer into position.
     public Position getPosition(int goal)
     {
+        final LineIndex index = getLineIndex();
+        final int i = index.findLineContaining(goal);
+        if (i < 0)
+            return null; // Past the end of the buffer.
+        if (index.isCurrent(i))
+            return new Position(index.getLine(i), goal - (int) index.getStart(i));
+        // The index is out of date. Walk the list.
+        invalidateLineIndex();
         int offset = 0;
         Line line = getFirstLine();
         while (line != null) {
@@ -2659,13 +2774,25 @@ public class Buffer extends SystemBuffer
 
     private boolean folded;
 
+    // The origin of the line numbers (see enforceOutputLimit()).
+    private final LineNumbering numbering = new LineNumbering();
+
+    private void setLineNumber(Line line, int n)
+    {
+        if (line instanceof AbstractLine)
+            ((AbstractLine) line).setLineNumber(numbering, n);
+        else
+            line.setLineNumber(n);
+    }
+
     public final void renumber()
     {
+        invalidateLineIndex();
         folded = false;
         lineCount = 0;
         visibleLineCount = 0;
         for (Line line = getFirstLine(); line != null; line = line.next()) {
-            line.setLineNumber(lineCount++);
+            setLineNumber(line, lineCount++);
             if (line.isHidden())
                 folded = true;
             else
@@ -2674,14 +2801,38 @@ public class Buffer extends SystemBuffer
         needsRenumbering = false;
     }
 
+    // Numbers the lines after line, which must already be numbered
+    // correctly (as must the lines before it). Used when lines have only
+    // been added at the end of the buffer.
+    protected final void renumberAfter(Line line)
+    {
+        if (folded) {
+            renumber();
+            return;
+        }
+        invalidateLineIndex();
+        int n = line.lineNumber();
+        for (Line l = line.next(); l != null; l = l.next()) {
+            setLineNumber(l, ++n);
+            if (l.isHidden()) {
+                renumber();
+                return;
+            }
+        }
+        lineCount = n + 1;
+        visibleLineCount = lineCount;
+        needsRenumbering = false;
+    }
+
     protected void renumberOriginal()
     {
+        invalidateLineIndex();
         folded = false;
         lineCount = 0;
         visibleLineCount = 0;
         for (Line line = getFirstLine(); line != null; line = line.next()) {
             line.setOriginalLineNumber(lineCount);
-            line.setLineNumber(lineCount++);
+            setLineNumber(line, lineCount++);
             if (line.isHidden())
                 folded = true;
             else
@@ -2705,17 +2856,31 @@ public class Buffer extends SystemBuffer
             return;
         }
         try {
-            Position begin = new Position(getFirstLine(), 0);
-            Line line = getFirstLine();
+            final boolean wasNumbered = !needsRenumbering;
+            final Line first = getFirstLine();
+            Line line = first;
+            int count = 0;
             for (int i = lineCount - outputLimit; i > 0; i--) {
                 if (line.next() == null)
                     break;
                 line = line.next();
+                ++count;
             }
+            Position begin = new Position(first, 0);
             Position end = new Position(line, 0);
             Region r = new Region(this, begin, end);
             r.deleteLines();
-            if (needsRenumbering)
+            // The first line now has the text of the last line removed, and
+            // the lines after it have moved up by count. Unless lines are
+            // hidden, moving the origin renumbers them without walking the
+            // rest of the buffer.
+            if (wasNumbered && !folded) {
+                numbering.advance(count);
+                setLineNumber(first, 0);
+                lineCount -= count;
+                visibleLineCount = lineCount;
+                needsRenumbering = false;
+            } else
                 renumber();
             resetUndo();
         }
@@ -2755,6 +2920,7 @@ public class Buffer extends SystemBuffer
 
     public void dispose()
     {
+        unwatchFile();
         if (cache != null && cache.isFile()) {
             // Only delete the cache file if no other buffer is using it.
             for (BufferIterator it = new BufferIterator(); it.hasNext();) {
@@ -2835,13 +3001,50 @@ public class Buffer extends SystemBuffer
     private SoftReference srText;
 
     // Never returns null.
-    public synchronized String getText()
-    {
-        if (srText != null) {
-            final String text = (String) srText.get();
-            if (text != null)
-                return text;
+    public String getText()
+    {
+        final int expectedModCount;
+        synchronized (this) {
+            if (srText != null) {
+                final String text = (String) srText.get();
+                if (text != null)
+                    return text;
+            }
+            expectedModCount = modCount;
+        }
+        if (rwlock.isWriteLockedByCurrentThread())
+            return cacheText(buildText(), expectedModCount);
+        // Build the text without blocking writers. If a writer gets in, try
+        // again. As a last resort, return what we read, as this method has
+        // always done (it is called without any lock by background threads).
+        String text = null;
+        for (int i = 0; i < 3; i++) {
+            final long stamp = rwlock.tryOptimisticRead();
+            try {
+                text = buildText();
+            }
+            catch (RuntimeException e) {
+                // The line list changed under us.
+                if (rwlock.validate(stamp))
+                    throw e;
+                text = null;
+                continue;
+            }
+            if (rwlock.validate(stamp))
+                return cacheText(text, expectedModCount);
         }
+        return text != null ? text : buildText();
+    }
+
+    private synchronized String cacheText(String text, int expectedModCount)
+    {
+        if (modCount == expectedModCount)
+            srText = new SoftReference(text);
+        return text;
+    }
+
+    private String buildText()
+    {
         FastStringBuffer sb = new FastStringBuffer(16384);
         Line line = getFirstLine();
         if (line != null) {
@@ -2858,9 +3061,7 @@ public class Buffer extends SystemBuffer
                 line = line.next();
             }
         }
-        final String text = sb.toString();
-        srText = new SoftReference(text);
-        return text;
+        return sb.toString();
     }
 
     public boolean isEmpty()
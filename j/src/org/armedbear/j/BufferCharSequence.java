@@ -0,0 +1,166 @@
+/*
+ * BufferCharSequence.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import gnu.regexp.CharIndexed;
+
+// The text of a buffer, as Buffer.getText() would return it, read straight
+// from the lines instead of being copied into a string. Lines are separated
+// by '\n'.
+//
+// The sequence remembers the line it read last, so reading forward or
+// backward from there costs O(1) per character; jumping elsewhere costs a
+// binary search of the buffer's LineIndex. It is only valid until the
+// buffer is next modified.
+public final class BufferCharSequence implements CharSequence
+{
+    private final LineIndex index;
+    private final int length;
+
+    // The line read last.
+    private int lineIndex = -1;
+    private int lineStart;
+    private int lineEnd; // Offset of the separator after the line.
+    private String text;
+
+    public BufferCharSequence(Buffer buffer)
+    {
+        this(buffer.getLineIndex());
+    }
+
+    public BufferCharSequence(LineIndex index)
+    {
+        this.index = index;
+        // A CharSequence can't be longer than this.
+        length = (int) Math.min(index.getTextLength(), Integer.MAX_VALUE);
+    }
+
+    public int length()
+    {
+        return length;
+    }
+
+    public char charAt(int i)
+    {
+        if (i < lineStart || i > lineEnd || lineIndex < 0) {
+            if (i < 0 || i >= length)
+                throw new IndexOutOfBoundsException(String.valueOf(i));
+            seek(i);
+        }
+        return i < lineEnd ? text.charAt(i - lineStart) : '\n';
+    }
+
+    private void seek(int i)
+    {
+        int n;
+        if (lineIndex >= 0 && i == lineEnd + 1)
+            n = lineIndex + 1; // Reading forward.
+        else if (lineIndex > 0 && i == lineStart - 1)
+            n = lineIndex - 1; // Reading backward.
+        else
+            n = index.findLine(i);
+        lineIndex = n;
+        lineStart = (int) index.getStart(n); // n's start is <= i.
+        text = index.getLine(n).getText();
+        if (text == null)
+            text = "";
+        lineEnd = lineStart + text.length();
+    }
+
+    public CharSequence subSequence(int start, int end)
+    {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException();
+        FastStringBuffer sb = new FastStringBuffer(end - start);
+        for (int i = start; i < end; i++)
+            sb.append(charAt(i));
+        return sb.toString();
+    }
+
+    public String toString()
+    {
+        return subSequence(0, length).toString();
+    }
+
+    // Returns null if offset is past the end of the buffer.
+    public Position getPosition(int offset)
+    {
+        if (offset < 0 || offset > length)
+            return null;
+        if (offset < lineStart || offset > lineEnd || lineIndex < 0) {
+            if (offset == length && length > 0)
+                seek(offset - 1);
+            else
+                seek(offset);
+        }
+        return new Position(index.getLine(lineIndex), offset - lineStart);
+    }
+
+    // Returns -1 if the position isn't in the buffer.
+    public int getOffset(Position pos)
+    {
+        final Line line = pos.getLine();
+        final int i = index.indexOf(line);
+        if (i < 0)
+            return -1;
+        final long offset = index.getStart(i) + pos.getOffset();
+        return offset <= length ? (int) offset : -1;
+    }
+
+    // Returns a gnu.regexp view of the characters from begin up to end.
+    // Characters before begin can still be seen by '^' and word boundaries,
+    // as when searching a string from an index.
+    public CharIndexed getCharIndexed(int begin, int end)
+    {
+        return new Cursor(begin, Math.min(end, length));
+    }
+
+    private final class Cursor implements CharIndexed
+    {
+        private int anchor;
+        private final int end;
+
+        Cursor(int anchor, int end)
+        {
+            this.anchor = anchor;
+            this.end = end;
+        }
+
+        public char charAt(int i)
+        {
+            final int pos = anchor + i;
+            if (pos < 0 || pos >= end)
+                return OUT_OF_BOUNDS;
+            return BufferCharSequence.this.charAt(pos);
+        }
+
+        public boolean move(int i)
+        {
+            return (anchor += i) < end;
+        }
+
+        public boolean isValid()
+        {
+            return anchor < end;
+        }
+    }
+}
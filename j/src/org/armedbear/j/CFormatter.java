@@ -340,92 +340,98 @@ public final class CFormatter extends Formatter implements Constants
         return segmentList;
     }
 
+    // The state passed between lines by scanLine() is the state at the start
+    // of the next line, plus these bits.
+    private static final int CONTINUED   = 0x100;   // Line ends with '\\'.
+    private static final int DEPTH_SHIFT = 16;      // Nesting depth in #if 0.
+
     public boolean parseBuffer()
     {
-        int state = STATE_NEUTRAL;
-        boolean continued = false;
-        Line line = buffer.getFirstLine();
-        boolean changed = false;
-        while (line != null) {
-            int oldflags = line.flags();
-            // Quoted strings can't span lines in C.
-            if (state == STATE_QUOTE && !continued)
-                state = STATE_NEUTRAL;
-            if (state != oldflags) {
-                line.setFlags(state);
-                changed = true;
+        return parseBufferIncrementally(STATE_NEUTRAL);
+    }
+
+    protected int scanLine(Line line, int state)
+    {
+        int depth = state >>> DEPTH_SHIFT;
+        if (depth > 0) {
+            // Inside an #if 0 block. Find the matching #else, #elif or
+            // #endif the same way CMode.findMatchPreprocessor() does.
+            String token = CMode.getPreprocessorToken(line);
+            boolean match = false;
+            if (token != null) {
+                if (depth == 1 && token.startsWith("el"))
+                    match = true;
+                else if (token.startsWith("if"))
+                    ++depth;
+                else if (token.startsWith("endif") && --depth == 0)
+                    match = true;
             }
-            if (state == STATE_NEUTRAL) {
-                if (line.getText().startsWith("#if 0")) {
-                    // Might be null.
-                    Line match = CMode.findMatchPreprocessor(line);
-                    while (line != null && line != match) {
-                        oldflags = line.flags();
-                        if (oldflags != STATE_DISABLED) {
-                            line.setFlags(STATE_DISABLED);
-                            changed = true;
-                        }
-                        line = line.next();
-                    }
-                    if (line != null && line.getText().startsWith("#en")) {
-                        oldflags = line.flags();
-                        if (oldflags != STATE_DISABLED) {
-                            line.setFlags(STATE_DISABLED);
-                            changed = true;
-                        }
-                        line = line.next();
-                    }
-                    continue;
-                }
+            if (!match) {
+                line.setFlags(STATE_DISABLED);
+                return depth << DEPTH_SHIFT;
             }
-            char quoteChar = '\0';
-            final int limit = line.length();
-            char c = '\0';
-            continued = false;
-            for (int i = 0; i < limit; i++) {
-                c = line.charAt(i);
-                if (c == '\\' && i < limit-1) {
-                    // Escape.
-                    ++i;
-                    continue;
-                }
-                if (state == STATE_COMMENT) {
-                    if (c == '*' && i < limit-1) {
-                        c = line.charAt(i+1);
-                        if (c == '/') {
-                            ++i;
-                            state = STATE_NEUTRAL;
-                        }
-                    }
-                    continue;
-                }
-                if (state == STATE_QUOTE) {
-                    if (c == quoteChar) {
+            if (line.getText().startsWith("#en")) {
+                line.setFlags(STATE_DISABLED);
+                return STATE_NEUTRAL;
+            }
+            state = STATE_NEUTRAL;
+        }
+        final boolean continued = (state & CONTINUED) != 0;
+        state &= ~CONTINUED;
+        // Quoted strings can't span lines in C.
+        if (state == STATE_QUOTE && !continued)
+            state = STATE_NEUTRAL;
+        line.setFlags(state);
+        if (state == STATE_NEUTRAL) {
+            if (line.getText().startsWith("#if 0")) {
+                line.setFlags(STATE_DISABLED);
+                return 1 << DEPTH_SHIFT;
+            }
+        }
+        char quoteChar = '\0';
+        final int limit = line.length();
+        char c = '\0';
+        for (int i = 0; i < limit; i++) {
+            c = line.charAt(i);
+            if (c == '\\' && i < limit-1) {
+                // Escape.
+                ++i;
+                continue;
+            }
+            if (state == STATE_COMMENT) {
+                if (c == '*' && i < limit-1) {
+                    c = line.charAt(i+1);
+                    if (c == '/') {
+                        ++i;
                         state = STATE_NEUTRAL;
-                        quoteChar = '\0';
                     }
-                    continue;
                 }
-                // Not in comment or quoted string.
-                if (c == '/' && i < limit-1) {
-                    c = line.charAt(++i);
-                    if (c == '/') {
-                        // Single-line comment beginning.
-                        // Ignore rest of line.
-                        break;
-                    } else if (c == '*')
-                        state = STATE_COMMENT;
-                } else if (c == '"' || c == '\'') {
-                    state = STATE_QUOTE;
-                    quoteChar = c;
+                continue;
+            }
+            if (state == STATE_QUOTE) {
+                if (c == quoteChar) {
+                    state = STATE_NEUTRAL;
+                    quoteChar = '\0';
                 }
+                continue;
+            }
+            // Not in comment or quoted string.
+            if (c == '/' && i < limit-1) {
+                c = line.charAt(++i);
+                if (c == '/') {
+                    // Single-line comment beginning.
+                    // Ignore rest of line.
+                    break;
+                } else if (c == '*')
+                    state = STATE_COMMENT;
+            } else if (c == '"' || c == '\'') {
+                state = STATE_QUOTE;
+                quoteChar = c;
             }
-            if (c == '\\')
-                continued = true;
-            line = line.next();
         }
-        buffer.setNeedsParsing(false);
-        return changed;
+        if (c == '\\')
+            state |= CONTINUED;
+        return state;
     }
 
     private static final boolean isOperatorChar(char c)
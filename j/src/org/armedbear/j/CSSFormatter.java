@@ -251,68 +251,62 @@ public final class CSSFormatter extends Formatter implements Constants
 
     public boolean parseBuffer()
     {
-        int state = 0;
-        Line line = buffer.getFirstLine();
-        boolean changed = false;
-        while (line != null) {
-            int oldflags = line.flags();
-            // Quoted strings can't span lines. (Can they?)
-            state &= ~(CSS_STATE_QUOTE | CSS_STATE_SINGLEQUOTE);
-            if (state != oldflags) {
-                line.setFlags(state);
-                changed = true;
+        return parseBufferIncrementally(0);
+    }
+
+    protected int scanLine(Line line, int state)
+    {
+        // Quoted strings can't span lines. (Can they?)
+        state &= ~(CSS_STATE_QUOTE | CSS_STATE_SINGLEQUOTE);
+        line.setFlags(state);
+        final int limit = line.length();
+        for (int i = 0; i < limit; i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i < limit-1) {
+                // Escape.
+                ++i;
+                continue;
             }
-            final int limit = line.length();
-            for (int i = 0; i < limit; i++) {
-                char c = line.charAt(i);
-                if (c == '\\' && i < limit-1) {
-                    // Escape.
-                    ++i;
-                    continue;
-                }
-                if ((state & CSS_STATE_COMMENT) != 0) {
-                    if (c == '*' && i < limit-1) {
-                        c = line.charAt(i+1);
-                        if (c == '/') {
-                            ++i;
-                            state &= ~CSS_STATE_COMMENT;
-                        }
+            if ((state & CSS_STATE_COMMENT) != 0) {
+                if (c == '*' && i < limit-1) {
+                    c = line.charAt(i+1);
+                    if (c == '/') {
+                        ++i;
+                        state &= ~CSS_STATE_COMMENT;
                     }
-                    continue;
-                }
-                if ((state & CSS_STATE_QUOTE) != 0) {
-                    if (c == '"')
-                        state &= ~CSS_STATE_QUOTE;
-                    continue;
-                }
-                if ((state & CSS_STATE_SINGLEQUOTE) != 0) {
-                    if (c == '"')
-                        state &= ~CSS_STATE_SINGLEQUOTE;
-                    continue;
-                }
-                // Not in comment or quoted string.
-                if (c == '{') {
-                    state |= CSS_STATE_IN_BLOCK;
-                    continue;
-                }
-                if (c == '}') {
-                    state &= ~CSS_STATE_IN_BLOCK;
-                    continue;
-                }
-                if (c == '/' && i < limit-1) {
-                    c = line.charAt(++i);
-                    if (c == '*')
-                        state |= CSS_STATE_COMMENT;
-                } else if (c == '"') {
-                    state |= CSS_STATE_QUOTE;
-                } else if (c == '\'') {
-                    state |= CSS_STATE_SINGLEQUOTE;
                 }
+                continue;
+            }
+            if ((state & CSS_STATE_QUOTE) != 0) {
+                if (c == '"')
+                    state &= ~CSS_STATE_QUOTE;
+                continue;
+            }
+            if ((state & CSS_STATE_SINGLEQUOTE) != 0) {
+                if (c == '"')
+                    state &= ~CSS_STATE_SINGLEQUOTE;
+                continue;
+            }
+            // Not in comment or quoted string.
+            if (c == '{') {
+                state |= CSS_STATE_IN_BLOCK;
+                continue;
+            }
+            if (c == '}') {
+                state &= ~CSS_STATE_IN_BLOCK;
+                continue;
+            }
+            if (c == '/' && i < limit-1) {
+                c = line.charAt(++i);
+                if (c == '*')
+                    state |= CSS_STATE_COMMENT;
+            } else if (c == '"') {
+                state |= CSS_STATE_QUOTE;
+            } else if (c == '\'') {
+                state |= CSS_STATE_SINGLEQUOTE;
             }
-            line = line.next();
         }
-        buffer.setNeedsParsing(false);
-        return changed;
+        return state;
     }
 
     public FormatTable getFormatTable()
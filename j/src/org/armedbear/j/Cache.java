@@ -30,25 +30,65 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Vector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
+// Persistent cache of HTTP content, in the cache subdirectory of ~/.j.
+//
+// The content of each URL is kept in a file named by the SHA-1 hash of the
+// URL. The catalog records the validators the server sent for each URL
+// (ETag, Last-Modified), along with the content type, encoding and size, in
+// least recently used order. Cached content is revalidated with a
+// conditional GET, so a page that hasn't changed costs a 304 response
+// instead of a download. Only responses that have a validator are cached,
+// and the total size is limited to httpCacheSize megabytes.
 public final class Cache
 {
-    private static final File cacheDir =
-        File.getInstance(Directories.getEditorDirectory(), "cache");
+    private static final String CATALOG_HEADER = "# j cache 2";
 
     private static Cache cache;
 
+    private final File cacheDir;
+
+    // The size limit in bytes, or -1 to use the httpCacheSize preference.
+    private final long maxSize;
+
     private File catalogFile;
-    private Vector catalog;
+
+    // Entries by URL, least recently used first.
+    private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+    // Total size of the cached content.
+    private long size;
+
+    // True if the catalog needs to be saved.
+    private boolean dirty;
 
     private Cache()
     {
+        this(File.getInstance(Directories.getEditorDirectory(), "cache"), -1);
+    }
+
+    /*package*/ Cache(File cacheDir, long maxSize)
+    {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
     }
 
-    public static Cache getCache()
+    // Returns null if the cache is disabled or can't be used.
+    public static synchronized Cache getCache()
     {
         if (cache == null) {
+            if (getPreferredMaxSize() <= 0)
+                return null;
             cache = new Cache();
             if (!cache.initialize())
                 cache = null;
@@ -56,110 +96,440 @@ public final class Cache
         return cache;
     }
 
-    // Currently this just deletes everything in the cache directory.
-    // Called from Editor.maybeExit.
-    public static void cleanup()
+    // Saves the catalog. Called from Editor.maybeExit.
+    public static synchronized void cleanup()
     {
-        if (cacheDir.isDirectory()) {
-            String[] files = cacheDir.list();
-            for (int i = files.length-1; i >= 0; i--) {
-                File file = File.getInstance(cacheDir, files[i]);
-                file.delete();
-            }
-        }
+        if (cache != null)
+            cache.save();
+    }
+
+    private long getMaxSize()
+    {
+        return maxSize >= 0 ? maxSize : getPreferredMaxSize();
     }
 
-    private boolean initialize()
+    private static long getPreferredMaxSize()
+    {
+        return Editor.preferences().getIntegerProperty(Property.HTTP_CACHE_SIZE)
+            * 1024L * 1024L;
+    }
+
+    /*package*/ synchronized boolean initialize()
     {
         if (!cacheDir.isDirectory())
             cacheDir.mkdirs();
         if (!cacheDir.isDirectory())
             return false;
         catalogFile = File.getInstance(cacheDir, "catalog");
-        catalog = loadCatalog();
+        loadCatalog();
+        // Remove files that aren't in the catalog (left over from an older
+        // version, or from a session that didn't exit normally).
+        HashSet known = new HashSet();
+        for (Iterator it = entries.values().iterator(); it.hasNext();)
+            known.add(((Entry)it.next()).hash);
+        String[] names = cacheDir.list();
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (!names[i].equals("catalog") && !known.contains(names[i]))
+                    File.getInstance(cacheDir, names[i]).delete();
+            }
+        }
+        trim();
         return true;
     }
 
+    // Returns the cached content for the URL without checking whether it is
+    // still current, or null if the URL isn't cached.
     public File get(String netPath)
     {
-        for (int i = catalog.size()-1; i >= 0; i--) {
-            StringPair pair = (StringPair) catalog.get(i);
-            if (pair.second.equals(netPath))
-                return File.getInstance(cacheDir, pair.first);
+        Entry entry = getEntry(netPath);
+        return entry != null ? getFile(entry) : null;
+    }
+
+    // Returns the cache entry for the URL, or null if the URL isn't cached.
+    public synchronized Entry getEntry(String netPath)
+    {
+        Entry entry = (Entry) entries.get(netPath);
+        if (entry != null && !getFile(entry).isFile()) {
+            remove(netPath);
+            return null;
         }
-        return null;
+        return entry;
     }
 
+    public final File getFile(Entry entry)
+    {
+        return File.getInstance(cacheDir, entry.hash);
+    }
+
+    // Fetches the URL, revalidating the cached copy if there is one, and
+    // returns a file with its content. The file is in the cache unless the
+    // response can't be revalidated later, in which case it's a temporary
+    // file.
     public File put(String netPath)
     {
+        final Entry entry = getEntry(netPath);
         File file = null;
         try {
             URL url = new URL(netPath);
             HttpURLConnection connection =
                 (HttpURLConnection) url.openConnection();
+            if (entry != null) {
+                if (entry.etag != null)
+                    connection.setRequestProperty("If-None-Match", entry.etag);
+                if (entry.lastModified != null)
+                    connection.setRequestProperty("If-Modified-Since",
+                        entry.lastModified);
+            }
+            final int code = connection.getResponseCode();
+            String responseHeaders = getResponseHeaders(connection);
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                revalidated(netPath, responseHeaders);
+                return getFile(entry);
+            }
             InputStream in = connection.getInputStream();
             if (in != null) {
-                file = Utilities.getTempFile(cacheDir);
+                file = Utilities.getTempFile();
                 OutputStream out = file.getOutputStream();
-                byte[] buf = new byte[4096];
+                byte[] buf = new byte[16384];
                 int bytesRead;
                 while ((bytesRead = in.read(buf)) > 0)
                     out.write(buf, 0, bytesRead);
                 out.close();
                 in.close();
+                if (code == HttpURLConnection.HTTP_OK) {
+                    Entry stored = store(netPath, file, responseHeaders,
+                        connection.getContentType(), null);
+                    if (stored != null) {
+                        file.delete();
+                        file = getFile(stored);
+                    }
+                }
             }
         }
         catch (IOException e) {
             Log.error(e);
-            if (file.exists())
+            if (file != null && file.exists())
                 file.delete();
             file = null;
         }
-        if (file != null) {
-            catalog.add(new StringPair(file.getName(), netPath));
-            saveCatalog();
-        }
         return file;
     }
 
-    private Vector loadCatalog()
+    // Copies the content of a successful response into the cache, if the
+    // response has a validator. Returns the new entry, or null if the
+    // response wasn't cached.
+    public Entry store(String netPath, File content, String responseHeaders,
+        String contentType, String encoding)
+    {
+        final String etag = getHeader(responseHeaders, "etag");
+        final String lastModified = getHeader(responseHeaders, "last-modified");
+        if (etag == null && lastModified == null)
+            return null;
+        String cacheControl = getHeader(responseHeaders, "cache-control");
+        if (cacheControl != null &&
+            cacheControl.toLowerCase().indexOf("no-store") >= 0)
+            return null;
+        final long length = content.length();
+        if (length > getMaxSize() / 4)
+            return null;
+        final String hash = hash(netPath);
+        File temp = Utilities.getTempFile(cacheDir);
+        if (hash == null || temp == null)
+            return null;
+        try {
+            Files.copy(getPath(content), getPath(temp),
+                StandardCopyOption.REPLACE_EXISTING);
+            synchronized (this) {
+                remove(netPath);
+                Files.move(getPath(temp), getPath(File.getInstance(cacheDir, hash)),
+                    StandardCopyOption.REPLACE_EXISTING);
+                Entry entry = new Entry(netPath, hash, length, etag,
+                    lastModified, contentType, encoding);
+                entries.put(netPath, entry);
+                size += length;
+                dirty = true;
+                trim();
+                save();
+                return entry;
+            }
+        }
+        catch (IOException e) {
+            Log.error(e);
+            temp.delete();
+            return null;
+        }
+    }
+
+    // Called when the server says the cached content of the URL is still
+    // current. The server may have sent new validators.
+    public synchronized void revalidated(String netPath, String responseHeaders)
+    {
+        Entry entry = (Entry) entries.get(netPath);
+        if (entry != null) {
+            String etag = getHeader(responseHeaders, "etag");
+            String lastModified = getHeader(responseHeaders, "last-modified");
+            if (etag != null || lastModified != null) {
+                entries.put(netPath, new Entry(netPath, entry.hash,
+                    entry.length,
+                    etag != null ? etag : entry.etag,
+                    lastModified != null ? lastModified : entry.lastModified,
+                    entry.contentType, entry.encoding));
+            }
+            dirty = true;
+        }
+    }
+
+    // Returns a temporary copy of the cached content, which the caller
+    // owns, or null if the content can't be copied.
+    public File copyToTempFile(Entry entry)
+    {
+        File temp = Utilities.getTempFile();
+        if (temp == null)
+            return null;
+        try {
+            Files.copy(getPath(getFile(entry)), getPath(temp),
+                StandardCopyOption.REPLACE_EXISTING);
+            return temp;
+        }
+        catch (IOException e) {
+            Log.error(e);
+            temp.delete();
+            return null;
+        }
+    }
+
+    public synchronized void remove(String netPath)
+    {
+        Entry entry = (Entry) entries.remove(netPath);
+        if (entry != null) {
+            getFile(entry).delete();
+            size -= entry.length;
+            dirty = true;
+        }
+    }
+
+    public synchronized long size()
     {
-        Vector v = new Vector();
-        if (catalogFile.exists()) {
+        return size;
+    }
+
+    // Removes least recently used entries until the cache is small enough.
+    private synchronized void trim()
+    {
+        final long maxSize = getMaxSize();
+        if (size <= maxSize)
+            return;
+        ArrayList urls = new ArrayList();
+        long newSize = size;
+        for (Iterator it = entries.values().iterator(); it.hasNext();) {
+            if (newSize <= maxSize)
+                break;
+            Entry entry = (Entry) it.next();
+            urls.add(entry.url);
+            newSize -= entry.length;
+        }
+        for (int i = 0; i < urls.size(); i++)
+            remove((String) urls.get(i));
+    }
+
+    private static Path getPath(File file)
+    {
+        return Paths.get(file.canonicalPath());
+    }
+
+    private static String hash(String netPath)
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(netPath.getBytes("UTF-8"));
+            FastStringBuffer sb = new FastStringBuffer(digest.length * 2);
+            for (int i = 0; i < digest.length; i++) {
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            Log.error(e);
+        }
+        catch (IOException e) {
+            Log.error(e);
+        }
+        return null;
+    }
+
+    // Returns the value of the named header (lower case), or null.
+    // responseHeaders is everything after the status line.
+    public static String getHeader(String responseHeaders, String name)
+    {
+        if (responseHeaders == null)
+            return null;
+        final String lookFor = "\n" + name + ":";
+        final String s = "\n" + responseHeaders;
+        final int index = s.toLowerCase().indexOf(lookFor);
+        if (index < 0)
+            return null;
+        final int begin = index + lookFor.length();
+        int end = s.indexOf('\n', begin);
+        if (end < 0)
+            end = s.length();
+        String value = s.substring(begin, end).trim();
+        return value.length() > 0 ? value : null;
+    }
+
+    private static String getResponseHeaders(HttpURLConnection connection)
+    {
+        FastStringBuffer sb = new FastStringBuffer();
+        // Header 0 is the status line.
+        for (int i = 1; ; i++) {
+            String key = connection.getHeaderFieldKey(i);
+            String value = connection.getHeaderField(i);
+            if (key == null && value == null)
+                break;
+            if (key != null) {
+                sb.append(key);
+                sb.append(": ");
+                sb.append(value);
+                sb.append("\r\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private void loadCatalog()
+    {
+        if (!catalogFile.isFile())
+            return;
+        try {
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(catalogFile.getInputStream(), "UTF-8"));
             try {
-                BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(catalogFile.getInputStream()));
+                if (!CATALOG_HEADER.equals(reader.readLine()))
+                    return; // Older version.
                 String s;
                 while ((s = reader.readLine()) != null) {
-                    int index = s.indexOf(' ');
-                    if (index >= 0)
-                        v.add(new StringPair(s.substring(0, index), s.substring(index+1)));
+                    String[] fields = s.split("\t", -1);
+                    if (fields.length != 7)
+                        continue;
+                    try {
+                        Entry entry = new Entry(fields[6], fields[0],
+                            Long.parseLong(fields[1]), nonEmpty(fields[2]),
+                            nonEmpty(fields[3]), nonEmpty(fields[4]),
+                            nonEmpty(fields[5]));
+                        entries.put(entry.url, entry);
+                        size += entry.length;
+                    }
+                    catch (NumberFormatException e) {
+                        Log.error(e);
+                    }
                 }
             }
-            catch (IOException e) {
-                Log.error(e);
+            finally {
+                reader.close();
             }
         }
-        return v;
+        catch (IOException e) {
+            Log.error(e);
+        }
     }
 
-    private void saveCatalog()
+    private synchronized void save()
     {
+        if (!dirty)
+            return;
+        File temp = Utilities.getTempFile(cacheDir);
+        if (temp == null)
+            return;
         try {
             BufferedWriter writer = new BufferedWriter(
-                new OutputStreamWriter(catalogFile.getOutputStream()));
-            for (int i = 0; i < catalog.size(); i++) {
-                StringPair pair = (StringPair) catalog.get(i);
-                writer.write(pair.first);
-                writer.write(' ');
-                writer.write(pair.second);
+                new OutputStreamWriter(temp.getOutputStream(), "UTF-8"));
+            writer.write(CATALOG_HEADER);
+            writer.newLine();
+            for (Iterator it = entries.values().iterator(); it.hasNext();) {
+                Entry entry = (Entry) it.next();
+                writer.write(entry.hash);
+                writer.write('\t');
+                writer.write(String.valueOf(entry.length));
+                writer.write('\t');
+                writer.write(field(entry.etag));
+                writer.write('\t');
+                writer.write(field(entry.lastModified));
+                writer.write('\t');
+                writer.write(field(entry.contentType));
+                writer.write('\t');
+                writer.write(field(entry.encoding));
+                writer.write('\t');
+                writer.write(field(entry.url));
                 writer.newLine();
             }
             writer.flush();
             writer.close();
+            Files.move(getPath(temp), getPath(catalogFile),
+                StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
         }
         catch (IOException e) {
             Log.error(e);
+            temp.delete();
+        }
+    }
+
+    private static String field(String s)
+    {
+        return s != null ? s.replace('\t', ' ') : "";
+    }
+
+    private static String nonEmpty(String s)
+    {
+        return s.length() > 0 ? s : null;
+    }
+
+    public static final class Entry
+    {
+        private final String url;
+        private final String hash;
+        private final long length;
+        private final String etag;
+        private final String lastModified;
+        private final String contentType;
+        private final String encoding;
+
+        private Entry(String url, String hash, long length, String etag,
+            String lastModified, String contentType, String encoding)
+        {
+            this.url = url;
+            this.hash = hash;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.encoding = encoding;
+        }
+
+        public final String getEtag()
+        {
+            return etag;
+        }
+
+        public final String getLastModified()
+        {
+            return lastModified;
+        }
+
+        public final String getContentType()
+        {
+            return contentType;
+        }
+
+        public final String getEncoding()
+        {
+            return encoding;
+        }
+
+        public final long length()
+        {
+            return length;
         }
     }
 }
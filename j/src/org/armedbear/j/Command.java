@@ -21,7 +21,7 @@
 
 package org.armedbear.j;
 
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
 
 public final class Command
 {
@@ -29,7 +29,11 @@ public final class Command
     private final String methodName;
 
     private String className;
-    private Method method;
+
+    // Bound by Editor.execute(), one for each number of arguments. Each
+    // takes the editor as its first argument.
+    private MethodHandle handle;
+    private MethodHandle handleWithArgument;
 
     public Command(String name, String className, String methodName)
     {
@@ -61,13 +65,18 @@ public final class Command
         return methodName;
     }
 
-    public final Method getMethod()
+    // Returns the handle that takes a String argument after the editor if
+    // withArgument is true, or the one that takes only the editor.
+    public final MethodHandle getMethodHandle(boolean withArgument)
     {
-        return method;
+        return withArgument ? handleWithArgument : handle;
     }
 
-    public final void setMethod(Method method)
+    public final void setMethodHandle(MethodHandle handle)
     {
-        this.method = method;
+        if (handle.type().parameterCount() > 1)
+            handleWithArgument = handle;
+        else
+            this.handle = handle;
     }
 }
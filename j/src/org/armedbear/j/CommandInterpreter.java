@@ -29,7 +29,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import javax.swing.Icon;
-import javax.swing.SwingUtilities;
 import javax.swing.undo.CompoundEdit;
 
 public class CommandInterpreter extends Buffer
@@ -45,6 +44,19 @@ public class CommandInterpreter extends Buffer
 
     private Position posEndOfOutput;
 
+    // Output from stdoutThread and stderrThread, in the order it arrived.
+    private final OutputQueue outputQueue = new OutputQueue() {
+        protected void process(String s)
+        {
+            processOutput(s);
+        }
+
+        protected void processError(String s)
+        {
+            processErrorOutput(s);
+        }
+    };
+
     protected CommandInterpreter()
     {
         super();
@@ -80,7 +92,7 @@ public class CommandInterpreter extends Buffer
     protected final void setPromptRE(String pattern)
     {
         try {
-            promptRE = new RE(pattern);
+            promptRE = RECache.getRE(pattern);
         }
         catch (REException e) {
             Log.error(e);
@@ -380,9 +392,18 @@ public class CommandInterpreter extends Buffer
         try {
             Position pos = getEnd();
             if (pos != null) {
+                // New lines go after the next-to-last line (before the last
+                // line if it's empty). If the lines up to there are numbered,
+                // only the new lines need to be.
+                final Line before = needsRenumbering() ? null :
+                    pos.getLine().previous();
                 insertString(pos, s);
-                if (needsRenumbering())
-                    renumber();
+                if (needsRenumbering()) {
+                    if (before != null)
+                        renumberAfter(before);
+                    else
+                        renumber();
+                }
                 enforceOutputLimit(Property.SHELL_OUTPUT_LIMIT);
                 setEndOfOutput(pos.copy());
             } else {
@@ -438,15 +459,7 @@ public class CommandInterpreter extends Buffer
 
     protected void stdOutUpdate(final String s)
     {
-        Runnable r = new Runnable() {
-            public void run()
-            {
-                appendString(s);
-                updateDisplayInAllFrames();
-                resetUndo();
-            }
-        };
-        SwingUtilities.invokeLater(r);
+        outputQueue.put(s);
     }
 
     protected String stdErrFilter(String s)
@@ -456,15 +469,34 @@ public class CommandInterpreter extends Buffer
 
     protected void stdErrUpdate(final String s)
     {
-        Runnable r = new Runnable() {
-            public void run()
-            {
-                appendString(s);
-                updateDisplayInAllFrames();
-                resetUndo();
-            }
-        };
-        SwingUtilities.invokeLater(r);
+        outputQueue.put(s, true);
+    }
+
+    // Called on the event dispatch thread with all the output that has
+    // arrived since the last call (at most once per display frame).
+    protected void processOutput(String s)
+    {
+        appendString(s);
+        updateDisplayInAllFrames();
+        resetUndo();
+    }
+
+    // Like processOutput(), for output to stderr.
+    protected void processErrorOutput(String s)
+    {
+        processOutput(s);
+    }
+
+    // Processes any queued output now, so that it appears before whatever
+    // the caller appends next. Must be called on the event dispatch thread.
+    protected final void flushOutput()
+    {
+        outputQueue.flush();
+    }
+
+    public final String getOutputStatistics()
+    {
+        return outputQueue.getStatistics();
     }
 
     private String removeEcho(String s) {
@@ -147,24 +147,9 @@ public final class ConfirmReplacementDialog extends AbstractDialog
         // Replace current occurrence.
         replacement.replaceOccurrence();
         // Replace all the rest.
-        Position pos;
-        while ((pos = replacement.find(editor.getBuffer(), editor.getDot())) != null) {
-            editor.addUndo(SimpleEdit.MOVE);
-            editor.getDot().moveTo(pos);
-            if (replacement.restrictToSelection()) {
-                final Region region = replacement.getRegion();
-                if (region != null) {
-                    if (editor.getDotLineNumber() > region.getEndLineNumber() ||
-                        (editor.getDotLine() == region.getEndLine() &&
-                            editor.getDotOffset() + replacement.getPatternLength() > region.getEndOffset())) {
-                        break;
-                    }
-                }
-            }
-            if (replacement.isMultilinePattern())
-                editor.markFoundPattern(replacement);
-            replacement.replaceOccurrence();
-        }
+        replacement.replaceAll(editor.getDot());
+        if (saved.getOffset() > saved.getLineLength())
+            saved.setOffset(saved.getLineLength());
         editor.addUndo(SimpleEdit.MOVE);
         editor.getDot().moveTo(saved);
         editor.moveCaretToDotCol();
@@ -35,7 +35,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.Icon;
 import javax.swing.SwingUtilities;
 
@@ -630,27 +632,39 @@ public final class Directory extends Buffer
         boolean useNativeFormat =
             preferences.getBooleanProperty(Property.DIR_USE_NATIVE_FORMAT,
                                            Platform.isPlatformUnix());
-        if (useNativeFormat) {
+        final File file = getFile();
+        final String extraOptions =
+            getStringProperty(Property.LS_EXTRA_OPTIONS);
+        // We can produce the listing ourselves unless the user wants ls
+        // options we don't know about.
+        final boolean useLister = useNativeFormat && file.isLocal() &&
+            getListing() == null && Platform.isPlatformUnix() &&
+            (extraOptions == null || extraOptions.trim().length() == 0) &&
+            NativeDirectoryLister.isSupported();
+        if (useNativeFormat && !useLister) {
             if (!Utilities.haveLs())
                 useNativeFormat = false;
         }
         loadError = false;
+        // Start watching before reading the directory, so nothing is missed.
+        if (file.isLocal())
+            watchDirectory(file);
         try {
             final DirectoryFilenameFilter dff;
             if (limitPattern != null)
                 dff = new DirectoryFilenameFilter(limitPattern);
             else
                 dff = null;
-            final File file = getFile();
-            if (useNativeFormat || file.isRemote()) {
+            if (useLister) {
+                usingNativeFormat = true;
+                entries.addAll(NativeDirectoryLister.list(file, sortBy, dff));
+            } else if (useNativeFormat || file.isRemote()) {
                 usingNativeFormat = true;
                 String flags = "-la"; // Default is sort by name.
                 if (sortBy == SORT_BY_DATE)
                     flags = "-lat";
                 else if (sortBy == SORT_BY_SIZE)
                     flags = "-laS";
-                String extraOptions =
-                    getStringProperty(Property.LS_EXTRA_OPTIONS);
                 if (extraOptions != null) {
                     flags += " ";
                     flags += extraOptions;
@@ -773,6 +787,69 @@ public final class Directory extends Buffer
         }
     }
 
+    // The directory being watched for changes (see FileWatcher).
+    private volatile File watchedDirectory;
+
+    private final FileWatcher.Listener directoryListener =
+        new FileWatcher.Listener() {
+            public void filesChanged(File dir, Set names)
+            {
+                if (names == null ||
+                    !Editor.getBufferList().contains(Directory.this)) {
+                    // Events were lost or the directory went away, or the
+                    // buffer has been killed.
+                    FileWatcher.getInstance().unwatch(dir, this);
+                    if (dir.equals(watchedDirectory))
+                        watchedDirectory = null;
+                }
+                reloadLater(dir);
+            }
+        };
+
+    private void watchDirectory(File dir)
+    {
+        if (dir.equals(watchedDirectory))
+            return;
+        unwatchDirectory();
+        FileWatcher watcher = FileWatcher.getInstance();
+        if (watcher != null && watcher.watch(dir, directoryListener))
+            watchedDirectory = dir;
+    }
+
+    private void unwatchDirectory()
+    {
+        final File dir = watchedDirectory;
+        if (dir != null) {
+            watchedDirectory = null;
+            FileWatcher.getInstance().unwatch(dir, directoryListener);
+        }
+    }
+
+    private final AtomicBoolean reloadPending = new AtomicBoolean();
+
+    // Reloads the buffer on the event dispatch thread, if it's still showing
+    // the specified directory.
+    private void reloadLater(final File dir)
+    {
+        if (!reloadPending.compareAndSet(false, true))
+            return;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run()
+            {
+                reloadPending.set(false);
+                if (isLoaded() && dir.equals(getFile()) &&
+                    Editor.getBufferList().contains(Directory.this))
+                    reload();
+            }
+        });
+    }
+
+    public void dispose()
+    {
+        unwatchDirectory();
+        super.dispose();
+    }
+
     private long getTotalSize()
     {
         long totalSize = 0;
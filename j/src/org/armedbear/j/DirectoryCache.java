@@ -21,16 +21,54 @@
 
 package org.armedbear.j;
 
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Cache of remote directory listings.
+//
+// Entries are kept per host, each host in its own shard with its own lock,
+// so browsing one host doesn't wait for another. Within a shard, entries
+// are found by net path and kept in LRU order. The cache as a whole is
+// bounded by the total length of the listings it holds.
+//
+// A listing is fresh for REFRESH milliseconds. After that it is still
+// returned until it expires (TIMEOUT), but each hit schedules a refresh in
+// the background, which uses an idle session to the host if there is one
+// (it never logs in or prompts the user).
 public final class DirectoryCache
 {
     private static final int timeout = 1800000; // 30 minutes
+    private static final int REFRESH = 300000; // 5 minutes
+
+    // Total length of the cached listings (chars).
+    private static final long MAX_WEIGHT = 8 * 1024 * 1024;
 
     private static DirectoryCache cache;
 
-    private Vector entries = new Vector();
+    // Shards by host name.
+    private final ConcurrentHashMap shards = new ConcurrentHashMap();
+
+    private final AtomicLong weight = new AtomicLong();
+
+    // Net paths of the entries being refreshed.
+    private final ConcurrentHashMap refreshing = new ConcurrentHashMap();
+
+    private static ExecutorService refresher;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
 
     public static synchronized DirectoryCache getDirectoryCache()
     {
@@ -43,60 +81,284 @@ public final class DirectoryCache
         return cache;
     }
 
-    public synchronized String getListing(File file)
+    public String getListing(File file)
     {
-        String netPath = file.netPath();
-        for (int i = entries.size(); i-- > 0;) {
-            DirectoryCacheEntry entry = (DirectoryCacheEntry) entries.get(i);
-            if (entry.getFile().netPath().equals(netPath)) {
-                if (entry.getWhen() + timeout < System.currentTimeMillis()) {
+        Shard shard = getShard(file.getHostName(), false);
+        if (shard == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        final String netPath = file.netPath();
+        final long now = System.currentTimeMillis();
+        DirectoryCacheEntry entry;
+        synchronized (shard) {
+            entry = (DirectoryCacheEntry) shard.get(netPath);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (entry.getWhen() + timeout < now) {
+                Log.debug("removing cache entry for " + netPath);
+                remove(shard, netPath);
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        if (entry.getWhen() + REFRESH < now) {
+            staleHits.incrementAndGet();
+            refreshLater(entry.getFile());
+        } else
+            hits.incrementAndGet();
+        return entry.getListing();
+    }
+
+    public void put(File file, String listing)
+    {
+        final String netPath = file.netPath();
+        Shard shard = getShard(file.getHostName(),
+            listing != null && listing.length() > 0);
+        if (shard == null)
+            return;
+        synchronized (shard) {
+            remove(shard, netPath);
+            if (listing != null && listing.length() > 0) {
+                shard.put(netPath, new DirectoryCacheEntry(file, listing,
+                    System.currentTimeMillis()));
+                weight.addAndGet(listing.length());
+            }
+        }
+        if (weight.get() > MAX_WEIGHT)
+            evict(shard);
+    }
+
+    public void purge(String hostname)
+    {
+        Shard shard = (Shard) shards.remove(key(hostname));
+        if (shard != null) {
+            synchronized (shard) {
+                for (Iterator it = shard.values().iterator(); it.hasNext();) {
+                    DirectoryCacheEntry entry = (DirectoryCacheEntry) it.next();
                     Log.debug("removing cache entry for " + entry.getFile().netPath());
-                    entries.remove(i);
-                    return null;
+                    weight.addAndGet(-entry.getListing().length());
                 }
-                return entry.getListing();
+                shard.clear();
             }
         }
-        return null;
     }
 
-    public synchronized void put(File file, String listing)
+    public void purge(File file)
     {
-        String netPath = file.netPath();
-        for (int i = entries.size(); i-- > 0;) {
-            DirectoryCacheEntry entry = (DirectoryCacheEntry) entries.get(i);
-            if (entry.getFile().netPath().equals(netPath)) {
-                entries.remove(i);
-                break;
+        Shard shard = getShard(file.getHostName(), false);
+        if (shard != null) {
+            final String netPath = file.netPath();
+            synchronized (shard) {
+                if (remove(shard, netPath))
+                    Log.debug("removing cache entry for " + netPath);
             }
         }
-        if (listing != null && listing.length() > 0) {
-            entries.add(new DirectoryCacheEntry(file, listing,
-                System.currentTimeMillis()));
+    }
+
+    public String getStatistics()
+    {
+        int count = 0;
+        for (Iterator it = shards.values().iterator(); it.hasNext();) {
+            Shard shard = (Shard) it.next();
+            synchronized (shard) {
+                count += shard.size();
+            }
+        }
+        FastStringBuffer sb = new FastStringBuffer("entries ");
+        sb.append(String.valueOf(count));
+        sb.append(" hosts ");
+        sb.append(String.valueOf(shards.size()));
+        sb.append(" chars ");
+        sb.append(String.valueOf(weight.get()));
+        sb.append(" hits ");
+        sb.append(String.valueOf(hits.get()));
+        sb.append(" stale hits ");
+        sb.append(String.valueOf(staleHits.get()));
+        sb.append(" misses ");
+        sb.append(String.valueOf(misses.get()));
+        sb.append(" refreshes ");
+        sb.append(String.valueOf(refreshes.get()));
+        sb.append(" evictions ");
+        sb.append(String.valueOf(evictions.get()));
+        return sb.toString();
+    }
+
+    private static String key(String hostname)
+    {
+        return hostname != null ? hostname : "";
+    }
+
+    private Shard getShard(String hostname, boolean create)
+    {
+        final String key = key(hostname);
+        Shard shard = (Shard) shards.get(key);
+        if (shard == null && create) {
+            shard = new Shard();
+            Shard existing = (Shard) shards.putIfAbsent(key, shard);
+            if (existing != null)
+                shard = existing;
         }
+        return shard;
+    }
+
+    // Called with the shard locked.
+    private boolean remove(Shard shard, String netPath)
+    {
+        DirectoryCacheEntry entry = (DirectoryCacheEntry) shard.remove(netPath);
+        if (entry == null)
+            return false;
+        weight.addAndGet(-entry.getListing().length());
+        return true;
     }
 
-    public synchronized void purge(String hostname)
+    // Removes least recently used entries until the cache is within bounds,
+    // starting with the specified shard (the one that just grew), then the
+    // biggest of the others.
+    private void evict(Shard preferred)
     {
-        for (int i = entries.size(); i-- > 0;) {
-            DirectoryCacheEntry entry = (DirectoryCacheEntry) entries.get(i);
-            if (entry.getFile().getHostName().equals(hostname)) {
-                Log.debug("removing cache entry for " + entry.getFile().netPath());
-                entries.remove(i);
+        while (weight.get() > MAX_WEIGHT) {
+            if (!evictEldest(preferred, 1)) {
+                Shard biggest = null;
+                int max = 0;
+                for (Iterator it = shards.values().iterator(); it.hasNext();) {
+                    Shard shard = (Shard) it.next();
+                    synchronized (shard) {
+                        if (shard != preferred && shard.size() > max) {
+                            biggest = shard;
+                            max = shard.size();
+                        }
+                    }
+                }
+                if (biggest == null || !evictEldest(biggest, 0))
+                    return;
             }
         }
     }
 
-    public synchronized void purge(File file)
+    // Evicts the shard's least recently used entry, unless the shard has no
+    // more than keep entries.
+    private boolean evictEldest(Shard shard, int keep)
     {
-        String netPath = file.netPath();
-        for (int i = entries.size(); i-- > 0;) {
-            DirectoryCacheEntry entry = (DirectoryCacheEntry) entries.get(i);
-            if (entry.getFile().netPath().equals(netPath)) {
-                Log.debug("removing cache entry for " + netPath);
-                entries.remove(i);
+        synchronized (shard) {
+            if (shard.size() <= keep)
+                return false;
+            Iterator it = shard.entrySet().iterator();
+            Map.Entry eldest = (Map.Entry) it.next();
+            DirectoryCacheEntry entry = (DirectoryCacheEntry) eldest.getValue();
+            it.remove();
+            weight.addAndGet(-entry.getListing().length());
+            evictions.incrementAndGet();
+            return true;
+        }
+    }
+
+    private void refreshLater(final File file)
+    {
+        final String netPath = file.netPath();
+        if (refreshing.putIfAbsent(netPath, netPath) != null)
+            return; // Already scheduled.
+        getRefresher().execute(new Runnable() {
+            public void run()
+            {
+                try {
+                    String listing = retrieveListing(file);
+                    if (listing != null) {
+                        refreshes.incrementAndGet();
+                        put(file, listing);
+                    }
+                }
+                catch (Throwable t) {
+                    Log.error(t);
+                }
+                finally {
+                    refreshing.remove(netPath);
+                }
+            }
+        });
+    }
+
+    // Returns null if there's no idle session to the host.
+    private static String retrieveListing(File file)
+    {
+        // The session that found the stale entry is probably still busy.
+        for (int i = 0; i < 10; i++) {
+            String listing = null;
+            if (file instanceof FtpFile) {
+                FtpSession session = FtpSession.lockIdleSession((FtpFile) file);
+                if (session != null) {
+                    listing = session.getDirectoryListing(file.canonicalPath());
+                    session.unlock();
+                    return listing;
+                }
+            } else if (file instanceof SshFile) {
+                SshSession session = SshSession.lockIdleSession((SshFile) file);
+                if (session != null) {
+                    listing = session.retrieveDirectoryListing(file);
+                    session.unlock();
+                    return listing;
+                }
+            } else
+                return null;
+            try {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static synchronized ExecutorService getRefresher()
+    {
+        if (refresher == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "directory cache");
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            pool.allowCoreThreadTimeOut(true);
+            refresher = pool;
+        }
+        return refresher;
+    }
+
+    private void prune(long now)
+    {
+        for (Iterator it = shards.values().iterator(); it.hasNext();) {
+            Shard shard = (Shard) it.next();
+            synchronized (shard) {
+                ArrayList expired = new ArrayList();
+                for (Iterator iter = shard.entrySet().iterator(); iter.hasNext();) {
+                    Map.Entry mapEntry = (Map.Entry) iter.next();
+                    DirectoryCacheEntry entry =
+                        (DirectoryCacheEntry) mapEntry.getValue();
+                    if (entry.getWhen() + timeout < now)
+                        expired.add(mapEntry.getKey());
+                }
+                for (int i = 0; i < expired.size(); i++)
+                    remove(shard, (String) expired.get(i));
             }
         }
+        Log.debug("DirectoryCache " + getStatistics());
+    }
+
+    // Listings by net path, least recently used first.
+    private static final class Shard extends LinkedHashMap
+    {
+        Shard()
+        {
+            super(16, 0.75f, true);
+        }
     }
 
     private static class PruneDirectoryCacheTask extends IdleThreadTask
@@ -125,15 +387,7 @@ public final class DirectoryCache
                 // Only check every 5 minutes.
                 if (System.currentTimeMillis() - lastRun > 300000) {
                     long now = System.currentTimeMillis();
-                    synchronized (cache) {
-                        Iterator it = cache.entries.iterator();
-                        while (it.hasNext()) {
-                            DirectoryCacheEntry entry =
-                                (DirectoryCacheEntry) it.next();
-                            if (entry.getWhen() + timeout < now)
-                                it.remove();
-                        }
-                    }
+                    cache.prune(now);
                     lastRun = now;
                 }
             }
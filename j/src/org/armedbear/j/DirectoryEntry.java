@@ -96,6 +96,17 @@ public final class DirectoryEntry
         return new DirectoryEntry(s, c);
     }
 
+    // Native format entry made by NativeDirectoryLister, which already knows
+    // the name and (unless it's a device) the size.
+    public static DirectoryEntry getNativeEntry(String s, String name,
+                                                long size)
+    {
+        DirectoryEntry entry = new DirectoryEntry(s, s.charAt(0));
+        entry.name = name;
+        entry.size = size;
+        return entry;
+    }
+
     // Extracts filename from "ls -l" directory listing.
     public static String getName(String s)
     {
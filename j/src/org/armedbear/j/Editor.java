@@ -45,7 +45,11 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.text.SimpleDateFormat;
@@ -362,6 +366,7 @@ public final class Editor extends JPanel implements Constants,
 
         loadPreferences();
         Log.initialize();
+        RECache.initialize();
         Directories.moveUnsentMessagesToDraftsFolder();
         loadExtensions();
         if (quick == 0) {
@@ -2379,28 +2384,17 @@ public final class Editor extends JPanel implements Constants,
             String methodName = null;
             Method method = null;
 
-            Class[] parameterTypes;
-            if (parameters == null)
-                parameterTypes = new Class[0];
-            else {
-                parameterTypes = new Class[1];
-                parameterTypes[0] = Class.forName("java.lang.String");
-            }
+            Class[] parameterTypes =
+                parameters == null ? NO_PARAMETERS : STRING_PARAMETER;
 
             Command command = CommandTable.getCommand(commandName);
             if (command != null) {
-                method = command.getMethod();
-                if (method != null) {
-                    try {
-                        invoke(method, parameters);
-                        return true;
-                    }
-                    catch (IllegalArgumentException e) {
-                        // The cached method requires different arguments.
-                        // Fall through.
-                    }
+                MethodHandle handle = command.getMethodHandle(parameters != null);
+                if (handle != null) {
+                    invoke(handle, parameters);
+                    return true;
                 }
-                // Method is not cached yet.
+                // Method is not bound yet.
                 className = command.getClassName();
                 methodName = command.getMethodName();
                 if (className == null) {
@@ -2412,9 +2406,10 @@ public final class Editor extends JPanel implements Constants,
                         method = c.getMethod(methodName, parameterTypes);
                 }
                 if (method != null) {
-                    // Cache the method for nest time.
-                    command.setMethod(method);
-                    invoke(method, parameters);
+                    // Bind the method for next time.
+                    handle = getMethodHandle(method);
+                    command.setMethodHandle(handle);
+                    invoke(handle, parameters);
                     return true;
                 }
             } else {
@@ -2444,7 +2439,7 @@ public final class Editor extends JPanel implements Constants,
                     }
                 }
                 if (method != null) {
-                    invoke(method, parameters);
+                    invoke(getMethodHandle(method), parameters);
                     return true;
                 }
             }
@@ -2458,20 +2453,35 @@ public final class Editor extends JPanel implements Constants,
         return false;
     }
 
-    private void invoke(Method method, String parameters) throws IllegalArgumentException
+    private static final Class[] NO_PARAMETERS = new Class[0];
+    private static final Class[] STRING_PARAMETER = { String.class };
+
+    private static final MethodType COMMAND_TYPE =
+        MethodType.methodType(void.class, Editor.class);
+    private static final MethodType COMMAND_WITH_ARGUMENT_TYPE =
+        MethodType.methodType(void.class, Editor.class, String.class);
+
+    // Returns a handle for a command method that takes the editor as its
+    // first argument, followed by the command's String argument if the
+    // method has one. Static methods ignore the editor, as with
+    // Method.invoke().
+    private static MethodHandle getMethodHandle(Method method)
+        throws IllegalAccessException
+    {
+        MethodHandle handle = MethodHandles.lookup().unreflect(method);
+        if (Modifier.isStatic(method.getModifiers()))
+            handle = MethodHandles.dropArguments(handle, 0, Editor.class);
+        return handle.asType(method.getParameterTypes().length > 0 ?
+                             COMMAND_WITH_ARGUMENT_TYPE : COMMAND_TYPE);
+    }
+
+    private void invoke(MethodHandle handle, String parameters)
     {
-        Object[] args;
-        if (parameters == null)
-            args = new Object[0]; // No arguments.
-        else {
-            args = new Object[1];
-            args[0] = parameters;
-        }
         try {
-            method.invoke(this, args);
-        }
-        catch (IllegalArgumentException e) {
-            throw e;
+            if (parameters == null)
+                handle.invokeExact(this);
+            else
+                handle.invokeExact(this, parameters);
         }
         catch (Throwable t) {
             Log.error(t);
@@ -4184,7 +4194,13 @@ public final class Editor extends JPanel implements Constants,
             return false;
 
         final File file = buf.getFile();
-        if (file == null || file.isRemote() || !file.isFile())
+        if (file == null || file.isRemote())
+            return false;
+        // Don't touch the file system if the file's directory is being
+        // watched and nothing has happened to the file.
+        if (!buf.checkFileChanged())
+            return false;
+        if (!file.isFile())
             return false;
 
         boolean changed = false;
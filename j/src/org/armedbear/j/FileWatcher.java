@@ -0,0 +1,270 @@
+/*
+ * FileWatcher.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Watches local directories for changes, so the rest of the editor doesn't
+// have to poll the file system.
+//
+// Each watched directory has a list of listeners. Events are collected
+// until the file system has been quiet for DEBOUNCE milliseconds (or for at
+// most MAX_DELAY milliseconds, so a long-running operation like a git
+// checkout still produces updates), then each listener is called once with
+// the names of all the files in its directory that were created, deleted or
+// modified. If events were lost (the kernel's queue overflowed), or the
+// directory itself went away, the listener is called with null, meaning
+// anything may have changed. A directory that went away is no longer
+// watched; the listener has to call watch() again if it still cares.
+//
+// Listeners are called on the watcher thread, so they should do as little
+// as possible there.
+public final class FileWatcher extends Thread
+{
+    private static final long DEBOUNCE = 100;
+    private static final long MAX_DELAY = 500;
+
+    public interface Listener
+    {
+        // names is a set of file names (not paths), or null.
+        void filesChanged(File dir, Set names);
+    }
+
+    private static FileWatcher instance;
+    private static boolean initialized;
+
+    private final WatchService service;
+
+    // Watched directories, by canonical path.
+    private final HashMap watches = new HashMap();
+
+    // The same watches, by watch key.
+    private final HashMap keys = new HashMap();
+
+    // Changes collected but not yet dispatched, by watch. The value is a set
+    // of names, or null if anything may have changed.
+    private final LinkedHashMap pending = new LinkedHashMap();
+
+    // Not started. For testing.
+    FileWatcher() throws IOException
+    {
+        this(FileSystems.getDefault().newWatchService());
+    }
+
+    private FileWatcher(WatchService service)
+    {
+        super("file watcher");
+        this.service = service;
+        setPriority(Thread.MIN_PRIORITY);
+        setDaemon(true);
+    }
+
+    // Returns null if watching is disabled or isn't supported.
+    public static synchronized FileWatcher getInstance()
+    {
+        if (!initialized) {
+            initialized = true;
+            if (Editor.preferences().getBooleanProperty(Property.WATCH_FILES)) {
+                try {
+                    instance = new FileWatcher();
+                    instance.start();
+                }
+                catch (Exception e) {
+                    Log.error(e);
+                }
+            }
+        }
+        return instance;
+    }
+
+    // Adds a listener for changes in the specified directory. Returns true if
+    // the directory is being watched, false if it can't be (in which case
+    // the caller should keep checking the file system itself).
+    public synchronized boolean watch(File dir, Listener listener)
+    {
+        if (dir == null || dir.isRemote())
+            return false;
+        final String key = dir.canonicalPath();
+        Watch watch = (Watch) watches.get(key);
+        if (watch == null) {
+            try {
+                Path path = Paths.get(key);
+                WatchKey watchKey = path.register(service, new WatchEvent.Kind[] {
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY
+                });
+                watch = new Watch(dir, key, watchKey);
+            }
+            catch (Exception e) {
+                // Not a directory, too many watches, etc.
+                Log.debug("FileWatcher.watch " + key + " " + e);
+                return false;
+            }
+            watches.put(key, watch);
+            keys.put(watch.key, watch);
+        }
+        if (!watch.listeners.contains(listener))
+            watch.listeners.add(listener);
+        return true;
+    }
+
+    // Removes the listener. The directory is no longer watched when its last
+    // listener has been removed.
+    public synchronized void unwatch(File dir, Listener listener)
+    {
+        if (dir == null)
+            return;
+        Watch watch = (Watch) watches.get(dir.canonicalPath());
+        if (watch != null) {
+            watch.listeners.remove(listener);
+            if (watch.listeners.isEmpty()) {
+                watch.key.cancel();
+                watches.remove(watch.path);
+                keys.remove(watch.key);
+                pending.remove(watch);
+            }
+        }
+    }
+
+    public synchronized boolean isWatched(File dir)
+    {
+        return dir != null && watches.containsKey(dir.canonicalPath());
+    }
+
+    public synchronized int getWatchCount()
+    {
+        return watches.size();
+    }
+
+    public void run()
+    {
+        try {
+            while (true) {
+                collect(service.take());
+                // Coalesce events until the file system is quiet.
+                final long deadline = System.currentTimeMillis() + MAX_DELAY;
+                WatchKey key;
+                while ((key = service.poll(DEBOUNCE, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key);
+                    if (System.currentTimeMillis() > deadline)
+                        break;
+                }
+                dispatch();
+            }
+        }
+        catch (InterruptedException e) {
+            Log.error(e);
+        }
+        catch (ClosedWatchServiceException e) {
+            Log.error(e);
+        }
+    }
+
+    private synchronized void collect(WatchKey key)
+    {
+        Watch watch = (Watch) keys.get(key);
+        List events = key.pollEvents();
+        final boolean valid = key.reset();
+        if (watch == null)
+            return; // Cancelled.
+        Set names = (Set) pending.get(watch);
+        boolean all = pending.containsKey(watch) && names == null;
+        if (!all && names == null)
+            names = new HashSet();
+        for (int i = 0; i < events.size(); i++) {
+            WatchEvent event = (WatchEvent) events.get(i);
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                all = true;
+            else if (!all)
+                names.add(((Path)event.context()).toString());
+        }
+        if (!valid) {
+            // The directory has been deleted or is otherwise inaccessible.
+            all = true;
+            watches.remove(watch.path);
+            keys.remove(key);
+        }
+        pending.put(watch, all ? null : names);
+    }
+
+    private void dispatch()
+    {
+        ArrayList calls = new ArrayList();
+        synchronized (this) {
+            for (Iterator it = pending.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry = (Map.Entry) it.next();
+                Watch watch = (Watch) entry.getKey();
+                calls.add(new Object[] {
+                    watch.dir, entry.getValue(), new ArrayList(watch.listeners)
+                });
+            }
+            pending.clear();
+        }
+        for (int i = 0; i < calls.size(); i++) {
+            Object[] call = (Object[]) calls.get(i);
+            File dir = (File) call[0];
+            Set names = (Set) call[1];
+            List listeners = (List) call[2];
+            for (int j = 0; j < listeners.size(); j++) {
+                try {
+                    ((Listener)listeners.get(j)).filesChanged(dir, names);
+                }
+                catch (Throwable t) {
+                    Log.error(t);
+                }
+            }
+        }
+    }
+
+    private static final class Watch
+    {
+        final File dir;
+        final String path;
+        final WatchKey key;
+        final ArrayList listeners = new ArrayList();
+
+        Watch(File dir, String path, WatchKey key)
+        {
+            this.dir = dir;
+            this.path = path;
+            this.key = key;
+        }
+    }
+}
@@ -60,7 +60,8 @@ public final class FilenameCompletion
         RE excludesRE = null;
         if (excludesPattern != null) {
             try {
-                excludesRE = new RE(excludesPattern, ignoreCase ? RE.REG_ICASE : 0);
+                excludesRE = RECache.getRE(excludesPattern,
+                    ignoreCase ? RE.REG_ICASE : 0);
             } catch (REException e) {
                 Log.error(e);
             }
@@ -24,15 +24,21 @@ package org.armedbear.j;
 import gnu.regexp.RE;
 import gnu.regexp.REException;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -62,11 +68,18 @@ public final class FindInFiles extends Replacement implements Constants,
 
     private Vector results = new Vector();
 
-    private boolean cancelled;
+    private volatile boolean cancelled;
 
     private int numFilesExamined;
     private int numFilesModified;
 
+    // Scan results that have arrived ahead of an earlier file, keyed by the
+    // number of the file in the walk, and the numbers of the next file to be
+    // submitted and published. Only used on the FindInFiles thread.
+    private HashMap pending;
+    private int submitted;
+    private int published;
+
     private List filters;
 
     private SaveException saveException;
@@ -242,7 +255,7 @@ public final class FindInFiles extends Replacement implements Constants,
             try {
                 String excludesPattern = Editor.preferences().getStringProperty(
                     Property.FILENAME_COMPLETIONS_EXCLUDE_PATTERN);
-                excludesRE = new RE(excludesPattern, 0);
+                excludesRE = RECache.getRE(excludesPattern);
             } catch (REException e) {
                 Log.error(e);
             }
@@ -314,116 +327,331 @@ public final class FindInFiles extends Replacement implements Constants,
 
     private void searchDirectory(File dir, Filter filter, RE excludesRE)
     {
-        String[] files = dir.list();
-        if (files == null)
+        TrigramIndex index = null;
+        Set candidates = null;
+        if (includeSubdirs && !dir.isRemote() && TrigramIndexManager.isEnabled()) {
+            TrigramIndexManager manager = TrigramIndexManager.getInstance();
+            index = manager.findIndex(dir);
+            if (index != null) {
+                List literals =
+                    TrigramIndex.getLiterals(getPattern(), isRegularExpression());
+                if (literals != null)
+                    candidates = index.query(literals);
+            }
+            // Bring the index up to date (or create it) for next time.
+            manager.addRoot(dir);
+        }
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ScanQueue queue =
+            new ScanQueue("find in files", threads, threads * 4);
+        pending = new HashMap();
+        submitted = 0;
+        published = 0;
+        try {
+            // Scanners run while the walk goes on. Their results are added
+            // to the output buffer as soon as the results of all the files
+            // before them in the walk have been added, so the order is the
+            // same every time.
+            walk(dir, filter, excludesRE, index, candidates, queue,
+                threads * 4);
+            while (!queue.isEmpty() && !cancelled)
+                publishResults(queue);
+        }
+        catch (InterruptedException e) {
+            Log.error(e);
+        }
+        finally {
+            queue.shutdown();
+        }
+    }
+
+    // The walk itself stays on this thread. It only lists directories, which
+    // costs little next to reading the files, and it is what numbers the
+    // files, so the output order doesn't depend on thread timing.
+    private void walk(File dir, Filter filter, RE excludesRE,
+        TrigramIndex index, Set candidates, ScanQueue queue, int maxPending)
+        throws InterruptedException
+    {
+        String[] names = dir.list();
+        if (names == null)
             return;
-        for (int i = 0; i < files.length; i++) {
+        for (int i = 0; i < names.length; i++) {
             if (cancelled)
                 return;
-            File file = File.getInstance(dir, files[i]);
-            if (excludesRE != null && excludesRE.isMatch(files[i]))
+            if (excludesRE != null && excludesRE.isMatch(names[i]))
                 continue;
+            File file = File.getInstance(dir, names[i]);
             if (file.isDirectory()) {
                 if (includeSubdirs)
-                    searchDirectory(file, filter, excludesRE); // Recurse!
+                    walk(file, filter, excludesRE, index, candidates, queue,
+                        maxPending);
                 continue;
             }
-            if (!filter.accepts(files[i]))
+            if (!filter.accepts(names[i]))
                 continue;
-            if (isBinaryFile(file))
+            if (candidates != null && canSkip(file, index, candidates))
                 continue;
-            if (searchFilesInMemory) {
-                Buffer buf = Editor.getBufferList().findBuffer(file);
-                if (buf != null && buf.isLoaded()) {
-                    Position pos = findInBuffer(buf);
-                    if (pos != null) {
-                        results.add(file);
-                        processFile(file, buf.getMode(), pos);
+            // Results held back behind a slow file count against the limit
+            // too.
+            while (queue.isFull() ||
+                   (pending.size() >= maxPending && !queue.isEmpty()))
+                publishResults(queue);
+            queue.submit(new FileScanner(file, submitted++));
+            if (queue.hasResult())
+                publishResults(queue);
+        }
+    }
+
+    // If the trigram index knows about a file that is not in the candidate
+    // set, it can't contain a match.
+    private boolean canSkip(File file, TrigramIndex index, Set candidates)
+    {
+        if (candidates.contains(file.canonicalPath()))
+            return false;
+        if (searchFilesInMemory) {
+            // The copy in memory may have been modified.
+            Buffer buf = Editor.getBufferList().findBuffer(file);
+            if (buf != null && buf.isLoaded())
+                return false;
+        }
+        return index.isCurrent(file);
+    }
+
+    // Runs on the FindInFiles thread. Waits for the next scanner to finish,
+    // collects the results of any others that have finished, then appends
+    // the results that are next in walk order to the output buffer in one
+    // batch.
+    private void publishResults(ScanQueue queue) throws InterruptedException
+    {
+        do {
+            Scanned scanned = (Scanned) queue.take();
+            if (scanned != null)
+                pending.put(Integer.valueOf(scanned.number), scanned);
+        } while (queue.hasResult());
+        ArrayList batch = new ArrayList();
+        while (true) {
+            Scanned scanned =
+                (Scanned) pending.remove(Integer.valueOf(published));
+            if (scanned == null)
+                break;
+            ++published;
+            ScanResult result = scanned.result;
+            if (result == null || cancelled)
+                continue; // Binary file, error, or cancelled.
+            ++numFilesExamined;
+            if (result.buffer != null) {
+                // Search the copy of the file in memory.
+                Position pos = findInBuffer(result.buffer);
+                if (pos != null) {
+                    if (batch.size() > 0) {
+                        appendResults(batch);
+                        batch.clear();
                     }
-                    ++numFilesExamined;
-                    continue;
+                    results.add(result.file);
+                    processFile(result.file, result.buffer.getMode(), pos);
+                }
+            } else if (result.count > 0) {
+                batch.add(result);
+                if (batch.size() >= MAX_BATCH_SIZE) {
+                    appendResults(batch);
+                    batch.clear();
                 }
-                // No buffer found, fall through...
             }
-            Debug.assertTrue(outputBuffer != null);
-            processFile(file);
-            ++numFilesExamined;
+        }
+        if (batch.size() > 0)
+            appendResults(batch);
+    }
+
+    // A scan result and the number of its file in the walk.
+    private static final class Scanned
+    {
+        final int number;
+        final ScanResult result;
+
+        Scanned(int number, ScanResult result)
+        {
+            this.number = number;
+            this.result = result;
         }
     }
 
-    private void processFile(File file)
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private void appendResults(List batch)
     {
+        Debug.assertTrue(outputBuffer != null);
         try {
-            boolean update = false;
-            BufferedReader reader =
-                new BufferedReader(new InputStreamReader(file.getInputStream(),
-                                                         encoding));
-            int lineNumber = 0;
-            int matches = 0;
-            final boolean delimited = wholeWordsOnly();
-            String s;
-            while ((s = reader.readLine()) != null) {
-                ++lineNumber;
-                boolean found = delimited ? findDelimited(s, mode) : find(s);
-                if (found) {
-                    try {
-                        outputBuffer.lockWrite();
-                    }
-                    catch (InterruptedException e) {
-                        Log.error(e);
-                        return;
-                    }
-                    try {
-                        if (matches == 0) {
-                            // First match in this file.
-                            if (!listEachOccurrence && results.size() == 0)
-                                outputBuffer.appendLine("Found in:");
-                            outputBuffer.appendFileLine(file,
-                                                        listEachOccurrence);
-                            results.add(file);
-                            update = true;
-                        }
-                        ++matches;
-                        if (listEachOccurrence)
-                            outputBuffer.appendOccurrenceLine(s, lineNumber);
-                        else
-                            break;
-                    }
-                    finally {
-                        outputBuffer.renumber();
-                        outputBuffer.unlockWrite();
-                    }
+            outputBuffer.lockWrite();
+        }
+        catch (InterruptedException e) {
+            Log.error(e);
+            return;
+        }
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                ScanResult result = (ScanResult) batch.get(i);
+                if (!listEachOccurrence && results.size() == 0)
+                    outputBuffer.appendLine("Found in:");
+                outputBuffer.appendFileLine(result.file, listEachOccurrence);
+                results.add(result.file);
+                if (listEachOccurrence) {
+                    for (int j = 0; j < result.count; j++)
+                        outputBuffer.appendOccurrenceLine(result.lines[j],
+                                                          result.lineNumbers[j]);
                 }
             }
-            // Update display once per file.
-            if (update)
-                SwingUtilities.invokeLater(updateDisplayRunnable);
+            outputBuffer.renumber();
         }
-        catch (IOException e) {
-            Log.error(e);
+        finally {
+            outputBuffer.unlockWrite();
         }
+        // Update display once per batch.
+        SwingUtilities.invokeLater(updateDisplayRunnable);
     }
 
-    // BUG!! Unicode files are treated as binary.
-    private static boolean isBinaryFile(File file)
+    private static final class ScanResult
     {
-        try {
-            InputStream in = file.getInputStream();
-            byte[] bytes = new byte[4096];
-            int bytesRead = in.read(bytes);
-            in.close();
-            for (int i = 0; i < bytesRead; i++) {
-                if (bytes[i] == 0)
-                    return true;
+        final File file;
+        final Buffer buffer; // Non-null if the file should be searched in memory.
+        String[] lines;
+        int[] lineNumbers;
+        int count;
+
+        ScanResult(File file, Buffer buffer)
+        {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        void add(String s, int lineNumber)
+        {
+            if (lines == null) {
+                lines = new String[4];
+                lineNumbers = new int[4];
+            } else if (count == lines.length) {
+                String[] newLines = new String[count * 2];
+                System.arraycopy(lines, 0, newLines, 0, count);
+                lines = newLines;
+                int[] newLineNumbers = new int[count * 2];
+                System.arraycopy(lineNumbers, 0, newLineNumbers, 0, count);
+                lineNumbers = newLineNumbers;
             }
-            return false;
+            lines[count] = s;
+            lineNumbers[count] = lineNumber;
+            ++count;
         }
-        catch (IOException e) {
-            Log.error(e);
-            return true;
+    }
+
+    // Each scanner thread needs its own copy of the search, since Search
+    // keeps the last match in an instance variable.
+    private final ThreadLocal searches = new ThreadLocal() {
+        protected Object initialValue()
+        {
+            return FindInFiles.this.clone();
+        }
+    };
+
+    // Searches one file, reading it only once. The result is null if the
+    // file is binary, can't be read, or the search was cancelled.
+    private final class FileScanner implements Callable
+    {
+        private final File file;
+        private final int number;
+
+        FileScanner(File file, int number)
+        {
+            this.file = file;
+            this.number = number;
+        }
+
+        // Always returns a result, so the files after this one in the walk
+        // aren't held back forever.
+        public Object call()
+        {
+            ScanResult result = null;
+            try {
+                result = scanFile();
+            }
+            catch (Throwable t) {
+                Log.error(t);
+            }
+            return new Scanned(number, result);
+        }
+
+        private ScanResult scanFile()
+        {
+            if (cancelled)
+                return null;
+            if (searchFilesInMemory) {
+                Buffer buf = Editor.getBufferList().findBuffer(file);
+                if (buf != null && buf.isLoaded())
+                    return new ScanResult(file, buf);
+                // No buffer found, fall through...
+            }
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(
+                    Files.newInputStream(Paths.get(file.canonicalPath())),
+                    BINARY_CHECK_SIZE * 2);
+                // BUG!! Unicode files are treated as binary.
+                in.mark(BINARY_CHECK_SIZE);
+                byte[] bytes = new byte[BINARY_CHECK_SIZE];
+                int bytesRead = 0;
+                while (bytesRead < bytes.length) {
+                    int n = in.read(bytes, bytesRead, bytes.length - bytesRead);
+                    if (n < 0)
+                        break;
+                    bytesRead += n;
+                }
+                for (int i = 0; i < bytesRead; i++) {
+                    if (bytes[i] == 0)
+                        return null;
+                }
+                in.reset();
+                return scan(new BufferedReader(new InputStreamReader(in,
+                    encoding)));
+            }
+            catch (IOException e) {
+                Log.error(e);
+                return null;
+            }
+            finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    }
+                    catch (IOException e) {
+                        Log.error(e);
+                    }
+                }
+            }
+        }
+
+        private ScanResult scan(BufferedReader reader) throws IOException
+        {
+            final Search search = (Search) searches.get();
+            final boolean delimited = wholeWordsOnly();
+            ScanResult result = new ScanResult(file, null);
+            int lineNumber = 0;
+            String s;
+            while ((s = reader.readLine()) != null) {
+                ++lineNumber;
+                boolean found =
+                    delimited ? search.findDelimited(s, mode) : search.find(s);
+                if (found) {
+                    result.add(s, lineNumber);
+                    if (!listEachOccurrence)
+                        break;
+                }
+                if (cancelled)
+                    return null;
+            }
+            return result;
         }
     }
 
+    private static final int BINARY_CHECK_SIZE = 4096;
+
     private void processFile(File file, Mode mode, Position pos)
     {
         Debug.assertTrue(outputBuffer != null);
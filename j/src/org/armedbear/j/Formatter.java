@@ -40,12 +40,124 @@ public abstract class Formatter implements Constants
     public abstract LineSegmentList formatLine(Line line);
     public abstract FormatTable getFormatTable();
 
+    // True once parseBufferIncrementally() has scanned the whole buffer.
+    private boolean parsed;
+
+    // The change count when the buffer was last parsed.
+    private int changeCount;
+
+    // Counts changes to the text of the lines this formatter has parsed,
+    // and to their links, so it can tell whether anything has changed since
+    // it last parsed the buffer. lastChanged is the line whose text changed
+    // most recently, or null if the last change was to the links.
+    private int changes;
+    private Line lastChanged;
+
+    // Called by AbstractLine.changed().
+    final synchronized void lineChanged(Line line)
+    {
+        ++changes;
+        lastChanged = line;
+    }
+
+    private synchronized int getChangeCount()
+    {
+        return changes;
+    }
+
+    // Returns the line whose text changed if the specified change was the
+    // last one and only changed the text of a line, otherwise null.
+    private synchronized Line getLastChanged(int count)
+    {
+        return changes == count ? lastChanged : null;
+    }
+
     public boolean parseBuffer()
     {
         buffer.setNeedsParsing(false);
         return false;
     }
 
+    // Formatters that use parseBufferIncrementally() override this. Sets
+    // the flags of the line for a scan that begins in the specified state
+    // and returns the state at the end of the line, which is passed to the
+    // next line. A formatter can use any int as its state, as long as the
+    // state determines how the rest of the buffer is scanned.
+    protected int scanLine(Line line, int state)
+    {
+        return state;
+    }
+
+    // Each line remembers its text and the states at its start and end the
+    // last time it was scanned. A line is only scanned again if its text or
+    // its start state has changed, so after an edit, scanning starts at the
+    // first modified line and stops at the first line after it whose end
+    // state is the same as before.
+    //
+    // Nothing is walked if no line has changed since the last parse, and if
+    // the only change was to the text of one line of this buffer, the walk
+    // starts at that line and stops as soon as the state is the same as
+    // before. Any other change (lines inserted or removed, or several lines
+    // changed) walks the whole buffer, skipping the lines already parsed.
+    // Lines parsed by another formatter (before a change of mode) are
+    // scanned again.
+    protected final boolean parseBufferIncrementally(int initialState)
+    {
+        final int count = getChangeCount();
+        Line line = buffer.getFirstLine();
+        int state = initialState;
+        boolean partial = false;
+        if (parsed) {
+            // If the first line is new, all the lines have been replaced.
+            if (count == changeCount &&
+                (line == null || line.isParsedBy(this))) {
+                buffer.setNeedsParsing(false);
+                return false;
+            }
+            Line changedLine = getLastChanged(changeCount + 1);
+            if (changedLine != null && changedLine.isParsedBy(this) &&
+                isInBuffer(changedLine)) {
+                line = changedLine;
+                Line prev = line.previous();
+                if (prev != null)
+                    state = prev.getEndState();
+                partial = true;
+            }
+        }
+        boolean changed = false;
+        for (; line != null; line = line.next()) {
+            if (parsed && line.isParsedBy(this) && line.isParsed(state)) {
+                if (partial)
+                    break; // The rest of the buffer is unchanged.
+                state = line.getEndState();
+                continue;
+            }
+            final int oldflags = line.flags();
+            final int endState = scanLine(line, state);
+            if (line.flags() != oldflags)
+                changed = true;
+            line.setParsed(this, state, endState);
+            state = endState;
+        }
+        parsed = true;
+        changeCount = count;
+        buffer.setNeedsParsing(false);
+        return changed;
+    }
+
+    // The links of a line that has been removed from the buffer are left as
+    // they were, so check that its neighbours still point to it.
+    private boolean isInBuffer(Line line)
+    {
+        Line prev = line.previous();
+        if (prev == null)
+            return buffer.getFirstLine() == line;
+        if (prev.next() != line)
+            return false;
+        Line next = line.next();
+        return next == null || next.previous() == line;
+    }
+
     protected final boolean isKeyword(String s)
     {
         return buffer.isKeyword(s);
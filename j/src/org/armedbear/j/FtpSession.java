@@ -1215,6 +1215,21 @@ public class FtpSession implements Constants
         return true;
     }
 
+    // Returns a locked session to the file's host that is already logged
+    // in, or null if there isn't an idle one. Never prompts the user.
+    public static synchronized FtpSession lockIdleSession(FtpFile file)
+    {
+        for (int i = 0; i < sessionList.size(); i++) {
+            FtpSession session = (FtpSession) sessionList.get(i);
+            if (session.host.equals(file.getHostName()) &&
+                session.port == file.getPort() && session.connected) {
+                if (session.lock())
+                    return session;
+            }
+        }
+        return null;
+    }
+
     private static FtpSession lockSession(String host, int port)
     {
         for (int i = 0; i < sessionList.size(); i++) {
@@ -100,6 +100,11 @@ public final class GlobalTag extends Tag
   }
 
   public String getMethodName()
+  {
+    return getMethodName(name);
+  }
+
+  public static String getMethodName(String name)
   {
     // Java
     int index = name.indexOf('.');
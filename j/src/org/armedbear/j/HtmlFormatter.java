@@ -188,98 +188,90 @@ public final class HtmlFormatter extends Formatter implements Constants
 
     public boolean parseBuffer()
     {
-        Line line = buffer.getFirstLine();
-        if (line == null)
-            return false;
+        return parseBufferIncrementally(STATE_NEUTRAL);
+    }
+
+    protected int scanLine(Line line, int state)
+    {
+        line.setFlags(state);
         Position pos = new Position(line, 0);
-        boolean changed = false;
-        int state = STATE_NEUTRAL;
-        while (line != null) {
-            int oldflags = line.flags();
-            if (state != oldflags) {
-                line.setFlags(state);
-                changed = true;
-            }
-            final int limit = line.length();
-            for (int i = 0; i < limit; i++) {
-                char c = line.charAt(i);
-                if (state == STATE_HTML_COMMENT) {
-                    if (c == '-') {
-                        pos.moveTo(line, i);
-                        if (pos.lookingAt("-->")) {
-                            state = STATE_NEUTRAL;
-                            i += 2;
-                            continue;
-                        }
-                    }
-                    continue;
-                }
-                if (state == STATE_SCRIPT_TAG) {
-                    if (c == '>') {
-                        state = STATE_SCRIPT;
-                        continue;
-                    }
-                }
-                if (state == STATE_TAG) {
-                    if (c == '>') {
+        final int limit = line.length();
+        for (int i = 0; i < limit; i++) {
+            char c = line.charAt(i);
+            if (state == STATE_HTML_COMMENT) {
+                if (c == '-') {
+                    pos.moveTo(line, i);
+                    if (pos.lookingAt("-->")) {
                         state = STATE_NEUTRAL;
+                        i += 2;
                         continue;
                     }
                 }
-                if (state == STATE_SCRIPT) {
-                    if (c == '<') {
-                        pos.moveTo(line, i);
-                        if (pos.lookingAtIgnoreCase("</script>")) {
-                            state = STATE_NEUTRAL;
-                            i += 8;
-                        }
-                    } else if (c == '/' && i < limit-1) {
-                        c = line.charAt(i+1);
-                        if (c == '*') {
-                            pos.moveTo(line, i);
-                            state = STATE_COMMENT;
-                            ++i;
-                        }
-                    }
+                continue;
+            }
+            if (state == STATE_SCRIPT_TAG) {
+                if (c == '>') {
+                    state = STATE_SCRIPT;
                     continue;
                 }
-                if (state == STATE_COMMENT) {
-                    if (c == '*' && i < limit-1) {
-                        c = line.charAt(i+1);
-                        if (c == '/') {
-                            pos.moveTo(line, i);
-                            state = STATE_SCRIPT;
-                            ++i;
-                        }
-                    }
+            }
+            if (state == STATE_TAG) {
+                if (c == '>') {
+                    state = STATE_NEUTRAL;
                     continue;
                 }
-                // Neutral state.
+            }
+            if (state == STATE_SCRIPT) {
                 if (c == '<') {
                     pos.moveTo(line, i);
-                    if (pos.lookingAt("<!--")) {
-                        state = STATE_HTML_COMMENT;
-                        i += 3;
-                        continue;
+                    if (pos.lookingAtIgnoreCase("</script>")) {
+                        state = STATE_NEUTRAL;
+                        i += 8;
                     }
-                    if (pos.lookingAtIgnoreCase("<script>")) {
-                        state = STATE_SCRIPT;
-                        i += 7;
-                        continue;
+                } else if (c == '/' && i < limit-1) {
+                    c = line.charAt(i+1);
+                    if (c == '*') {
+                        pos.moveTo(line, i);
+                        state = STATE_COMMENT;
+                        ++i;
                     }
-                    if (pos.lookingAtIgnoreCase("<script ")) {
-                        state = STATE_SCRIPT_TAG;
-                        i += 7;
-                        continue;
+                }
+                continue;
+            }
+            if (state == STATE_COMMENT) {
+                if (c == '*' && i < limit-1) {
+                    c = line.charAt(i+1);
+                    if (c == '/') {
+                        pos.moveTo(line, i);
+                        state = STATE_SCRIPT;
+                        ++i;
                     }
-                    state = STATE_TAG;
+                }
+                continue;
+            }
+            // Neutral state.
+            if (c == '<') {
+                pos.moveTo(line, i);
+                if (pos.lookingAt("<!--")) {
+                    state = STATE_HTML_COMMENT;
+                    i += 3;
                     continue;
                 }
+                if (pos.lookingAtIgnoreCase("<script>")) {
+                    state = STATE_SCRIPT;
+                    i += 7;
+                    continue;
+                }
+                if (pos.lookingAtIgnoreCase("<script ")) {
+                    state = STATE_SCRIPT_TAG;
+                    i += 7;
+                    continue;
+                }
+                state = STATE_TAG;
+                continue;
             }
-            line = line.next();
         }
-        buffer.setNeedsParsing(false);
-        return changed;
+        return state;
     }
 
     public FormatTable getFormatTable()
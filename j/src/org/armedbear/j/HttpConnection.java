@@ -0,0 +1,492 @@
+/*
+ * HttpConnection.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A persistent HTTP/1.1 connection.
+//
+// Idle connections are pooled by host, port and protocol (when a proxy is
+// used, the host and port are the proxy's), so loading several pages or
+// images from the same server only pays for one TCP (and TLS) handshake.
+// A connection goes back to the pool when the body of the response has
+// been read to the end and neither side asked to close it. Bodies are
+// streamed, with chunked transfer encoding decoded on the fly.
+//
+// Usage: open(), sendRequest(), readResponse(), read the body from the
+// response, then release() (or close() if something went wrong). A request
+// sent on a pooled connection may find that the server has closed it in
+// the meantime; isReused() tells the caller whether it is worth retrying
+// on a new connection.
+public final class HttpConnection
+{
+    private static final int MAX_IDLE_PER_HOST = 4;
+    private static final long KEEP_ALIVE = 15000; // milliseconds
+    private static final int CONNECT_TIMEOUT = 30000; // milliseconds
+
+    // Idle connections by key, most recently used last.
+    private static final HashMap idle = new HashMap();
+
+    private static final AtomicLong connects = new AtomicLong();
+    private static final AtomicLong reuses = new AtomicLong();
+
+    private final String key;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final boolean reused;
+
+    private long lastUsed;
+    private boolean closed;
+    private Response response;
+
+    private HttpConnection(String key, Socket socket) throws IOException
+    {
+        this.key = key;
+        this.socket = socket;
+        in = new BufferedInputStream(socket.getInputStream(), 16384);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        reused = false;
+    }
+
+    // A pooled connection, being used again.
+    private HttpConnection(HttpConnection c)
+    {
+        key = c.key;
+        socket = c.socket;
+        in = c.in;
+        out = c.out;
+        reused = true;
+    }
+
+    // Returns an idle connection to the host if there is one, otherwise a
+    // new one. The client (if not null) can cancel the connection attempt,
+    // in which case the return value is null. Throws an IOException with a
+    // message suitable for the user if the connection can't be made.
+    public static HttpConnection open(String hostName, int port, boolean ssl,
+        Cancellable client) throws IOException
+    {
+        final String key = getKey(hostName, port, ssl);
+        HttpConnection c = takeIdle(key);
+        if (c != null) {
+            reuses.incrementAndGet();
+            return new HttpConnection(c);
+        }
+        SocketConnection sc = new SocketConnection(hostName, port, ssl,
+            CONNECT_TIMEOUT, 200, client);
+        Socket socket = sc.connect();
+        if (socket == null) {
+            if (client != null && client.cancelled())
+                return null;
+            String errorText = sc.getErrorText();
+            throw new IOException(errorText != null ? errorText :
+                "Unable to connect to " + hostName);
+        }
+        connects.incrementAndGet();
+        return new HttpConnection(key, socket);
+    }
+
+    private static String getKey(String hostName, int port, boolean ssl)
+    {
+        FastStringBuffer sb = new FastStringBuffer(ssl ? "https://" : "http://");
+        sb.append(hostName.toLowerCase());
+        sb.append(':');
+        sb.append(String.valueOf(port));
+        return sb.toString();
+    }
+
+    private static synchronized HttpConnection takeIdle(String key)
+    {
+        LinkedList list = (LinkedList) idle.get(key);
+        if (list == null)
+            return null;
+        final long now = System.currentTimeMillis();
+        HttpConnection found = null;
+        while (!list.isEmpty()) {
+            HttpConnection c = (HttpConnection) list.removeLast();
+            if (now - c.lastUsed < KEEP_ALIVE && !c.socket.isClosed()) {
+                found = c;
+                break;
+            }
+            c.closeSocket();
+        }
+        // Anything left is older.
+        pruneList(list, now);
+        if (list.isEmpty())
+            idle.remove(key);
+        return found;
+    }
+
+    private static void pruneList(LinkedList list, long now)
+    {
+        while (!list.isEmpty()) {
+            HttpConnection c = (HttpConnection) list.getFirst();
+            if (now - c.lastUsed < KEEP_ALIVE)
+                break;
+            list.removeFirst();
+            c.closeSocket();
+        }
+    }
+
+    // Closes the idle connections that have timed out.
+    private static synchronized void pruneIdleConnections()
+    {
+        final long now = System.currentTimeMillis();
+        ArrayList empty = new ArrayList();
+        for (Iterator it = idle.keySet().iterator(); it.hasNext();) {
+            Object k = it.next();
+            LinkedList list = (LinkedList) idle.get(k);
+            pruneList(list, now);
+            if (list.isEmpty())
+                empty.add(k);
+        }
+        for (int i = 0; i < empty.size(); i++)
+            idle.remove(empty.get(i));
+    }
+
+    public static synchronized void closeIdleConnections()
+    {
+        for (Iterator it = idle.values().iterator(); it.hasNext();) {
+            LinkedList list = (LinkedList) it.next();
+            while (!list.isEmpty())
+                ((HttpConnection)list.removeFirst()).closeSocket();
+        }
+        idle.clear();
+    }
+
+    public static String getStatistics()
+    {
+        int count = 0;
+        synchronized (HttpConnection.class) {
+            for (Iterator it = idle.values().iterator(); it.hasNext();)
+                count += ((LinkedList)it.next()).size();
+        }
+        FastStringBuffer sb = new FastStringBuffer("connects ");
+        sb.append(String.valueOf(connects.get()));
+        sb.append(" reuses ");
+        sb.append(String.valueOf(reuses.get()));
+        sb.append(" idle ");
+        sb.append(String.valueOf(count));
+        return sb.toString();
+    }
+
+    // True if this connection came from the pool.
+    public final boolean isReused()
+    {
+        return reused;
+    }
+
+    // The request is the request line and headers, ending with a blank
+    // line.
+    public void sendRequest(String request) throws IOException
+    {
+        out.write(request.getBytes("ISO8859_1"));
+        out.flush();
+    }
+
+    public Response readResponse() throws IOException
+    {
+        String statusLine = readLine(in);
+        if (statusLine == null)
+            throw new IOException("Connection closed by server");
+        FastStringBuffer sb = new FastStringBuffer(1024);
+        sb.append(statusLine);
+        sb.append("\r\n");
+        FastStringBuffer headers = new FastStringBuffer(1024);
+        String s;
+        while ((s = readLine(in)) != null && s.length() > 0) {
+            headers.append(s);
+            headers.append("\r\n");
+        }
+        headers.append("\r\n");
+        response = new Response(statusLine, headers.toString());
+        response.body = new BodyInputStream(in, response);
+        return response;
+    }
+
+    // Returns the connection to the pool if the response has been read to
+    // the end and the connection can be kept alive. Otherwise closes it.
+    public void release()
+    {
+        if (closed)
+            return;
+        if (response == null || !response.keepAlive ||
+            !((BodyInputStream)response.body).atEnd()) {
+            close();
+            return;
+        }
+        response = null;
+        closed = true; // This object is done with.
+        HttpConnection c = new HttpConnection(this);
+        c.lastUsed = System.currentTimeMillis();
+        synchronized (HttpConnection.class) {
+            LinkedList list = (LinkedList) idle.get(key);
+            if (list == null) {
+                list = new LinkedList();
+                idle.put(key, list);
+            }
+            list.addLast(c);
+            while (list.size() > MAX_IDLE_PER_HOST)
+                ((HttpConnection)list.removeFirst()).closeSocket();
+            pruneIdleConnections();
+        }
+    }
+
+    // Closes the connection. This can be called from another thread to
+    // abort a transfer.
+    public void close()
+    {
+        closed = true;
+        closeSocket();
+    }
+
+    private void closeSocket()
+    {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            Log.error(e);
+        }
+    }
+
+    // Reads a line terminated by LF (or CRLF), as ISO-8859-1. Returns null
+    // at end of stream if nothing has been read.
+    private static String readLine(InputStream in) throws IOException
+    {
+        FastStringBuffer sb = new FastStringBuffer(128);
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r')
+                    sb.setLength(length - 1);
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    public static final class Response
+    {
+        private final String statusLine;
+        private final String headers;
+        private final int statusCode;
+        private final boolean chunked;
+        private final long contentLength;
+        private final boolean keepAlive;
+        private InputStream body;
+
+        private Response(String statusLine, String headers)
+        {
+            this.statusLine = statusLine;
+            this.headers = headers;
+            statusCode = parseStatusCode(statusLine);
+            String transferEncoding = getHeader("transfer-encoding");
+            chunked = transferEncoding != null &&
+                transferEncoding.toLowerCase().indexOf("chunked") >= 0;
+            long length = -1;
+            String s = getHeader("content-length");
+            if (s != null) {
+                try {
+                    length = Long.parseLong(s.trim());
+                }
+                catch (NumberFormatException e) {
+                    Log.error(e);
+                }
+            }
+            // No body for 1xx, 204 and 304 responses.
+            if (statusCode == 204 || statusCode == 304 ||
+                (statusCode >= 100 && statusCode < 200))
+                length = 0;
+            contentLength = length;
+            String connection = getHeader("connection");
+            if (connection != null)
+                connection = connection.toLowerCase();
+            final boolean http11 = statusLine.startsWith("HTTP/1.1");
+            boolean b;
+            if (connection != null && connection.indexOf("close") >= 0)
+                b = false;
+            else if (http11)
+                b = true;
+            else
+                b = connection != null && connection.indexOf("keep-alive") >= 0;
+            // Without chunking or a length, the body ends when the
+            // connection is closed.
+            keepAlive = b && (chunked || contentLength >= 0);
+        }
+
+        public final String getStatusLine()
+        {
+            return statusLine;
+        }
+
+        public final int getStatusCode()
+        {
+            return statusCode;
+        }
+
+        // The headers (everything after the status line), including the
+        // terminating blank line.
+        public final String getHeaders()
+        {
+            return headers;
+        }
+
+        // Returns the value of the named header (lower case), or null.
+        public final String getHeader(String name)
+        {
+            return Cache.getHeader(headers, name);
+        }
+
+        // -1 if not known.
+        public final long getContentLength()
+        {
+            return chunked ? -1 : contentLength;
+        }
+
+        public final InputStream getBody()
+        {
+            return body;
+        }
+
+        private static int parseStatusCode(String statusLine)
+        {
+            int begin = statusLine.indexOf(' ') + 1;
+            if (begin == 0)
+                return -1;
+            int end = statusLine.indexOf(' ', begin);
+            if (end < 0)
+                end = statusLine.length();
+            try {
+                return Integer.parseInt(statusLine.substring(begin, end));
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    // The body of a response: chunked, of known length, or everything up to
+    // the end of the stream.
+    private static final class BodyInputStream extends InputStream
+    {
+        private final InputStream in;
+        private final boolean chunked;
+
+        // Bytes left in the body (or the current chunk), or -1 if the body
+        // ends at the end of the stream.
+        private long remaining;
+
+        private boolean atEnd;
+
+        BodyInputStream(InputStream in, Response response)
+        {
+            this.in = in;
+            chunked = response.chunked;
+            remaining = chunked ? 0 : response.contentLength;
+            atEnd = !chunked && remaining == 0;
+        }
+
+        boolean atEnd()
+        {
+            return atEnd;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n > 0 ? (b[0] & 0xff) : -1;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (atEnd)
+                return -1;
+            if (len == 0)
+                return 0;
+            if (chunked && remaining == 0) {
+                if (!nextChunk())
+                    return -1;
+            }
+            if (remaining >= 0 && len > remaining)
+                len = (int) remaining;
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                if (remaining < 0) {
+                    atEnd = true;
+                    return -1;
+                }
+                throw new IOException("Connection closed by server");
+            }
+            if (remaining >= 0) {
+                remaining -= n;
+                if (remaining == 0 && !chunked)
+                    atEnd = true;
+            }
+            return n;
+        }
+
+        // Reads the next chunk header. Returns false after the last chunk
+        // (and the trailer) has been read.
+        private boolean nextChunk() throws IOException
+        {
+            String s = readLine(in);
+            // CRLF after the previous chunk's data.
+            if (s != null && s.length() == 0)
+                s = readLine(in);
+            if (s == null)
+                throw new IOException("Connection closed by server");
+            int index = s.indexOf(';'); // Chunk extension.
+            if (index >= 0)
+                s = s.substring(0, index);
+            long size;
+            try {
+                size = Long.parseLong(s.trim(), 16);
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size: " + s);
+            }
+            if (size == 0) {
+                // Skip the trailer.
+                while ((s = readLine(in)) != null && s.length() > 0)
+                    ;
+                atEnd = true;
+                return false;
+            }
+            remaining = size;
+            return true;
+        }
+    }
+}
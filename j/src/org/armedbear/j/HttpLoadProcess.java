@@ -21,20 +21,16 @@
 
 package org.armedbear.j;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
 import java.net.URL;
-import java.security.Provider;
-import java.security.Security;
-import java.util.List;
 import javax.swing.SwingUtilities;
 
 public final class HttpLoadProcess extends LoadProcess implements BackgroundProcess,
     Runnable, Cancellable
 {
-    private Socket socket;
+    private volatile HttpConnection connection;
     private boolean render = true;
 
     private String request;
@@ -87,28 +83,15 @@ public final class HttpLoadProcess extends LoadProcess implements BackgroundProc
     private void load()
     {
         boolean usingProxy = false;
-        if (file.getProtocol() == File.PROTOCOL_HTTPS) {
-            if (!findProvider()) {
-                error("No SSL provider found");
-                return;
-            }
-        }
+        final boolean ssl = file.getProtocol() == File.PROTOCOL_HTTPS;
         cache = Utilities.getTempFile();
         if (cache == null) {
             Log.error("HttpLoadProcess.load cache is null");
             return; // Report error!
         }
-        Debug.assertTrue(socket == null);
         String hostName = file.getHostName();
         int port = file.getPort();
-        if (file.getProtocol() == File.PROTOCOL_HTTPS) {
-            socket = createSSLSocket(hostName, port);
-            if (socket == null) {
-                if (!cancelled)
-                    error("Can't create SSL socket");
-                return;
-            }
-        } else {
+        if (!ssl) {
             String httpProxy = Editor.preferences().getStringProperty("httpProxy");
             if (httpProxy != null) {
                 if (httpProxy.startsWith("http://"))
@@ -125,138 +108,123 @@ public final class HttpLoadProcess extends LoadProcess implements BackgroundProc
                     }
                 }
             }
-            connect(hostName, port);
-        }
-        if (cancelled) {
-            Log.debug("cancelled!!");
-            if (cancelRunnable != null)
-                SwingUtilities.invokeLater(cancelRunnable);
-            return;
-        }
-        if (socket == null) {
-            if (errorRunnable != null)
-                SwingUtilities.invokeLater(errorRunnable);
-            return;
         }
         String location = null;
         boolean redirected = false;
         String encoding = null;
+        int statusCode = -1;
+        boolean complete = false;
+        // If we have a cached copy, ask the server to send the page only if
+        // it has changed.
+        final Cache httpCache = Cache.getCache();
+        final String url = file.netPath();
+        final Cache.Entry cached =
+            httpCache != null ? httpCache.getEntry(url) : null;
         try {
-            InputStream in = socket.getInputStream();
-            OutputStreamWriter writer = new OutputStreamWriter(socket.getOutputStream());
-            FastStringBuffer sb = new FastStringBuffer(1024);
-            sb.append("GET ");
-            sb.append(usingProxy ? file.netPath() : file.canonicalPath());
-            sb.append(" HTTP/1.0\r\n");
-            sb.append("Host: ");
-            sb.append(file.getHostName());
-            sb.append("\r\n");
-            String userAgent = Editor.preferences().getStringProperty(Property.HTTP_USER_AGENT);
-            if (userAgent != null && userAgent.length() > 0) {
-                sb.append("User-Agent: ");
-                sb.append(userAgent);
-                sb.append("\r\n");
-            }
-            if (Editor.preferences().getBooleanProperty(Property.HTTP_ENABLE_COOKIES)) {
-                String cookie = Cookie.getCookie(new URL(file.netPath()));
-                if (cookie != null) {
-                    sb.append("Cookie: ");
-                    sb.append(cookie);
-                    sb.append("\r\n");
-                }
-            }
-            sb.append("\r\n");
-            request = sb.toString();
-            writer.write(request);
-            writer.flush();
-            sb.setLength(0);
+            request = getRequest(usingProxy, cached);
             sbHeaders.append(request);
-            OutputStream out = cache.getOutputStream();
-            byte[] buf = new byte[16384];
-            long totalBytes = 0;
-            int totalLength = 0; // Includes length of response headers.
-            if (progressNotifier != null)
-                progressNotifier.progressStart();
-            while (!cancelled) {
-                int bytesRead = 0;
+            HttpConnection.Response response = null;
+            while (response == null && !cancelled) {
+                if (progressNotifier != null)
+                    progressNotifier.setText("Connecting to " + hostName +
+                        " on port " + port + "...");
+                connection = HttpConnection.open(hostName, port, ssl, this);
+                if (connection == null)
+                    break; // Cancelled.
+                if (progressNotifier != null)
+                    progressNotifier.setText("Connected to " + hostName);
                 try {
-                    // We may get an exception here if the user cancels.
-                    bytesRead = in.read(buf);
+                    connection.sendRequest(request);
+                    response = connection.readResponse();
                 }
-                catch (Exception e) {
-                    if (!cancelled)
-                        Log.error(e);
+                catch (IOException e) {
+                    connection.close();
+                    // The server may have closed a pooled connection while
+                    // it was idle. If so, try again on a new connection.
+                    if (!connection.isReused() || cancelled)
+                        throw e;
                 }
-                if (bytesRead <= 0)
-                    break;
-                if (sb != null) {
-                    int oldLength = sb.length();
-                    sb.append(new String(buf, 0, bytesRead, "ISO8859_1"));
-                    String s = sb.toString();
-                    int skip = 4; // "\r\n\r\n"
-                    int index = s.indexOf("\r\n\r\n");
-                    if (index < 0) {
-                        index = s.indexOf("\n\n");
-                        skip = 2; // "\n\n"
-                    }
-                    if (index >= 0) {
-                        // We've got the headers.
-                        sb = null;
-                        responseHeaders = s.substring(0, index + skip);
-                        sbHeaders.append(responseHeaders);
-                        int statusCode = getStatusCode(responseHeaders);
-                        Log.debug("statusCode = " + statusCode);
-                        if (statusCode == 301 || statusCode == 302) {
-                            // "Moved Permanently", "Moved Temporarily"
-                            location = getLocation(responseHeaders);
-                            redirected = true;
-                            Log.debug("redirected to |" + location + "|");
-                            Log.debug(request);
-                            Log.debug(responseHeaders);
+            }
+            if (response != null) {
+                responseHeaders = response.getHeaders();
+                sbHeaders.append(response.getStatusLine());
+                sbHeaders.append("\r\n");
+                sbHeaders.append(responseHeaders);
+                statusCode = response.getStatusCode();
+                Log.debug("statusCode = " + statusCode);
+                if (statusCode == 301 || statusCode == 302) {
+                    // "Moved Permanently", "Moved Temporarily"
+                    location = getLocation(responseHeaders);
+                    redirected = true;
+                    Log.debug("redirected to |" + location + "|");
+                    Log.debug(request);
+                    Log.debug(responseHeaders);
+                }
+                Log.debug("responseHeaders = |" + responseHeaders + "|");
+                Headers headers = Headers.parse(responseHeaders);
+                setContentType(headers.getValue(Headers.CONTENT_TYPE));
+                Log.debug("content-type = |" + contentType + "|");
+                String charset =
+                    Utilities.getCharsetFromContentType(contentType);
+                Log.debug("charset = |" + charset + "|");
+                if (charset != null)
+                    encoding = Utilities.getEncodingFromCharset(charset);
+                Log.debug("encoding = |" + encoding + "|");
+                if (Editor.preferences().getBooleanProperty(Property.HTTP_ENABLE_COOKIES)) {
+                    String cookie = headers.getValue(Headers.SET_COOKIE);
+                    if (cookie != null)
+                        Cookie.setCookie(new URL(file.netPath()), cookie);
+                }
+                final long totalLength = response.getContentLength();
+                InputStream in = response.getBody();
+                OutputStream out = cache.getOutputStream();
+                byte[] buf = new byte[16384];
+                long totalBytes = 0;
+                if (progressNotifier != null)
+                    progressNotifier.progressStart();
+                try {
+                    while (!cancelled) {
+                        int bytesRead = 0;
+                        try {
+                            // We may get an exception here if the user
+                            // cancels.
+                            bytesRead = in.read(buf);
                         }
-                        // Remove status line.
-                        int end = responseHeaders.indexOf('\n');
-                        if (end >= 0)
-                            responseHeaders = responseHeaders.substring(end + 1);
-                        int contentLength = getContentLength(responseHeaders);
-                        if (contentLength != 0)
-                            totalLength = responseHeaders.length() + contentLength;
-                        Log.debug("responseHeaders = |" + responseHeaders + "|");
-                        Headers headers = Headers.parse(responseHeaders);
-                        setContentType(headers.getValue(Headers.CONTENT_TYPE));
-                        Log.debug("content-type = |" + contentType + "|");
-                        String charset =
-                            Utilities.getCharsetFromContentType(contentType);
-                        Log.debug("charset = |" + charset + "|");
-                        if (charset != null)
-                            encoding = Utilities.getEncodingFromCharset(charset);
-                        Log.debug("encoding = |" + encoding + "|");
-                        if (Editor.preferences().getBooleanProperty(Property.HTTP_ENABLE_COOKIES)) {
-                            String cookie = headers.getValue(Headers.SET_COOKIE);
-                            if (cookie != null)
-                                Cookie.setCookie(new URL(file.netPath()), cookie);
+                        catch (IOException e) {
+                            if (!cancelled)
+                                Log.error(e);
+                            break;
                         }
-                        int offset = index - oldLength + skip;
-                        int length = bytesRead - offset;
-                        out.write(buf, offset, length);
+                        if (bytesRead < 0) {
+                            complete = true;
+                            break;
+                        }
+                        out.write(buf, 0, bytesRead);
+                        totalBytes += bytesRead;
+                        if (progressNotifier != null)
+                            progressNotifier.progress("Received ", totalBytes,
+                                totalLength > 0 ? totalLength : 0);
                     }
-                } else
-                    out.write(buf, 0, bytesRead);
-                totalBytes += bytesRead;
+                }
+                finally {
+                    out.close();
+                }
                 if (progressNotifier != null)
-                    progressNotifier.progress("Received ", totalBytes, totalLength);
+                    progressNotifier.progressStop();
             }
-            if (progressNotifier != null)
-                progressNotifier.progressStop();
-            out.close();
-            in.close();
-            socket.close();
-            socket = null;
         }
         catch (Exception e) {
             Log.error(e);
+            setErrorText(e.getMessage());
+        }
+        if (connection != null) {
+            if (complete && !cancelled)
+                connection.release();
+            else
+                connection.close();
+            connection = null;
         }
-        if (cancelled)
+        if (cancelled || !complete)
             cache.delete();
         if (!cache.isFile())
             cache = null;
@@ -275,6 +243,19 @@ public final class HttpLoadProcess extends LoadProcess implements BackgroundProc
                 return;
             }
         }
+        if (cache != null && httpCache != null && !redirected) {
+            if (statusCode == 304 && cached != null) {
+                // Not modified. Use the cached copy.
+                cache.delete();
+                cache = httpCache.copyToTempFile(cached);
+                httpCache.revalidated(url, responseHeaders);
+                contentType = cached.getContentType();
+                encoding = cached.getEncoding();
+            } else if (statusCode == 200) {
+                httpCache.store(url, cache, responseHeaders, contentType,
+                    encoding);
+            }
+        }
         if (cache != null) {
             // Success!
             final HttpFile httpFile = (HttpFile) file;
@@ -292,90 +273,66 @@ public final class HttpLoadProcess extends LoadProcess implements BackgroundProc
             SwingUtilities.invokeLater(errorRunnable);
     }
 
-    private void connect(final String hostName, final int port)
-    {
-        Debug.assertTrue(socket == null);
-        Log.debug("Connecting to " + hostName + " on port " + port + "...");
-        if (progressNotifier != null)
-            progressNotifier.setText("Connecting to " + hostName + " on port " + port + "...");
-        SocketConnection sc = new SocketConnection(hostName, port, false, 30000, 200, this);
-        socket = sc.connect();
-        if (socket != null) {
-            if (progressNotifier != null)
-                progressNotifier.setText("Connected to " + hostName);
-        } else
-            setErrorText(sc.getErrorText());
-    }
-
-    private boolean findProvider()
+    private String getRequest(boolean usingProxy, Cache.Entry cached)
+        throws IOException
     {
-        Provider provider = null;
-        try {
-            provider =
-                (Provider) Class.forName("com.sun.net.ssl.internal.ssl.Provider").newInstance();
+        FastStringBuffer sb = new FastStringBuffer(1024);
+        sb.append("GET ");
+        sb.append(usingProxy ? file.netPath() : file.canonicalPath());
+        sb.append(" HTTP/1.1\r\n");
+        sb.append("Host: ");
+        sb.append(file.getHostName());
+        final int defaultPort =
+            file.getProtocol() == File.PROTOCOL_HTTPS ? 443 : 80;
+        if (file.getPort() != defaultPort) {
+            sb.append(':');
+            sb.append(String.valueOf(file.getPort()));
         }
-        catch (Exception e) {}
-        if (provider != null) {
-            Security.addProvider(provider);
-            System.setProperty("java.protocol.handler.pkgs",
-                "com.sun.net.ssl.internal.www.protocol");
-            return true;
+        sb.append("\r\n");
+        String userAgent = Editor.preferences().getStringProperty(Property.HTTP_USER_AGENT);
+        if (userAgent != null && userAgent.length() > 0) {
+            sb.append("User-Agent: ");
+            sb.append(userAgent);
+            sb.append("\r\n");
         }
-        return false;
-    }
-
-    private Socket createSSLSocket(String hostName, int port)
-    {
-        try {
-            // SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            Class SSLSocketFactory = Class.forName("javax.net.ssl.SSLSocketFactory");
-            java.lang.reflect.Method getDefault = SSLSocketFactory.getMethod("getDefault", new Class[0]);
-            Object factory = getDefault.invoke(null, new Object[0]);
-
-            // Socket socket = factory.createSocket(hostName, port);
-            Class[] parameterTypes = new Class[2];
-            parameterTypes[0] = String.class;
-            parameterTypes[1] = Integer.TYPE;
-            java.lang.reflect.Method createSocket = factory.getClass().getMethod("createSocket", parameterTypes);
-            Object[] args = new Object[2];
-            args[0] = hostName;
-            args[1] = new Integer(port);
-            Socket socket = (Socket) createSocket.invoke(factory, args);
-            return socket;
+        if (Editor.preferences().getBooleanProperty(Property.HTTP_ENABLE_COOKIES)) {
+            String cookie = Cookie.getCookie(new URL(file.netPath()));
+            if (cookie != null) {
+                sb.append("Cookie: ");
+                sb.append(cookie);
+                sb.append("\r\n");
+            }
         }
-        catch (Throwable t) {
-            Log.error(t);
-            return null;
+        if (cached != null) {
+            if (cached.getEtag() != null) {
+                sb.append("If-None-Match: ");
+                sb.append(cached.getEtag());
+                sb.append("\r\n");
+            }
+            if (cached.getLastModified() != null) {
+                sb.append("If-Modified-Since: ");
+                sb.append(cached.getLastModified());
+                sb.append("\r\n");
+            }
         }
+        sb.append("\r\n");
+        return sb.toString();
     }
 
-    private static int getStatusCode(String responseHeaders)
+    // Closes the connection, so a transfer in progress stops right away.
+    public void cancel()
     {
-        int begin = responseHeaders.indexOf(' ') + 1;
-        if (begin == 0)
-            return -1;
-        int end = responseHeaders.indexOf(' ', begin);
-        if (end < 0)
-            return -1;
-        try {
-            return Utilities.parseInt(responseHeaders.substring(begin, end));
-        }
-        catch (NumberFormatException e) {
-            return -1;
-        }
+        super.cancel();
+        HttpConnection c = connection;
+        if (c != null)
+            c.close();
     }
 
     private static String getLocation(String responseHeaders)
     {
-        final String lookFor = "\nlocation:";
-        final int index = responseHeaders.toLowerCase().indexOf(lookFor);
-        if (index < 0)
+        String location = Cache.getHeader(responseHeaders, "location");
+        if (location == null)
             return null;
-        final int begin = index + lookFor.length();
-        final int end = responseHeaders.indexOf('\n', begin);
-        if (end < 0)
-            return null;
-        String location = responseHeaders.substring(begin, end).trim();
         if (location.startsWith("http:/") && !location.startsWith("http://")) {
             // Be permissive in what we accept.
             location = "http://".concat(location.substring(6));
@@ -383,21 +340,6 @@ public final class HttpLoadProcess extends LoadProcess implements BackgroundProc
         return location;
     }
 
-    private static int getContentLength(String responseHeaders)
-    {
-        final String lookFor = "\r\ncontent-length:";
-        final int index = responseHeaders.toLowerCase().indexOf(lookFor);
-        if (index < 0)
-            return 0; // No content length header.
-        final String value = responseHeaders.substring(index + lookFor.length()).trim();
-        try {
-            return Utilities.parseInt(value);
-        }
-        catch (NumberFormatException e) {
-            return 0;
-        }
-    }
-
     private void error(String errorText)
     {
         Log.error(errorText);
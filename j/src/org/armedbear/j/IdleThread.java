@@ -81,6 +81,7 @@ public class IdleThread extends Thread
         addTask(autosaveTask);
         addTask(saveStateTask);
         addTask(tagCurrentDirectoryTask);
+        addTask(trigramIndexTask);
         if (Editor.isDebugEnabled())
             addListThreadsTask();
     }
@@ -235,6 +236,8 @@ public class IdleThread extends Thread
     private IdleThreadTask tagCurrentDirectoryTask =
         new TagCurrentDirectoryTask();
 
+    private IdleThreadTask trigramIndexTask = new TrigramIndexTask();
+
     private static IdleThreadTask followContextTask;
 
     private void addListThreadsTask()
@@ -36,17 +36,30 @@ import org.armedbear.lisp.LispObject;
 
 public final class KeyMap implements Constants
 {
-    private static KeyMap globalKeyMap;
+    private static volatile KeyMap globalKeyMap;
     private static KeyMap globalOverrides;
     private static File globalKeyMapFile;
 
     private ArrayList mappings = new ArrayList();
 
+    // The mappings hashed for lookup, or null if they have changed since the
+    // index was last built. Lookups read it without locking.
+    private volatile Index index;
+
     public KeyMap()
     {
     }
 
-    public static synchronized KeyMap getGlobalKeyMap()
+    // Called on every keystroke, so don't lock once the map exists.
+    public static KeyMap getGlobalKeyMap()
+    {
+        KeyMap keyMap = globalKeyMap;
+        if (keyMap != null)
+            return keyMap;
+        return createGlobalKeyMap();
+    }
+
+    private static synchronized KeyMap createGlobalKeyMap()
     {
         if (globalKeyMap == null) {
             if (Editor.isLispInitialized()) {
@@ -403,7 +416,7 @@ public final class KeyMap implements Constants
         }
     }
 
-    public synchronized final KeyMapping lookupEventSequence(EventSequence es)
+    public final KeyMapping lookupEventSequence(EventSequence es)
     {
         KeyMap requestedKeyMap = null;
         KeyMapping mapping = null;
@@ -432,40 +445,61 @@ public final class KeyMap implements Constants
         return mapping;
     }
 
-    public synchronized final KeyMapping lookup(char keyChar, int keyCode,
-                                                int modifiers)
+    public final KeyMapping lookup(char keyChar, int keyCode, int modifiers)
     {
+        Index idx = index;
+        if (idx == null)
+            idx = buildIndex();
         // Mask off the bits we don't care about (Java 1.4).
         modifiers &= 0x0f;
         if (keyCode == 0 && modifiers == 0) {
             // This is the keyTyped() case. Ignore keyCode and modifiers;
             // keyChar must match the mapping.
-            for (int i = mappings.size(); i-- > 0;) {
-                KeyMapping mapping = (KeyMapping) mappings.get(i);
-                if (keyChar == mapping.getKeyChar())
-                    return mapping;
-            }
-        } else {
-            for (int i = mappings.size(); i-- > 0;) {
-                // This is the keyPressed() case. keyCode and modifiers must
-                // match the mapping. mapping.getKeyChar() must be zero, but
-                // we ignore the keyChar argument.
-                KeyMapping mapping = (KeyMapping) mappings.get(i);
-                if (mapping.getKeyChar() == 0 &&
-                    keyCode == mapping.getKeyCode() &&
-                    modifiers == mapping.getModifiers())
-                    return mapping;
-            }
+            return idx.keyTyped.get(keyChar);
         }
-        return null;
+        // This is the keyPressed() case. keyCode and modifiers must match
+        // the mapping. mapping.getKeyChar() must be zero, but we ignore the
+        // keyChar argument.
+        return idx.keyPressed.get(getKey(keyCode, modifiers));
     }
 
-    public synchronized final KeyMapping lookup(KeyStroke keyStroke)
+    public final KeyMapping lookup(KeyStroke keyStroke)
     {
         return lookup(keyStroke.getKeyChar(), keyStroke.getKeyCode(),
             keyStroke.getModifiers());
     }
 
+    private static long getKey(int keyCode, int modifiers)
+    {
+        return ((long) keyCode << 32) | (modifiers & 0xffffffffL);
+    }
+
+    private synchronized Index buildIndex()
+    {
+        if (index == null) {
+            // When more than one mapping matches, the one added last wins,
+            // so later mappings replace earlier ones here.
+            final int size = mappings.size();
+            Table keyTyped = new Table(size);
+            Table keyPressed = new Table(size);
+            for (int i = 0; i < size; i++) {
+                KeyMapping mapping = (KeyMapping) mappings.get(i);
+                keyTyped.put(mapping.getKeyChar(), mapping);
+                if (mapping.getKeyChar() == 0)
+                    keyPressed.put(getKey(mapping.getKeyCode(),
+                        mapping.getModifiers()), mapping);
+            }
+            index = new Index(keyTyped, keyPressed);
+        }
+        return index;
+    }
+
+    // Only called from synchronized methods.
+    private void changed()
+    {
+        index = null;
+    }
+
     public synchronized final KeyMapping getKeyMapping(String command)
     {
         command = command.intern();
@@ -517,6 +551,7 @@ public final class KeyMap implements Constants
             if (command == mapping.getCommand())
                 mappings.add(mapping);
         }
+        changed();
     }
 
     public synchronized void mapKey(int keyCode, int modifiers, String command)
@@ -526,11 +561,13 @@ public final class KeyMap implements Constants
             KeyMapping mapping = (KeyMapping) mappings.get(i);
             if (keyCode == mapping.getKeyCode() && modifiers == mapping.getModifiers()) {
                 mappings.set(i, new KeyMapping(keyCode, modifiers, command));
+                changed();
                 return;
             }
         }
         // No mapping found.
         mappings.add(new KeyMapping(keyCode, modifiers, command));
+        changed();
     }
 
     public synchronized void mapKey(char keyChar, Object command)
@@ -540,11 +577,13 @@ public final class KeyMap implements Constants
             KeyMapping mapping = (KeyMapping) mappings.get(i);
             if (keyChar == mapping.getKeyChar()) {
                 mappings.set(i, new KeyMapping(keyChar, command));
+                changed();
                 return;
             }
         }
         // No mapping found.
         mappings.add(new KeyMapping(keyChar, command));
+        changed();
     }
 
     // Only called from synchronized methods.
@@ -553,6 +592,7 @@ public final class KeyMap implements Constants
         KeyMapping mapping = KeyMapping.createKeyMapping(s);
         if (mapping != null) {
             mappings.add(mapping);
+            changed();
             return true;
         }
         return false;
@@ -575,11 +615,13 @@ public final class KeyMap implements Constants
                 KeyMapping mapping = (KeyMapping) mappings.get(i);
                 if (keyChar == mapping.getKeyChar()) {
                     mappings.set(i, new KeyMapping(keyChar, command));
+                    changed();
                     return true;
                 }
             }
             // Not found.
             mappings.add(new KeyMapping(keyChar, command));
+            changed();
         } else {
             for (int i = mappings.size(); i-- > 0;) {
                 // This is the keyPressed() case. keyCode and modifiers must
@@ -591,11 +633,13 @@ public final class KeyMap implements Constants
                     modifiers == mapping.getModifiers()) {
                     mappings.set(i,
                         new KeyMapping(keyCode, modifiers, command));
+                    changed();
                     return true;
                 }
             }
             // Not found.
             mappings.add(new KeyMapping(keyCode, modifiers, command));
+            changed();
         }
         return true;
     }
@@ -606,6 +650,7 @@ public final class KeyMap implements Constants
             KeyMapping mapping = (KeyMapping) mappings.get(i);
             if (keyChar == mapping.getKeyChar()) {
                 mappings.remove(i);
+                changed();
                 return;
             }
         }
@@ -617,6 +662,7 @@ public final class KeyMap implements Constants
             KeyMapping mapping = (KeyMapping) mappings.get(i);
             if (keyCode == mapping.getKeyCode() && modifiers == mapping.getModifiers()) {
                 mappings.remove(i);
+                changed();
                 return;
             }
         }
@@ -638,6 +684,7 @@ public final class KeyMap implements Constants
                     KeyMapping mapping = (KeyMapping) mappings.get(i);
                     if (keyChar == mapping.getKeyChar()) {
                         mappings.remove(i);
+                        changed();
                         return true;
                     }
                 }
@@ -651,6 +698,7 @@ public final class KeyMap implements Constants
                         keyCode == mapping.getKeyCode() &&
                         modifiers == mapping.getModifiers()) {
                         mappings.remove(i);
+                        changed();
                         return true;
                     }
                 }
@@ -699,4 +747,56 @@ public final class KeyMap implements Constants
                 mode.deleteKeyMap();
         }
     }
+
+    private static final class Index
+    {
+        final Table keyTyped;   // By key char.
+        final Table keyPressed; // By key code and modifiers.
+
+        Index(Table keyTyped, Table keyPressed)
+        {
+            this.keyTyped = keyTyped;
+            this.keyPressed = keyPressed;
+        }
+    }
+
+    // An open addressing hash table from long keys to mappings. It is only
+    // modified while the index is being built.
+    private static final class Table
+    {
+        private final long[] keys;
+        private final KeyMapping[] values;
+        private final int mask;
+
+        Table(int expected)
+        {
+            int capacity = 8;
+            while (capacity < expected * 2)
+                capacity <<= 1;
+            keys = new long[capacity];
+            values = new KeyMapping[capacity];
+            mask = capacity - 1;
+        }
+
+        private int slot(long key)
+        {
+            int h = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+            int i = (h ^ (h >>> 16)) & mask;
+            while (values[i] != null && keys[i] != key)
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        void put(long key, KeyMapping mapping)
+        {
+            int i = slot(key);
+            keys[i] = key;
+            values[i] = mapping;
+        }
+
+        KeyMapping get(long key)
+        {
+            return values[slot(key)];
+        }
+    }
 }
@@ -112,4 +112,14 @@ public interface Line
     Annotation getAnnotation();
 
     void setAnnotation(Annotation annotation);
+
+    // Returns true if the line's text hasn't changed since it was last
+    // parsed starting in the specified state.
+    boolean isParsed(int state);
+
+    int getEndState();
+
+    void setParsed(Formatter parser, int startState, int endState);
+
+    boolean isParsedBy(Formatter parser);
 }
@@ -0,0 +1,284 @@
+/*
+ * LineIndex.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+// Random-access index of a buffer's line list.
+//
+// This is a cache, not the line store: the prev/next chain is still the
+// buffer's only copy of its lines, and line numbers still come from
+// Buffer.renumber(). The index is built in a single pass over the chain and
+// is then used to map line numbers and absolute character offsets to lines
+// without walking the chain again.
+//
+// Each line tells the index it belongs to when its text or its links change
+// (see AbstractLine.changed()). A change to the text of a line only updates
+// the line's length, in O(log n), so typing doesn't invalidate the index.
+// A change to the links (lines inserted or removed) makes the index invalid,
+// and SystemBuffer builds a new one on the next lookup; such a change needs
+// Buffer.renumber() anyway, which walks the whole chain.
+//
+// The index never calls a line while holding its own monitor, since a line
+// holds its monitor when it reports a change.
+public final class LineIndex
+{
+    private final Line[] lines;
+
+    private final int count;
+
+    // Fenwick tree of line lengths (plus 1 for the separator, which always
+    // counts as 1), so the start offset of a line is a prefix sum. Offsets
+    // are long because a memory-mapped buffer can be larger than 2 GB.
+    private final long[] tree;
+
+    // The offset one past the end of the buffer (including a virtual
+    // separator after the last line).
+    private long end;
+
+    private boolean valid = true;
+
+    // True if the original line numbers of the lines that have one (i.e.
+    // the lines that were not inserted since the buffer was loaded) are
+    // in ascending order, so findOriginal() can use a binary search.
+    private final boolean originalsAscending;
+
+    public LineIndex(Line firstLine)
+    {
+        int n = 0;
+        for (Line line = firstLine; line != null; line = line.next())
+            ++n;
+        lines = new Line[n];
+        tree = new long[n + 1];
+        boolean ascending = true;
+        int lastOriginal = -1;
+        long offset = 0;
+        int i = 0;
+        for (Line line = firstLine; line != null && i < n; line = line.next()) {
+            lines[i] = line;
+            final int length = line.length() + 1;
+            tree[i + 1] = length;
+            offset += length;
+            final int original = line.originalLineNumber();
+            if (original >= 0) {
+                if (original < lastOriginal)
+                    ascending = false;
+                lastOriginal = original;
+            }
+            if (line instanceof AbstractLine)
+                ((AbstractLine) line).setIndex(this);
+            ++i;
+        }
+        count = i;
+        for (int j = 1; j <= count; j++) {
+            final int parent = j + (j & -j);
+            if (parent <= count)
+                tree[parent] += tree[j];
+        }
+        end = offset;
+        originalsAscending = ascending;
+    }
+
+    // Called by AbstractLine.changed() with the line whose text or links
+    // have changed.
+    /*package*/ void lineChanged(Line line, boolean linksChanged)
+    {
+        // The line's monitor is already held by the caller.
+        final int i = line.lineNumber();
+        final int length = line.length() + 1;
+        synchronized (this) {
+            if (!valid)
+                return;
+            if (linksChanged || i < 0 || i >= count || lines[i] != line) {
+                valid = false;
+                return;
+            }
+            final long delta = length - (sum(i + 1) - sum(i));
+            if (delta != 0) {
+                for (int j = i + 1; j <= count; j += j & -j)
+                    tree[j] += delta;
+                end += delta;
+            }
+        }
+    }
+
+    // Returns false once lines have been inserted or removed since the index
+    // was built.
+    public final synchronized boolean isValid()
+    {
+        return valid;
+    }
+
+    // Returns the offset of the start of the line at index i (or of the end
+    // of the buffer if i == count).
+    private long sum(int i)
+    {
+        long sum = 0;
+        for (int j = i; j > 0; j -= j & -j)
+            sum += tree[j];
+        return sum;
+    }
+
+    public final int getLineCount()
+    {
+        return count;
+    }
+
+    // Returns null if lineNumber is out of range.
+    public final Line getLine(int lineNumber)
+    {
+        if (lineNumber < 0 || lineNumber >= count)
+            return null;
+        return lines[lineNumber];
+    }
+
+    // Returns the index of the specified line, or -1 if the line is not in
+    // the index (or its line number is stale).
+    public final int indexOf(Line line)
+    {
+        final int i = line.lineNumber();
+        if (i >= 0 && i < count && lines[i] == line)
+            return i;
+        return -1;
+    }
+
+    // Returns -1 if the line is not in the index, or if its length doesn't
+    // agree with the index.
+    public final long getAbsoluteOffset(Position pos)
+    {
+        final Line line = pos.getLine();
+        final int i = indexOf(line);
+        if (i < 0 || !isCurrent(i))
+            return -1;
+        return getStart(i) + pos.getOffset();
+    }
+
+    // Same contract as Buffer.getPosition(int): returns null if goal is
+    // past the end of the buffer. Also returns null if the index does not
+    // agree with the line it finds (see isCurrent()).
+    public final Position getPosition(long goal)
+    {
+        final int i = findLineContaining(goal);
+        if (i < 0 || !isCurrent(i))
+            return null;
+        return new Position(lines[i], (int) (goal - getStart(i)));
+    }
+
+    // Returns the index of the line containing the character at the given
+    // absolute offset (or the separator after it), or -1 if the offset is
+    // negative or past the end of the buffer.
+    public final synchronized int findLineContaining(long offset)
+    {
+        if (offset < 0 || offset >= end)
+            return -1;
+        return findLine(offset);
+    }
+
+    // Returns the index of the line containing the character at the given
+    // absolute offset (or the separator after it). The offset must be
+    // between 0 and getTextLength().
+    public final synchronized int findLine(long offset)
+    {
+        if (count == 0)
+            return 0;
+        // Find the last line whose start is <= offset.
+        int i = 0;
+        long remaining = offset;
+        for (int step = Integer.highestOneBit(count); step > 0; step >>= 1) {
+            final int next = i + step;
+            if (next <= count && tree[next] <= remaining) {
+                i = next;
+                remaining -= tree[next];
+            }
+        }
+        return Math.min(i, count - 1);
+    }
+
+    // Returns the absolute offset of the first character of the line at
+    // index i.
+    public final synchronized long getStart(int i)
+    {
+        return sum(i);
+    }
+
+    // The length of the buffer's text, as returned by Buffer.getText().
+    public final synchronized long getTextLength()
+    {
+        return count > 0 ? end - 1 : 0;
+    }
+
+    // Returns the first line (in buffer order) whose original line number is
+    // greater than or equal to lineNumber, or null if there is no such line.
+    // If exact is true, only a line with exactly that original line number
+    // is returned.
+    public final Line findOriginal(int lineNumber, boolean exact)
+    {
+        if (originalsAscending) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (originalAtOrAfter(mid) < lineNumber)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            // Skip inserted lines (original line number -1).
+            while (lo < count && lines[lo].originalLineNumber() < 0)
+                ++lo;
+            if (lo < count) {
+                final Line line = lines[lo];
+                if (!exact || line.originalLineNumber() == lineNumber)
+                    return line;
+            }
+            return null;
+        }
+        for (int i = 0; i < count; i++) {
+            final int original = lines[i].originalLineNumber();
+            if (exact ? original == lineNumber : original >= lineNumber)
+                return lines[i];
+        }
+        return null;
+    }
+
+    // Returns the original line number of the line at index i, or of the
+    // next line after it that has one. Inserted lines with no original line
+    // number sort with the line that follows them.
+    private int originalAtOrAfter(int i)
+    {
+        for (int j = i; j < count; j++) {
+            final int original = lines[j].originalLineNumber();
+            if (original >= 0)
+                return original;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    // Returns false if the length of the line at index i doesn't agree with
+    // the index, in which case offsets from this index can't be trusted.
+    public final boolean isCurrent(int i)
+    {
+        final long length;
+        synchronized (this) {
+            length = sum(i + 1) - sum(i);
+        }
+        return lines[i].length() + 1 == length;
+    }
+}
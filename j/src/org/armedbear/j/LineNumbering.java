@@ -0,0 +1,46 @@
+/*
+ * LineNumbering.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+// The origin of a buffer's line numbers.
+//
+// Each line numbered by Buffer.renumber() stores its line number plus the
+// origin, so when lines are dropped from the head of the buffer (see
+// Buffer.enforceOutputLimit()), moving the origin renumbers the lines that
+// remain in O(1). The arithmetic wraps around harmlessly if the origin
+// overflows.
+/*package*/ final class LineNumbering
+{
+    private volatile int origin;
+
+    /*package*/ int getOrigin()
+    {
+        return origin;
+    }
+
+    // Subtracts count from the line number of every line that uses this
+    // numbering. Must be called with the buffer locked for writing.
+    /*package*/ void advance(int count)
+    {
+        origin += count;
+    }
+}
@@ -469,159 +469,186 @@ public final class LispFormatter extends Formatter
         return segmentList;
     }
 
+    // The state passed between lines by scanLine() is the parenthesis state
+    // (STATE_NEUTRAL, STATE_OPEN_PAREN or STATE_CAR) in the low byte, one of
+    // the following modes in the second byte, and a count (the nesting depth
+    // of a #| comment, or the parenthesis depth of a quoted object) in the
+    // high 16 bits.
+    private static final int MODE_CODE          = 0;
+    private static final int MODE_STRING        = 1;
+    private static final int MODE_COMMENT       = 2;
+    private static final int MODE_QUOTED        = 3;
+    private static final int MODE_QUOTED_STRING = 4;
+
+    // Set in the mode byte if the line ended with a backslash outside a
+    // string. The backslash escapes the line separator, and the old
+    // whole-buffer parser stepped over it without setting the flags of the
+    // next line, which kept the flags it was created with (STATE_NEUTRAL).
+    private static final int ESCAPED_NEWLINE    = 0x8000;
+
     public boolean parseBuffer()
     {
-        int state = STATE_NEUTRAL;
-        boolean changed = false;
-        Position pos = new Position(buffer.getFirstLine(), 0);
-        while (!pos.atEnd()) {
-            char c = pos.getChar();
-            if (c == EOL) {
-                if (pos.nextLine()) {
-                    changed =
-                        setLineFlags(pos.getLine(), state) || changed;
+        return parseBufferIncrementally(STATE_NEUTRAL);
+    }
+
+    protected int scanLine(Line line, int state)
+    {
+        int parenState = state & 0xff;
+        int mode = (state >> 8) & 0x7f;
+        int count = state >>> 16;
+        if ((state & ESCAPED_NEWLINE) != 0)
+            line.setFlags(STATE_NEUTRAL);
+        else switch (mode) {
+            case MODE_STRING:
+            case MODE_QUOTED_STRING:
+                line.setFlags(STATE_QUOTE);
+                break;
+            case MODE_COMMENT:
+                line.setFlags(STATE_COMMENT);
+                break;
+            case MODE_QUOTED:
+                line.setFlags(STATE_QUOTED_LIST);
+                break;
+            default:
+                line.setFlags(parenState);
+                break;
+        }
+        final String text = line.getText();
+        final int limit = text.length();
+        int i = 0;
+        while (i < limit) {
+            char c = text.charAt(i);
+            if (mode == MODE_STRING || mode == MODE_QUOTED_STRING) {
+                if (c == '\\') {
+                    // Escape.
+                    i += 2;
+                    continue;
+                }
+                if (c == '"')
+                    mode = mode == MODE_STRING ? MODE_CODE : MODE_QUOTED;
+                ++i;
+                continue;
+            }
+            if (mode == MODE_COMMENT) {
+                if (c == '\\') {
+                    // Escape.
+                    i += 2;
+                    continue;
+                }
+                if (c == '#' && text.startsWith("#|", i)) {
+                    i += 2;
+                    ++count;
+                    continue;
+                }
+                if (c == '|' && text.startsWith("|#", i)) {
+                    i += 2;
+                    if (--count == 0)
+                        mode = MODE_CODE; // End of comment.
+                    continue;
+                }
+                ++i;
+                continue;
+            }
+            if (mode == MODE_QUOTED) {
+                if (Character.isWhitespace(c)) {
+                    ++i;
+                    continue;
+                }
+                if (c == '\\') {
+                    i += 2;
+                    continue;
+                }
+                if (c == '"') {
+                    ++i;
+                    mode = MODE_QUOTED_STRING;
+                    continue;
+                }
+                if (c == '#' && text.startsWith("#(", i)) {
+                    ++count;
+                    i += 2;
+                    continue;
+                }
+                if (c == '(') {
+                    ++count;
+                    ++i;
+                    continue;
+                }
+                if (c == ')') {
+                    ++i;
+                    if (count > 0) {
+                        --count;
+                        if (count == 0)
+                            mode = MODE_CODE;
+                    }
                     continue;
-                } else
-                    break; // Reached end of buffer.
+                }
+                // Not whitespace or paren.
+                if (count == 0) {
+                    // Skip token.
+                    while (i < limit && !Character.isWhitespace(text.charAt(i)))
+                        ++i;
+                    mode = MODE_CODE;
+                    continue;
+                }
+                ++i;
+                continue;
             }
+            // Not in comment, quoted string or quoted object.
             if (c == '\\') {
                 // Escape.
-                pos.skip();
-                pos.next();
+                i += 2;
                 continue;
             }
-            // Not in comment or quoted string.
             if (c == ';') {
                 // Single-line comment beginning. Ignore rest of line.
-                if (pos.nextLine()) {
-                    changed =
-                        setLineFlags(pos.getLine(), state) || changed;
-                    continue;
-                } else {
-                    pos.moveTo(pos.getLine(), pos.getLine().length());
-                    break; // Reached end of buffer.
-                }
+                break;
             }
             if (c == '#') {
-                if (pos.lookingAt("#|")) {
-                    pos.skip(2);
-                    changed = skipBalancedComment(pos) || changed;
-                } else if (pos.lookingAt("#'"))
-                    pos.skip(2);
+                if (text.startsWith("#|", i)) {
+                    i += 2;
+                    mode = MODE_COMMENT;
+                    count = 1;
+                } else if (text.startsWith("#'", i))
+                    i += 2;
                 else
-                    pos.skip();
+                    ++i;
                 continue;
             }
             if (c == '"') {
-                pos.skip();
-                changed = skipString(pos) || changed;
+                ++i;
+                mode = MODE_STRING;
                 continue;
             }
             if (c == '\'') {
-                pos.skip();
-                changed = skipQuotedObject(pos) || changed;
+                ++i;
+                mode = MODE_QUOTED;
+                count = 0;
                 continue;
             }
             if (c == '(') {
-                state = STATE_OPEN_PAREN;
-                pos.skip();
+                parenState = STATE_OPEN_PAREN;
+                ++i;
                 continue;
             }
-            if (state == STATE_OPEN_PAREN) {
+            if (parenState == STATE_OPEN_PAREN) {
                 if (!Character.isWhitespace(c))
-                    state = STATE_CAR;
-                pos.next();
+                    parenState = STATE_CAR;
+                ++i;
                 continue;
             }
-            if (state == STATE_CAR) {
+            if (parenState == STATE_CAR) {
                 if (c == ')' || Character.isWhitespace(c))
-                    state = STATE_NEUTRAL;
-                pos.next();
-                continue;
-            }
-            // Default.
-            pos.skip();
-            continue;
-        }
-        buffer.setNeedsParsing(false);
-        return changed;
-    }
-
-    private static boolean skipString(Position pos)
-    {
-        boolean changed = false;
-        while (!pos.atEnd()) {
-            char c = pos.getChar();
-            if (c == EOL) {
-                if (pos.nextLine()) {
-                    if (setLineFlags(pos.getLine(), STATE_QUOTE))
-                        changed = true;
-                    continue;
-                } else
-                    break; // Reached end of buffer.
-            }
-            if (c == '\\') {
-                // Escape.
-                pos.skip();
-                if (pos.getChar() == EOL) {
-                    if (pos.nextLine()) {
-                        if (setLineFlags(pos.getLine(), STATE_QUOTE))
-                            changed = true;
-                        continue;
-                    } else
-                        break; // End of buffer.
-                } else {
-                    // Not end of line.
-                    pos.next();
-                    continue;
-                }
-            }
-            if (c == '"') {
-                pos.next();
-                break;
-            }
-            // Default.
-            pos.skip();
-        }
-        return changed;
-    }
-
-    private static boolean skipBalancedComment(Position pos)
-    {
-        boolean changed = false;
-        int count = 1;
-        while (!pos.atEnd()) {
-            char c = pos.getChar();
-            if (c == EOL) {
-                if (pos.nextLine()) {
-                    if (setLineFlags(pos.getLine(), STATE_COMMENT))
-                        changed = true;
-                    continue;
-                } else
-                    break; // End of buffer.
-            }
-            if (c == '\\') {
-                // Escape.
-                pos.skip();
-                pos.next();
-                continue;
-            }
-            if (c == '#' && pos.lookingAt("#|")) {
-                pos.skip(2);
-                ++count;
+                    parenState = STATE_NEUTRAL;
+                ++i;
                 continue;
             }
-            if (c == '|' && pos.lookingAt("|#")) {
-                pos.skip(2);
-                if (--count == 0)
-                    break; // End of comment.
-                else
-                    continue;
-            }
             // Default.
-            pos.skip();
+            ++i;
         }
-        return changed;
+        int endState = parenState | (mode << 8) | (count << 16);
+        if (i > limit && mode != MODE_STRING && mode != MODE_QUOTED_STRING)
+            endState |= ESCAPED_NEWLINE;
+        return endState;
     }
 
     private int skipQuotedObject(String text, int i, int state)
@@ -674,78 +701,6 @@ public final class LispFormatter extends Formatter
         return i;
     }
 
-    private static boolean skipQuotedObject(Position pos)
-    {
-        boolean changed = false;
-        int count = 0;
-        while (!pos.atEnd()) {
-            char c = pos.getChar();
-            if (c == EOL) {
-                if (pos.nextLine()) {
-                    changed =
-                        setLineFlags(pos.getLine(), STATE_QUOTED_LIST) || changed;
-                    continue;
-                } else
-                    break; // End of buffer.
-            }
-            if (Character.isWhitespace(c)) {
-                pos.skip();
-                continue;
-            }
-            if (c == '\\') {
-                pos.skip();
-                pos.next();
-                continue;
-            }
-            if (c == '"') {
-                pos.skip();
-                changed = skipString(pos) || changed;
-                continue;
-            }
-            if (c == '#' && pos.lookingAt("#(")) {
-                ++count;
-                pos.skip(2);
-                continue;
-            }
-            if (c == '(') {
-                ++count;
-                pos.skip();
-                continue;
-            }
-            if (c == ')') {
-                pos.skip();
-                if (count > 0) {
-                    --count;
-                    if (count == 0)
-                        break;
-                }
-                continue;
-            }
-            // Not EOL, whitespace or paren.
-            if (count == 0) {
-                skipToken(pos);
-                break;
-            }
-            // Default.
-            pos.skip();
-        }
-        return changed;
-    }
-
-    private static boolean setLineFlags(Line line, int newFlags)
-    {
-        if (line.flags() == newFlags)
-            return false; // No change.
-        line.setFlags(newFlags);
-        return true;
-    }
-
-    private static void skipToken(Position pos)
-    {
-        while (!Character.isWhitespace(pos.getChar()) && pos.next())
-            ;
-    }
-
     public FormatTable getFormatTable()
     {
         if (formatTable == null) {
@@ -0,0 +1,156 @@
+/*
+ * LiteralMatcher.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+// A compiled literal search pattern, optionally ignoring case. Text is
+// searched in place: to ignore case, a Boyer-Moore-Horspool scan folds case
+// one character at a time as it compares, so nothing is allocated per
+// search. Case-sensitive searches use String.indexOf(), which the VM
+// optimizes better than we can.
+//
+// A matcher is immutable and can be shared.
+public final class LiteralMatcher
+{
+    private final String pattern;
+    private final boolean ignoreCase;
+    private final char[] chars; // Folded if ignoreCase.
+    private final int length;
+
+    // Skip tables, indexed by the low byte of a (folded) text character.
+    // Characters that share a low byte share the smallest safe skip.
+    private final int[] skip = new int[256];
+    private final int[] reverseSkip = new int[256];
+
+    public LiteralMatcher(String pattern, boolean ignoreCase)
+    {
+        this.pattern = pattern;
+        this.ignoreCase = ignoreCase;
+        length = pattern.length();
+        chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            char c = pattern.charAt(i);
+            chars[i] = ignoreCase ? fold(c) : c;
+        }
+        for (int i = 0; i < 256; i++)
+            skip[i] = reverseSkip[i] = length;
+        for (int i = 0; i < length - 1; i++)
+            skip[chars[i] & 0xff] = length - 1 - i;
+        for (int i = length; i-- > 1;)
+            reverseSkip[chars[i] & 0xff] = i;
+    }
+
+    public final String getPattern()
+    {
+        return pattern;
+    }
+
+    public final boolean ignoreCase()
+    {
+        return ignoreCase;
+    }
+
+    public final int length()
+    {
+        return length;
+    }
+
+    // Returns true if every match of this matcher is also a match of m (at
+    // the same index), as when a character has been added to m's pattern.
+    public boolean extendsMatcher(LiteralMatcher m)
+    {
+        if (m.length > length)
+            return false;
+        if (ignoreCase && !m.ignoreCase)
+            return false;
+        for (int i = 0; i < m.length; i++) {
+            char c = m.ignoreCase ? fold(chars[i]) : chars[i];
+            if (c != m.chars[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static char fold(char c)
+    {
+        if (c < 128)
+            return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+        return Character.toLowerCase(c);
+    }
+
+    // Returns the index of the first match in s that starts at or after
+    // fromIndex and ends at or before end, or -1.
+    public int indexOf(String s, int fromIndex, int end)
+    {
+        if (fromIndex < 0)
+            fromIndex = 0;
+        if (end > s.length())
+            end = s.length();
+        if (length == 0)
+            return fromIndex < end ? fromIndex : end;
+        if (!ignoreCase) {
+            int index = s.indexOf(pattern, fromIndex);
+            return index <= end - length ? index : -1;
+        }
+        final int last = length - 1;
+        final char lastChar = chars[last];
+        final int limit = end - length;
+        int i = fromIndex;
+        while (i <= limit) {
+            final char c = fold(s.charAt(i + last));
+            if (c == lastChar) {
+                int j = last - 1;
+                while (j >= 0 && fold(s.charAt(i + j)) == chars[j])
+                    --j;
+                if (j < 0)
+                    return i;
+            }
+            i += skip[c & 0xff];
+        }
+        return -1;
+    }
+
+    // Returns the index of the last match in s that starts at or before
+    // fromIndex, or -1, like String.lastIndexOf().
+    public int lastIndexOf(String s, int fromIndex)
+    {
+        if (!ignoreCase)
+            return s.lastIndexOf(pattern, fromIndex);
+        int i = s.length() - length;
+        if (fromIndex < i)
+            i = fromIndex;
+        if (length == 0)
+            return i >= 0 ? i : -1;
+        final char firstChar = chars[0];
+        while (i >= 0) {
+            final char c = fold(s.charAt(i));
+            if (c == firstChar) {
+                int j = 1;
+                while (j < length && fold(s.charAt(i + j)) == chars[j])
+                    ++j;
+                if (j == length)
+                    return i;
+            }
+            i -= reverseSkip[c & 0xff];
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * MappedLine.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
+
+// A line of a large file that is loaded in memory-mapped mode. Until the
+// line is edited, its text lives in the mapping and is only decoded on
+// demand. Once the line is edited, it behaves like a TextLine.
+public final class MappedLine extends AbstractLine implements Line
+{
+    private static final int SAVED = 0x0001;
+    private static final int NEW   = 0x0002;
+
+    private MappedText mapped;
+    private long start;
+    private final int byteLength;
+
+    // -1 if not known yet.
+    private int charLength;
+
+    private int flags;
+    private String text; // Non-null once the line has been edited.
+    private String originalText;
+    private int bits;
+
+    // Cache for the decoded text of an unedited line.
+    private SoftReference srText;
+
+    public MappedLine(MappedText mapped, long start, int byteLength,
+        boolean ascii)
+    {
+        this.mapped = mapped;
+        this.start = start;
+        this.byteLength = byteLength;
+        charLength = ascii ? byteLength : -1;
+    }
+
+    // Returns true if the text of this line still comes from the mapping.
+    public final synchronized boolean isMapped()
+    {
+        return mapped != null;
+    }
+
+    public final synchronized MappedText getMappedText()
+    {
+        return mapped;
+    }
+
+    public final synchronized long getStart()
+    {
+        return start;
+    }
+
+    public final int getByteLength()
+    {
+        return byteLength;
+    }
+
+    // Called after the buffer has been written to a file by
+    // SystemBuffer.writeMappedBuffer(). If this line was copied directly to
+    // the new file (at newStart), it now refers to the same bytes in
+    // newMapped; if it was not (because the file was written with a
+    // different encoding), its text is decoded now, since the old mapping is
+    // going away. If newMapped is null, the write failed and nothing
+    // changes.
+    final synchronized void remap(MappedText newMapped, long newStart)
+    {
+        if (newMapped != null && mapped != null) {
+            if (newStart >= 0) {
+                mapped = newMapped;
+                start = newStart;
+            } else {
+                text = getText();
+                mapped = null;
+                srText = null;
+            }
+        }
+    }
+
+    public final synchronized int flags()
+    {
+        return flags;
+    }
+
+    public final synchronized void setFlags(int flags)
+    {
+        this.flags = flags;
+    }
+
+    public final synchronized String getText()
+    {
+        if (mapped == null)
+            return text != null ? text : "";
+        if (srText != null) {
+            String s = (String) srText.get();
+            if (s != null)
+                return s;
+        }
+        String s = mapped.getString(start, byteLength);
+        if (charLength < 0)
+            charLength = s.length();
+        srText = new SoftReference(s);
+        return s;
+    }
+
+    public final synchronized void setText(String s)
+    {
+        if (mapped != null) {
+            text = getText();
+            mapped = null;
+            srText = null;
+        }
+        if (originalText == null)
+            originalText = text;
+        text = s;
+        if (text != null && text.equals(originalText))
+            originalText = null;
+        bits &= ~SAVED;
+        changed(this);
+    }
+
+    public final String getOriginalText()
+    {
+        return originalText;
+    }
+
+    public final void setOriginalText(String s)
+    {
+        originalText = s;
+    }
+
+    public final boolean isModified()
+    {
+        return originalText != null || isNew();
+    }
+
+    public final boolean isNew()
+    {
+        return (bits & NEW) == NEW;
+    }
+
+    public final void setNew(boolean b)
+    {
+        if (b)
+            bits |= NEW;
+        else
+            bits &= ~NEW;
+    }
+
+    public final boolean isSaved()
+    {
+        return (bits & SAVED) == SAVED;
+    }
+
+    public final void setSaved(boolean b)
+    {
+        if (b)
+            bits |= SAVED;
+        else
+            bits &= ~SAVED;
+    }
+
+    public final void unmodified()
+    {
+        originalText = null;
+        bits &= (~SAVED & ~NEW);
+    }
+
+    public final char charAt(int i)
+    {
+        return getText().charAt(i);
+    }
+
+    public final String substring(int beginIndex)
+    {
+        return getText().substring(beginIndex);
+    }
+
+    public final String substring(int beginIndex, int endIndex)
+    {
+        return getText().substring(beginIndex, endIndex);
+    }
+
+    public final String trim()
+    {
+        return getText().trim();
+    }
+
+    public final synchronized int length()
+    {
+        if (mapped != null && charLength >= 0)
+            return charLength;
+        return getText().length();
+    }
+
+    public final int getWidth()
+    {
+        return length() * Display.getCharWidth();
+    }
+
+    public final byte[] getBytes(String encoding)
+        throws UnsupportedEncodingException
+    {
+        synchronized (this) {
+            if (mapped != null && encoding.equals(mapped.getEncoding()))
+                return mapped.getBytes(start, byteLength);
+        }
+        byte[] bytes = getText().getBytes(encoding);
+        if (bytes.length >= 2) {
+            if ((bytes[0] == (byte) 0xfe && bytes[1] == (byte) 0xff) ||
+                (bytes[0] == (byte) 0xff && bytes[1] == (byte) 0xfe)) {
+                // Get rid of byte order mark.
+                byte[] newBytes = new byte[bytes.length-2];
+                System.arraycopy(bytes, 2, newBytes, 0, newBytes.length);
+                return newBytes;
+            }
+        }
+        return bytes;
+    }
+
+    public final boolean isBlank()
+    {
+        String s = getText();
+        for (int i = s.length(); i-- > 0;)
+            if (!Character.isWhitespace(s.charAt(i)))
+                return false;
+        return true;
+    }
+
+    // Copies text, original text, and bit flags only. The copy is an
+    // ordinary TextLine.
+    public Line copy()
+    {
+        Line line = new TextLine(getText());
+        line.setOriginalText(originalText);
+        line.setNew(isNew());
+        line.setSaved(isSaved());
+        return line;
+    }
+
+    // Copies text, original text, and bit flags only.
+    public synchronized void copy(Line line)
+    {
+        mapped = null;
+        srText = null;
+        text = line.getText();
+        originalText = line.getOriginalText();
+        setNew(line.isNew());
+        setSaved(line.isSaved());
+        changed(this);
+    }
+}
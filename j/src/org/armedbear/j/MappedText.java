@@ -0,0 +1,191 @@
+/*
+ * MappedText.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+// The memory-mapped contents of a (large) local file. MappedLine objects
+// refer to byte ranges of a MappedText and only decode them when their
+// text is actually needed.
+public final class MappedText
+{
+    // Files larger than this are mapped in several segments.
+    private static final long SEGMENT_SIZE = 0x40000000L; // 1 GB
+
+    private final File file;
+    private final String encoding;
+    private final long length;
+    private final ByteBuffer[] segments;
+
+    // True if the file is a temporary copy that we own and should delete
+    // when it's no longer needed.
+    private boolean temporary;
+
+    private MappedText(File file, String encoding, long length,
+        ByteBuffer[] segments)
+    {
+        this.file = file;
+        this.encoding = encoding;
+        this.length = length;
+        this.segments = segments;
+    }
+
+    public static MappedText map(File file, String encoding) throws IOException
+    {
+        RandomAccessFile raf =
+            new RandomAccessFile(file.canonicalPath(), "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            int count = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            ByteBuffer[] segments = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = i * SEGMENT_SIZE;
+                long size = Math.min(SEGMENT_SIZE, length - start);
+                segments[i] =
+                    channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+            // The mapping remains valid after the channel is closed.
+            return new MappedText(file, encoding, length, segments);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    // Returns true if the mapped line scheme can be used with the specified
+    // encoding: every character must be encoded without using the bytes
+    // for CR and LF, so that line separators can be found by scanning bytes.
+    public static boolean isSupportedEncoding(String encoding)
+    {
+        try {
+            Charset charset = Charset.forName(encoding);
+            if (charset.name().equals("UTF-8"))
+                return true;
+            return charset.canEncode() &&
+                charset.newEncoder().maxBytesPerChar() == 1.0f;
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+
+    public final File getFile()
+    {
+        return file;
+    }
+
+    public final String getEncoding()
+    {
+        return encoding;
+    }
+
+    public final long length()
+    {
+        return length;
+    }
+
+    public final void setTemporary(boolean b)
+    {
+        temporary = b;
+    }
+
+    // Deletes the backing file if it's a temporary copy. On Unix the mapping
+    // stays valid after the file has been deleted; elsewhere the delete may
+    // fail, in which case the file is left in j's temporary directory.
+    public void dispose()
+    {
+        if (temporary)
+            file.delete();
+    }
+
+    public final byte byteAt(long index)
+    {
+        return segments[(int) (index / SEGMENT_SIZE)].get(
+            (int) (index % SEGMENT_SIZE));
+    }
+
+    public byte[] getBytes(long start, int count)
+    {
+        byte[] bytes = new byte[count];
+        int copied = 0;
+        while (copied < count) {
+            long pos = start + copied;
+            ByteBuffer segment =
+                segments[(int) (pos / SEGMENT_SIZE)].duplicate();
+            int offset = (int) (pos % SEGMENT_SIZE);
+            int n = Math.min(count - copied, segment.capacity() - offset);
+            ((java.nio.Buffer) segment).position(offset);
+            segment.get(bytes, copied, n);
+            copied += n;
+        }
+        return bytes;
+    }
+
+    public String getString(long start, int count)
+    {
+        try {
+            return new String(getBytes(start, count), encoding);
+        }
+        catch (UnsupportedEncodingException e) {
+            Log.error(e);
+            return "";
+        }
+    }
+
+    // Returns true if the specified bytes are found at start.
+    public boolean matches(long start, byte[] bytes)
+    {
+        if (start < 0 || start + bytes.length > length)
+            return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (byteAt(start + i) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Copies count bytes starting at start directly to out.
+    public void write(OutputStream out, long start, long count)
+        throws IOException
+    {
+        byte[] buf = new byte[(int) Math.min(count, 65536)];
+        while (count > 0) {
+            ByteBuffer segment =
+                segments[(int) (start / SEGMENT_SIZE)].duplicate();
+            int offset = (int) (start % SEGMENT_SIZE);
+            int n = (int) Math.min(Math.min(count, buf.length),
+                                   segment.capacity() - offset);
+            ((java.nio.Buffer) segment).position(offset);
+            segment.get(buf, 0, n);
+            out.write(buf, 0, n);
+            start += n;
+            count -= n;
+        }
+    }
+}
@@ -92,14 +92,14 @@ public final class ModeListEntry
             if (userFiles.trim().length() == 0)
                 return false;
             try {
-                filesRE = new RE(userFiles, RE.REG_ICASE);
+                filesRE = RECache.getRE(userFiles, RE.REG_ICASE);
             }
             catch (REException e) {
                 Log.error(e);
             }
         } else {
             try {
-                filesRE = new RE(defaultFiles, RE.REG_ICASE);
+                filesRE = RECache.getRE(defaultFiles, RE.REG_ICASE);
             }
             catch (REException e) {
                 Log.error(e);
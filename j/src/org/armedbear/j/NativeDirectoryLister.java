@@ -0,0 +1,405 @@
+/*
+ * NativeDirectoryLister.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+
+// Lists a local directory in the format of "ls -la" (or "ls -lat", "ls -laS")
+// without running ls. The attributes of the entries are read in parallel,
+// and the entries are sorted in parallel.
+public final class NativeDirectoryLister
+{
+    // Number of entries below which a task reads attributes itself.
+    private static final int THRESHOLD = 256;
+
+    // Six months, as in ls.
+    private static final long RECENT = 6L * 30 * 24 * 60 * 60 * 1000;
+
+    private static final LinkOption[] NOFOLLOW = {LinkOption.NOFOLLOW_LINKS};
+
+    private static Boolean haveUnixView;
+
+    private NativeDirectoryLister() {}
+
+    public static boolean isSupported()
+    {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static synchronized boolean haveUnixView()
+    {
+        if (haveUnixView == null)
+            haveUnixView = Boolean.valueOf(
+                FileSystems.getDefault().supportedFileAttributeViews().contains("unix"));
+        return haveUnixView.booleanValue();
+    }
+
+    // Returns a list of DirectoryEntry objects in native format, sorted as
+    // specified. Directories are always included; other entries only if
+    // they're accepted by the filter (if any).
+    public static List list(File dir, int sortBy, DirectoryFilenameFilter filter)
+        throws IOException
+    {
+        final Path path = Paths.get(dir.canonicalPath());
+        ArrayList list = new ArrayList();
+        list.add(new Row(path.resolve("."), "."));
+        list.add(new Row(path.resolve(".."), ".."));
+        DirectoryStream stream = Files.newDirectoryStream(path);
+        try {
+            for (java.util.Iterator it = stream.iterator(); it.hasNext();) {
+                Path p = (Path) it.next();
+                list.add(new Row(p, p.getFileName().toString()));
+            }
+        }
+        finally {
+            stream.close();
+        }
+        Row[] rows = (Row[]) list.toArray(new Row[list.size()]);
+        new StatTask(rows, 0, rows.length).invoke();
+        // Drop entries that disappeared, and apply the filter.
+        list.clear();
+        for (int i = 0; i < rows.length; i++) {
+            Row row = rows[i];
+            if (row.mode == null)
+                continue;
+            if (filter != null && row.type != 'd' && !filter.accepts(row.name))
+                continue;
+            list.add(row);
+        }
+        rows = (Row[]) list.toArray(new Row[list.size()]);
+        Arrays.parallelSort(rows, getComparator(sortBy));
+        return format(rows);
+    }
+
+    private static Comparator getComparator(int sortBy)
+    {
+        final Comparator byName = new Comparator() {
+            public int compare(Object o1, Object o2)
+            {
+                String name1 = ((Row)o1).name;
+                String name2 = ((Row)o2).name;
+                int result = name1.compareToIgnoreCase(name2);
+                return result != 0 ? result : name1.compareTo(name2);
+            }
+        };
+        if (sortBy == Directory.SORT_BY_DATE) {
+            return new Comparator() {
+                public int compare(Object o1, Object o2)
+                {
+                    // Most recent first.
+                    long date1 = ((Row)o1).date;
+                    long date2 = ((Row)o2).date;
+                    if (date1 != date2)
+                        return date1 > date2 ? -1 : 1;
+                    return byName.compare(o1, o2);
+                }
+            };
+        }
+        if (sortBy == Directory.SORT_BY_SIZE) {
+            return new Comparator() {
+                public int compare(Object o1, Object o2)
+                {
+                    // Biggest first.
+                    long size1 = ((Row)o1).size;
+                    long size2 = ((Row)o2).size;
+                    if (size1 != size2)
+                        return size1 > size2 ? -1 : 1;
+                    return byName.compare(o1, o2);
+                }
+            };
+        }
+        return byName;
+    }
+
+    private static List format(Row[] rows)
+    {
+        // Columns are as wide as their widest entry, as in ls.
+        int linksWidth = 0;
+        int ownerWidth = 0;
+        int groupWidth = 0;
+        int sizeWidth = 0;
+        int majorWidth = 0;
+        int minorWidth = 0;
+        for (int i = 0; i < rows.length; i++) {
+            Row row = rows[i];
+            linksWidth = Math.max(linksWidth, String.valueOf(row.links).length());
+            ownerWidth = Math.max(ownerWidth, row.owner.length());
+            groupWidth = Math.max(groupWidth, row.group.length());
+            if (row.isDevice()) {
+                majorWidth = Math.max(majorWidth, String.valueOf(row.getMajor()).length());
+                minorWidth = Math.max(minorWidth, String.valueOf(row.getMinor()).length());
+            } else
+                sizeWidth = Math.max(sizeWidth, String.valueOf(row.size).length());
+        }
+        if (majorWidth > 0)
+            sizeWidth = Math.max(sizeWidth, majorWidth + 2 + minorWidth);
+        final long now = System.currentTimeMillis();
+        SimpleDateFormat recentFormat = new SimpleDateFormat("MMM", Locale.US);
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm", Locale.US);
+        SimpleDateFormat yearFormat = new SimpleDateFormat("yyyy", Locale.US);
+        SimpleDateFormat dayFormat = new SimpleDateFormat("d", Locale.US);
+        ArrayList entries = new ArrayList(rows.length);
+        FastStringBuffer sb = new FastStringBuffer(128);
+        for (int i = 0; i < rows.length; i++) {
+            Row row = rows[i];
+            sb.setLength(0);
+            sb.append(row.mode);
+            sb.append(' ');
+            pad(sb, String.valueOf(row.links), linksWidth, true);
+            sb.append(' ');
+            pad(sb, row.owner, ownerWidth, false);
+            sb.append(' ');
+            pad(sb, row.group, groupWidth, false);
+            sb.append(' ');
+            if (row.isDevice()) {
+                pad(sb, String.valueOf(row.getMajor()),
+                    sizeWidth - 2 - minorWidth, true);
+                sb.append(", ");
+                pad(sb, String.valueOf(row.getMinor()), minorWidth, true);
+            } else
+                pad(sb, String.valueOf(row.size), sizeWidth, true);
+            sb.append(' ');
+            Date date = new Date(row.date);
+            sb.append(recentFormat.format(date));
+            sb.append(' ');
+            pad(sb, dayFormat.format(date), 2, true);
+            sb.append(' ');
+            if (row.date > now - RECENT && row.date <= now)
+                sb.append(timeFormat.format(date));
+            else {
+                sb.append(' ');
+                sb.append(yearFormat.format(date));
+            }
+            sb.append(' ');
+            sb.append(row.name);
+            if (row.linkedTo != null) {
+                sb.append(" -> ");
+                sb.append(row.linkedTo);
+            }
+            entries.add(DirectoryEntry.getNativeEntry(sb.toString(), row.name,
+                row.isDevice() ? -1 : row.size));
+        }
+        return entries;
+    }
+
+    private static void pad(FastStringBuffer sb, String s, int width,
+        boolean right)
+    {
+        if (!right)
+            sb.append(s);
+        for (int i = s.length(); i < width; i++)
+            sb.append(' ');
+        if (right)
+            sb.append(s);
+    }
+
+    private static final class Row
+    {
+        final Path path;
+        final String name;
+
+        // Filled in by stat(). Mode is null if the entry has disappeared.
+        String mode;
+        char type;
+        int links = 1;
+        String owner;
+        String group;
+        long size;
+        long rdev;
+        long date;
+        String linkedTo;
+
+        Row(Path path, String name)
+        {
+            this.path = path;
+            this.name = name;
+        }
+
+        boolean isDevice()
+        {
+            return type == 'c' || type == 'b';
+        }
+
+        // Linux encoding of the device number.
+        long getMajor()
+        {
+            return ((rdev >> 8) & 0xfff) | ((rdev >> 32) & ~0xfff);
+        }
+
+        long getMinor()
+        {
+            return (rdev & 0xff) | ((rdev >> 12) & ~0xff);
+        }
+
+        void stat()
+        {
+            try {
+                if (haveUnixView())
+                    statUnix();
+                else
+                    statPosix();
+                if (type == 'l')
+                    linkedTo = Files.readSymbolicLink(path).toString();
+            }
+            catch (Exception e) {
+                // Gone, or we can't see it. Leave it out, as ls would.
+                mode = null;
+            }
+        }
+
+        private void statUnix() throws IOException
+        {
+            Map map = Files.readAttributes(path,
+                "unix:mode,nlink,owner,group,size,rdev,lastModifiedTime",
+                NOFOLLOW);
+            final int bits = ((Integer)map.get("mode")).intValue();
+            links = ((Integer)map.get("nlink")).intValue();
+            owner = ((UserPrincipal)map.get("owner")).getName();
+            group = ((UserPrincipal)map.get("group")).getName();
+            size = ((Long)map.get("size")).longValue();
+            rdev = ((Long)map.get("rdev")).longValue();
+            date = ((FileTime)map.get("lastModifiedTime")).toMillis();
+            switch (bits & 0170000) {
+                case 0040000:
+                    type = 'd';
+                    break;
+                case 0120000:
+                    type = 'l';
+                    break;
+                case 0020000:
+                    type = 'c';
+                    break;
+                case 0060000:
+                    type = 'b';
+                    break;
+                case 0140000:
+                    type = 's';
+                    break;
+                case 0010000:
+                    type = 'p';
+                    break;
+                default:
+                    type = '-';
+                    break;
+            }
+            char[] chars = new char[10];
+            chars[0] = type;
+            chars[1] = (bits & 0400) != 0 ? 'r' : '-';
+            chars[2] = (bits & 0200) != 0 ? 'w' : '-';
+            chars[3] = execute(bits & 0100, bits & 04000, 's');
+            chars[4] = (bits & 040) != 0 ? 'r' : '-';
+            chars[5] = (bits & 020) != 0 ? 'w' : '-';
+            chars[6] = execute(bits & 010, bits & 02000, 's');
+            chars[7] = (bits & 04) != 0 ? 'r' : '-';
+            chars[8] = (bits & 02) != 0 ? 'w' : '-';
+            chars[9] = execute(bits & 01, bits & 01000, 't');
+            mode = new String(chars);
+        }
+
+        private static char execute(int x, int special, char c)
+        {
+            if (special != 0)
+                return x != 0 ? c : Character.toUpperCase(c);
+            return x != 0 ? 'x' : '-';
+        }
+
+        // No link count or special bits.
+        private void statPosix() throws IOException
+        {
+            PosixFileAttributes attrs =
+                Files.readAttributes(path, PosixFileAttributes.class, NOFOLLOW);
+            if (attrs.isDirectory())
+                type = 'd';
+            else if (attrs.isSymbolicLink())
+                type = 'l';
+            else if (attrs.isOther())
+                type = 'p';
+            else
+                type = '-';
+            owner = attrs.owner().getName();
+            group = attrs.group().getName();
+            size = attrs.size();
+            date = attrs.lastModifiedTime().toMillis();
+            Set perms = attrs.permissions();
+            char[] chars = new char[10];
+            chars[0] = type;
+            chars[1] = perms.contains(PosixFilePermission.OWNER_READ) ? 'r' : '-';
+            chars[2] = perms.contains(PosixFilePermission.OWNER_WRITE) ? 'w' : '-';
+            chars[3] = perms.contains(PosixFilePermission.OWNER_EXECUTE) ? 'x' : '-';
+            chars[4] = perms.contains(PosixFilePermission.GROUP_READ) ? 'r' : '-';
+            chars[5] = perms.contains(PosixFilePermission.GROUP_WRITE) ? 'w' : '-';
+            chars[6] = perms.contains(PosixFilePermission.GROUP_EXECUTE) ? 'x' : '-';
+            chars[7] = perms.contains(PosixFilePermission.OTHERS_READ) ? 'r' : '-';
+            chars[8] = perms.contains(PosixFilePermission.OTHERS_WRITE) ? 'w' : '-';
+            chars[9] = perms.contains(PosixFilePermission.OTHERS_EXECUTE) ? 'x' : '-';
+            mode = new String(chars);
+        }
+    }
+
+    // Reads the attributes of a range of rows, splitting it in two if it's
+    // big. Runs in the common fork/join pool.
+    private static final class StatTask extends RecursiveAction
+    {
+        private final Row[] rows;
+        private final int begin;
+        private final int end;
+
+        StatTask(Row[] rows, int begin, int end)
+        {
+            this.rows = rows;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            if (end - begin <= THRESHOLD) {
+                for (int i = begin; i < end; i++)
+                    rows[i].stat();
+            } else {
+                final int middle = (begin + end) >>> 1;
+                invokeAll(new StatTask(rows, begin, middle),
+                          new StatTask(rows, middle, end));
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * OutputQueue.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+// Output from a process on its way to a buffer. Reader threads put chunks of
+// text into a bounded ring; the event dispatch thread takes everything that
+// has arrived at most once per display frame and hands it to process() in
+// one piece, so a burst of output costs one append and one repaint.
+// Output to stderr keeps its place among the other chunks, but goes to
+// processError() instead, one run of consecutive chunks at a time.
+//
+// When the ring is full, put() waits. The process then blocks writing to its
+// pipe, instead of output piling up in memory faster than it can be shown.
+// That is why put() must never be called on the event dispatch thread: it
+// would be waiting for a flush that only that thread can run.
+public abstract class OutputQueue
+{
+    private static final int CAPACITY = 256; // Chunks.
+    private static final int MAX_CHARS = 1024 * 1024;
+    private static final int FRAME_MILLIS = 20;
+
+    private final String[] ring = new String[CAPACITY];
+    private final boolean[] errors = new boolean[CAPACITY];
+    private int head;
+    private int count;
+    private int chars;
+
+    private boolean flushPending;
+    private long lastFlush;
+
+    // Statistics.
+    private long totalChars;
+    private long firstPut;
+    private long lastPut;
+    private long flushes;
+    private long droppedRepaints;
+    private long stalls;
+
+    // Called on the event dispatch thread.
+    protected abstract void process(String s);
+
+    // Called on the event dispatch thread with output to stderr.
+    protected void processError(String s)
+    {
+        process(s);
+    }
+
+    public void put(String s)
+    {
+        put(s, false);
+    }
+
+    // Called by reader threads, never by the event dispatch thread. Returns
+    // without adding s if the thread is interrupted while waiting for room.
+    public synchronized void put(String s, boolean error)
+    {
+        Debug.assertTrue(!SwingUtilities.isEventDispatchThread());
+        if (s == null || s.length() == 0)
+            return;
+        if (count == CAPACITY || (count > 0 && chars + s.length() > MAX_CHARS)) {
+            ++stalls;
+            do {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            } while (count == CAPACITY ||
+                     (count > 0 && chars + s.length() > MAX_CHARS));
+        }
+        ring[(head + count) % CAPACITY] = s;
+        errors[(head + count) % CAPACITY] = error;
+        ++count;
+        chars += s.length();
+        totalChars += s.length();
+        final long now = System.currentTimeMillis();
+        if (firstPut == 0)
+            firstPut = now;
+        lastPut = now;
+        if (flushPending) {
+            // This chunk will be shown by the flush that's already
+            // scheduled.
+            ++droppedRepaints;
+            return;
+        }
+        flushPending = true;
+        final int delay = (int) (lastFlush + FRAME_MILLIS - now);
+        if (delay > 0 && delay <= FRAME_MILLIS) {
+            Timer timer = new Timer(delay, new ActionListener() {
+                public void actionPerformed(ActionEvent e)
+                {
+                    flush();
+                }
+            });
+            timer.setRepeats(false);
+            timer.start();
+        } else
+            SwingUtilities.invokeLater(flushRunnable);
+    }
+
+    private final Runnable flushRunnable = new Runnable() {
+        public void run()
+        {
+            flush();
+        }
+    };
+
+    // Processes any pending output now. Must be called on the event
+    // dispatch thread.
+    public void flush()
+    {
+        Debug.assertTrue(SwingUtilities.isEventDispatchThread());
+        String[] runs = take();
+        if (runs == null)
+            return;
+        // Runs alternate between stdout and stderr.
+        boolean error = firstRunIsError;
+        for (int i = 0; i < runs.length; i++) {
+            if (error)
+                processError(runs[i]);
+            else
+                process(runs[i]);
+            error = !error;
+        }
+    }
+
+    // Set by take(). Only used on the event dispatch thread.
+    private boolean firstRunIsError;
+
+    // Returns the pending chunks, with consecutive chunks from the same
+    // stream joined together, or null if there are none.
+    private synchronized String[] take()
+    {
+        flushPending = false;
+        lastFlush = System.currentTimeMillis();
+        if (count == 0)
+            return null;
+        ++flushes;
+        firstRunIsError = errors[head];
+        int runCount = 1;
+        for (int i = 1; i < count; i++) {
+            if (errors[(head + i) % CAPACITY] !=
+                errors[(head + i - 1) % CAPACITY])
+                ++runCount;
+        }
+        String[] runs = new String[runCount];
+        if (count == 1) {
+            runs[0] = ring[head];
+        } else {
+            FastStringBuffer sb = new FastStringBuffer(chars);
+            int run = 0;
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % CAPACITY;
+                if (i > 0 &&
+                    errors[index] != errors[(head + i - 1) % CAPACITY]) {
+                    runs[run++] = sb.toString();
+                    sb.setLength(0);
+                }
+                sb.append(ring[index]);
+            }
+            runs[run] = sb.toString();
+        }
+        for (int i = 0; i < count; i++)
+            ring[(head + i) % CAPACITY] = null;
+        head = (head + count) % CAPACITY;
+        count = 0;
+        chars = 0;
+        notifyAll();
+        return runs;
+    }
+
+    // Characters per second while output was arriving.
+    public synchronized long getCharsPerSecond()
+    {
+        if (totalChars == 0)
+            return 0;
+        return totalChars * 1000 / Math.max(1, lastPut - firstPut);
+    }
+
+    public synchronized long getDroppedRepaints()
+    {
+        return droppedRepaints;
+    }
+
+    public synchronized String getStatistics()
+    {
+        FastStringBuffer sb = new FastStringBuffer("chars ");
+        sb.append(String.valueOf(totalChars));
+        sb.append(" chars/sec ");
+        sb.append(String.valueOf(getCharsPerSecond()));
+        sb.append(" flushes ");
+        sb.append(String.valueOf(flushes));
+        sb.append(" dropped repaints ");
+        sb.append(String.valueOf(droppedRepaints));
+        sb.append(" stalls ");
+        sb.append(String.valueOf(stalls));
+        return sb.toString();
+    }
+}
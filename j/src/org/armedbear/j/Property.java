@@ -51,10 +51,14 @@ public final class Property implements Comparable, Constants
         createProperty("fontSize", 12);
     public static final Property GUTTER_FONT_SIZE =
         createProperty("gutterFontSize", 0);
+    public static final Property HTTP_CACHE_SIZE =
+        createProperty("httpCacheSize", 50);
     public static final Property INDENT_SIZE =
         createProperty("indentSize", 4);
     public static final Property JLIST_FIXED_CELL_HEIGHT =
         createProperty("JList.fixedCellHeight", 0);
+    public static final Property LARGE_FILE_THRESHOLD =
+        createProperty("largeFileThreshold", 32);
     public static final Property LIST_THREADS =
         createProperty("listThreads", 0);
     public static final Property LOG_MAX_BACKUP_INDEX =
@@ -157,6 +161,8 @@ public final class Property implements Comparable, Constants
         createProperty("highlightMatchingBracket", false);
     public static final Property HTTP_ENABLE_COOKIES =
         createProperty("httpEnableCookies", false);
+    public static final Property IMAP_IDLE =
+        createProperty("imapIdle", true);
     public static final Property IMAP_USE_LOCAL_CACHE =
         createProperty("imapUseLocalCache", true);
     public static final Property INDENT_AFTER_BRACE =
@@ -169,6 +175,8 @@ public final class Property implements Comparable, Constants
         createProperty("indentLineFixWhitespace", false);
     public static final Property INDENT_STRINGS =
         createProperty("indentStrings", false);
+    public static final Property INDEX_MAIL =
+        createProperty("indexMail", true);
     public static final Property LINEUP_ARGLIST =
         createProperty("lineupArglist", true);
     public static final Property LOG_ENABLED =
@@ -229,10 +237,16 @@ public final class Property implements Comparable, Constants
         createProperty("upperCaseTagNames", true);
     public static final Property USE_INCREMENTAL_FIND =
         createProperty("useIncrementalFind", false);
+    public static final Property USE_JAVA_REGEX =
+        createProperty("useJavaRegex", true);
     public static final Property USE_MENU_MNEMONICS =
         createProperty("useMenuMnemonics", true);
     public static final Property USE_TABS =
         createProperty("useTabs", false);
+    public static final Property USE_TRIGRAM_INDEX =
+        createProperty("useTrigramIndex", false);
+    public static final Property WATCH_FILES =
+        createProperty("watchFiles", true);
     public static final Property WRAP =
         createProperty("wrap", false);
 
@@ -0,0 +1,95 @@
+/*
+ * RECache.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import gnu.regexp.RE;
+import gnu.regexp.REException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Regular expressions that have already been compiled, by pattern and
+// compilation flags, so a pattern that is used over and over (a repeated
+// search, a mode's file name pattern, a prompt pattern) is only parsed and
+// compiled once. An RE keeps no match state, so instances can be shared.
+public final class RECache
+{
+    private static final int MAX_SIZE = 64;
+
+    // Least recently used first.
+    private static final LinkedHashMap map = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    // Applies the useJavaRegex preference now and whenever it changes.
+    public static void initialize()
+    {
+        Preferences preferences = Editor.preferences();
+        if (preferences != null) {
+            preferences.addPreferencesChangeListener(preferencesChangeListener);
+            loadPreferences();
+        }
+    }
+
+    private static void loadPreferences()
+    {
+        boolean b =
+            Editor.preferences().getBooleanProperty(Property.USE_JAVA_REGEX);
+        RE.setDefaultEngine(b ? RE.ENGINE_JAVA : RE.ENGINE_INTERPRETED);
+    }
+
+    private static final PreferencesChangeListener preferencesChangeListener =
+        new PreferencesChangeListener() {
+        public void preferencesChanged()
+        {
+            loadPreferences();
+        }
+    };
+
+    public static RE getRE(String pattern) throws REException
+    {
+        return getRE(pattern, 0);
+    }
+
+    public static RE getRE(String pattern, int cflags) throws REException
+    {
+        // The engine is part of the key so a change of preference takes
+        // effect for patterns compiled before.
+        FastStringBuffer sb = new FastStringBuffer(pattern.length() + 8);
+        sb.append(String.valueOf(cflags));
+        sb.append(RE.getDefaultEngine() == RE.ENGINE_JAVA ? 'j' : 'i');
+        sb.append(pattern);
+        final String key = sb.toString();
+        synchronized (map) {
+            RE re = (RE) map.get(key);
+            if (re != null)
+                return re;
+        }
+        RE re = new RE(pattern, cflags);
+        synchronized (map) {
+            map.put(key, re);
+        }
+        return re;
+    }
+}
@@ -21,108 +21,213 @@
 
 package org.armedbear.j;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+// Buffer lock. Built on a StampedLock, so uncontended readers don't share a
+// monitor and unlocking doesn't wake every waiting thread. On top of that:
+//
+// - The write lock is reentrant.
+// - The read lock is reentrant, and a thread that holds the write lock may
+//   also take the read lock (if it still holds the read lock when it
+//   releases the write lock, the write lock is downgraded).
+// - A new reader gets in whenever no thread holds the write lock, even if a
+//   writer is waiting, as with the old monitor-based implementation. (So a
+//   reader can't deadlock with another reader it is waiting for.)
+// - Like the old implementation, read holds aren't owned by a thread: a read
+//   lock taken on one thread may be released on another (IList does this).
+// - Optimistic reads: tryOptimisticRead() returns a stamp that validate()
+//   checks after the data has been read.
+//
+// Taking the write lock while holding only the read lock will deadlock, as
+// it always has. lockWrite() reports it as a bug before it blocks.
 public final class ReadWriteLock
 {
-    private int activeReaders;
-    private int activeWriters;
-    private int waitingReaders;
-    private int waitingWriters;
-    private Thread writerThread;
+    private final StampedLock lock = new StampedLock();
+
+    // Owner of the write lock and its hold count. Only the owner changes
+    // lockCount, writeStamp and readsUnderWrite.
+    private volatile Thread writerThread;
     private int lockCount;
+    private long writeStamp;
+
+    // Read locks taken by the owner of the write lock while holding it.
+    private int readsUnderWrite;
+
+    // Read holds taken by each thread, as { epoch, count }, so lockWrite()
+    // can tell when a thread is about to wait for itself. A hold released on
+    // another thread stays counted until no thread holds the read lock,
+    // which starts a new epoch.
+    private final ThreadLocal readHolds = new ThreadLocal();
+    private volatile int epoch;
+
+    // Contention counters. A read is counted as a wait if it finds the
+    // write lock held.
+    private final AtomicLong readWaits = new AtomicLong();
+    private final AtomicLong writeWaits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong optimisticFailures = new AtomicLong();
 
-    public synchronized void lockRead() throws InterruptedException
+    public void lockRead() throws InterruptedException
     {
-        if (activeReaders != 0 || allowRead()) {
-            ++activeReaders;
+        if (writerThread == Thread.currentThread()) {
+            ++readsUnderWrite;
             return;
         }
-        // Reaching here, either a write is in progress or waitingWriters > 0.
-        // If the current thread holds the write lock, we'll deadlock.
-        if (Thread.currentThread() == writerThread)
-            Debug.bug();
-        ++waitingReaders;
-        while (!allowRead()) {
-            try {
-                wait();
-            }
-            catch (InterruptedException e) {
-                --waitingReaders; // Roll back state.
-                throw e;
-            }
+        // Join the active readers even if a writer is waiting (this is what
+        // makes the read lock reentrant). Otherwise queue behind the writer,
+        // so a steady stream of readers can't starve it.
+        if (lock.isReadLocked() && lock.tryReadLock() != 0) {
+            ++getReadHolds()[1];
+            return;
+        }
+        if (lock.isWriteLocked()) {
+            readWaits.incrementAndGet();
+            final long start = System.nanoTime();
+            lock.readLockInterruptibly();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        } else
+            lock.readLockInterruptibly();
+        ++getReadHolds()[1];
+    }
+
+    private int[] getReadHolds()
+    {
+        int[] holds = (int[]) readHolds.get();
+        if (holds == null) {
+            holds = new int[2];
+            readHolds.set(holds);
+        }
+        final int current = epoch;
+        if (holds[0] != current) {
+            holds[0] = current;
+            holds[1] = 0;
         }
-        --waitingReaders;
-        ++activeReaders;
+        return holds;
     }
 
-    public synchronized void unlockRead()
+    // True if the current thread has taken the read lock (outside the write
+    // lock) and not released it.
+    /*package*/ boolean holdsReadLock()
     {
-        Debug.assertTrue(activeReaders > 0);
-        --activeReaders;
-        notifyAll();
+        return lock.isReadLocked() && getReadHolds()[1] > 0;
     }
 
-    public synchronized void lockWrite() throws InterruptedException
+    // May be called on a different thread from the one that took the read
+    // lock.
+    public void unlockRead()
     {
-        if (writerThread != null) {
-            // Write in progress.
-            if (Thread.currentThread() == writerThread) {
-                // Same thread.
-                ++lockCount;
-                return;
-            }
+        if (writerThread == Thread.currentThread() && readsUnderWrite > 0) {
+            --readsUnderWrite;
+            return;
         }
-        if (allowWrite()) {
-            claimWriteLock();
+        if (!lock.tryUnlockRead()) {
+            Debug.bug("unlockRead without lockRead");
             return;
         }
-        ++waitingWriters;
-        while (!allowWrite()) {
-            try {
-                wait();
-            }
-            catch (InterruptedException e) {
-                --waitingWriters;
-                throw e;
-            }
+        final int[] holds = getReadHolds();
+        if (holds[1] > 0)
+            --holds[1];
+        if (!lock.isReadLocked())
+            ++epoch;
+    }
+
+    public void lockWrite() throws InterruptedException
+    {
+        final Thread current = Thread.currentThread();
+        if (writerThread == current) {
+            // Same thread.
+            ++lockCount;
+            return;
         }
-        --waitingWriters;
-        claimWriteLock();
+        long stamp = lock.tryWriteLock();
+        if (stamp == 0) {
+            // If the current thread holds the read lock, we'll deadlock.
+            if (holdsReadLock())
+                Debug.bug("lockWrite while holding the read lock");
+            writeWaits.incrementAndGet();
+            final long start = System.nanoTime();
+            stamp = lock.writeLockInterruptibly();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        Debug.assertTrue(lockCount == 0);
+        writeStamp = stamp;
+        lockCount = 1;
+        writerThread = current;
     }
 
-    public synchronized void unlockWrite()
+    public void unlockWrite()
     {
-        Debug.assertTrue(activeWriters == 1);
-        Debug.assertTrue(lockCount > 0);
         Debug.assertTrue(Thread.currentThread() == writerThread);
+        Debug.assertTrue(lockCount > 0);
         if (--lockCount == 0) {
-            --activeWriters;
             writerThread = null;
-            notifyAll();
+            final long stamp = writeStamp;
+            writeStamp = 0;
+            if (readsUnderWrite > 0) {
+                // The read lock was taken under the write lock and is still
+                // held. Downgrade, keeping one read hold for each.
+                lock.tryConvertToReadLock(stamp);
+                for (int i = readsUnderWrite; i > 1; i--)
+                    lock.tryReadLock();
+                getReadHolds()[1] += readsUnderWrite;
+                readsUnderWrite = 0;
+            } else
+                lock.unlockWrite(stamp);
         }
     }
 
-    public synchronized boolean isWriteLocked()
+    public boolean isWriteLocked()
     {
-        Debug.assertTrue(activeWriters == 0 || activeWriters == 1);
-        return activeWriters == 1;
+        return lock.isWriteLocked();
     }
 
-    private final boolean allowRead()
+    public boolean isWriteLockedByCurrentThread()
     {
-        return waitingWriters == 0 && activeWriters == 0;
+        return writerThread == Thread.currentThread();
     }
 
-    private final boolean allowWrite()
+    // Returns zero if a writer holds the lock.
+    public long tryOptimisticRead()
     {
-        return activeReaders == 0 && activeWriters == 0;
+        return lock.tryOptimisticRead();
     }
 
-    private void claimWriteLock()
+    // Returns true if no writer has held the lock since the stamp was issued
+    // by tryOptimisticRead(). Always false for a zero stamp.
+    public boolean validate(long stamp)
     {
-        ++activeWriters;
-        Debug.assertTrue(writerThread == null);
-        writerThread = Thread.currentThread();
-        Debug.assertTrue(lockCount == 0);
-        lockCount = 1;
+        if (stamp != 0 && lock.validate(stamp))
+            return true;
+        optimisticFailures.incrementAndGet();
+        return false;
+    }
+
+    public String getStatistics()
+    {
+        FastStringBuffer sb = new FastStringBuffer("read waits ");
+        sb.append(String.valueOf(readWaits.get()));
+        sb.append(" write waits ");
+        sb.append(String.valueOf(writeWaits.get()));
+        sb.append(" wait ms ");
+        sb.append(String.valueOf(waitNanos.get() / 1000000));
+        sb.append(" optimistic failures ");
+        sb.append(String.valueOf(optimisticFailures.get()));
+        return sb.toString();
+    }
+
+    public final long getReadWaits()
+    {
+        return readWaits.get();
+    }
+
+    public final long getWriteWaits()
+    {
+        return writeWaits.get();
+    }
+
+    public final long getOptimisticFailures()
+    {
+        return optimisticFailures.get();
     }
 }
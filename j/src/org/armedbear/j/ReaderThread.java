@@ -28,7 +28,10 @@ import java.io.UnsupportedEncodingException;
 
 public class ReaderThread extends Thread
 {
-    private char[] buf = new char[4096];
+    // Largest amount of text passed to update() at once.
+    private static final int MAX_BATCH = 64 * 1024;
+
+    private char[] buf = new char[16384];
     private InputStream inputStream;
     private BufferedReader reader;
     private boolean done = false;
@@ -79,24 +82,29 @@ public class ReaderThread extends Thread
         }
     }
 
+    // Blocks until there is some output, then waits timeOut milliseconds
+    // once (so a line or a prompt written in pieces is usually seen whole)
+    // and takes whatever else is ready, up to MAX_BATCH characters.
     private String read()
     {
-        StringBuffer sb = new StringBuffer();
+        FastStringBuffer sb = new FastStringBuffer(buf.length);
         try {
-            do {
-                int numChars = reader.read(buf, 0, buf.length); // Blocks.
+            int numChars = reader.read(buf, 0, buf.length); // Blocks.
+            if (numChars < 0) {
+                done = true;
+                return "";
+            }
+            sb.append(buf, 0, numChars);
+            if (timeOut > 0)
+                Thread.sleep(timeOut);
+            while (sb.length() < MAX_BATCH && reader.ready()) {
+                numChars = reader.read(buf, 0, buf.length);
                 if (numChars < 0) {
                     done = true;
                     break;
                 }
-                if (numChars > 0)
-                    sb.append(buf, 0, numChars);
-                if (timeOut > 0)
-                    Thread.sleep(timeOut);
-                else
-                    Thread.yield();
+                sb.append(buf, 0, numChars);
             }
-            while (reader.ready());
         }
         catch (IOException e) {
             return null;
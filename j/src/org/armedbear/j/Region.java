@@ -226,7 +226,7 @@ public final class Region implements Constants
         return false;
     }
 
-    private void adjustMarkers()
+    /*package*/ void adjustMarkers()
     {
         if (Editor.getEditorCount() > 1) {
             for (EditorIterator it = new EditorIterator(); it.hasNext();) {
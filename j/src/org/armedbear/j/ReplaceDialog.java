@@ -328,14 +328,14 @@ public final class ReplaceDialog extends AbstractDialog implements Constants,
         } else {
             // Not confirming changes.
             Position saved = new Position(editor.getDot());
-            Position pos;
-            while ((pos = replacement.find(buffer, editor.getDot())) != null) {
-                editor.addUndo(SimpleEdit.MOVE);
-                editor.getDot().moveTo(pos);
-                if (replacement.isMultilinePattern())
-                    editor.markFoundPattern(replacement);
-                replacement.replaceOccurrence();
-            }
+            final long start = System.currentTimeMillis();
+            final int count = replacement.replaceAll(editor.getDot());
+            final long elapsed = System.currentTimeMillis() - start;
+            Log.debug("replace " + count + " occurrences " + elapsed +
+                " ms (" + count * 1000L / Math.max(elapsed, 1) +
+                " per second)");
+            if (saved.getOffset() > saved.getLineLength())
+                saved.setOffset(saved.getLineLength());
             if (replacement.restrictToSelection() && replacement.getRegion() != null) {
                 editor.addUndo(SimpleEdit.MOVE);
                 editor.setDot(replacement.getRegion().getBegin());
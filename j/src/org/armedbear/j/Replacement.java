@@ -21,7 +21,9 @@
 
 package org.armedbear.j;
 
+import gnu.regexp.RE;
 import gnu.regexp.REMatch;
+import java.util.ArrayList;
 
 public class Replacement extends Search
 {
@@ -171,12 +173,232 @@ public class Replacement extends Search
         ++replacementCount;
     }
 
+    // Replaces every occurrence from start to the end of the buffer (or the
+    // end of the region, if the replacement is restricted to the selection)
+    // without asking. The occurrences are all found in the original text,
+    // the buffer is locked once, each changed line is rewritten once, and a
+    // single undo record covers all the changes. Returns the number of
+    // occurrences replaced.
+    public int replaceAll(Position start)
+    {
+        return replaceAll(editor.getBuffer(), start);
+    }
+
+    // Doesn't need the editor.
+    int replaceAll(Buffer buffer, Position start)
+    {
+        if (isRegularExpression() && getRE() == null) {
+            try {
+                setREFromPattern();
+            }
+            catch (Throwable t) {
+                Log.error(t);
+                return 0;
+            }
+        }
+        try {
+            buffer.lockWrite();
+        }
+        catch (InterruptedException e) {
+            Log.error(e);
+            return 0;
+        }
+        final int oldReplacementCount = replacementCount;
+        try {
+            if (isMultilinePattern())
+                replaceAllMultiline(buffer, start);
+            else
+                replaceAllInLines(buffer, start);
+            if (replacementCount > oldReplacementCount)
+                buffer.modified();
+        }
+        finally {
+            buffer.unlockWrite();
+        }
+        if (replacementCount > oldReplacementCount)
+            buffer.repaint();
+        return replacementCount - oldReplacementCount;
+    }
+
+    private void replaceAllInLines(Buffer buffer, Position start)
+    {
+        final Mode mode = buffer.getMode();
+        final Region region = restrictToSelection() ? getRegion() : null;
+        final Line endLine = region != null ? region.getEndLine() : null;
+        final UndoLineEdits undo = new UndoLineEdits(buffer);
+        final FastStringBuffer sb = new FastStringBuffer();
+        Line line = start.getLine();
+        int begin = start.getOffset();
+        while (line != null) {
+            final String text = line.getText();
+            int end = text.length();
+            if (line == endLine)
+                end = Math.min(region.getEndOffset(), end);
+            int count = replaceInLine(mode, line, text, begin, end, sb);
+            if (count > 0) {
+                String newText = sb.toString();
+                undo.add(line, newText);
+                line.setText(newText);
+                if (line == endLine)
+                    region.setEndOffset(region.getEndOffset() +
+                        newText.length() - text.length());
+                replacementCount += count;
+            }
+            if (line == endLine)
+                break;
+            line = line.next();
+            begin = 0;
+        }
+        if (undo.size() > 0)
+            buffer.addEdit(undo);
+    }
+
+    // Puts the new text of the line in sb and returns the number of
+    // occurrences replaced. Only occurrences that lie between begin and end
+    // are replaced.
+    private int replaceInLine(Mode mode, Line line, String text, int begin,
+        int end, FastStringBuffer sb)
+    {
+        final String toBeSearched =
+            end < text.length() ? text.substring(0, end) : text;
+        final RE re = isRegularExpression() ? getRE() : null;
+        final LiteralMatcher matcher = re == null ? getMatcher() : null;
+        int count = 0;
+        int copied = 0;
+        int index = begin;
+        while (index <= end) {
+            REMatch m = null;
+            int matchStart;
+            int matchEnd;
+            if (re != null) {
+                m = re.getMatch(toBeSearched, index);
+                if (m == null)
+                    break;
+                matchStart = m.getStartIndex();
+                matchEnd = m.getEndIndex();
+            } else {
+                matchStart = matcher.indexOf(toBeSearched, index,
+                    toBeSearched.length());
+                if (matchStart < 0)
+                    break;
+                matchEnd = matchStart + getPatternLength();
+            }
+            if (wholeWordsOnly() && !Utilities.isDelimited(mode,
+                new Position(line, matchStart), matchEnd - matchStart)) {
+                index = matchStart + 1;
+                continue;
+            }
+            if (count == 0)
+                sb.setLength(0);
+            sb.append(text.substring(copied, matchStart));
+            sb.append(getReplacementText(m,
+                text.substring(matchStart, matchEnd)));
+            copied = matchEnd;
+            ++count;
+            // Don't match the same empty string again.
+            index = matchEnd > matchStart ? matchEnd : matchEnd + 1;
+        }
+        if (count > 0)
+            sb.append(text.substring(copied));
+        return count;
+    }
+
+    // Finds all the occurrences in the original text, then replaces them
+    // starting with the last one, so the positions of the ones before it
+    // stay valid. Each replacement only changes the lines the occurrence
+    // spans, and one UndoLineEdits record covers all of them.
+    private void replaceAllMultiline(Buffer buffer, Position start)
+    {
+        Debug.assertTrue(isRegularExpression());
+        final Mode mode = buffer.getMode();
+        final BufferCharSequence s = new BufferCharSequence(buffer);
+        final Region region = restrictToSelection() ? getRegion() : null;
+        final int endIndex = region != null ? s.getOffset(region.getEnd()) : -1;
+        final RE re = getRE();
+        // Start and end offsets, two per occurrence.
+        int[] offsets = new int[32];
+        ArrayList replacements = new ArrayList();
+        int index = s.getOffset(start);
+        while (index >= 0 && index <= s.length()) {
+            REMatch m = re.getMatch(s.getCharIndexed(index, s.length()), index);
+            if (m == null)
+                break;
+            if (endIndex >= 0 && m.getEndIndex() > endIndex)
+                break; // Match extends past end of selected region.
+            final int matchStart = m.getStartIndex();
+            final int matchEnd = m.getEndIndex();
+            if (wholeWordsOnly() &&
+                !Utilities.isDelimited(mode, s, matchStart, matchEnd)) {
+                index = matchStart + 1;
+                continue;
+            }
+            final int n = replacements.size() * 2;
+            if (n == offsets.length) {
+                int[] newOffsets = new int[n * 2];
+                System.arraycopy(offsets, 0, newOffsets, 0, n);
+                offsets = newOffsets;
+            }
+            offsets[n] = matchStart;
+            offsets[n + 1] = matchEnd;
+            replacements.add(getReplacementText(m, m.toString()));
+            index = matchEnd > matchStart ? matchEnd : matchEnd + 1;
+        }
+        final int count = replacements.size();
+        if (count == 0)
+            return;
+        if (buffer.needsRenumbering())
+            buffer.renumber();
+        final UndoLineEdits undo = new UndoLineEdits(buffer);
+        int delta = 0;
+        boolean renumber = false;
+        for (int i = count; i-- > 0;) {
+            final Position begin = s.getPosition(offsets[i * 2]);
+            final Position end = s.getPosition(offsets[i * 2 + 1]);
+            final String toBeInserted = (String) replacements.get(i);
+            final Line line = begin.getLine();
+            final int lineCount = end.lineNumber() - line.lineNumber() + 1;
+            if (lineCount > 1) {
+                // Move markers out of the lines that may go away.
+                new Region(buffer, begin, end).adjustMarkers();
+            }
+            FastStringBuffer sb =
+                new FastStringBuffer(line.substring(0, begin.getOffset()));
+            sb.append(toBeInserted);
+            sb.append(end.getLine().substring(end.getOffset()));
+            final String newText = sb.toString();
+            undo.add(line, lineCount, newText);
+            if (lineCount > 1 || toBeInserted.indexOf('\n') >= 0) {
+                UndoLineEdits.replaceLines(line, lineCount, newText);
+                renumber = true;
+            } else
+                line.setText(newText);
+            delta += toBeInserted.length() - (offsets[i * 2 + 1] -
+                offsets[i * 2]);
+        }
+        buffer.addEdit(undo);
+        if (renumber) {
+            buffer.needsRenumbering = true;
+            buffer.renumber();
+        }
+        if (region != null) {
+            Position endPos = buffer.getPosition(endIndex + delta);
+            Debug.assertTrue(endPos != null);
+            region.setEnd(endPos);
+        }
+        replacementCount += count;
+    }
+
     private String getReplacementText(String toBeReplaced)
+    {
+        return getReplacementText(getMatch(), toBeReplaced);
+    }
+
+    private String getReplacementText(REMatch match, String toBeReplaced)
     {
         String replacementText;
         if (isRegularExpression()) {
             // Perform regular expression variable substitution as necessary.
-            replacementText = substituteInto(getMatch(), replaceWith);
+            replacementText = substituteInto(match, replaceWith);
         } else {
             // We're not doing regular expressions. Use the string entered by
             // the user, verbatim.
@@ -0,0 +1,113 @@
+/*
+ * ScanQueue.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+// Runs tasks on a pool of worker threads and hands their results back to the
+// thread that submitted them, in the order the tasks finish, so each result
+// can be used (and dropped) as soon as it is ready.
+//
+// Only the submitting thread may call submit(), hasResult() and take(). It
+// should take a result before submitting more once isFull() returns true, so
+// the number of tasks (and results) held at once stays bounded.
+final class ScanQueue
+{
+    private final ExecutorService executor;
+    private final LinkedBlockingQueue finished = new LinkedBlockingQueue();
+    private final int capacity;
+
+    // Tasks submitted whose results have not been taken.
+    private int size;
+
+    ScanQueue(final String name, int threads, int capacity)
+    {
+        this.capacity = capacity;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void submit(Callable task)
+    {
+        executor.execute(new FutureTask(task) {
+            protected void done()
+            {
+                finished.add(this);
+            }
+        });
+        ++size;
+    }
+
+    public boolean isFull()
+    {
+        return size >= capacity;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    // Returns true if take() won't wait.
+    public boolean hasResult()
+    {
+        return !finished.isEmpty();
+    }
+
+    // Waits for the next task to finish and returns its result. If the task
+    // threw an exception, it is logged and the result is null.
+    public Object take() throws InterruptedException
+    {
+        Future future = (Future) finished.take();
+        --size;
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            Log.error(e.getCause());
+            return null;
+        }
+        catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    // Tasks that have not started yet will still run.
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+}
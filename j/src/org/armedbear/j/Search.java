@@ -42,6 +42,19 @@ public class Search implements Cloneable
 
     private Region region;
 
+    // Compiled from pattern and ignoreCase when first needed.
+    private LiteralMatcher matcher;
+
+    // The last pattern findString() failed to find anywhere in the buffer.
+    // Adding characters to it can't produce a pattern that is found, so
+    // incremental find doesn't have to search again until the buffer
+    // changes.
+    private LiteralMatcher notFoundMatcher;
+    private Buffer notFoundBuffer;
+    private int notFoundModCount;
+
+    private static final int REVERSE_WINDOW_SIZE = 4096;
+
     public Search()
     {
         setPattern(new String());
@@ -69,6 +82,7 @@ public class Search implements Cloneable
             pattern = lowerCasePattern = "";
             patternLength = 0;
         }
+        matcher = null;
     }
 
     public final void appendCharToPattern(char c)
@@ -76,6 +90,7 @@ public class Search implements Cloneable
         pattern += c;
         lowerCasePattern = pattern.toLowerCase();
         ++patternLength;
+        matcher = null;
     }
 
     public final int getPatternLength()
@@ -110,7 +125,17 @@ public class Search implements Cloneable
 
     public final void setIgnoreCase(boolean b)
     {
-        ignoreCase = b;
+        if (b != ignoreCase) {
+            ignoreCase = b;
+            matcher = null;
+        }
+    }
+
+    final LiteralMatcher getMatcher()
+    {
+        if (matcher == null)
+            matcher = new LiteralMatcher(pattern, ignoreCase);
+        return matcher;
     }
 
     public final boolean wholeWordsOnly()
@@ -220,7 +245,6 @@ public class Search implements Cloneable
     // region is not null.
     private Position findString(Mode mode, Position start)
     {
-        Debug.assertTrue(lowerCasePattern.equals(pattern.toLowerCase()));
         Debug.assertTrue(patternLength == pattern.length());
         Line line = start.getLine();
         int begin = start.getOffset();
@@ -247,8 +271,9 @@ public class Search implements Cloneable
     // Region is ignored.
     public Position findString(Buffer buffer, Position start, boolean wrapBuffer)
     {
-        Debug.assertTrue(lowerCasePattern.equals(pattern.toLowerCase()));
         Debug.assertTrue(patternLength == pattern.length());
+        if (wrapBuffer && isKnownNotFound(buffer))
+            return null;
         Mode mode = buffer.getMode();
         Line line = start.getLine();
         int begin = start.getOffset();
@@ -268,24 +293,34 @@ public class Search implements Cloneable
                     return pos;
                 line = line.next();
             }
+            if (!wholeWordsOnly) {
+                notFoundMatcher = getMatcher();
+                notFoundBuffer = buffer;
+                notFoundModCount = buffer.getModCount();
+            }
         }
         return null;
     }
 
+    private boolean isKnownNotFound(Buffer buffer)
+    {
+        if (notFoundMatcher == null || wholeWordsOnly)
+            return false;
+        if (buffer != notFoundBuffer)
+            return false;
+        if (buffer.getModCount() != notFoundModCount)
+            return false;
+        return getMatcher().extendsMatcher(notFoundMatcher);
+    }
+
     private Position findStringInLine(Mode mode, Line line, int begin, int end)
     {
-        String toBeSearched;
-        if (end < line.length())
-            toBeSearched = line.substring(0, end);
-        else
-            toBeSearched = line.getText();
+        final LiteralMatcher matcher = getMatcher();
+        final String text = line.getText();
         int index = begin;
         int limit = end - patternLength;
         while (index <= limit) {
-            if (ignoreCase)
-                index = toBeSearched.toLowerCase().indexOf(lowerCasePattern, index);
-            else
-                index = toBeSearched.indexOf(pattern, index);
+            index = matcher.indexOf(text, index, end);
             if (index < 0)
                 break;
             Position pos = new Position(line, index);
@@ -299,13 +334,11 @@ public class Search implements Cloneable
     private boolean findString(String s)
     {
         Debug.assertTrue(patternLength == pattern.length());
+        final LiteralMatcher matcher = getMatcher();
         int index = 0;
         int limit = s.length() - patternLength;
         while (index <= limit) {
-            if (ignoreCase)
-                index = s.toLowerCase().indexOf(lowerCasePattern, index);
-            else
-                index = s.indexOf(pattern, index);
+            index = matcher.indexOf(s, index, s.length());
             if (index < 0)
                 break;
             if (!wholeWordsOnly || Utilities.isDelimited(s, index, patternLength))
@@ -319,13 +352,11 @@ public class Search implements Cloneable
     {
         Debug.assertTrue(wholeWordsOnly);
         Debug.assertTrue(patternLength == pattern.length());
+        final LiteralMatcher matcher = getMatcher();
         int index = 0;
         int limit = s.length() - patternLength;
         while (index <= limit) {
-            if (ignoreCase)
-                index = s.toLowerCase().indexOf(lowerCasePattern, index);
-            else
-                index = s.indexOf(pattern, index);
+            index = matcher.indexOf(s, index, s.length());
             if (index < 0)
                 break;
             if (Utilities.isDelimited(s, index, patternLength, mode))
@@ -338,7 +369,6 @@ public class Search implements Cloneable
     // Region is ignored.
     public Position reverseFindString(Buffer buffer, Position start)
     {
-        Debug.assertTrue(lowerCasePattern.equals(pattern.toLowerCase()));
         Debug.assertTrue(patternLength == pattern.length());
         Line line = start.getLine();
         Position pos = reverseFindStringInLine(buffer, line, 0, start.getOffset());
@@ -356,13 +386,12 @@ public class Search implements Cloneable
 
     private Position reverseFindStringInLine(Buffer buffer, Line line, int begin, int end)
     {
+        final LiteralMatcher matcher = getMatcher();
+        final String text = line.getText();
         int index = end;
         while (index >= begin) {
-            if (ignoreCase)
-                index = line.getText().toLowerCase().lastIndexOf(lowerCasePattern, index);
-            else
-                index = line.getText().lastIndexOf(pattern, index);
-            if (index < 0)
+            index = matcher.lastIndexOf(text, index);
+            if (index < begin)
                 break;
             Position pos = new Position(line, index);
             if (!wholeWordsOnly || Utilities.isDelimited(buffer, pos, patternLength))
@@ -389,7 +418,7 @@ public class Search implements Cloneable
             cflags |= RE.REG_MULTILINE;
         if (ignoreCase)
             cflags |= RE.REG_ICASE;
-        re = new RE(pattern, cflags);
+        re = RECache.getRE(pattern, cflags);
     }
 
     // Search is restricted to region if restrictToSelection is true and
@@ -405,11 +434,13 @@ public class Search implements Cloneable
                 return null;
             }
         }
-        final String s = buffer.getText();
-        int startIndex = buffer.getAbsoluteOffset(start);
+        final BufferCharSequence s = new BufferCharSequence(buffer);
+        int startIndex = s.getOffset(start);
+        if (startIndex < 0)
+            return null;
         int endIndex = -1;
         if (restrictToSelection && region != null)
-            endIndex = buffer.getAbsoluteOffset(region.getEnd());
+            endIndex = s.getOffset(region.getEnd());
         while (true) {
             match = findMatch(s, startIndex, endIndex);
             if (match == null)
@@ -421,9 +452,13 @@ public class Search implements Cloneable
                 break;
             startIndex = match.getStartIndex() + 1;
         }
-        return buffer.getPosition(match.getStartIndex());
+        return s.getPosition(match.getStartIndex());
     }
 
+    // Finds the last match that ends at or before start. The text before
+    // start is searched in windows of increasing size, working backward, so
+    // the cost depends on the distance to the match rather than on the
+    // distance from the start of the buffer.
     private Position reverseFindMultilineRegExp(Buffer buffer, Position start)
     {
         if (re == null) {
@@ -435,32 +470,44 @@ public class Search implements Cloneable
                 return null;
             }
         }
-        int startIndex = 0;
-        int endIndex = buffer.getAbsoluteOffset(start);
-        final String s = buffer.getText().substring(0, endIndex);
-        REMatch lastMatch = null;
+        final BufferCharSequence s = new BufferCharSequence(buffer);
+        final int endIndex = s.getOffset(start);
+        if (endIndex < 0)
+            return null;
+        int windowEnd = endIndex;
+        int windowSize = REVERSE_WINDOW_SIZE;
         while (true) {
-            match = findMatch(s, startIndex, -1);
-            if (match == null)
-                break;
-            if (!wholeWordsOnly)
-                lastMatch = match;
-            else if (Utilities.isDelimited(buffer.getMode(), s,
-                                             match.getStartIndex(),
-                                             match.getEndIndex()))
-                lastMatch = match;
-            startIndex = match.getStartIndex() + 1;
+            final int windowStart = Math.max(0, windowEnd - windowSize);
+            REMatch lastMatch = null;
+            int index = windowStart;
+            while (index < windowEnd) {
+                REMatch m =
+                    re.getMatch(s.getCharIndexed(index, endIndex), index);
+                if (m == null || m.getStartIndex() >= windowEnd)
+                    break;
+                if (!wholeWordsOnly || Utilities.isDelimited(buffer.getMode(),
+                    s, m.getStartIndex(), m.getEndIndex()))
+                    lastMatch = m;
+                index = m.getStartIndex() + 1;
+            }
+            if (lastMatch != null) {
+                match = lastMatch;
+                return s.getPosition(match.getStartIndex());
+            }
+            if (windowStart == 0)
+                return null;
+            // Matches starting in this window have all been seen.
+            windowEnd = windowStart;
+            windowSize *= 2;
         }
-        if (lastMatch == null)
-            return null;
-        match = lastMatch;
-        return buffer.getPosition(match.getStartIndex());
     }
 
     // Search is restricted to region if endIndex >= 0.
-    private REMatch findMatch(String s, int startIndex, int endIndex)
+    private REMatch findMatch(BufferCharSequence s, int startIndex,
+        int endIndex)
     {
-        REMatch m = re.getMatch(s, startIndex);
+        REMatch m = re.getMatch(s.getCharIndexed(startIndex, s.length()),
+            startIndex);
         if (m == null)
             return null; // Not found at all.
         if (endIndex >= 0 && m.getEndIndex() > endIndex)
@@ -561,7 +608,7 @@ public class Search implements Cloneable
     {
         if (re == null) {
             try {
-                re = new RE(pattern, ignoreCase ? RE.REG_ICASE : 0);
+                re = RECache.getRE(pattern, ignoreCase ? RE.REG_ICASE : 0);
             }
             catch (Throwable t) {
                 Log.error(t);
@@ -585,17 +632,26 @@ public class Search implements Cloneable
 
     private Position reverseFindRegExpInLine(Buffer buffer, Line line, int begin, int end)
     {
-        int index = end;
-        while (index >= begin) {
-            match = re.getMatch(line.getText(), index);
-            if (match != null && match.getStartIndex() <= end) {
-                Position pos = new Position(line, match.getStartIndex());
-                if (!wholeWordsOnly || Utilities.isDelimited(buffer, pos, match.toString().length()))
-                    return pos;
+        // Find the last match that starts at or before end by going forward
+        // from one match to the next, instead of searching again from each
+        // index going back, which is quadratic in the length of the line.
+        final String text = line.getText();
+        Position found = null;
+        REMatch foundMatch = null;
+        int index = begin;
+        while (index <= end) {
+            REMatch m = re.getMatch(text, index);
+            if (m == null || m.getStartIndex() > end)
+                break;
+            Position pos = new Position(line, m.getStartIndex());
+            if (!wholeWordsOnly || Utilities.isDelimited(buffer, pos, m.toString().length())) {
+                found = pos;
+                foundMatch = m;
             }
-            --index;
+            index = m.getStartIndex() + 1;
         }
-        return null;
+        match = foundMatch;
+        return found;
     }
 
     public void notFound(Editor editor)
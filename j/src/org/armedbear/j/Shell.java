@@ -36,7 +36,6 @@ public class Shell extends CommandInterpreter implements Constants
 
     private Process process;
     private String command; // First token on command line.
-    private boolean promptIsStderr = true;
     private File oldDir;
     private File currentDir;
     private File initialDir;
@@ -54,12 +53,6 @@ public class Shell extends CommandInterpreter implements Constants
     {
         this();
         this.shellCommand = shellCommand;
-        if (shellCommand != null) {
-            if (shellCommand.indexOf("tcsh") >= 0)
-                promptIsStderr = false;
-            else if (shellCommand.indexOf("cmd.exe") >= 0)
-                promptIsStderr = false;
-        }
     }
 
     protected Shell(String shellCommand, Mode mode)
@@ -282,6 +275,8 @@ public class Shell extends CommandInterpreter implements Constants
                 Runnable processExitedRunnable = new Runnable() {
                     public void run()
                     {
+                        flushOutput();
+                        Log.debug("shell output " + getOutputStatistics());
                         appendString("\nProcess exited\n");
                         setBusy(false);
                         updateDisplayInAllFrames();
@@ -488,49 +483,25 @@ public class Shell extends CommandInterpreter implements Constants
         super.appendString(s);
     }
 
-    protected void stdOutUpdate(final String s)
+    protected void processOutput(String s)
     {
-        Runnable r = new Runnable() {
-            public void run()
-            {
-                if (s.length() > 0) {
-                    updateDirectory(s);
-                    appendString(s);
-                }
-                updateLineFlags();
-                updateDisplayInAllFrames();
-                resetUndo();
-                checkPasswordPrompt();
-            }
-        };
-        SwingUtilities.invokeLater(r);
+        if (s.length() > 0) {
+            updateDirectory(s);
+            appendString(s);
+        }
+        updateLineFlags();
+        updateDisplayInAllFrames();
+        resetUndo();
+        checkPasswordPrompt();
     }
 
-    protected void stdErrUpdate(final String s)
+    // Output to stderr doesn't change the directory or ask for a password.
+    protected void processErrorOutput(String s)
     {
-        if (promptIsStderr) {
-            REMatch match = promptRE.getMatch(s);
-            if (match != null) {
-                // This looks like the prompt.
-                // Give stdout a chance to finish.
-                try {
-                    Thread.sleep(100);
-                }
-                catch (InterruptedException e) {
-                    Log.error(e);
-                }
-            }
-        }
-        Runnable r = new Runnable() {
-            public void run()
-            {
-                appendString(s);
-                updateLineFlags();
-                updateDisplayInAllFrames();
-                resetUndo();
-            }
-        };
-        SwingUtilities.invokeLater(r);
+        appendString(s);
+        updateLineFlags();
+        updateDisplayInAllFrames();
+        resetUndo();
     }
 
     protected void updateLineFlags()
@@ -151,6 +151,20 @@ public final class SshSession implements Constants
         return new SshSession(file, true);
     }
 
+    // Returns a locked session for the file that is already connected, or
+    // null if there isn't an idle one. Never prompts the user.
+    public static synchronized SshSession lockIdleSession(SshFile file)
+    {
+        if (file.getHostName() == null || file.getUserName() == null)
+            return null;
+        SshSession session = lockSession(file);
+        if (session != null && !session.isConnected()) {
+            session.unlock();
+            return null;
+        }
+        return session;
+    }
+
     // Called only from synchronized methods.
     private static SshSession lockSession(SshFile file)
     {
@@ -24,6 +24,7 @@ package org.armedbear.j;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
 
@@ -57,6 +58,18 @@ public class SystemBuffer implements Constants
     private String loadEncoding;
     private List tags;
 
+    // Random-access index of the line list, built on demand.
+    private LineIndex lineIndex;
+
+    // Non-null if the buffer was loaded in memory-mapped mode.
+    private MappedText mappedText;
+
+    // The offsets in the file written by writeMappedBuffer() of the mapped
+    // lines of the buffer, in order, or -1 for a mapped line that was not
+    // copied directly from its mapping. Only used until remapLines().
+    private long[] remapStarts;
+    private int remapCount;
+
     public SystemBuffer()
     {
     }
@@ -78,12 +91,40 @@ public class SystemBuffer implements Constants
 
     public synchronized void setFirstLine(Line line)
     {
+        final Line oldFirstLine = firstLine;
         firstLine = line;
+        lineIndex = null;
+        // Tell the formatter (see AbstractLine.changed()).
+        if (oldFirstLine instanceof AbstractLine)
+            ((AbstractLine) oldFirstLine).changed(null);
+        if (line instanceof AbstractLine)
+            ((AbstractLine) line).changed(null);
+    }
+
+    // Returns an index of the lines currently in the buffer, building it if
+    // necessary. The index follows changes to the text of its lines, but a
+    // new one is built after lines have been inserted or removed.
+    public final synchronized LineIndex getLineIndex()
+    {
+        if (lineIndex == null || !lineIndex.isValid())
+            lineIndex = new LineIndex(firstLine);
+        return lineIndex;
+    }
+
+    protected final synchronized void invalidateLineIndex()
+    {
+        lineIndex = null;
     }
 
     public final Position getEnd()
     {
-        Line line = firstLine;
+        Line line;
+        synchronized (this) {
+            // Don't build the index just for this, but start from its last
+            // line if there is one.
+            line = lineIndex != null && lineIndex.getLineCount() > 0 ?
+                lineIndex.getLine(lineIndex.getLineCount() - 1) : firstLine;
+        }
         if (line == null)
             return null;
         while (line.next() != null)
@@ -148,6 +189,13 @@ public class SystemBuffer implements Constants
 
     public final boolean contains(Line line)
     {
+        // Don't build the index just for this.
+        final LineIndex index;
+        synchronized (this) {
+            index = lineIndex;
+        }
+        if (index != null && index.isValid() && index.indexOf(line) >= 0)
+            return true;
         Line l = getFirstLine();
         while (l != null) {
             if (l == line)
@@ -330,6 +378,145 @@ public class SystemBuffer implements Constants
         loadFinished(isLoaded);
     }
 
+    // Returns true if file should be loaded with loadMapped() rather than
+    // being read into memory.
+    public boolean isLargeFile(File f, String encoding)
+    {
+        if (f == null || !f.isLocal() || !f.isFile())
+            return false;
+        if (mode != null && mode.getId() == BINARY_MODE)
+            return false;
+        final long threshold =
+            Editor.preferences().getIntegerProperty(Property.LARGE_FILE_THRESHOLD);
+        if (threshold <= 0 || f.length() < threshold * 1024 * 1024)
+            return false;
+        if (encoding == null)
+            encoding =
+                Editor.preferences().getStringProperty(Property.DEFAULT_ENCODING);
+        if (encoding == null || !MappedText.isSupportedEncoding(encoding))
+            return false;
+        // Unicode files (with a byte order mark) are handled by load().
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f.canonicalPath(), "r");
+            try {
+                final int byte1 = raf.read();
+                final int byte2 = raf.read();
+                if ((byte1 == 0xfe && byte2 == 0xff) ||
+                    (byte1 == 0xff && byte2 == 0xfe))
+                    return false;
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch (IOException e) {
+            Log.error(e);
+            return false;
+        }
+        return true;
+    }
+
+    // Loads a large local file in memory-mapped mode. Only the line
+    // boundaries are found here; the text of each line is decoded from the
+    // mapping when it's needed. If the file can't be loaded, the buffer is
+    // left empty, without a mapping.
+    public void loadMapped(File f, String encoding) throws IOException
+    {
+        if (encoding == null)
+            encoding =
+                Editor.preferences().getStringProperty(Property.DEFAULT_ENCODING);
+        boolean success = false;
+        try {
+            loadMappedInternal(f, encoding);
+            success = true;
+        }
+        catch (InternalError e) {
+            // The file was truncated while we were reading the mapping.
+            throw new IOException(e.toString());
+        }
+        finally {
+            if (!success) {
+                // The lines refer to the mapping, which is disposed of here.
+                _empty();
+                lineSeparator = null;
+                loadEncoding = null;
+            }
+            loadFinished(success);
+        }
+    }
+
+    // Every line still gets its own (small) MappedLine, since the line chain
+    // is the buffer's only line store and is walked from end to end as soon
+    // as the buffer is loaded (to number the lines, among other things).
+    // What is saved is the text: it stays in the mapping until it is needed.
+    private void loadMappedInternal(File f, String encoding) throws IOException
+    {
+        final MappedText mapped = MappedText.map(f, encoding);
+        mappedText = mapped;
+        loadEncoding = encoding;
+        final long length = mapped.length();
+        long start = 0;
+        boolean ascii = true;
+        boolean skipLF = false;
+        for (long i = 0; i < length; i++) {
+            final byte b = mapped.byteAt(i);
+            switch (b) {
+                case 13:
+                    appendMappedLine(mapped, start, i, ascii);
+                    start = i + 1;
+                    ascii = true;
+                    skipLF = true;
+                    break;
+                case 10:
+                    if (skipLF) {
+                        // LF after CR.
+                        if (lineSeparator == null)
+                            lineSeparator = "\r\n";
+                        skipLF = false;
+                    } else {
+                        // LF without preceding CR.
+                        if (lineSeparator == null)
+                            lineSeparator = "\n";
+                        appendMappedLine(mapped, start, i, ascii);
+                        ascii = true;
+                    }
+                    start = i + 1;
+                    break;
+                default:
+                    // Normal char.
+                    if (skipLF) {
+                        // Something other than LF after CR.  Must be a Mac...
+                        if (lineSeparator == null)
+                            lineSeparator = "\r";
+                        skipLF = false;
+                    }
+                    if (b < 0)
+                        ascii = false;
+                    break;
+            }
+            if ((i & 0x3fffff) == 0)
+                loadProgress((int) Math.min(i, Integer.MAX_VALUE));
+        }
+        if (start < length) {
+            // No line separator at end of file.
+            appendMappedLine(mapped, start, length, ascii);
+        } else {
+            // If there is a line separator at the end of the file, we need
+            // to append an empty line so the line separator will get written
+            // out when the file is saved.
+            appendLine("");
+        }
+        isLoaded = true;
+    }
+
+    private void appendMappedLine(MappedText mapped, long start, long end,
+        boolean ascii) throws IOException
+    {
+        if (end - start > Integer.MAX_VALUE)
+            throw new IOException("line too long");
+        appendLine(new MappedLine(mapped, start, (int) (end - start), ascii));
+    }
+
     public final Line getLastLine()
     {
         return lastLine;
@@ -342,6 +529,7 @@ public class SystemBuffer implements Constants
 
     protected void appendLine(Line line)
     {
+        invalidateLineIndex();
         line.setPrevious(lastLine);
         if (lastLine != null)
             lastLine.setNext(line);
@@ -397,6 +585,7 @@ public class SystemBuffer implements Constants
     // Overridden by Buffer.renumber().
     public void renumber()
     {
+        invalidateLineIndex();
         for (Line line = getFirstLine(); line != null; line = line.next())
             line.setLineNumber(lineCount++);
     }
@@ -408,6 +597,10 @@ public class SystemBuffer implements Constants
             throw new SaveException(file,
                                     file.canonicalPath() + " is not writable");
         }
+        if (mappedText != null && mappedText.getFile().equals(file)) {
+            writeMappedBuffer();
+            return;
+        }
         if (Platform.isPlatformWindows()) {
             // writeTemporaryFile() throws a SaveException if an error occurs.
             File tempFile = writeTemporaryFile();
@@ -481,8 +674,96 @@ public class SystemBuffer implements Constants
         return null;
     }
 
+    // The file can't be overwritten in place while lines of the buffer are
+    // still mapped from it. Write a temporary copy first, refer the mapped
+    // lines to the copy, and then copy it over the original.
+    private void writeMappedBuffer() throws SaveException
+    {
+        File tempFile = Utilities.getTempFile();
+        if (tempFile == null || !writeFile(tempFile, true)) {
+            Log.error("writeMappedBuffer: unable to write temporary file");
+            remapLines(null);
+            if (tempFile != null)
+                tempFile.delete();
+            throw new SaveException(file,
+                "Unable to write temporary file for ".concat(
+                    file.canonicalPath()));
+        }
+        if (!makePatchFile()) {
+            if (!Utilities.makeBackup(file, true)) {
+                Log.error("backup failed");
+                remapLines(null);
+                tempFile.delete();
+                throw new SaveException(file,
+                    "Unable to write backup file for ".concat(
+                        file.canonicalPath()));
+            }
+        }
+        MappedText newText;
+        try {
+            newText = MappedText.map(tempFile, mappedText.getEncoding());
+        }
+        catch (IOException e) {
+            Log.error(e);
+            remapLines(null);
+            tempFile.delete();
+            throw new SaveException(file,
+                "Unable to map temporary file for ".concat(
+                    file.canonicalPath()));
+        }
+        newText.setTemporary(true);
+        remapLines(newText);
+        mappedText.dispose();
+        mappedText = newText;
+        if (!Utilities.overwriteFile(tempFile, file)) {
+            Log.error("writeMappedBuffer: overwriteFile failed");
+            throw new SaveException(file,
+                "Unable to write ".concat(file.canonicalPath()));
+        }
+        // On Unix, the mapping is still valid after the file is deleted.
+        if (!Platform.isPlatformWindows())
+            newText.dispose();
+    }
+
+    // Refers all lines that are still mapped to newText, at the offsets
+    // recorded by writeFile(). If newText is null, the recorded offsets are
+    // discarded.
+    private void remapLines(MappedText newText)
+    {
+        int i = 0;
+        for (Line line = getFirstLine(); line != null; line = line.next()) {
+            if (line instanceof MappedLine) {
+                final long start = i < remapCount ? remapStarts[i++] : -1;
+                ((MappedLine)line).remap(newText, start);
+            }
+        }
+        remapStarts = null;
+        remapCount = 0;
+    }
+
+    private void rememberStart(long start)
+    {
+        if (remapCount == remapStarts.length) {
+            long[] newStarts = new long[remapCount * 2];
+            System.arraycopy(remapStarts, 0, newStarts, 0, remapCount);
+            remapStarts = newStarts;
+        }
+        remapStarts[remapCount++] = start;
+    }
+
     public boolean writeFile(File outputFile)
     {
+        return writeFile(outputFile, false);
+    }
+
+    // If remember is true, the offset in the output file of every line that
+    // is copied directly from a mapping is recorded for remapLines().
+    private boolean writeFile(File outputFile, boolean remember)
+    {
+        if (remember) {
+            remapStarts = new long[1024];
+            remapCount = 0;
+        }
         try {
             BufferedOutputStream out = new BufferedOutputStream(outputFile.getOutputStream());
             if (lineSeparator == null)
@@ -492,16 +773,50 @@ public class SystemBuffer implements Constants
                 encoding = getSaveEncoding();
             Line line = getFirstLine();
             if (line != null) {
+                long pos = 0;
                 final byte[] byteOrderMark = getByteOrderMark(encoding);
-                if (byteOrderMark != null)
+                if (byteOrderMark != null) {
                     out.write(byteOrderMark);
-                out.write(line.getBytes(encoding));
-                line = line.next();
+                    pos += byteOrderMark.length;
+                }
                 final byte[] sepBytes = getSeparatorBytes(encoding);
-                while (line != null) {
-                    out.write(sepBytes);
-                    out.write(line.getBytes(encoding));
+                while (true) {
+                    if (isCopyable(line, encoding)) {
+                        // Copy a run of unedited lines straight from the
+                        // mapping.
+                        final MappedLine first = (MappedLine) line;
+                        final MappedText mapped = first.getMappedText();
+                        final long runStart = first.getStart();
+                        long runEnd = runStart + first.getByteLength();
+                        if (remember)
+                            rememberStart(pos);
+                        while (isCopyable(line.next(), encoding)) {
+                            final MappedLine next = (MappedLine) line.next();
+                            if (next.getMappedText() != mapped)
+                                break;
+                            if (next.getStart() != runEnd + sepBytes.length)
+                                break;
+                            if (!mapped.matches(runEnd, sepBytes))
+                                break;
+                            if (remember)
+                                rememberStart(pos + next.getStart() - runStart);
+                            runEnd = next.getStart() + next.getByteLength();
+                            line = next;
+                        }
+                        mapped.write(out, runStart, runEnd - runStart);
+                        pos += runEnd - runStart;
+                    } else {
+                        if (remember && line instanceof MappedLine)
+                            rememberStart(-1);
+                        final byte[] bytes = line.getBytes(encoding);
+                        out.write(bytes);
+                        pos += bytes.length;
+                    }
                     line = line.next();
+                    if (line == null)
+                        break;
+                    out.write(sepBytes);
+                    pos += sepBytes.length;
                 }
             }
             out.flush();
@@ -514,6 +829,15 @@ public class SystemBuffer implements Constants
         }
     }
 
+    private static boolean isCopyable(Line line, String encoding)
+    {
+        if (line instanceof MappedLine) {
+            MappedText mapped = ((MappedLine)line).getMappedText();
+            return mapped != null && encoding.equals(mapped.getEncoding());
+        }
+        return false;
+    }
+
     public String getSaveEncoding()
     {
         String encoding = file == null ? null : file.getEncoding();
@@ -567,6 +891,11 @@ public class SystemBuffer implements Constants
         }
         setFirstLine(null);
         lastLine = null;
+        lineIndex = null;
+        if (mappedText != null) {
+            mappedText.dispose();
+            mappedText = null;
+        }
         isLoaded = false;
     }
 
@@ -200,7 +200,8 @@ public final class TagCommands implements Constants
             return null;
         final String name = expression.getName();
         final int arity = expression.getArity();
-        List tags = Editor.getTagFileManager().getTags(directory, mode);
+        List tags =
+            Editor.getTagFileManager().findTags(directory, mode, name);
         if (tags == null) {
             if (!directory.isRemote())
                 Editor.getTagFileManager().addToQueue(directory, mode);
@@ -230,7 +231,8 @@ public final class TagCommands implements Constants
     {
         if (!mode.isTaggable())
             return null;
-        List tags = Editor.getTagFileManager().getTags(directory, mode);
+        List tags =
+            Editor.getTagFileManager().findTags(directory, mode, name);
         if (tags == null) {
             if (!directory.isRemote())
                 Editor.getTagFileManager().addToQueue(directory, mode);
@@ -0,0 +1,363 @@
+/*
+ * TagFile.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// A memory-mapped tag file.
+//
+// The file starts with a header (magic number, version, number of tags,
+// number of source files, offset of the file table), followed by a table of
+// record offsets sorted by key, followed by the records, followed by the
+// file table. Each record is the key (the lower case method name of the
+// tag, see GlobalTag.getMethodName()), the index of the source file in the
+// file table, and the tag's line in the old text format (see
+// Tagger.writeTags()). The file table has the path, last modified time and
+// length of each source file, so the tags of files that haven't changed can
+// be reused when the tag file is rebuilt. Strings are UTF-8, preceded by
+// their length (a short for keys, which are cut to fit, and an int for
+// paths and lines).
+//
+// Lookups binary search the offset table and only decode the records whose
+// key matches.
+public final class TagFile
+{
+    private static final int MAGIC = 0x4a544147; // "JTAG"
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 20;
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int fileCount;
+    private final int filesOffset;
+
+    private TagFile(File file, ByteBuffer buffer, int count, int fileCount,
+        int filesOffset)
+    {
+        this.file = file;
+        this.buffer = buffer;
+        this.count = count;
+        this.fileCount = fileCount;
+        this.filesOffset = filesOffset;
+    }
+
+    // Returns null if the file can't be read or is not in the current
+    // format.
+    public static TagFile open(File file)
+    {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file.canonicalPath(), "r");
+            FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+                return null;
+            ByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+                return null;
+            final int count = buffer.getInt(8);
+            final int fileCount = buffer.getInt(12);
+            final int filesOffset = buffer.getInt(16);
+            if (count < 0 || fileCount < 0 ||
+                HEADER_SIZE + count * 4L > filesOffset || filesOffset > size)
+                return null;
+            return new TagFile(file, buffer, count, fileCount, filesOffset);
+        }
+        catch (IOException e) {
+            Log.error(e);
+            return null;
+        }
+        finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                }
+                catch (IOException e) {
+                    Log.error(e);
+                }
+            }
+        }
+    }
+
+    public final File getFile()
+    {
+        return file;
+    }
+
+    public final int size()
+    {
+        return count;
+    }
+
+    public static String getKey(String name)
+    {
+        return GlobalTag.getMethodName(name).toLowerCase();
+    }
+
+    // Returns the tags whose method name is equal to the method name of the
+    // specified name, ignoring case. The caller does any further filtering.
+    public List lookup(String name)
+    {
+        final byte[] key = getBytes(getKey(name));
+        // Find the first record whose key is >= key.
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (compareKey(getRecordOffset(mid), key) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        ArrayList list = new ArrayList();
+        for (int i = lo; i < count; i++) {
+            final int offset = getRecordOffset(i);
+            if (compareKey(offset, key) != 0)
+                break;
+            GlobalTag tag = decode(offset);
+            if (tag != null)
+                list.add(tag);
+        }
+        return list;
+    }
+
+    // Decodes all the tags in the file.
+    public List getAllTags()
+    {
+        ArrayList list = new ArrayList(count);
+        for (int i = 0; i < count; i++) {
+            GlobalTag tag = decode(getRecordOffset(i));
+            if (tag != null)
+                list.add(tag);
+        }
+        return list;
+    }
+
+    // Returns the source files recorded in the tag file, in the order they
+    // were written. If withLines is true, the lines of each entry are
+    // filled in too.
+    public List getEntries(boolean withLines)
+    {
+        ArrayList entries = new ArrayList(fileCount);
+        int pos = filesOffset;
+        for (int i = 0; i < fileCount; i++) {
+            final int length = buffer.getInt(pos);
+            String path = getString(pos + 4, length);
+            pos += 4 + length;
+            long lastModified = buffer.getLong(pos);
+            long fileLength = buffer.getLong(pos + 8);
+            pos += 16;
+            entries.add(new Entry(path, lastModified, fileLength,
+                withLines ? new ArrayList() : null));
+        }
+        if (withLines) {
+            for (int i = 0; i < count; i++) {
+                final int offset = getRecordOffset(i);
+                int p = offset + 2 + (buffer.getShort(offset) & 0xffff);
+                final int index = buffer.getInt(p);
+                final int length = buffer.getInt(p + 4);
+                if (index >= 0 && index < fileCount)
+                    ((Entry)entries.get(index)).lines.add(
+                        getString(p + 8, length));
+            }
+        }
+        return entries;
+    }
+
+    private int getRecordOffset(int index)
+    {
+        return buffer.getInt(HEADER_SIZE + index * 4);
+    }
+
+    // Compares the key of the record at offset with key, as unsigned bytes.
+    private int compareKey(int offset, byte[] key)
+    {
+        final int length = buffer.getShort(offset) & 0xffff;
+        final int start = offset + 2;
+        final int limit = Math.min(length, key.length);
+        for (int i = 0; i < limit; i++) {
+            int b1 = buffer.get(start + i) & 0xff;
+            int b2 = key[i] & 0xff;
+            if (b1 != b2)
+                return b1 - b2;
+        }
+        return length - key.length;
+    }
+
+    private GlobalTag decode(int offset)
+    {
+        final int keyLength = buffer.getShort(offset) & 0xffff;
+        final int pos = offset + 2 + keyLength + 4;
+        final int length = buffer.getInt(pos);
+        String s = getString(pos + 4, length);
+        return s != null ? GlobalTag.makeGlobalTag(s) : null;
+    }
+
+    private String getString(int pos, int length)
+    {
+        byte[] bytes = new byte[length];
+        ByteBuffer dup = buffer.duplicate();
+        ((java.nio.Buffer) dup).position(pos);
+        dup.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            Log.error(e);
+            return null;
+        }
+    }
+
+    // Writes a tag file containing the specified entries.
+    public static void write(File file, List entries) throws IOException
+    {
+        ArrayList list = new ArrayList();
+        for (int i = 0; i < entries.size(); i++) {
+            List lines = ((Entry)entries.get(i)).lines;
+            for (int j = 0; j < lines.size(); j++) {
+                String line = (String) lines.get(j);
+                int index = line.indexOf(Tagger.separatorChar);
+                String name = index >= 0 ? line.substring(0, index) : line;
+                byte[] key = getBytes(getKey(name));
+                if (key.length > 0xffff)
+                    key = Arrays.copyOf(key, 0xffff);
+                list.add(new Record(key, i, getBytes(line)));
+            }
+        }
+        final int size = list.size();
+        Record[] records = (Record[]) list.toArray(new Record[size]);
+        Arrays.sort(records, new Comparator() {
+            public int compare(Object o1, Object o2)
+            {
+                byte[] k1 = ((Record)o1).key;
+                byte[] k2 = ((Record)o2).key;
+                final int limit = Math.min(k1.length, k2.length);
+                for (int i = 0; i < limit; i++) {
+                    int b1 = k1[i] & 0xff;
+                    int b2 = k2[i] & 0xff;
+                    if (b1 != b2)
+                        return b1 - b2;
+                }
+                return k1.length - k2.length;
+            }
+        });
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(file.getOutputStream()));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(entries.size());
+            int offset = HEADER_SIZE + size * 4;
+            for (int i = 0; i < size; i++)
+                offset += 2 + records[i].key.length + 8 +
+                    records[i].line.length;
+            out.writeInt(offset); // File table.
+            offset = HEADER_SIZE + size * 4;
+            for (int i = 0; i < size; i++) {
+                out.writeInt(offset);
+                offset += 2 + records[i].key.length + 8 +
+                    records[i].line.length;
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeShort(records[i].key.length);
+                out.write(records[i].key);
+                out.writeInt(records[i].fileIndex);
+                out.writeInt(records[i].line.length);
+                out.write(records[i].line);
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = (Entry) entries.get(i);
+                byte[] path = getBytes(entry.path);
+                out.writeInt(path.length);
+                out.write(path);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+            }
+            out.flush();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static byte[] getBytes(String s)
+    {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            Log.error(e);
+            return new byte[0];
+        }
+    }
+
+    // A source file and its tags, as lines in the format written by
+    // Tagger.writeTags().
+    public static final class Entry
+    {
+        public final String path;
+        public final long lastModified;
+        public final long length;
+        public final List lines;
+
+        public Entry(String path, long lastModified, long length, List lines)
+        {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.lines = lines;
+        }
+
+        public final boolean isCurrent(File file)
+        {
+            return file.lastModified() == lastModified &&
+                file.length() == length;
+        }
+    }
+
+    private static final class Record
+    {
+        final byte[] key;
+        final int fileIndex;
+        final byte[] line;
+
+        Record(byte[] key, int fileIndex, byte[] line)
+        {
+            this.key = key;
+            this.fileIndex = fileIndex;
+            this.line = line;
+        }
+    }
+}
@@ -21,30 +21,65 @@
 
 package org.armedbear.j;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.CharArrayWriter;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public final class TagFileManager extends Thread
 {
-    // Version of tag file format.
-    private static final String VERSION = "1";
-
     private final File tagFileDir;
     private final TagFileCatalog catalog;
 
     private Vector queue = new Vector();
     private boolean enabled = true;
 
-    private TagFileCache cache;
+    private static final int MAX_TAGGER_THREADS = 4;
+    private static ExecutorService taggerPool;
+
+    private final TagCache cache = new TagCache();
+
+    // Old tag files that couldn't be deleted yet (see deleteTagFile()).
+    private final ArrayList pendingDeletes = new ArrayList();
+
+    // Open tag files (memory-mapped), most recently used last.
+    private static final int MAX_OPEN_FILES = 32;
+    private final LinkedHashMap openFiles =
+        new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest)
+            {
+                return size() > MAX_OPEN_FILES;
+            }
+        };
+
+    // Directories with tag files that are being watched for changes (see
+    // FileWatcher), most recently used last.
+    private static final int MAX_WATCHES = 64;
+    private final LinkedHashMap watches =
+        new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest)
+            {
+                if (size() > MAX_WATCHES) {
+                    ((TagFileWatch)eldest.getValue()).unwatch();
+                    return true;
+                }
+                return false;
+            }
+        };
 
     public TagFileManager()
     {
@@ -63,6 +98,7 @@ public final class TagFileManager extends Thread
         while (true) {
             QueueEntry entry = getEntryFromQueue();
             refreshTagFile(entry);
+            retryPendingDeletes();
         }
     }
 
@@ -127,47 +163,90 @@ public final class TagFileManager extends Thread
         return catalog.getTagFile(dir, mode);
     }
 
+    // Rebuilds the tag file for the directory. Tags of files that haven't
+    // changed since the last build are copied from the old tag file; the
+    // others are tagged in parallel on the tagger pool.
     public void makeTagFile(File dir, Mode mode)
     {
         Debug.assertTrue(mode != null);
         try {
             if (dir.isRemote())
                 return;
+            List files = getSourceFiles(dir, mode);
+            if (files == null)
+                return;
             File oldTagfile = getTagFile(dir, mode);
-            File tagfile = Utilities.getTempFile(tagFileDir);
-            if (tagfile != null) {
-                String[] files = dir.list();
-                if (files != null) {
-                    BufferedWriter writer =
-                        new BufferedWriter(new OutputStreamWriter(
-                            tagfile.getOutputStream()));
-                    writer.write(VERSION);
-                    writer.write('\n');
-                    for (int i = 0; i < files.length; i++) {
-                        File file = File.getInstance(dir, files[i]);
-                        if (mode.accepts(file.getName()) && file.isFile()) {
-                            SystemBuffer buf = new SystemBuffer(file);
-                            buf.load();
-                            Tagger tagger = mode.getTagger(buf);
-                            tagger.run();
-                            tagger.writeTags(writer);
-                            buf._empty();
+            HashMap oldEntries = new HashMap();
+            TagFile old = openTagFile(dir, mode);
+            if (old != null) {
+                List list = old.getEntries(true);
+                for (int i = 0; i < list.size(); i++) {
+                    TagFile.Entry entry = (TagFile.Entry) list.get(i);
+                    oldEntries.put(entry.path, entry);
+                }
+            }
+            // The list holds either an entry (unchanged file) or the future
+            // of a new one, in directory order.
+            ArrayList list = new ArrayList(files.size());
+            // Time stamps of the files being tagged, taken before tagging.
+            final long[] lastModified = new long[files.size()];
+            final long[] length = new long[files.size()];
+            int changed = 0;
+            for (int i = 0; i < files.size(); i++) {
+                final File file = (File) files.get(i);
+                final Mode m = mode;
+                TagFile.Entry entry =
+                    (TagFile.Entry) oldEntries.get(file.canonicalPath());
+                if (entry != null && entry.isCurrent(file)) {
+                    list.add(entry);
+                } else {
+                    lastModified[i] = file.lastModified();
+                    length[i] = file.length();
+                    list.add(getTaggerPool().submit(new Callable() {
+                        public Object call()
+                        {
+                            return tagFile(file, m);
                         }
+                    }));
+                    ++changed;
+                }
+            }
+            if (old != null && changed == 0 &&
+                list.size() == oldEntries.size()) {
+                // Nothing to do.
+                return;
+            }
+            ArrayList entries = new ArrayList(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                Object obj = list.get(i);
+                if (obj instanceof Future) {
+                    try {
+                        obj = ((Future)obj).get();
                     }
-                    writer.flush();
-                    writer.close();
-                    if (tagfile.length() == 0) {
-                        tagfile.delete();
-                    } else {
-                        catalog.addEntry(dir, tagfile, mode);
-                        catalog.save();
-                        if (oldTagfile != null) {
-                            oldTagfile.delete();
-                            if (cache != null)
-                                cache.remove(oldTagfile);
-                        }
+                    catch (ExecutionException e) {
+                        // Record the file with no tags, so it counts as up
+                        // to date (and isn't tagged again) until it changes.
+                        Log.error(e.getCause());
+                        File file = (File) files.get(i);
+                        obj = new TagFile.Entry(file.canonicalPath(),
+                            lastModified[i], length[i], new ArrayList());
                     }
                 }
+                entries.add(obj);
+            }
+            // If the source files have all been removed, the old tag file
+            // is replaced with an empty one, so it's no longer out of date.
+            if (entries.size() == 0 && oldTagfile == null)
+                return;
+            File tagfile = Utilities.getTempFile(tagFileDir);
+            if (tagfile != null) {
+                TagFile.write(tagfile, entries);
+                catalog.addEntry(dir, tagfile, mode);
+                catalog.save();
+                if (oldTagfile != null) {
+                    old = null;
+                    deleteTagFile(oldTagfile);
+                }
             }
         }
         catch (Exception e) {
@@ -175,34 +254,199 @@ public final class TagFileManager extends Thread
         }
     }
 
+    // Runs on the tagger pool.
+    private static TagFile.Entry tagFile(File file, Mode mode)
+    {
+        // Get the time stamp first, so a change made while we're tagging is
+        // seen next time.
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        SystemBuffer buf = new SystemBuffer(file);
+        buf.load();
+        Tagger tagger = mode.getTagger(buf);
+        CharArrayWriter writer = new CharArrayWriter();
+        if (tagger != null) {
+            tagger.run();
+            tagger.writeTags(writer);
+        }
+        buf._empty();
+        return new TagFile.Entry(file.canonicalPath(), lastModified, length,
+            getLines(writer.toString()));
+    }
+
+    private static List getLines(String s)
+    {
+        ArrayList lines = new ArrayList();
+        int begin = 0;
+        int end;
+        while ((end = s.indexOf('\n', begin)) >= 0) {
+            if (end > begin)
+                lines.add(s.substring(begin, end));
+            begin = end + 1;
+        }
+        if (begin < s.length())
+            lines.add(s.substring(begin));
+        return lines;
+    }
+
+    // Returns the files in the directory that the mode tags, or null if the
+    // directory can't be listed.
+    private static List getSourceFiles(File dir, Mode mode)
+    {
+        String[] names = dir.list();
+        if (names == null)
+            return null;
+        ArrayList files = new ArrayList();
+        for (int i = 0; i < names.length; i++) {
+            if (!mode.accepts(names[i]))
+                continue;
+            File file = File.getInstance(dir, names[i]);
+            if (file.isFile())
+                files.add(file);
+        }
+        return files;
+    }
+
+    private static synchronized ExecutorService getTaggerPool()
+    {
+        if (taggerPool == null) {
+            final int n = Math.min(MAX_TAGGER_THREADS,
+                Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(n, n,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "tagger");
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            pool.allowCoreThreadTimeOut(true);
+            taggerPool = pool;
+        }
+        return taggerPool;
+    }
+
+    // The tag file is out of date if a file has been added, removed or
+    // changed (last modified time or length) since it was built.
     private boolean isTagFileOutOfDate(QueueEntry entry)
     {
         if (entry.directory.isRemote())
             return false;
-        File tagfile = getTagFile(entry.directory, entry.mode);
-        if (tagfile == null)
-            return true;
-        if (!tagfile.exists())
+        List files = getSourceFiles(entry.directory, entry.mode);
+        if (files == null)
+            return false;
+        TagFile tagFile = openTagFile(entry.directory, entry.mode);
+        if (tagFile == null)
+            return files.size() > 0;
+        List entries = tagFile.getEntries(false);
+        if (entries.size() != files.size())
             return true;
-        long tagfileLastModified = tagfile.lastModified();
-        String[] files = entry.directory.list();
-        if (files != null) {
-            for (int i = 0; i < files.length; i++) {
-                File file = File.getInstance(entry.directory, files[i]);
-                if (!file.isFile())
-                    continue;
-                if (entry.mode.accepts(file.getName()))
-                    if (file.lastModified() > tagfileLastModified)
-                        return true;
-            }
+        HashMap map = new HashMap();
+        for (int i = 0; i < entries.size(); i++) {
+            TagFile.Entry e = (TagFile.Entry) entries.get(i);
+            map.put(e.path, e);
+        }
+        for (int i = 0; i < files.size(); i++) {
+            File file = (File) files.get(i);
+            TagFile.Entry e = (TagFile.Entry) map.get(file.canonicalPath());
+            if (e == null || !e.isCurrent(file))
+                return true;
         }
         return false;
     }
 
+    // If the directory is being watched, the tag file is only checked
+    // against the source files when one of them has changed since the last
+    // check.
     private void refreshTagFile(QueueEntry queueEntry)
     {
-        if (isTagFileOutOfDate(queueEntry))
-            makeTagFile(queueEntry.directory, queueEntry.mode);
+        final File dir = queueEntry.directory;
+        final Mode mode = queueEntry.mode;
+        TagFileWatch watch = getWatch(dir, mode);
+        final int generation = watch != null ? watch.generation : 0;
+        if (watch != null && watch.checked == generation)
+            return;
+        boolean current = !isTagFileOutOfDate(queueEntry);
+        if (!current) {
+            makeTagFile(dir, mode);
+            current = openTagFile(dir, mode) != null;
+        }
+        if (watch != null && current)
+            watch.checked = generation;
+    }
+
+    // Returns null if the directory can't be watched.
+    private TagFileWatch getWatch(File dir, Mode mode)
+    {
+        if (dir.isRemote())
+            return null;
+        final String key = dir.canonicalPath() + '\0' + mode.getId();
+        synchronized (watches) {
+            TagFileWatch watch = (TagFileWatch) watches.get(key);
+            if (watch == null) {
+                FileWatcher watcher = FileWatcher.getInstance();
+                if (watcher == null)
+                    return null;
+                watch = new TagFileWatch(key, dir, mode);
+                if (!watcher.watch(dir, watch))
+                    return null;
+                watches.put(key, watch);
+            }
+            return watch;
+        }
+    }
+
+    // Watches a directory for changes to the source files of a tag file.
+    private final class TagFileWatch implements FileWatcher.Listener
+    {
+        final String key;
+        final File dir;
+        final Mode mode;
+
+        // Incremented when a source file changes.
+        volatile int generation;
+
+        // The generation when the tag file was last known to be current.
+        volatile int checked = -1;
+
+        TagFileWatch(String key, File dir, Mode mode)
+        {
+            this.key = key;
+            this.dir = dir;
+            this.mode = mode;
+        }
+
+        public void filesChanged(File directory, Set names)
+        {
+            if (names == null) {
+                // Events were lost or the directory went away. Start over.
+                synchronized (watches) {
+                    if (watches.get(key) == this)
+                        watches.remove(key);
+                }
+                unwatch();
+            } else {
+                boolean changed = false;
+                for (Iterator it = names.iterator(); it.hasNext();) {
+                    if (mode.accepts((String)it.next())) {
+                        changed = true;
+                        break;
+                    }
+                }
+                if (!changed)
+                    return;
+            }
+            ++generation;
+            addToQueue(dir, mode);
+        }
+
+        void unwatch()
+        {
+            FileWatcher.getInstance().unwatch(dir, this);
+        }
     }
 
     private synchronized void cleanup()
@@ -226,50 +470,104 @@ public final class TagFileManager extends Thread
         catalog.update();
     }
 
+    // Returns all the tags for the directory, or null if there is no usable
+    // tag file. Use findTags() to look up a name.
     public List getTags(File directory, Mode mode)
     {
-        File tagFile = getTagFile(directory, mode);
-        if (tagFile == null) {
+        TagFile tagFile = openTagFile(directory, mode);
+        if (tagFile == null)
+            return null;
+        final String key = tagFile.getFile().canonicalPath();
+        List tags = cache.get(key);
+        if (tags == null) {
+            tags = Collections.unmodifiableList(tagFile.getAllTags());
+            cache.put(key, tags);
+        }
+        return tags;
+    }
+
+    // Returns the tags in the directory whose method name (see
+    // GlobalTag.getMethodName()) matches the method name of the specified
+    // name, ignoring case. The caller is responsible for any further
+    // filtering. Returns null if there is no usable tag file.
+    public List findTags(File directory, Mode mode, String name)
+    {
+        TagFile tagFile = openTagFile(directory, mode);
+        if (tagFile == null)
+            return null;
+        final String key = tagFile.getFile().canonicalPath() + '\0' +
+            TagFile.getKey(name);
+        List tags = cache.get(key);
+        if (tags == null) {
+            tags = Collections.unmodifiableList(tagFile.lookup(name));
+            cache.put(key, tags);
+        }
+        return tags;
+    }
+
+    private TagFile openTagFile(File directory, Mode mode)
+    {
+        File file = getTagFile(directory, mode);
+        if (file == null) {
             Log.debug("getTags no tag file " + directory + " " + mode);
             return null;
         }
-        if (!tagFile.isFile()) {
+        synchronized (openFiles) {
+            TagFile tagFile = (TagFile) openFiles.get(file);
+            if (tagFile != null)
+                return tagFile;
+        }
+        if (!file.isFile()) {
             Log.debug("getTags tag file doesn't exist");
             return null;
         }
-        List tags = null;
-        // First checked cached tag files.
-        if (cache != null)
-            tags = cache.getTags(tagFile);
-        if (tags == null) {
-            try {
-                BufferedReader reader =
-                    new BufferedReader(new InputStreamReader(tagFile.getInputStream()));
-                String s = reader.readLine();
-                if (s != null && s.equals(VERSION)) {
-                    tags = new ArrayList();
-                    while ((s = reader.readLine()) != null) {
-                        GlobalTag tag = GlobalTag.makeGlobalTag(s);
-                        if (tag != null)
-                            tags.add(tag);
-                    }
-                } else {
-                    Log.warn("getTags wrong version " + directory + " " +
-                        mode);
-                }
-                reader.close();
+        TagFile tagFile = TagFile.open(file);
+        if (tagFile == null) {
+            // Old format or damaged. It will be rebuilt.
+            Log.warn("getTags wrong version " + directory + " " + mode);
+            deleteTagFile(file);
+            return null;
+        }
+        synchronized (openFiles) {
+            openFiles.put(file, tagFile);
+        }
+        return tagFile;
+    }
+
+    private void removeFromCache(File file)
+    {
+        synchronized (openFiles) {
+            openFiles.remove(file);
+        }
+        cache.removeTagFile(file.canonicalPath());
+    }
+
+    // Drops our mapping of the tag file and deletes it. The mapping is only
+    // released when it's garbage collected (a lookup may still be using
+    // it), and Windows won't delete a mapped file, so if the delete fails
+    // it's tried again after later refreshes. Any file still left over is
+    // removed by cleanup() at the next start.
+    private void deleteTagFile(File file)
+    {
+        removeFromCache(file);
+        if (!file.delete() && file.isFile()) {
+            Log.debug("TagFileManager can't delete " + file + " yet");
+            synchronized (pendingDeletes) {
+                if (!pendingDeletes.contains(file))
+                    pendingDeletes.add(file);
             }
-            catch (IOException e) {
-                Log.error(e);
+        }
+    }
+
+    private void retryPendingDeletes()
+    {
+        synchronized (pendingDeletes) {
+            for (int i = pendingDeletes.size()-1; i >= 0; i--) {
+                File file = (File) pendingDeletes.get(i);
+                if (file.delete() || !file.isFile())
+                    pendingDeletes.remove(i);
             }
-            if (tags != null) {
-                if (cache == null)
-                    cache = new TagFileCache();
-                cache.add(directory, mode.toString(), tagFile, tags);
-            } else
-                tagFile.delete();
         }
-        return tags;
     }
 
     private static class QueueEntry
@@ -301,115 +599,96 @@ public final class TagFileManager extends Thread
         }
     }
 
-    private static class TagFileCache
+    // Decoded lookups, keyed by tag file path (plus the lookup key, unless
+    // the entry is the whole file). Split into shards, each an LRU map with
+    // its own lock, and bounded by the total number of tags held.
+    private static final class TagCache
     {
-        private static final int MAX_FILES = 5;
+        private static final int SHARDS = 8;
+        private static final int MAX_TAGS = 64 * 1024;
 
-        private ArrayList list = new ArrayList(MAX_FILES);
+        private final Shard[] shards = new Shard[SHARDS];
 
-        TagFileCache() {}
+        TagCache()
+        {
+            for (int i = 0; i < SHARDS; i++)
+                shards[i] = new Shard(MAX_TAGS / SHARDS);
+        }
 
-        synchronized List getTags(File tagFile)
+        private Shard getShard(String key)
         {
-            Iterator iter = list.iterator();
-            while (iter.hasNext()) {
-                CacheEntry entry = (CacheEntry) iter.next();
-                if (entry.tagFile.equals(tagFile)) {
-                    entry.lastAccess = System.currentTimeMillis();
-                    // Move entry to top of list.
-                    ArrayList newList = new ArrayList(MAX_FILES);
-                    newList.add(entry);
-                    for (int i = 0; i < list.size(); i++) {
-                        CacheEntry e = (CacheEntry) list.get(i);
-                        if (e != entry)
-                            newList.add(e);
-                    }
-                    Debug.assertTrue(newList.size() == list.size());
-                    list = newList;
-                    checkOrder();
-                    return entry.tags;
-                }
-            }
-            return null;
+            // The shard depends only on the tag file, so removeTagFile()
+            // only has to look in one shard.
+            int index = key.indexOf('\0');
+            String path = index >= 0 ? key.substring(0, index) : key;
+            return shards[(path.hashCode() & 0x7fffffff) % SHARDS];
         }
 
-        synchronized void add(File directory, String modeName,
-            File tagFile, List tags)
+        List get(String key)
         {
-            CacheEntry entry = new CacheEntry(directory, modeName, tagFile, tags);
-            ArrayList newList = new ArrayList(MAX_FILES);
-            newList.add(entry);
-            int count = 1;
-            for (int i = 0; i < list.size() && count < MAX_FILES; i++) {
-                CacheEntry e = (CacheEntry) list.get(i);
-                if (!e.tagFile.equals(tagFile)) {
-                    newList.add(e);
-                    ++count;
-                }
+            Shard shard = getShard(key);
+            synchronized (shard) {
+                return (List) shard.get(key);
             }
-            list = newList;
-            checkOrder();
         }
 
-        synchronized void remove(File tagFile)
+        void put(String key, List tags)
         {
-            Iterator iter = list.iterator();
-            while (iter.hasNext()) {
-                CacheEntry entry = (CacheEntry) iter.next();
-                if (entry.tagFile.equals(tagFile)) {
-                    iter.remove();
-                    checkOrder();
-                    Log.debug("cache remove size = " + list.size());
-                    return;
-                }
+            Shard shard = getShard(key);
+            synchronized (shard) {
+                shard.add(key, tags);
             }
-            // Not found.
         }
 
-        // Only called from synchronized methods.
-        void checkOrder()
+        void removeTagFile(String path)
         {
-            if (Editor.isDebugEnabled()) {
-                for (int i = 0; i < list.size()-1; i++) {
-                    CacheEntry entry1 = (CacheEntry) list.get(i);
-                    CacheEntry entry2 = (CacheEntry) list.get(i+1);
-                    if (entry1.lastAccess < entry2.lastAccess)
-                        Debug.bug();
+            Shard shard = getShard(path);
+            synchronized (shard) {
+                Iterator iter = shard.entrySet().iterator();
+                while (iter.hasNext()) {
+                    Map.Entry entry = (Map.Entry) iter.next();
+                    String key = (String) entry.getKey();
+                    if (key.startsWith(path) && (key.length() == path.length()
+                        || key.charAt(path.length()) == '\0')) {
+                        shard.weight -= weight((List) entry.getValue());
+                        iter.remove();
+                    }
                 }
-//                 dump();
             }
         }
 
-        // Only called from synchronized methods.
-//         void dump()
-//         {
-//             for (int i = 0; i < list.size(); i++)
-//                 Log.debug(String.valueOf(i) + " " + list.get(i).toString());
-//         }
+        // An empty result still costs an entry.
+        static int weight(List tags)
+        {
+            return tags.size() + 1;
+        }
     }
 
-    private static class CacheEntry
+    private static final class Shard extends LinkedHashMap
     {
-        final File directory; // Needed for debugging only!
-        final String modeName; // Needed for debugging only!
-        final File tagFile;
-        List tags;
-        long lastAccess; // Needed for debugging only!
-
-        CacheEntry(File directory, String modeName, File tagFile,
-            List tags)
+        private final int maxWeight;
+        int weight;
+
+        Shard(int maxWeight)
         {
-            this.directory = directory;
-            this.modeName = modeName;
-            this.tagFile = tagFile;
-            this.tags = tags;
-            this.lastAccess = System.currentTimeMillis();
+            super(16, 0.75f, true);
+            this.maxWeight = maxWeight;
         }
 
-        public String toString()
+        void add(String key, List tags)
         {
-            return directory.canonicalPath() + " " + modeName + " " +
-                String.valueOf(lastAccess);
+            List old = (List) put(key, tags);
+            if (old != null)
+                weight -= TagCache.weight(old);
+            weight += TagCache.weight(tags);
+            // Evict least recently used entries, but always keep the one we
+            // just added, even if it is bigger than the whole shard.
+            Iterator iter = entrySet().iterator();
+            while (weight > maxWeight && size() > 1) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                weight -= TagCache.weight((List) entry.getValue());
+                iter.remove();
+            }
         }
     }
 }
@@ -70,6 +70,7 @@ public class TextLine extends AbstractLine implements Line
         if (text != null && text.equals(originalText))
             originalText = null;
         bits &= ~SAVED;
+        changed(this);
     }
 
     public final String getOriginalText()
@@ -193,6 +194,7 @@ public class TextLine extends AbstractLine implements Line
             text = textLine.text;
             originalText = textLine.originalText;
             bits = textLine.bits;
+            changed(this);
         } else
             Debug.bug();
     }
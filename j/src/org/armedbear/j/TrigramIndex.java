@@ -0,0 +1,663 @@
+/*
+ * TrigramIndex.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import gnu.regexp.RE;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// An inverted index from trigrams to the files under a directory tree that
+// contain them, used by FindInFiles to avoid reading files that can't
+// contain a match.
+//
+// Trigrams are computed on lower case text, so the index can be used for
+// both case-sensitive and case-insensitive searches. A query only narrows
+// the set of candidate files; FindInFiles still verifies each candidate
+// with the real search.
+//
+// File ids are never reused. When a file changes, it gets a new id and the
+// old id is marked dead; postings for dead ids are skipped by queries and
+// dropped when the index is compacted.
+public final class TrigramIndex
+{
+    // Version of index file format.
+    private static final int VERSION = 2;
+
+    // Files larger than this are not indexed (and so are always searched).
+    private static final long MAX_FILE_SIZE = 16 * 1024 * 1024;
+
+    private final File root;
+    private final File indexFile;
+
+    // Indexed by file id. Null entries are dead.
+    private ArrayList entries = new ArrayList();
+
+    // Relative path -> Entry, for live entries only.
+    private HashMap paths = new HashMap();
+
+    // Trigram (Integer) -> IntList of file ids, in ascending order.
+    private HashMap postings = new HashMap();
+
+    private int deadCount;
+
+    private boolean ready;
+
+    public TrigramIndex(File root, File indexFile)
+    {
+        this.root = root;
+        this.indexFile = indexFile;
+    }
+
+    public final File getRoot()
+    {
+        return root;
+    }
+
+    public final File getIndexFile()
+    {
+        return indexFile;
+    }
+
+    // Returns true if the index has been loaded or built at least once.
+    public final synchronized boolean isReady()
+    {
+        return ready;
+    }
+
+    // Returns true if dir is the root of this index or a subdirectory of it.
+    public final boolean covers(File dir)
+    {
+        String rootPath = root.canonicalPath();
+        String path = dir.canonicalPath();
+        if (path.equals(rootPath))
+            return true;
+        String prefix = rootPath.endsWith(LocalFile.getSeparator()) ?
+            rootPath : rootPath.concat(LocalFile.getSeparator());
+        return path.startsWith(prefix);
+    }
+
+    // Returns true if the file is known to the index and has not changed
+    // since it was indexed, so the result of query() applies to it.
+    public synchronized boolean isCurrent(File file)
+    {
+        String relativePath = getRelativePath(file);
+        if (relativePath == null)
+            return false;
+        Entry entry = (Entry) paths.get(relativePath);
+        if (entry == null)
+            return false;
+        return entry.lastModified == file.lastModified() &&
+            entry.length == file.length();
+    }
+
+    // Returns the set of canonical paths of the files that may contain all
+    // of the literal strings in the list, or null if the query can't be
+    // answered from the index (e.g. no literal is three characters long).
+    public synchronized Set query(List literals)
+    {
+        IntList result = null;
+        for (int i = 0; i < literals.size(); i++) {
+            String literal = (String) literals.get(i);
+            for (int j = 0; j + 3 <= literal.length(); j++) {
+                int trigram = trigram(fold(literal.charAt(j)),
+                                      fold(literal.charAt(j+1)),
+                                      fold(literal.charAt(j+2)));
+                IntList list = (IntList) postings.get(Integer.valueOf(trigram));
+                if (list == null)
+                    return new HashSet(); // No file can match.
+                result = result == null ? list : result.intersect(list);
+                if (result.size() == 0)
+                    return new HashSet();
+            }
+        }
+        if (result == null)
+            return null;
+        HashSet set = new HashSet();
+        for (int i = 0; i < result.size(); i++) {
+            Entry entry = (Entry) entries.get(result.get(i));
+            if (entry != null) {
+                File file = File.getInstance(root, entry.path);
+                if (file != null)
+                    set.add(file.canonicalPath());
+            }
+        }
+        return set;
+    }
+
+    // Extracts literal strings that must appear in any match of pattern, for
+    // use with query(). Returns null if nothing useful can be extracted.
+    public static List getLiterals(String pattern, boolean regularExpression)
+    {
+        ArrayList list = new ArrayList();
+        if (!regularExpression) {
+            // The index doesn't know about line separators.
+            FastStringBuffer sb = new FastStringBuffer();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '\n' || c == '\r')
+                    addLiteral(list, sb);
+                else
+                    sb.append(c);
+            }
+            addLiteral(list, sb);
+        } else {
+            // Alternation or groups can make any part of the pattern
+            // optional. Don't try to be clever.
+            if (pattern.indexOf('|') >= 0 || pattern.indexOf('(') >= 0)
+                return null;
+            FastStringBuffer sb = new FastStringBuffer();
+            final int limit = pattern.length();
+            for (int i = 0; i < limit; i++) {
+                char c = pattern.charAt(i);
+                char next = i + 1 < limit ? pattern.charAt(i + 1) : 0;
+                if (c == '\\' && i + 1 < limit) {
+                    if (Character.isLetterOrDigit(next)) {
+                        // \w, \d, \b etc.
+                        addLiteral(list, sb);
+                        ++i;
+                        continue;
+                    }
+                    c = next;
+                    ++i;
+                    next = i + 1 < limit ? pattern.charAt(i + 1) : 0;
+                } else if (c == '[') {
+                    addLiteral(list, sb);
+                    // Skip character class.
+                    int j = i + 1;
+                    if (j < limit && pattern.charAt(j) == '^')
+                        ++j;
+                    if (j < limit && pattern.charAt(j) == ']')
+                        ++j;
+                    while (j < limit && pattern.charAt(j) != ']') {
+                        if (pattern.charAt(j) == '\\') {
+                            // Skip the escaped character, which may be ']'.
+                            ++j;
+                        } else if (pattern.startsWith("[:", j)) {
+                            // Named class, e.g. "[:alpha:]".
+                            int end = pattern.indexOf(":]", j + 2);
+                            if (end >= 0)
+                                j = end + 1;
+                        }
+                        ++j;
+                    }
+                    if (j >= limit)
+                        return null; // Unterminated.
+                    i = j;
+                    continue;
+                } else if (".*+?{}^$\n\r".indexOf(c) >= 0) {
+                    addLiteral(list, sb);
+                    if (c == '{') {
+                        while (i < limit && pattern.charAt(i) != '}')
+                            ++i;
+                    }
+                    continue;
+                }
+                if (next == '*' || next == '?' || next == '{') {
+                    // This character is optional.
+                    addLiteral(list, sb);
+                    continue;
+                }
+                sb.append(c);
+                if (next == '+')
+                    addLiteral(list, sb);
+            }
+            addLiteral(list, sb);
+        }
+        return list.size() > 0 ? list : null;
+    }
+
+    private static void addLiteral(List list, FastStringBuffer sb)
+    {
+        if (sb.length() >= 3)
+            list.add(sb.toString());
+        sb.setLength(0);
+    }
+
+    // Indexing and queries must fold case the same way, one character at a
+    // time. (String.toLowerCase() can change the length of a string.)
+    private static char fold(char c)
+    {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static int trigram(char c1, char c2, char c3)
+    {
+        // Collisions are harmless; they just make the candidate set larger.
+        return ((c1 & 0x3ff) << 20) | ((c2 & 0x3ff) << 10) | (c3 & 0x3ff);
+    }
+
+    // Brings the index up to date with the files under the root directory.
+    // Only files whose modification time or size has changed are read.
+    // Returns the number of files (re)indexed.
+    public int update(RE excludesRE, String encoding)
+    {
+        // Snapshot of the live entries; anything left over at the end has
+        // been deleted.
+        HashMap unseen;
+        synchronized (this) {
+            unseen = new HashMap(paths);
+        }
+        int count = updateDirectory(root, "", excludesRE, encoding, unseen);
+        synchronized (this) {
+            for (Iterator it = unseen.values().iterator(); it.hasNext();)
+                remove((Entry) it.next());
+            if (deadCount > entries.size() / 2)
+                compact();
+            ready = true;
+        }
+        return count + unseen.size();
+    }
+
+    private int updateDirectory(File dir, String prefix, RE excludesRE,
+        String encoding, HashMap unseen)
+    {
+        String[] names = dir.list();
+        if (names == null)
+            return 0;
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (excludesRE != null && excludesRE.isMatch(names[i]))
+                continue;
+            File file = File.getInstance(dir, names[i]);
+            if (file == null)
+                continue;
+            String relativePath = prefix.concat(names[i]);
+            if (file.isDirectory()) {
+                count += updateDirectory(file,
+                    relativePath.concat(LocalFile.getSeparator()),
+                    excludesRE, encoding, unseen);
+                continue;
+            }
+            Entry old = (Entry) unseen.remove(relativePath);
+            final long lastModified = file.lastModified();
+            final long length = file.length();
+            if (old != null && old.lastModified == lastModified &&
+                old.length == length)
+                continue;
+            int[] trigrams = null;
+            if (length <= MAX_FILE_SIZE)
+                trigrams = getTrigrams(file, encoding);
+            if (old == null && trigrams == null)
+                continue;
+            synchronized (this) {
+                if (old != null)
+                    remove(old);
+                if (trigrams != null)
+                    add(new Entry(relativePath, lastModified, length),
+                        trigrams);
+            }
+            ++count;
+        }
+        return count;
+    }
+
+    private void add(Entry entry, int[] trigrams)
+    {
+        final int id = entries.size();
+        entry.id = id;
+        entries.add(entry);
+        paths.put(entry.path, entry);
+        for (int i = 0; i < trigrams.length; i++) {
+            Integer key = Integer.valueOf(trigrams[i]);
+            IntList list = (IntList) postings.get(key);
+            if (list == null) {
+                list = new IntList(4);
+                postings.put(key, list);
+            }
+            list.add(id);
+        }
+    }
+
+    private void remove(Entry entry)
+    {
+        if (paths.get(entry.path) == entry)
+            paths.remove(entry.path);
+        if (entries.get(entry.id) == entry) {
+            entries.set(entry.id, null);
+            ++deadCount;
+        }
+    }
+
+    // Renumbers the live entries and drops postings for dead ones.
+    private void compact()
+    {
+        int[] newIds = new int[entries.size()];
+        ArrayList newEntries = new ArrayList(entries.size() - deadCount);
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = (Entry) entries.get(i);
+            if (entry != null) {
+                newIds[i] = newEntries.size();
+                entry.id = newEntries.size();
+                newEntries.add(entry);
+            } else
+                newIds[i] = -1;
+        }
+        for (Iterator it = postings.entrySet().iterator(); it.hasNext();) {
+            Map.Entry mapEntry = (Map.Entry) it.next();
+            IntList list = (IntList) mapEntry.getValue();
+            IntList newList = new IntList(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                int id = newIds[list.get(i)];
+                if (id >= 0)
+                    newList.add(id);
+            }
+            if (newList.size() > 0)
+                mapEntry.setValue(newList);
+            else
+                it.remove();
+        }
+        entries = newEntries;
+        deadCount = 0;
+    }
+
+    // Returns the distinct trigrams in the file, in ascending order, or null
+    // if the file can't be read. Binary files have no trigrams, since
+    // FindInFiles doesn't search them.
+    private static int[] getTrigrams(File file, String encoding)
+    {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(file.getInputStream());
+            in.mark(4096);
+            byte[] bytes = new byte[4096];
+            int bytesRead = in.read(bytes);
+            for (int i = 0; i < bytesRead; i++) {
+                if (bytes[i] == 0)
+                    return new int[0]; // Binary file.
+            }
+            in.reset();
+            Reader reader = new InputStreamReader(in, encoding);
+            IntList list = new IntList(1024);
+            char[] buf = new char[8192];
+            char c1 = 0, c2 = 0;
+            int n = 0;
+            int count;
+            while ((count = reader.read(buf)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    char c3 = fold(buf[i]);
+                    if (c3 == '\n' || c3 == '\r') {
+                        // Matches don't span lines.
+                        n = 0;
+                        continue;
+                    }
+                    if (++n >= 3)
+                        list.add(trigram(c1, c2, c3));
+                    c1 = c2;
+                    c2 = c3;
+                }
+            }
+            return list.toSortedUniqueArray();
+        }
+        catch (IOException e) {
+            Log.error(e);
+            return null;
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    Log.error(e);
+                }
+            }
+        }
+    }
+
+    private String getRelativePath(File file)
+    {
+        String rootPath = root.canonicalPath();
+        String path = file.canonicalPath();
+        if (!rootPath.endsWith(LocalFile.getSeparator()))
+            rootPath = rootPath.concat(LocalFile.getSeparator());
+        if (!path.startsWith(rootPath))
+            return null;
+        return path.substring(rootPath.length());
+    }
+
+    public synchronized void load()
+    {
+        if (!indexFile.isFile())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(
+                new BufferedInputStream(indexFile.getInputStream()));
+            if (in.readInt() != VERSION)
+                return; // Old format. The index will be rebuilt.
+            if (!in.readUTF().equals(root.canonicalPath()))
+                return;
+            final int entryCount = in.readInt();
+            ArrayList newEntries = new ArrayList(entryCount);
+            HashMap newPaths = new HashMap();
+            for (int i = 0; i < entryCount; i++) {
+                Entry entry =
+                    new Entry(in.readUTF(), in.readLong(), in.readLong());
+                entry.id = i;
+                newEntries.add(entry);
+                newPaths.put(entry.path, entry);
+            }
+            final int trigramCount = in.readInt();
+            HashMap newPostings = new HashMap(trigramCount * 2);
+            for (int i = 0; i < trigramCount; i++) {
+                int trigram = in.readInt();
+                int size = in.readInt();
+                IntList list = new IntList(size);
+                int id = 0;
+                for (int j = 0; j < size; j++) {
+                    id += readVarInt(in);
+                    list.add(id);
+                }
+                newPostings.put(Integer.valueOf(trigram), list);
+            }
+            entries = newEntries;
+            paths = newPaths;
+            postings = newPostings;
+            deadCount = 0;
+            ready = true;
+        }
+        catch (IOException e) {
+            Log.error(e);
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    Log.error(e);
+                }
+            }
+        }
+    }
+
+    public synchronized void save()
+    {
+        if (deadCount > 0)
+            compact();
+        File tempFile = Utilities.getTempFile(indexFile.getParentFile());
+        if (tempFile == null)
+            return;
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(
+                new BufferedOutputStream(tempFile.getOutputStream()));
+            out.writeInt(VERSION);
+            out.writeUTF(root.canonicalPath());
+            out.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = (Entry) entries.get(i);
+                out.writeUTF(entry.path);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+            }
+            out.writeInt(postings.size());
+            for (Iterator it = postings.entrySet().iterator(); it.hasNext();) {
+                Map.Entry mapEntry = (Map.Entry) it.next();
+                IntList list = (IntList) mapEntry.getValue();
+                out.writeInt(((Integer)mapEntry.getKey()).intValue());
+                out.writeInt(list.size());
+                // Ids are ascending, so store the deltas.
+                int last = 0;
+                for (int i = 0; i < list.size(); i++) {
+                    writeVarInt(out, list.get(i) - last);
+                    last = list.get(i);
+                }
+            }
+            out.flush();
+            out.close();
+            out = null;
+            Utilities.deleteRename(tempFile, indexFile);
+        }
+        catch (IOException e) {
+            Log.error(e);
+            tempFile.delete();
+        }
+        finally {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    Log.error(e);
+                }
+            }
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int n)
+        throws IOException
+    {
+        while ((n & ~0x7f) != 0) {
+            out.write((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.write(n);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException
+    {
+        int n = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            n |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return n;
+            shift += 7;
+        }
+    }
+
+    private static final class Entry
+    {
+        final String path; // Relative to root.
+        final long lastModified;
+        final long length;
+        int id;
+
+        Entry(String path, long lastModified, long length)
+        {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private static final class IntList
+    {
+        private int[] array;
+        private int size;
+
+        IntList(int capacity)
+        {
+            array = new int[Math.max(capacity, 1)];
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        int get(int i)
+        {
+            return array[i];
+        }
+
+        void add(int n)
+        {
+            if (size == array.length) {
+                int[] newArray = new int[size * 2];
+                System.arraycopy(array, 0, newArray, 0, size);
+                array = newArray;
+            }
+            array[size++] = n;
+        }
+
+        // Both lists must be in ascending order.
+        IntList intersect(IntList other)
+        {
+            IntList result = new IntList(Math.min(size, other.size));
+            int i = 0, j = 0;
+            while (i < size && j < other.size) {
+                if (array[i] < other.array[j])
+                    ++i;
+                else if (array[i] > other.array[j])
+                    ++j;
+                else {
+                    result.add(array[i]);
+                    ++i;
+                    ++j;
+                }
+            }
+            return result;
+        }
+
+        int[] toSortedUniqueArray()
+        {
+            int[] sorted = new int[size];
+            System.arraycopy(array, 0, sorted, 0, size);
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (n == 0 || sorted[i] != sorted[n-1])
+                    sorted[n++] = sorted[i];
+            }
+            int[] result = new int[n];
+            System.arraycopy(sorted, 0, result, 0, n);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * TrigramIndexManager.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import gnu.regexp.RE;
+import gnu.regexp.REException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Vector;
+
+// Keeps the trigram indexes used by FindInFiles up to date. Indexes are
+// created for the directories that are searched recursively, and are
+// loaded and updated on a low priority background thread.
+public final class TrigramIndexManager extends Thread
+{
+    private static TrigramIndexManager instance;
+
+    private final File indexDir;
+    private final File catalogFile;
+
+    private final ArrayList indexes = new ArrayList();
+
+    private Vector queue = new Vector();
+
+    private TrigramIndexManager()
+    {
+        super("trigram index manager");
+        setPriority(Thread.MIN_PRIORITY);
+        setDaemon(true);
+        indexDir =
+            File.getInstance(Directories.getEditorDirectory(), "trigrams");
+        catalogFile = File.getInstance(indexDir, "catalog");
+        if (initialize())
+            start();
+    }
+
+    public static synchronized TrigramIndexManager getInstance()
+    {
+        if (instance == null)
+            instance = new TrigramIndexManager();
+        return instance;
+    }
+
+    public static boolean isEnabled()
+    {
+        return Editor.preferences().getBooleanProperty(
+            Property.USE_TRIGRAM_INDEX);
+    }
+
+    private synchronized boolean initialize()
+    {
+        if (!indexDir.isDirectory()) {
+            indexDir.mkdirs();
+            if (!indexDir.isDirectory()) {
+                Log.error("TrigramIndexManager.initialize can't make directory ".concat(indexDir.canonicalPath()));
+                queue = null;
+                return false;
+            }
+        }
+        loadCatalog();
+        return true;
+    }
+
+    public void run()
+    {
+        while (true) {
+            TrigramIndex index = getIndexFromQueue();
+            if (!index.isReady())
+                index.load();
+            long start = System.currentTimeMillis();
+            int count = index.update(getExcludesRE(), getEncoding());
+            if (count > 0) {
+                index.save();
+                Log.debug("TrigramIndexManager " + count + " files " +
+                          (System.currentTimeMillis() - start) + " ms " +
+                          index.getRoot().canonicalPath());
+            }
+        }
+    }
+
+    private synchronized TrigramIndex getIndexFromQueue()
+    {
+        while (queue.size() == 0) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Log.error(e);
+            }
+        }
+        return (TrigramIndex) queue.remove(0);
+    }
+
+    private synchronized void addToQueue(TrigramIndex index)
+    {
+        if (queue == null)
+            return;
+        if (queue.contains(index))
+            return;
+        queue.add(index);
+        notify();
+    }
+
+    // Returns a ready index that covers dir, or null.
+    public synchronized TrigramIndex findIndex(File dir)
+    {
+        for (int i = indexes.size(); i-- > 0;) {
+            TrigramIndex index = (TrigramIndex) indexes.get(i);
+            if (index.isReady() && index.covers(dir))
+                return index;
+        }
+        return null;
+    }
+
+    // Makes sure there is an index that covers dir and queues it to be
+    // brought up to date.
+    public synchronized void addRoot(File dir)
+    {
+        if (queue == null || dir.isRemote())
+            return;
+        for (int i = indexes.size(); i-- > 0;) {
+            TrigramIndex index = (TrigramIndex) indexes.get(i);
+            if (index.covers(dir)) {
+                addToQueue(index);
+                return;
+            }
+        }
+        File indexFile = Utilities.getTempFile(indexDir);
+        if (indexFile == null)
+            return;
+        TrigramIndex index = new TrigramIndex(dir, indexFile);
+        // Indexes for subdirectories of the new root are no longer needed.
+        for (int i = indexes.size(); i-- > 0;) {
+            TrigramIndex old = (TrigramIndex) indexes.get(i);
+            if (index.covers(old.getRoot())) {
+                indexes.remove(i);
+                queue.remove(old);
+                old.getIndexFile().delete();
+            }
+        }
+        indexes.add(index);
+        saveCatalog();
+        addToQueue(index);
+    }
+
+    // Called periodically by TrigramIndexTask.
+    public synchronized void updateAll()
+    {
+        for (int i = 0; i < indexes.size(); i++)
+            addToQueue((TrigramIndex) indexes.get(i));
+    }
+
+    private static RE getExcludesRE()
+    {
+        String excludesPattern = Editor.preferences().getStringProperty(
+            Property.FILENAME_COMPLETIONS_EXCLUDE_PATTERN);
+        if (excludesPattern == null)
+            return null;
+        try {
+            return RECache.getRE(excludesPattern);
+        }
+        catch (REException e) {
+            Log.error(e);
+            return null;
+        }
+    }
+
+    private static String getEncoding()
+    {
+        return Editor.preferences().getStringProperty(
+            Property.DEFAULT_ENCODING);
+    }
+
+    private void loadCatalog()
+    {
+        if (!catalogFile.isFile())
+            return;
+        try {
+            BufferedReader reader =
+                new BufferedReader(new InputStreamReader(catalogFile.getInputStream()));
+            String s;
+            while ((s = reader.readLine()) != null) {
+                if (s.trim().startsWith("#"))
+                    continue;
+                int i = s.indexOf('\t');
+                if (i < 0) {
+                    Log.error("TrigramIndexManager.loadCatalog invalid format");
+                    indexes.clear();
+                    break;
+                }
+                File indexFile = File.getInstance(indexDir, s.substring(0, i));
+                File root = File.getInstance(s.substring(i+1).trim());
+                if (indexFile != null && root != null && root.isDirectory())
+                    indexes.add(new TrigramIndex(root, indexFile));
+            }
+            reader.close();
+        }
+        catch (IOException e) {
+            Log.error(e);
+        }
+    }
+
+    private void saveCatalog()
+    {
+        try {
+            BufferedWriter writer =
+                new BufferedWriter(new OutputStreamWriter(catalogFile.getOutputStream()));
+            writer.write("# " + new Date().toString() + '\n');
+            for (int i = 0; i < indexes.size(); i++) {
+                TrigramIndex index = (TrigramIndex) indexes.get(i);
+                writer.write(index.getIndexFile().getName());
+                writer.write('\t');
+                writer.write(index.getRoot().canonicalPath());
+                writer.write('\n');
+            }
+            writer.flush();
+            writer.close();
+        }
+        catch (IOException e) {
+            Log.error(e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * UndoLineEdits.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.UndoableEdit;
+
+// One undo record for changes to the text of any number of lines. Each change
+// replaces a run of consecutive lines with text that may have more or fewer
+// lines. Only the old and new text of each change is kept (with the lines
+// separated by '\n'), not a copy of the lines, and the lines that aren't
+// added or removed keep their identity.
+public class UndoLineEdits extends AbstractUndoableEdit implements Constants,
+    UndoableEdit
+{
+    private final Buffer buffer;
+    private final int preModCount;
+    private int postModCount;
+
+    private int[] lineNumbers = new int[16];
+    private String[] oldTexts = new String[16];
+    private String[] newTexts = new String[16];
+    private int size;
+
+    public UndoLineEdits(Buffer buffer)
+    {
+        this.buffer = buffer;
+        preModCount = buffer.getModCount();
+    }
+
+    // Records a change that has not been made yet.
+    public void add(Line line, String newText)
+    {
+        add(line, 1, newText);
+    }
+
+    // Records a change that has not been made yet to count lines, starting
+    // with line. Changes must be recorded (and made) in the order they are
+    // made, with the line numbers as they are when each change is made.
+    public void add(Line line, int count, String newText)
+    {
+        if (size == lineNumbers.length) {
+            int[] newLineNumbers = new int[size * 2];
+            System.arraycopy(lineNumbers, 0, newLineNumbers, 0, size);
+            lineNumbers = newLineNumbers;
+            String[] array = new String[size * 2];
+            System.arraycopy(oldTexts, 0, array, 0, size);
+            oldTexts = array;
+            array = new String[size * 2];
+            System.arraycopy(newTexts, 0, array, 0, size);
+            newTexts = array;
+        }
+        lineNumbers[size] = line.lineNumber();
+        if (count == 1) {
+            oldTexts[size] = line.getText();
+        } else {
+            FastStringBuffer sb = new FastStringBuffer(line.getText());
+            for (int i = 1; i < count; i++) {
+                line = line.next();
+                sb.append('\n');
+                sb.append(line.getText());
+            }
+            oldTexts[size] = sb.toString();
+        }
+        newTexts[size] = newText;
+        ++size;
+    }
+
+    public final int size()
+    {
+        return size;
+    }
+
+    public void undo()
+    {
+        super.undo();
+        postModCount = buffer.getModCount();
+        restore(newTexts, oldTexts, preModCount);
+    }
+
+    public void redo()
+    {
+        super.redo();
+        restore(oldTexts, newTexts, postModCount);
+    }
+
+    // Undoing reverts the changes in the reverse order.
+    private void restore(String[] from, String[] to, int modCount)
+    {
+        if (!buffer.isWriteLocked())
+            Debug.bug();
+        final boolean undo = to == oldTexts;
+        // The lines are found by walking from the last one changed, since
+        // the line numbers of the buffer are out of date once a change adds
+        // or removes lines.
+        Line line = buffer.getFirstLine();
+        int lineNumber = 0;
+        boolean renumber = false;
+        for (int k = 0; k < size; k++) {
+            final int i = undo ? size - 1 - k : k;
+            while (lineNumber < lineNumbers[i]) {
+                line = line.next();
+                ++lineNumber;
+            }
+            while (lineNumber > lineNumbers[i]) {
+                line = line.previous();
+                --lineNumber;
+            }
+            final int count = countLines(from[i]);
+            if (count != 1 || to[i].indexOf('\n') >= 0) {
+                replaceLines(line, count, to[i]);
+                renumber = true;
+            } else
+                line.setText(to[i]);
+        }
+        if (renumber) {
+            buffer.needsRenumbering = true;
+            buffer.renumber();
+        }
+        buffer.setModCount(modCount);
+        final Editor editor = Editor.currentEditor();
+        if (editor != null && editor.getBuffer() == buffer) {
+            // The moves recorded around this edit put dot and mark back
+            // where they belong; until then, keep them inside their lines.
+            clamp(editor.getDot());
+            clamp(editor.getMark());
+            editor.setUpdateFlag(REFRAME);
+        }
+        buffer.repaint();
+        if (postModCount != preModCount) {
+            // Buffer was changed.
+            buffer.invalidate();
+            Sidebar.setUpdateFlagInAllFrames(SIDEBAR_MODIFIED_BUFFER_COUNT |
+                SIDEBAR_REPAINT_BUFFER_LIST);
+            Sidebar.repaintBufferListInAllFrames();
+        }
+    }
+
+    private static int countLines(String text)
+    {
+        int count = 1;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1))
+            ++count;
+        return count;
+    }
+
+    // Replaces the count lines starting with line with the lines of text.
+    // The existing lines are reused as far as possible, so only the lines
+    // that are really added or removed change. The caller renumbers the
+    // buffer.
+    /*package*/ static void replaceLines(Line line, int count, String text)
+    {
+        int begin = 0;
+        Line prev = null;
+        while (true) {
+            final int end = text.indexOf('\n', begin);
+            final String s = end >= 0 ? text.substring(begin, end) :
+                text.substring(begin);
+            if (count > 0) {
+                line.setText(s);
+                prev = line;
+                line = line.next();
+                --count;
+            } else {
+                Line newLine = new TextLine(s);
+                newLine.setNew(true);
+                // Assume that the line flags should carry over to the new
+                // line.
+                newLine.setFlags(prev.flags());
+                newLine.insertAfter(prev);
+                prev = newLine;
+            }
+            if (end < 0)
+                break;
+            begin = end + 1;
+        }
+        if (count > 0) {
+            // Remove the lines that are left over.
+            Line next = line;
+            while (count-- > 0)
+                next = next.next();
+            prev.setNext(next);
+            if (next != null)
+                next.setPrevious(prev);
+        }
+    }
+
+    private static void clamp(Position pos)
+    {
+        if (pos != null && pos.getOffset() > pos.getLineLength())
+            pos.setOffset(pos.getLineLength());
+    }
+}
@@ -156,7 +156,7 @@ public final class Utilities implements Constants
         return true;
     }
 
-    public static boolean isDelimited(Mode mode, String s,
+    public static boolean isDelimited(Mode mode, CharSequence s,
                                       int startIndex, int endIndex)
     {
         if (mode == null)
@@ -932,7 +932,8 @@ public final class Utilities implements Constants
         return true; // Success!
     }
 
-    private static boolean overwriteFile(File source, File destination)
+    // Package-private for SystemBuffer.writeMappedBuffer().
+    static boolean overwriteFile(File source, File destination)
     {
         if (!source.isFile())
             return false;
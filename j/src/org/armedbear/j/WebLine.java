@@ -92,6 +92,7 @@ public class WebLine extends AbstractLine implements Line
     public final void setText(String s)
     {
         text = s;
+        changed(this);
     }
 
     public final char charAt(int i)
@@ -39,6 +39,12 @@ public final class AndTerm extends MailboxFilter
         filters.add(filter);
     }
 
+    public void setMailbox(Mailbox mb)
+    {
+        for (int i = 0; i < filters.size(); i++)
+            ((MailboxFilter) filters.get(i)).setMailbox(mb);
+    }
+
     public final boolean accept(MailboxEntry entry)
     {
         for (int i = 0; i < filters.size(); i++) {
@@ -86,6 +86,9 @@ public final class CheckMailTask extends IdleThreadTask
         // Avoid locking unnecessarily.
         if (!mb.getBooleanProperty(Property.CHECK_ENABLED))
             return;
+        // The server tells us about new mail.
+        if (mb instanceof ImapMailbox && ((ImapMailbox)mb).isIdling())
+            return;
         int interval = mb.getIntegerProperty(Property.CHECK_INTERVAL);
         if (interval <= 0)
             return;
@@ -0,0 +1,119 @@
+/*
+ * ImapIdleThread.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import org.armedbear.j.Log;
+
+// Keeps a second connection to the server in IDLE state on a folder, so the
+// server can tell us about new mail as soon as it arrives (RFC 2177).
+//
+// The session used for IDLE is never used for anything else, so the
+// mailbox's own session doesn't have to interrupt IDLE every time it sends a
+// command. The folder is opened with EXAMINE, which doesn't clear the
+// \Recent flags the mailbox's session relies on.
+//
+// The listener is called on this thread whenever the folder changes; it
+// should hand the real work to another thread.
+public final class ImapIdleThread extends Thread
+{
+    private static final long MIN_RETRY_DELAY = 30 * 1000;
+    private static final long MAX_RETRY_DELAY = 10 * 60 * 1000;
+
+    private final ImapSession session;
+    private final String folderName;
+    private final Runnable listener;
+    private final long timeout;
+
+    private volatile boolean stopped;
+    private volatile boolean idling;
+
+    public ImapIdleThread(ImapSession session, String folderName,
+        Runnable listener)
+    {
+        this(session, folderName, listener, ImapSession.IDLE_TIMEOUT);
+    }
+
+    // For testing.
+    /*package*/ ImapIdleThread(ImapSession session, String folderName,
+        Runnable listener, long timeout)
+    {
+        super("IMAP idle " + folderName);
+        this.session = session;
+        this.folderName = folderName;
+        this.listener = listener;
+        this.timeout = timeout;
+        setPriority(Thread.MIN_PRIORITY);
+        setDaemon(true);
+    }
+
+    // True while the server is pushing changes to us. When this is false
+    // (not connected yet, reconnecting, or the server doesn't support IDLE)
+    // the mailbox has to be checked the old-fashioned way.
+    public final boolean isIdling()
+    {
+        return idling;
+    }
+
+    public void stopIdling()
+    {
+        stopped = true;
+        idling = false;
+        interrupt();
+        session.disconnect();
+    }
+
+    public void run()
+    {
+        long delay = MIN_RETRY_DELAY;
+        boolean reconnected = false;
+        while (!stopped) {
+            if (session.verifyConnected() && session.examine(folderName)) {
+                if (!session.hasCapability("IDLE")) {
+                    Log.debug("server does not support IDLE");
+                    break;
+                }
+                // Anything may have happened while we weren't listening.
+                if (reconnected)
+                    listener.run();
+                delay = MIN_RETRY_DELAY;
+                idling = !stopped;
+                while (!stopped && session.idle(timeout, listener))
+                    ;
+                idling = false;
+            }
+            if (stopped)
+                break;
+            Log.debug("ImapIdleThread " + folderName + " reconnecting in " +
+                delay / 1000 + " seconds");
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+            reconnected = true;
+        }
+        idling = false;
+        session.logout();
+    }
+}
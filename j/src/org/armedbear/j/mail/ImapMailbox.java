@@ -24,6 +24,7 @@ package org.armedbear.j.mail;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -60,10 +61,12 @@ public final class ImapMailbox extends Mailbox
 
     private int messageCount = -1;
     private int uidValidity;
+    private long highestModSeq;
     private int uidLast;
     private ImapMailboxCache mailboxCache;
     private boolean cancelled;
     private Thread backgroundThread;
+    private ImapIdleThread idleThread;
 
     public ImapMailbox(ImapURL url, ImapSession session)
     {
@@ -127,6 +130,11 @@ public final class ImapMailbox extends Mailbox
         return uidValidity;
     }
 
+    public final long getHighestModSeq()
+    {
+        return highestModSeq;
+    }
+
     public final int getMessageCount()
     {
         return messageCount;
@@ -248,6 +256,7 @@ public final class ImapMailbox extends Mailbox
                 setBackgroundProcess(this);
                 if (getAllMessageHeaders()) {
                     refreshBuffer();
+                    startIdle();
                     completionRunnable = new Runnable() {
                         public void run()
                         {
@@ -381,7 +390,8 @@ public final class ImapMailbox extends Mailbox
                 if (cancelled) {
                     Log.debug("cancelled, disconnecting...");
                     session.disconnect();
-                }
+                } else
+                    startIdle();
             }
             finally {
                 setBackgroundProcess(null);
@@ -410,6 +420,54 @@ public final class ImapMailbox extends Mailbox
         }
     }
 
+    // If the server supports IDLE, a second connection waits for it to
+    // tell us about new mail, and CheckMailTask leaves this mailbox alone.
+    private synchronized void startIdle()
+    {
+        if (idleThread != null)
+            return;
+        if (!getBooleanProperty(Property.IMAP_IDLE))
+            return;
+        if (!session.hasCapability("IDLE"))
+            return;
+        idleThread = new ImapIdleThread(session.copy(), folderName,
+            idleListener);
+        idleThread.start();
+    }
+
+    public final boolean isIdling()
+    {
+        ImapIdleThread t = idleThread;
+        return t != null && t.isIdling();
+    }
+
+    // Called on the idle thread when the server reports a change.
+    private final Runnable idleListener = new Runnable() {
+        public void run()
+        {
+            Log.debug("ImapMailbox idle " + folderName + " changed");
+            // The mailbox may be busy with something else for a moment.
+            for (int i = 0; i < 50; i++) {
+                if (!Editor.getBufferList().contains(ImapMailbox.this))
+                    return;
+                if (lock()) {
+                    setBusy(true);
+                    setWaitCursor();
+                    // Starts a new thread, unlocks mailbox when done.
+                    getNewMessages(false);
+                    return;
+                }
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+            Log.debug("ImapMailbox idle " + folderName + " mailbox is locked");
+        }
+    };
+
     public void createFolder()
     {
         final Editor editor = Editor.currentEditor();
@@ -537,14 +595,8 @@ public final class ImapMailbox extends Mailbox
                             succeeded = saveLocal(toBeCopied, destination, false);
                         } else {
                             session.setEcho(true);
-                            final String messageSet = getMessageSet(toBeCopied);
-                            FastStringBuffer sbuf = new FastStringBuffer("uid copy ");
-                            sbuf.append(messageSet);
-                            sbuf.append(' ');
-                            sbuf.append(destination);
-                            if (session.writeTagged(sbuf.toString()))
-                                if (session.getResponse() == ImapSession.OK)
-                                    succeeded = true;
+                            succeeded = session.uidCopy(getUids(toBeCopied),
+                                destination);
                             session.setEcho(false);
                         }
                     }
@@ -668,19 +720,9 @@ public final class ImapMailbox extends Mailbox
             } else {
                 // Destination is an IMAP folder.
                 session.setEcho(true);
-                final String messageSet = getMessageSet(toBeMoved);
-                FastStringBuffer sb = new FastStringBuffer("uid copy ");
-                sb.append(messageSet);
-                sb.append(' ');
-                sb.append(destination);
-                session.writeTagged(sb.toString());
-                if (session.getResponse() == ImapSession.OK) {
-                    sb.setLength(0);
-                    sb.append("uid store ");
-                    sb.append(messageSet);
-                    sb.append(" +flags.silent (\\deleted)");
-                    session.writeTagged(sb.toString());
-                    if (session.getResponse() == ImapSession.OK) {
+                final int[] uids = getUids(toBeMoved);
+                if (session.uidCopy(uids, destination)) {
+                    if (session.uidStore(uids, "+flags.silent (\\deleted)")) {
                         succeeded = true;
                         for (int i = 0; i < toBeMoved.size(); i++) {
                             ImapMailboxEntry entry = (ImapMailboxEntry) toBeMoved.get(i);
@@ -814,8 +856,7 @@ public final class ImapMailbox extends Mailbox
                     throw new MailException("Mailbox " + folderName + " is read-only");
             }
             session.setEcho(true);
-            session.uidStore(getMessageSet(toBeDeleted), "+flags.silent (\\deleted)");
-            if (session.getResponse() == ImapSession.OK) {
+            if (session.uidStore(getUids(toBeDeleted), "+flags.silent (\\deleted)")) {
                 succeeded = true;
                 for (int i = 0; i < toBeDeleted.size(); i++) {
                     ImapMailboxEntry entry = (ImapMailboxEntry) toBeDeleted.get(i);
@@ -879,22 +920,23 @@ public final class ImapMailbox extends Mailbox
                             }
                         }
                         session.setEcho(true);
-                        final String messageSet = getMessageSet(entriesToBeProcessed);
+                        final int[] uids = getUids(entriesToBeProcessed);
+                        boolean succeeded = false;
                         switch (action) {
                             case ACTION_UNDELETE:
-                                session.uidStore(messageSet, "-flags.silent (\\deleted)");
+                                succeeded = session.uidStore(uids, "-flags.silent (\\deleted)");
                                 break;
                             case ACTION_MARK_READ:
-                                session.uidStore(messageSet, "+flags.silent (\\seen)");
+                                succeeded = session.uidStore(uids, "+flags.silent (\\seen)");
                                 break;
                             case ACTION_MARK_UNREAD:
-                                session.uidStore(messageSet, "-flags.silent (\\seen)");
+                                succeeded = session.uidStore(uids, "-flags.silent (\\seen)");
                                 break;
                             default:
                                 Debug.assertTrue(false);
                                 break;
                         }
-                        if (session.getResponse() == ImapSession.OK) {
+                        if (succeeded) {
                             for (int i = 0; i < entriesToBeProcessed.size(); i++) {
                                 ImapMailboxEntry entry = (ImapMailboxEntry) entriesToBeProcessed.get(i);
                                 switch (action) {
@@ -974,8 +1016,7 @@ public final class ImapMailbox extends Mailbox
                         boolean error = false;
                         session.setEcho(true);
                         if (entriesToBeSet.size() > 0) {
-                            session.uidStore(getMessageSet(entriesToBeSet), "+flags.silent (\\flagged)");
-                            if (session.getResponse() == ImapSession.OK) {
+                            if (session.uidStore(getUids(entriesToBeSet), "+flags.silent (\\flagged)")) {
                                 for (int i = 0; i < entriesToBeSet.size(); i++) {
                                     MailboxEntry entry = (MailboxEntry) entriesToBeSet.get(i);
                                     entry.flag();
@@ -985,8 +1026,7 @@ public final class ImapMailbox extends Mailbox
                                 error = true;
                         }
                         if (!error && entriesToBeCleared.size() > 0) {
-                            session.uidStore(getMessageSet(entriesToBeCleared), "-flags.silent (\\flagged)");
-                            if (session.getResponse() == ImapSession.OK) {
+                            if (session.uidStore(getUids(entriesToBeCleared), "-flags.silent (\\flagged)")) {
                                 for (int i = 0; i < entriesToBeCleared.size(); i++) {
                                     MailboxEntry entry = (MailboxEntry) entriesToBeCleared.get(i);
                                     entry.unflag();
@@ -1212,11 +1252,20 @@ public final class ImapMailbox extends Mailbox
         }
         entries = null;
         uidLast = 0;
+        // Changes after this point will be picked up next time.
+        final long modSeq = session.getHighestModSeq();
+        boolean checkVanished = false;
+        int cachedUidLast = 0;
         if (mailboxCache != null && mailboxCache.isValid()) {
             Log.debug("mailboxCache is valid");
             List cachedEntries = mailboxCache.getEntries();
             Log.debug("cachedEntries.size() = " + cachedEntries.size());
-            updateCachedEntries(cachedEntries);
+            final long cachedModSeq = mailboxCache.getHighestModSeq();
+            if (cachedModSeq > 0 && cachedModSeq <= modSeq) {
+                updateChangedEntries(cachedEntries, cachedModSeq);
+                checkVanished = !session.isQresyncEnabled();
+            } else
+                updateCachedEntries(cachedEntries);
             int size = cachedEntries.size();
             entries = new ArrayList(size);
             // Add entries from cache, skipping any that have been nulled out.
@@ -1229,6 +1278,7 @@ public final class ImapMailbox extends Mailbox
             // We don't need the cache any more.
             mailboxCache = null;
             updateLastUid();
+            cachedUidLast = uidLast;
         }
         if (cancelled) {
             session.disconnect();
@@ -1246,7 +1296,10 @@ public final class ImapMailbox extends Mailbox
             else
                 entries = new ArrayList(newEntries);
         }
+        if (checkVanished && entries != null)
+            removeVanishedEntries(cachedUidLast);
         uidValidity = session.getUidValidity();
+        highestModSeq = modSeq;
         if (entries == null)
             entries = new ArrayList();
         else if (entries instanceof ArrayList)
@@ -1405,7 +1458,7 @@ public final class ImapMailbox extends Mailbox
         Iterator iter = cachedEntries.iterator();
         while (iter.hasNext()) {
             ImapMailboxEntry entry = (ImapMailboxEntry) iter.next();
-            map.put(new Integer(entry.getUid()), entry);
+            map.put(Integer.valueOf(entry.getUid()), entry);
         }
         Log.debug("built map " + (System.currentTimeMillis() - start) + " ms");
         iter = null;
@@ -1425,7 +1478,7 @@ public final class ImapMailbox extends Mailbox
                 continue;
             }
             ImapMailboxEntry entry =
-                (ImapMailboxEntry) map.get(new Integer(uid));
+                (ImapMailboxEntry) map.get(Integer.valueOf(uid));
             if (entry != null) {
                 Debug.assertTrue(entry.getMailbox() == null);
                 entry.setMailbox(this);
@@ -1445,6 +1498,136 @@ public final class ImapMailbox extends Mailbox
             (float)elapsed/cachedEntries.size() + " ms per entry");
     }
 
+    // Like updateCachedEntries(), but only the messages whose flags have
+    // changed since the cache was written cross the wire (RFC 7162). If
+    // QRESYNC is enabled, so do the UIDs of the messages that have been
+    // expunged; otherwise the caller has to find those with
+    // removeVanishedEntries().
+    private void updateChangedEntries(List cachedEntries, long modSeq)
+    {
+        final int size = cachedEntries.size();
+        long start = System.currentTimeMillis();
+        HashMap map = new HashMap(size);
+        for (int i = 0; i < size; i++) {
+            ImapMailboxEntry entry = (ImapMailboxEntry) cachedEntries.get(i);
+            Debug.assertTrue(entry.getMailbox() == null);
+            entry.setMailbox(this);
+            map.put(Integer.valueOf(entry.getUid()), entry);
+        }
+        if (modSeq == session.getHighestModSeq()) {
+            // No flags have changed. (With QRESYNC, neither has anything
+            // been expunged.)
+            Log.debug("updateChangedEntries no changes");
+            return;
+        }
+        FastStringBuffer sb =
+            new FastStringBuffer("uid fetch 1:* (flags) (changedsince ");
+        sb.append(String.valueOf(modSeq));
+        if (session.isQresyncEnabled())
+            sb.append(" vanished");
+        sb.append(')');
+        session.writeTagged(sb.toString());
+        final String endPrefix = session.lastTag() + " ";
+        int changed = 0;
+        int vanished = 0;
+        while (true) {
+            final String s = session.readLine();
+            if (s == null) {
+                Log.debug("updateChangedEntries s is null");
+                break;
+            }
+            if (s.startsWith(endPrefix))
+                break;
+            if (s.startsWith("* VANISHED (EARLIER) ")) {
+                int[] uids = ImapSession.parseMessageSet(s.substring(21));
+                for (int i = 0; i < uids.length; i++) {
+                    ImapMailboxEntry entry =
+                        (ImapMailboxEntry) map.get(Integer.valueOf(uids[i]));
+                    if (entry != null) {
+                        entry.setMailbox(null);
+                        ++vanished;
+                    }
+                }
+                continue;
+            }
+            int uid = ImapMailboxEntry.parseUid(s);
+            if (uid == 0) {
+                Log.debug("uid = 0 s = |" + s + "|");
+                continue;
+            }
+            ImapMailboxEntry entry =
+                (ImapMailboxEntry) map.get(Integer.valueOf(uid));
+            if (entry != null) {
+                entry.setFlags(ImapMailboxEntry.parseFlags(s));
+                ++changed;
+            }
+        }
+        map.clear();
+        if (vanished > 0) {
+            for (int i = 0; i < size; i++) {
+                ImapMailboxEntry entry = (ImapMailboxEntry) cachedEntries.get(i);
+                if (entry.getMailbox() == null)
+                    cachedEntries.set(i, null);
+            }
+        }
+        Log.debug("updateChangedEntries " + changed + " changed " + vanished +
+            " vanished " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Removes the entries (with UIDs up to uidLast) for messages that are
+    // no longer on the server. If the server's message count agrees with
+    // ours, nothing has been expunged and there's nothing to do; otherwise
+    // we ask the server which of those UIDs still exist.
+    private void removeVanishedEntries(int uidLast)
+    {
+        if (uidLast <= 0 || session.getMessageCount() == entries.size())
+            return;
+        long start = System.currentTimeMillis();
+        session.writeTagged("uid search uid 1:" + uidLast);
+        final String endPrefix = session.lastTag() + " ";
+        ArrayList lines = new ArrayList();
+        while (true) {
+            final String s = session.readLine();
+            if (s == null)
+                return;
+            if (s.startsWith(endPrefix)) {
+                if (!s.substring(endPrefix.length()).toUpperCase().startsWith("OK"))
+                    return;
+                break;
+            }
+            if (s.toUpperCase().startsWith("* SEARCH"))
+                lines.add(s.substring(8).trim());
+        }
+        int count = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String s = (String) lines.get(i);
+            if (s.length() > 0)
+                count += s.split(" +").length;
+        }
+        int[] uids = new int[count];
+        int j = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String s = (String) lines.get(i);
+            if (s.length() > 0) {
+                String[] words = s.split(" +");
+                for (int k = 0; k < words.length; k++)
+                    uids[j++] = Utilities.parseInt(words[k]);
+            }
+        }
+        Arrays.sort(uids);
+        ArrayList list = new ArrayList(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            ImapMailboxEntry entry = (ImapMailboxEntry) entries.get(i);
+            if (entry.getUid() > uidLast ||
+                Arrays.binarySearch(uids, entry.getUid()) >= 0)
+                list.add(entry);
+        }
+        Log.debug("removeVanishedEntries removed " +
+            (entries.size() - list.size()) + " entries " +
+            (System.currentTimeMillis() - start) + " ms");
+        entries = list;
+    }
+
     public void readMessage(Line line)
     {
         readMessage(line, false);
@@ -1527,6 +1710,14 @@ public final class ImapMailbox extends Mailbox
         }
     }
 
+    public void updateEntry(MailboxEntry entry)
+    {
+        super.updateEntry(entry);
+        // The flags may have changed.
+        if (entry instanceof ImapMailboxEntry)
+            ImapMailboxCache.updateFlags(this, (ImapMailboxEntry) entry);
+    }
+
     private void markReadLocal(ImapMailboxEntry entry)
     {
         entry.setFlags(entry.getFlags() | MailboxEntry.SEEN);
@@ -1712,6 +1903,13 @@ public final class ImapMailbox extends Mailbox
     {
         Log.debug("ImapMailbox.dispose " + folderName + " on " +
             session.getHost());
+        synchronized (this) {
+            if (idleThread != null) {
+                idleThread.stopIdling();
+                idleThread = null;
+            }
+        }
+        disposeMailIndex();
         Runnable r = new Runnable() {
             public void run()
             {
@@ -1740,45 +1938,12 @@ public final class ImapMailbox extends Mailbox
         return sb.toString();
     }
 
-    // Package scope for testing.
-    /*package*/ static String getMessageSet(List list)
+    private static int[] getUids(List list)
     {
-        FastStringBuffer sb = new FastStringBuffer();
-        int limit = list.size();
-        int begin = -1;
-        int end = -1;
-        for (int i = 0; i < limit; i++) {
-            ImapMailboxEntry entry = (ImapMailboxEntry) list.get(i);
-            if (begin < 0) {
-                begin = entry.getUid();
-                end = entry.getUid();
-            } else if (entry.getUid() == end + 1) {
-                end = entry.getUid();
-            } else {
-                if (sb.length() > 0)
-                    sb.append(',');
-                if (begin != end) {
-                    Debug.assertTrue(end > begin);
-                    sb.append(begin);
-                    sb.append(':');
-                    sb.append(end);
-                    begin = end = entry.getUid();
-                } else {
-                    sb.append(begin);
-                    begin = end = entry.getUid();
-                }
-            }
-        }
-        if (sb.length() > 0)
-            sb.append(',');
-        if (begin != end) {
-            Debug.assertTrue(end > begin);
-            sb.append(begin);
-            sb.append(':');
-            sb.append(end);
-        } else
-            sb.append(begin);
-        return sb.toString();
+        int[] uids = new int[list.size()];
+        for (int i = 0; i < uids.length; i++)
+            uids[i] = ((ImapMailboxEntry)list.get(i)).getUid();
+        return uids;
     }
 
     public String toString()
@@ -1815,6 +1980,28 @@ public final class ImapMailbox extends Mailbox
         messageCache.store(uid, message, encoding);
     }
 
+    protected File getMailIndexFile()
+    {
+        return ImapMailboxCache.getIndexFile(this);
+    }
+
+    // UIDs are only unique for a given UIDVALIDITY.
+    public Object getIndexKey(MailboxEntry entry)
+    {
+        long uid = ((ImapMailboxEntry)entry).getUid() & 0xffffffffL;
+        return Long.valueOf((long) uidValidity << 32 | uid);
+    }
+
+    // Only messages in the local cache can be indexed.
+    public Message getIndexableMessage(MailboxEntry entry)
+    {
+        if (!getBooleanProperty(Property.IMAP_USE_LOCAL_CACHE))
+            return null;
+        String text =
+            getMessageTextFromCache(((ImapMailboxEntry)entry).getUid());
+        return text != null ? new Message(text) : null;
+    }
+
     private String getMessageTextFromCache(int uid)
     {
         if (messageCache != null) {
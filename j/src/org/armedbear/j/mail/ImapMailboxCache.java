@@ -21,13 +21,9 @@
 
 package org.armedbear.j.mail;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
@@ -38,29 +34,32 @@ import org.armedbear.j.File;
 import org.armedbear.j.Log;
 import org.armedbear.j.Utilities;
 
-public final class ImapMailboxCache implements Serializable
+public final class ImapMailboxCache
 {
     private static Properties catalog;
 
-    private transient ImapMailbox mailbox;
+    private ImapMailbox mailbox;
     private final String mailboxName;
     private final int uidValidity;
+    private final long highestModSeq;
     private final ArrayList entries;
 
-    // Force serialization to be dependent on ImapMailboxEntry.
-    private final ImapMailboxEntry dummy = new ImapMailboxEntry(0);
-
     public ImapMailboxCache(ImapMailbox mailbox)
     {
         this.mailbox = mailbox;
         mailboxName = mailbox.getName();
         uidValidity = mailbox.getUidValidity();
+        highestModSeq = mailbox.getHighestModSeq();
         entries = new ArrayList(mailbox.getEntries());
     }
 
-    private final void setMailbox(ImapMailbox mailbox)
+    private ImapMailboxCache(ImapMailbox mailbox, SummaryStore store)
     {
         this.mailbox = mailbox;
+        mailboxName = store.getProperty("mailboxName");
+        uidValidity = (int) store.getLongProperty("uidValidity");
+        highestModSeq = store.getLongProperty("highestModSeq");
+        entries = store.getEntries();
     }
 
     public final List getEntries()
@@ -68,6 +67,13 @@ public final class ImapMailboxCache implements Serializable
         return entries;
     }
 
+    // The flags of the cached entries are current as of this mod-sequence.
+    // 0 if the server doesn't support CONDSTORE.
+    public final long getHighestModSeq()
+    {
+        return highestModSeq;
+    }
+
     public void writeCache()
     {
         Runnable r = new Runnable() {
@@ -85,13 +91,16 @@ public final class ImapMailboxCache implements Serializable
             Log.debug("ImapMailboxCache.writeCacheInternal " + entries.size() +
                 " entries");
             Debug.assertTrue(uidValidity != 0);
-            File temp = Utilities.getTempFile();
-            ObjectOutputStream objectOut =
-                new ObjectOutputStream(temp.getOutputStream());
-            objectOut.writeObject(this);
-            objectOut.flush();
-            objectOut.close();
-            Utilities.deleteRename(temp, getCacheFile(mailbox));
+            File file = getCacheFile(mailbox);
+            if (file == null)
+                return;
+            Properties properties = new Properties();
+            properties.setProperty("mailboxName", mailboxName);
+            properties.setProperty("uidValidity", String.valueOf(uidValidity));
+            properties.setProperty("highestModSeq", String.valueOf(highestModSeq));
+            synchronized (ImapMailboxCache.class) {
+                new SummaryStore(SummaryStore.IMAP, properties, entries).write(file);
+            }
             Log.debug("ImapMailboxCache.writeCacheInternal completed");
         }
         catch (IOException e) {
@@ -101,30 +110,20 @@ public final class ImapMailboxCache implements Serializable
 
     public static ImapMailboxCache readCache(ImapMailbox mb)
     {
-        File file = ImapMailboxCache.getCacheFile(mb);
-        if (file == null || !file.isFile())
-            return null;
-        ObjectInputStream in = null;
-        try {
-            in = new ObjectInputStream(new BufferedInputStream(
-                file.getInputStream()));
-            ImapMailboxCache cache = (ImapMailboxCache) in.readObject();
-            cache.setMailbox(mb);
-            return cache;
-        }
-        catch (Exception e) {
+        SummaryStore store = SummaryStore.read(getCacheFile(mb));
+        if (store == null || store.getKind() != SummaryStore.IMAP) {
             Log.debug("ImapMailboxCache.readCache returning null");
             return null;
         }
-        finally {
-            if (in != null) {
-                try {
-                    in.close();
-                }
-                catch (IOException e) {
-                    Log.error(e);
-                }
-            }
+        return new ImapMailboxCache(mb, store);
+    }
+
+    // Records a flag change without rewriting the cache.
+    public static void updateFlags(ImapMailbox mb, ImapMailboxEntry entry)
+    {
+        File file = getCacheFile(mb);
+        synchronized (ImapMailboxCache.class) {
+            SummaryStore.appendFlags(file, entry.getUid(), entry.getFlags());
         }
     }
 
@@ -141,6 +140,14 @@ public final class ImapMailboxCache implements Serializable
         return uidValidity == mailbox.getSession().getUidValidity();
     }
 
+    // The mailbox's MailIndex is kept next to its cache.
+    static File getIndexFile(ImapMailbox mb)
+    {
+        File file = getCacheFile(mb);
+        return file != null ?
+            File.getInstance(file.canonicalPath() + ".index") : null;
+    }
+
     private static synchronized File getCacheFile(ImapMailbox mb)
     {
         File directory =
@@ -49,6 +49,13 @@ import org.armedbear.j.StringPair;
     this.uid = uid;
   }
 
+  // Used by SummaryStore, which fills in the rest.
+  /*package*/ ImapMailboxEntry(int uid, RFC822Date arrival)
+  {
+    this.uid = uid;
+    this.arrival = arrival;
+  }
+
   public final ImapMailbox getMailbox()
   {
     return mailbox;
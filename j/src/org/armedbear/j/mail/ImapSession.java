@@ -26,6 +26,12 @@ import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.armedbear.j.Debug;
 import org.armedbear.j.Editor;
 import org.armedbear.j.FastStringBuffer;
@@ -70,8 +76,11 @@ public final class ImapSession
     private int recent;
     private int uidValidity;
     private int uidNext;
+    private long highestModSeq;
+    private boolean qresync;
     private String errorText;
     private long lastErrorMillis;
+    private Set capabilities;
 
     private ImapSession(ImapURL url, String user, String password)
     {
@@ -134,6 +143,21 @@ public final class ImapSession
         return uidValidity;
     }
 
+    // From the last SELECT or EXAMINE. 0 if the server doesn't support
+    // CONDSTORE (RFC 7162) or doesn't keep mod-sequences for this folder.
+    public final long getHighestModSeq()
+    {
+        return highestModSeq;
+    }
+
+    // If QRESYNC is enabled, the server reports expunged messages with
+    // VANISHED responses, and a UID FETCH with CHANGEDSINCE can include
+    // the UIDs that have vanished since the specified mod-sequence.
+    public final boolean isQresyncEnabled()
+    {
+        return qresync;
+    }
+
     public final String getErrorText()
     {
         return errorText;
@@ -195,6 +219,29 @@ public final class ImapSession
         return new ImapSession(url, user, password);
     }
 
+    // Returns a new, unconnected session for the same server, user and
+    // folder.
+    public ImapSession copy()
+    {
+        ImapSession session = new ImapSession(url, user, password);
+        session.tunnelHost = tunnelHost;
+        session.tunnelPort = tunnelPort;
+        return session;
+    }
+
+    // Capabilities are known once we've logged in. The name is case
+    // insensitive.
+    public synchronized boolean hasCapability(String name)
+    {
+        return capabilities != null &&
+            capabilities.contains(name.toUpperCase());
+    }
+
+    private synchronized void setCapabilities(String s)
+    {
+        capabilities = new HashSet(Arrays.asList(s.toUpperCase().split(" +")));
+    }
+
     public boolean verifyConnected()
     {
         if (state != DISCONNECTED) {
@@ -250,11 +297,26 @@ public final class ImapSession
             reader = new MailReader(socket.getInputStream());
             writer = new OutputStreamWriter(socket.getOutputStream(),
                 "iso-8859-1");
+            capabilities = null;
+            qresync = false;
             if (readLine() != null) {
                 writeTagged("login " + user + " " + password);
                 if (getResponse() == OK) {
                     state = AUTHENTICATED;
                     succeeded = true;
+                    // Most servers report their capabilities in the response
+                    // to LOGIN. If this one didn't, ask.
+                    String s = getResponseCode(errorText, "CAPABILITY");
+                    if (s != null)
+                        setCapabilities(s);
+                    else if (writeTagged("capability"))
+                        getResponse();
+                    if (hasCapability("QRESYNC") && hasCapability("ENABLE")) {
+                        // The server confirms with an untagged ENABLED
+                        // response.
+                        if (writeTagged("enable qresync"))
+                            getResponse();
+                    }
                 }
             }
         }
@@ -269,53 +331,76 @@ public final class ImapSession
 
     private static final String UIDVALIDITY = "* OK [UIDVALIDITY ";
     private static final String UIDNEXT     = "* OK [UIDNEXT ";
+    private static final String HIGHESTMODSEQ = "* OK [HIGHESTMODSEQ ";
 
     public boolean reselect(String folderName)
+    {
+        return select("select", folderName);
+    }
+
+    // Selects the folder read-only. The server doesn't clear the \Recent
+    // flags, so this doesn't disturb another session that has the same
+    // folder selected.
+    public boolean examine(String folderName)
+    {
+        return select("examine", folderName);
+    }
+
+    private boolean select(String command, String folderName)
     {
         long start = System.currentTimeMillis();
         boolean oldEcho = echo;
         if (Editor.isDebugEnabled())
             echo = true;
+        // Ask for mod-sequences if the server supports them.
+        final String s = command + " \"" + folderName + "\"" +
+            (hasCapability("CONDSTORE") ? " (condstore)" : "");
+        highestModSeq = 0;
         try {
-            if (state < AUTHENTICATED ||
-                !writeTagged("select \"" + folderName + "\"")) {
+            if (state < AUTHENTICATED || !writeTagged(s)) {
                 connect();
                 if (state < AUTHENTICATED)
                     return false;
-                if (!writeTagged("select \"" + folderName + "\""))
+                if (!writeTagged(s))
                     return false;
             }
             while (true) {
-                String s = readLine();
-                if (s == null) {
+                String line = readLine();
+                if (line == null) {
                     Log.error("ImapSession.reselect readLine returned null");
                     this.folderName = null;
                     messageCount = 0;
                     recent = 0;
                     return false;
                 }
-                final String upper = s.toUpperCase();
+                final String upper = line.toUpperCase();
                 if (upper.startsWith("* NO ")) {
-                    mailbox.setStatusText(s.substring(5).trim());
+                    if (mailbox != null)
+                        mailbox.setStatusText(line.substring(5).trim());
                     continue;
                 }
                 if (upper.startsWith("* ")) {
                     if (upper.endsWith(" EXISTS")) {
-                        processUntaggedResponse(s);
+                        processUntaggedResponse(line);
                         continue;
                     }
                     if (upper.endsWith(" RECENT")) {
-                        processUntaggedResponse(s);
+                        processUntaggedResponse(line);
                         continue;
                     }
                 }
                 if (upper.startsWith(UIDVALIDITY)) {
                     uidValidity =
-                        Utilities.parseInt(s.substring(UIDVALIDITY.length()));
+                        Utilities.parseInt(line.substring(UIDVALIDITY.length()));
                     continue;
                 }
                 if (upper.startsWith(UIDNEXT)) {
-                    uidNext = Utilities.parseInt(s.substring(UIDNEXT.length()));
+                    uidNext = Utilities.parseInt(line.substring(UIDNEXT.length()));
+                    continue;
+                }
+                if (upper.startsWith(HIGHESTMODSEQ)) {
+                    highestModSeq =
+                        parseLong(line.substring(HIGHESTMODSEQ.length()));
                     continue;
                 }
                 if (upper.startsWith(lastTag + " ")) {
@@ -325,18 +410,19 @@ public final class ImapSession
                         state = SELECTED;
                         this.folderName = folderName;
                         readOnly = upper.indexOf("[READ-ONLY]") >= 0;
-                        if (readOnly) {
+                        if (readOnly && command.equals("select")) {
                             Log.warn("reselect mailbox " + folderName +
                                 " is read-only!");
                             setLastErrorMillis(System.currentTimeMillis());
                         } else {
-                            Log.debug("reselect mailbox " + folderName +
-                                " is read-write");
+                            Log.debug(command + " mailbox " + folderName +
+                                (readOnly ? " is read-only" : " is read-write"));
                         }
                         return true;
                     } else {
                         // Error!
-                        Log.error("SELECT " + folderName + " failed");
+                        Log.error(command.toUpperCase() + " " + folderName +
+                            " failed");
                         // Don't assume old folder is still selected.
                         state = AUTHENTICATED;
                         this.folderName = null;
@@ -458,7 +544,174 @@ public final class ImapSession
         writeTagged(sb.toString());
     }
 
+    // Stores flags for any number of messages. The UIDs are collapsed into
+    // ranges, split into commands of a reasonable length, and the commands
+    // are pipelined. Returns true if all of them succeeded.
+    public boolean uidStore(int[] uids, String arg)
+    {
+        return pipeline("uid store ", uids, arg);
+    }
+
+    // Like uidStore(int[], String).
+    public boolean uidCopy(int[] uids, String destination)
+    {
+        return pipeline("uid copy ", uids, destination);
+    }
+
+    private boolean pipeline(String command, int[] uids, String arg)
+    {
+        List messageSets = getMessageSets(uids, MAX_MESSAGE_SET_LENGTH);
+        ArrayList commands = new ArrayList(messageSets.size());
+        for (int i = 0; i < messageSets.size(); i++) {
+            FastStringBuffer sb = new FastStringBuffer(command);
+            sb.append((String) messageSets.get(i));
+            sb.append(' ');
+            sb.append(arg);
+            commands.add(sb.toString());
+        }
+        return pipeline(commands);
+    }
+
+    // RFC 7162 recommends that clients keep command lines under 8192
+    // octets. We stay well below that.
+    private static final int MAX_MESSAGE_SET_LENGTH = 4000;
+
+    // Sorts the UIDs and collapses them into message sets like "1:5,7,9:12",
+    // none of them (much) longer than maxLength.
+    public static List getMessageSets(int[] uids, int maxLength)
+    {
+        ArrayList list = new ArrayList();
+        if (uids.length == 0)
+            return list;
+        int[] sorted = (int[]) uids.clone();
+        Arrays.sort(sorted);
+        FastStringBuffer sb = new FastStringBuffer();
+        int i = 0;
+        while (i < sorted.length) {
+            final int begin = sorted[i];
+            int end = begin;
+            while (++i < sorted.length && sorted[i] <= end + 1)
+                end = sorted[i];
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(begin);
+            if (end != begin) {
+                sb.append(':');
+                sb.append(end);
+            }
+            if (sb.length() >= maxLength) {
+                list.add(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        if (sb.length() > 0)
+            list.add(sb.toString());
+        return list;
+    }
+
+    // Parses a message set like "1:3,5,9:7". Returns the numbers in the
+    // order they appear in the set.
+    public static int[] parseMessageSet(String s)
+    {
+        int count = 0;
+        String[] ranges = s.split(",");
+        int[][] bounds = new int[ranges.length][];
+        for (int i = 0; i < ranges.length; i++) {
+            String range = ranges[i].trim();
+            int index = range.indexOf(':');
+            int begin, end;
+            try {
+                if (index >= 0) {
+                    begin = Integer.parseInt(range.substring(0, index));
+                    end = Integer.parseInt(range.substring(index + 1));
+                    if (begin > end) {
+                        int temp = begin;
+                        begin = end;
+                        end = temp;
+                    }
+                } else
+                    begin = end = Integer.parseInt(range);
+            }
+            catch (NumberFormatException e) {
+                Log.error("parseMessageSet |" + s + "|");
+                continue;
+            }
+            bounds[i] = new int[] { begin, end };
+            count += end - begin + 1;
+        }
+        int[] array = new int[count];
+        int j = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            if (bounds[i] != null) {
+                for (int n = bounds[i][0]; n <= bounds[i][1]; n++)
+                    array[j++] = n;
+            }
+        }
+        return array;
+    }
+
+    private static long parseLong(String s)
+    {
+        int end = 0;
+        while (end < s.length() && Character.isDigit(s.charAt(end)))
+            ++end;
+        try {
+            return Long.parseLong(s.substring(0, end));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Maximum number of commands in flight. The server can respond to the
+    // first command while we're still sending the others, but we don't want
+    // to fill its socket buffer with responses we aren't reading yet.
+    private static final int PIPELINE_DEPTH = 16;
+
+    // Sends the commands without waiting for each response in turn. Returns
+    // true if all of them succeeded. The commands must not depend on each
+    // other's results.
+    public boolean pipeline(List commands)
+    {
+        final int count = commands.size();
+        ArrayList pending = new ArrayList(PIPELINE_DEPTH);
+        boolean succeeded = true;
+        int next = 0;
+        while (next < count || pending.size() > 0) {
+            if (next < count && pending.size() < PIPELINE_DEPTH) {
+                while (next < count && pending.size() < PIPELINE_DEPTH) {
+                    if (!writeTagged((String) commands.get(next++), false))
+                        return false;
+                    pending.add(lastTag);
+                }
+                if (!flush())
+                    return false;
+            }
+            String s = readLine();
+            if (s == null)
+                return false;
+            int index = s.indexOf(' ');
+            if (index > 0 && pending.remove(s.substring(0, index))) {
+                // Tagged response to one of our commands.
+                int response = getTaggedResponse(s, s.substring(index + 1));
+                if (response == BYE)
+                    return false;
+                if (response != OK) {
+                    errorText = getTaggedResponseText(s);
+                    succeeded = false;
+                }
+            } else if (processUntaggedResponse(s) == BYE)
+                return false;
+        }
+        return succeeded;
+    }
+
     public boolean writeTagged(String s)
+    {
+        return writeTagged(s, true);
+    }
+
+    private boolean writeTagged(String s, boolean flush)
     {
         if (writer == null)
             return false;
@@ -479,6 +732,22 @@ public final class ImapSession
         }
         try {
             writer.write(s.concat("\r\n"));
+            if (flush)
+                writer.flush();
+            return true;
+        }
+        catch (IOException e) {
+            Log.error(e);
+            disconnect();
+            return false;
+        }
+    }
+
+    private boolean flush()
+    {
+        if (writer == null)
+            return false;
+        try {
             writer.flush();
             return true;
         }
@@ -489,52 +758,147 @@ public final class ImapSession
         }
     }
 
+    // RFC 2177 says to reissue IDLE at least every 29 minutes.
+    public static final long IDLE_TIMEOUT = 29 * 60 * 1000;
+
+    // Waits for the server to report changes to the selected folder. The
+    // listener is called (on this thread) each time the server reports new
+    // or expunged messages. Returns true when the timeout has expired and
+    // the session is ready for another command, false if the server doesn't
+    // support IDLE or the connection has been closed.
+    public boolean idle(long timeout, Runnable listener)
+    {
+        if (state != SELECTED || !hasCapability("IDLE"))
+            return false;
+        if (!writeTagged("idle"))
+            return false;
+        final String tag = lastTag;
+        // Another thread may disconnect the session to stop us.
+        final Socket socket = this.socket;
+        final MailReader reader = this.reader;
+        final OutputStreamWriter writer = this.writer;
+        String s = readLine();
+        if (s == null || !s.startsWith("+")) {
+            Log.error("ImapSession.idle unexpected response " + s);
+            return false;
+        }
+        try {
+            final int oldTimeout = socket.getSoTimeout();
+            final long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (remaining > 0) {
+                socket.setSoTimeout((int) remaining);
+                try {
+                    s = reader.readLine();
+                }
+                catch (SocketTimeoutException e) {
+                    break;
+                }
+                if (s == null) {
+                    disconnect();
+                    return false;
+                }
+                if (echo)
+                    Log.debug("<== " + s);
+                final int oldMessageCount = messageCount;
+                if (processUntaggedResponse(s) == BYE)
+                    return false;
+                final String upper = s.toUpperCase();
+                if (upper.endsWith(" EXPUNGE") ||
+                    upper.startsWith("* VANISHED ") ||
+                    (upper.endsWith(" EXISTS") && messageCount != oldMessageCount))
+                    listener.run();
+                remaining = deadline - System.currentTimeMillis();
+            }
+            socket.setSoTimeout(oldTimeout);
+            if (echo)
+                Log.debug("==> DONE");
+            writer.write("DONE\r\n");
+            writer.flush();
+        }
+        catch (IOException e) {
+            // SocketException if another thread has closed the socket.
+            if (!(e instanceof SocketException))
+                Log.error(e);
+            disconnect();
+            return false;
+        }
+        return getResponse(tag) == OK;
+    }
+
     public int getResponse()
     {
+        return getResponse(lastTag);
+    }
+
+    private int getResponse(String tag)
+    {
+        final String prefix = tag + " ";
         while (true) {
             String s = readLine();
             if (s == null)
                 return BYE;
-            String upper = s.toUpperCase();
-            int index = upper.indexOf("[ALERT]");
-            if (index >= 0)
-                mailbox.setAlertText(s.substring(index+7).trim());
-            if (upper.startsWith("* BYE ")) {
-                Log.debug("getResponse |" + s + "|");
-                disconnect();
+            if (s.startsWith(prefix))
+                return getTaggedResponse(s, s.substring(prefix.length()));
+            if (processUntaggedResponse(s) == BYE)
                 return BYE;
-            }
-            if (upper.startsWith(lastTag + " ")) {
-                upper = upper.substring(lastTag.length() + 1);
-                if (upper.startsWith("OK "))
-                    return OK;
-                if (upper.startsWith("NO ")) {
-                    mailbox.setStatusText(s.substring(3).trim());
-                    return NO;
-                }
-                if (upper.startsWith("BAD "))
-                    return BAD;
-                // According to Section 7.1 of RFC 2060, PREAUTH and BYE are
-                // always untagged, so we should never encounter the following
-                // cases.
-                if (upper.startsWith("PREAUTH"))
-                    return PREAUTH;
-                if (upper.startsWith("BYE")) {
-                    disconnect();
-                    return BYE;
-                }
-                return UNKNOWN;
-            }
-            processUntaggedResponse(s);
         }
     }
 
-    private void processUntaggedResponse(String s)
+    private int getTaggedResponse(String s, String rest)
+    {
+        final String upper = rest.toUpperCase();
+        int index = upper.indexOf("[ALERT]");
+        if (index >= 0 && mailbox != null)
+            mailbox.setAlertText(rest.substring(index+7).trim());
+        if (upper.startsWith("OK "))
+            return OK;
+        if (upper.startsWith("NO ")) {
+            if (mailbox != null)
+                mailbox.setStatusText(rest.substring(3).trim());
+            return NO;
+        }
+        if (upper.startsWith("BAD "))
+            return BAD;
+        // According to Section 7.1 of RFC 2060, PREAUTH and BYE are
+        // always untagged, so we should never encounter the following
+        // cases.
+        if (upper.startsWith("PREAUTH"))
+            return PREAUTH;
+        if (upper.startsWith("BYE")) {
+            disconnect();
+            return BYE;
+        }
+        return UNKNOWN;
+    }
+
+    // Returns BYE if the server is closing the connection, OK otherwise.
+    private int processUntaggedResponse(String s)
     {
         Log.debug("processUntaggedResponse |" + s + "|");
         if (s.startsWith("* ")) {
             final String upper = s.toUpperCase();
-            if (upper.endsWith(" EXISTS")) {
+            int index = upper.indexOf("[ALERT]");
+            if (index >= 0 && mailbox != null)
+                mailbox.setAlertText(s.substring(index+7).trim());
+            if (upper.startsWith("* BYE ")) {
+                disconnect();
+                return BYE;
+            }
+            if (upper.startsWith("* CAPABILITY ")) {
+                setCapabilities(s.substring(13).trim());
+            } else if (upper.startsWith("* ENABLED ")) {
+                if ((upper + " ").indexOf(" QRESYNC ") >= 0)
+                    qresync = true;
+            } else if (upper.startsWith("* VANISHED ") &&
+                !upper.startsWith("* VANISHED (EARLIER) ")) {
+                // Replaces EXPUNGE once QRESYNC is enabled.
+                int count = parseMessageSet(s.substring(11).trim()).length;
+                messageCount = Math.max(messageCount - count, 0);
+                Log.debug("VANISHED messageCount = " + messageCount);
+                if (mailbox != null)
+                    mailbox.messageExpunged(-1);
+            } else if (upper.endsWith(" EXISTS")) {
                 try {
                     messageCount = Integer.parseInt(upper.substring(2, upper.length()-7));
                     Log.debug("messageCount = " + messageCount);
@@ -560,13 +924,30 @@ public final class ImapSession
                     } else
                         Log.error("received untagged EXPUNGE response with messageCount = " +
                             messageCount);
-                    mailbox.messageExpunged(messageNumber);
+                    if (mailbox != null)
+                        mailbox.messageExpunged(messageNumber);
                 }
                 catch (NumberFormatException e) {
                     Log.error(e);
                 }
             }
         }
+        return OK;
+    }
+
+    // Returns the text of the specified response code (for example, the
+    // capabilities from "[CAPABILITY IMAP4rev1 IDLE] Logged in"), or null.
+    /*package*/ static String getResponseCode(String text, String name)
+    {
+        if (text == null)
+            return null;
+        final String prefix = "[" + name + " ";
+        if (!text.regionMatches(true, 0, prefix, 0, prefix.length()))
+            return null;
+        int end = text.indexOf(']');
+        if (end < 0)
+            return null;
+        return text.substring(prefix.length(), end).trim();
     }
 
     private static String getTaggedResponseText(String taggedResponse)
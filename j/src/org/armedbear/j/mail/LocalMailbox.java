@@ -26,10 +26,11 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import javax.swing.SwingUtilities;
 import org.armedbear.j.Buffer;
@@ -54,6 +55,16 @@ public class LocalMailbox extends Mailbox
 {
     private File mailboxFile;
 
+    // Recently read messages, most recently used last.
+    private static final int MAX_CACHED_MESSAGES = 8;
+    private final LinkedHashMap messageCache =
+        new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest)
+            {
+                return size() > MAX_CACHED_MESSAGES;
+            }
+        };
+
     public LocalMailbox(MailboxURL url)
     {
         super(url);
@@ -99,15 +110,77 @@ public class LocalMailbox extends Mailbox
 
     public Message getMessage(MailboxEntry entry, ProgressNotifier progressNotifier)
     {
+        synchronized (messageCache) {
+            Message message = (Message) messageCache.get(entry);
+            if (message != null)
+                return message;
+        }
+        Message message = readMessage((LocalMailboxEntry) entry);
+        if (message != null) {
+            synchronized (messageCache) {
+                messageCache.put(entry, message);
+            }
+        }
+        return message;
+    }
+
+    // Next to the mailbox's summary (see Mbox).
+    protected File getMailIndexFile()
+    {
+        return File.getInstance(mailboxFile.canonicalPath() + ".index");
+    }
+
+    // The index is kept in a file, so the key can't be the entry itself. It's
+    // the size and the message id or, failing that, the date and subject.
+    // Messages with the same key share their place in the index.
+    public Object getIndexKey(MailboxEntry entry)
+    {
+        FastStringBuffer sb = new FastStringBuffer();
+        sb.append(entry.getSize());
+        sb.append(' ');
+        String messageId = entry.getMessageId();
+        if (messageId != null)
+            sb.append(messageId);
+        else {
+            RFC822Date date = entry.getDate();
+            if (date != null && date.getDate() != null)
+                sb.append(date.getTime());
+            sb.append(' ');
+            String subject = entry.getSubject();
+            if (subject != null)
+                sb.append(subject);
+        }
+        return sb.toString();
+    }
+
+    // Doesn't go through the message cache, so indexing the whole mailbox
+    // doesn't push out the messages that are being read.
+    public Message getIndexableMessage(MailboxEntry entry)
+    {
+        return readMessage((LocalMailboxEntry) entry);
+    }
+
+    private Message readMessage(LocalMailboxEntry entry)
+    {
+        if (entry.getMessageStart() < 0)
+            return null; // Purged.
         try {
-            RandomAccessFile raf = mailboxFile.getRandomAccessFile("r");
-            String header = getMessageHeader(entry, raf);
+            byte[] bytes =
+                Mbox.getInstance(mailboxFile).getReader().read(
+                    entry.getMessageStart(), entry.getNextMessageStart());
+            int[] bodyStart = new int[1];
+            String header = getMessageHeader(bytes, bodyStart);
+            if (header == null) {
+                Log.debug("LocalMailbox.readMessage expected \"From \"");
+                Log.debug("offset = " + entry.getMessageStart());
+                return null;
+            }
             Headers headers = Headers.parse(header);
             String charset = null;
             String contentType = headers.getValue(Headers.CONTENT_TYPE);
             if (contentType != null)
                 charset = Utilities.getCharsetFromContentType(contentType);
-            String body = getMessageBody(entry, raf, charset);
+            String body = getMessageBody(bytes, bodyStart[0], charset);
             return new Message(header + "\r\n" + body, headers);
         }
         catch (IOException e) {
@@ -116,60 +189,57 @@ public class LocalMailbox extends Mailbox
         }
     }
 
-    private String getMessageHeader(MailboxEntry entry, RandomAccessFile raf)
+    // Returns the header of the message in bytes, without the "From " line,
+    // with lines terminated by "\r\n". Sets bodyStart[0] to the offset of
+    // the body. Returns null if the bytes don't start with a "From " line.
+    private static String getMessageHeader(byte[] bytes, int[] bodyStart)
     {
         FastStringBuffer sb = new FastStringBuffer(8192);
-        try {
-            long offset = ((LocalMailboxEntry) entry).getMessageStart();
-            raf.seek(offset);
-            String text = raf.readLine();
-            if (!text.startsWith("From ")) {
-                Log.debug("LocalMailbox.getMessage expected \"From \"");
-                Log.debug("text = |" + text + "|");
-                Log.debug("offset = " + offset);
-                Debug.assertTrue(false);
-                return ""; // BUG!
-            }
-            while (true) {
-                text = raf.readLine();
-                if (text == null)
-                    break; // End of file (shouldn't happen).
-                if (text.length() == 0)
-                    break; // Reached end of header.
-                sb.append(text);
+        int pos = 0;
+        boolean first = true;
+        while (pos < bytes.length) {
+            int end = pos;
+            while (end < bytes.length && bytes[end] != '\n' &&
+                bytes[end] != '\r')
+                ++end;
+            int next = end + 1;
+            if (end < bytes.length && bytes[end] == '\r' &&
+                next < bytes.length && bytes[next] == '\n')
+                ++next;
+            if (first) {
+                if (end - pos < 5 || bytes[0] != 'F' || bytes[1] != 'r' ||
+                    bytes[2] != 'o' || bytes[3] != 'm' || bytes[4] != ' ')
+                    return null;
+                first = false;
+            } else if (end == pos) {
+                // Reached end of header.
+                pos = next;
+                break;
+            } else {
+                // Bytes are characters, as with RandomAccessFile.readLine().
+                for (int i = pos; i < end; i++)
+                    sb.append((char)(bytes[i] & 0xff));
                 sb.append("\r\n");
             }
+            pos = next;
         }
-        catch (IOException e) {
-            Log.error(e);
-        }
+        bodyStart[0] = Math.min(pos, bytes.length);
         return sb.toString();
     }
 
-    // File pointer must be at the start of the message body.
-    private String getMessageBody(MailboxEntry entry, RandomAccessFile raf, String charset)
+    private static String getMessageBody(byte[] bytes, int offset,
+        String charset)
     {
-        byte[] bytes = null;
-        try {
-            long bodyStart = raf.getFilePointer();
-            long size = ((LocalMailboxEntry) entry).getNextMessageStart() - bodyStart;
-            Debug.assertTrue(size >= 0);
-            Debug.assertTrue(size < Integer.MAX_VALUE);
-            bytes = new byte[(int) size];
-            raf.readFully(bytes);
-        }
-        catch (IOException e) {
-            Log.error(e);
-            return "";
-        }
+        final int length = bytes.length - offset;
         try {
-            return new String(bytes, Utilities.getEncodingFromCharset(charset));
+            return new String(bytes, offset, length,
+                Utilities.getEncodingFromCharset(charset));
         }
         catch (UnsupportedEncodingException e) {
             Log.error(e);
         }
         // Use platform's default character encoding.
-        return new String(bytes);
+        return new String(bytes, offset, length);
     }
 
     public void getNewMessages()
@@ -549,6 +619,12 @@ public class LocalMailbox extends Mailbox
             writer.flush();
             writer.close();
             reader.close();
+            // The offsets are about to change, and the reader can't hold
+            // the file open while it's being replaced.
+            synchronized (messageCache) {
+                messageCache.clear();
+            }
+            Mbox.getInstance(mailboxFile).getReader().close();
             if (Utilities.deleteRename(tempFile, mailboxFile)) {
                 // Update offsets.
                 for (i = 0; i < entries.size(); i++) {
@@ -614,6 +690,7 @@ public class LocalMailbox extends Mailbox
     public void dispose()
     {
         Log.debug("LocalMailbox.dispose");
+        disposeMailIndex();
         Mbox.cleanup();
         MailboxProperties.saveProperties(this);
         if (isOwned()) {
@@ -674,4 +751,17 @@ public class LocalMailbox extends Mailbox
         } else
             return name;
     }
+
+    static final class TestHelper
+    {
+        static String getMessageHeader(byte[] bytes, int[] bodyStart)
+        {
+            return LocalMailbox.getMessageHeader(bytes, bodyStart);
+        }
+
+        static String getMessageBody(byte[] bytes, int offset, String charset)
+        {
+            return LocalMailbox.getMessageBody(bytes, offset, charset);
+        }
+    }
 }
@@ -63,6 +63,22 @@ public final class LocalMailboxEntry extends MailboxEntry
         }
     }
 
+    // Used by SummaryStore, which fills in the rest.
+    /*package*/ LocalMailboxEntry(int messageNumber, long messageStart,
+        long nextMessageStart, String uidl)
+    {
+        this.messageNumber = messageNumber;
+        this.messageStart = messageStart;
+        this.nextMessageStart = nextMessageStart;
+        this.uidl = uidl;
+    }
+
+    // Used by MboxIndexer, which numbers the entries after they're made.
+    final void setMessageNumber(int messageNumber)
+    {
+        this.messageNumber = messageNumber;
+    }
+
     public final long getMessageStart()
     {
         return messageStart;
@@ -76,6 +76,22 @@ public final class MailAddress implements Serializable
             this.address = null;
     }
 
+    // Used by SummaryStore, which saves all three strings.
+    private MailAddress(String personal, String encodedPersonal,
+        String address)
+    {
+        this.personal = personal != null ? personal.intern() : null;
+        this.encodedPersonal =
+            encodedPersonal != null ? encodedPersonal.intern() : null;
+        this.address = address != null ? address.intern() : null;
+    }
+
+    /*package*/ static MailAddress restore(String personal,
+        String encodedPersonal, String address)
+    {
+        return new MailAddress(personal, encodedPersonal, address);
+    }
+
     public final String getPersonal()
     {
         return personal;
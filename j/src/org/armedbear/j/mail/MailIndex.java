@@ -0,0 +1,730 @@
+/*
+ * MailIndex.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Vector;
+import org.armedbear.j.File;
+import org.armedbear.j.Headers;
+import org.armedbear.j.Log;
+import org.armedbear.j.Utilities;
+
+// An inverted index over the words in the headers and bodies of the messages
+// in a mailbox, so a search doesn't have to read every message.
+//
+// Messages are identified by Mailbox.getIndexKey(), and only messages whose
+// text is available locally (Mailbox.getIndexableMessage()) are indexed. The
+// index is updated in the background whenever the mailbox's entries change.
+//
+// If the mailbox provides a file (Mailbox.getMailIndexFile()), the index is
+// read from it before the first update and kept there, so a mailbox doesn't
+// have to be indexed again every session. Its keys must then be Longs or
+// Strings. Like SummaryStore, the file starts with a snapshot of the keys and
+// the posting lists, followed by a journal: each update that adds or removes
+// messages appends one record per message (an added message with its terms),
+// and the file is only written again when the journal gets as long as the
+// index, or when the index is compacted.
+public final class MailIndex implements Runnable
+{
+    public static final int HEADER = 1;
+    public static final int BODY   = 2;
+
+    private static final int MAGIC = 0x6a494458; // "jIDX"
+    private static final int VERSION = 1;
+
+    // Journal records.
+    private static final byte ADD    = 1;
+    private static final byte REMOVE = 2;
+
+    // Kinds of keys.
+    private static final byte LONG_KEY   = 1;
+    private static final byte STRING_KEY = 2;
+
+    private static final int MIN_TERM_LENGTH = 2;
+
+    // Longer "words" are almost always encoded data or URLs.
+    private static final int MAX_TERM_LENGTH = 40;
+
+    private static final int[] INDEXED_HEADERS = {
+        Headers.FROM, Headers.TO, Headers.CC, Headers.REPLY_TO, Headers.SUBJECT
+    };
+
+    private final Mailbox mailbox;
+    private final File file;
+
+    // Guarded by this.
+    private boolean loaded;
+    private boolean rewrite; // The file needs to be written from scratch.
+    private int journalRecords;
+    private final HashMap docIds = new HashMap();  // Key -> Integer.
+    private final ArrayList docs = new ArrayList(); // Id -> key, or null if removed.
+    private int removed;
+    private final TreeMap headerTerms = new TreeMap(); // Term -> Postings.
+    private final TreeMap bodyTerms = new TreeMap();
+    private int generation;
+
+    // Guarded by queue.
+    private final Object queue = new Object();
+    private List pending;
+    private boolean running;
+    private boolean disposed;
+
+    // If file is null, the index is only kept in memory.
+    public MailIndex(Mailbox mailbox, File file)
+    {
+        this.mailbox = mailbox;
+        this.file = file;
+    }
+
+    // Schedules the index to be brought up to date with the given snapshot of
+    // the mailbox's entries. Returns immediately.
+    public void update(List entries)
+    {
+        synchronized (queue) {
+            if (disposed)
+                return;
+            pending = entries;
+            if (!running) {
+                running = true;
+                Thread thread = new Thread(this, "mail index");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    public void run()
+    {
+        while (true) {
+            List entries;
+            synchronized (queue) {
+                entries = pending;
+                pending = null;
+                if (entries == null || disposed) {
+                    running = false;
+                    return;
+                }
+            }
+            sync(entries);
+        }
+    }
+
+    // Finishes any pending update on the calling thread, so a search sees
+    // every message the mailbox has.
+    public void flush()
+    {
+        List entries;
+        synchronized (queue) {
+            entries = pending;
+            pending = null;
+        }
+        if (entries != null)
+            sync(entries);
+    }
+
+    public void dispose()
+    {
+        synchronized (queue) {
+            disposed = true;
+            pending = null;
+        }
+    }
+
+    private boolean isDisposed()
+    {
+        synchronized (queue) {
+            return disposed;
+        }
+    }
+
+    // Changes whenever a message is added to or removed from the index.
+    public synchronized int getGeneration()
+    {
+        return generation;
+    }
+
+    public synchronized int size()
+    {
+        return docIds.size();
+    }
+
+    public synchronized boolean isIndexed(MailboxEntry entry)
+    {
+        return docIds.containsKey(mailbox.getIndexKey(entry));
+    }
+
+    // Returns -1 if the entry isn't indexed.
+    public synchronized int getDocId(MailboxEntry entry)
+    {
+        Integer id = (Integer) docIds.get(mailbox.getIndexKey(entry));
+        return id != null ? id.intValue() : -1;
+    }
+
+    private synchronized void sync(List entries)
+    {
+        long start = System.currentTimeMillis();
+        if (!loaded) {
+            loaded = true;
+            if (file != null)
+                read();
+        }
+        // The records to append to the journal, if the index is kept in a
+        // file.
+        ByteArrayOutputStream journal =
+            file != null ? new ByteArrayOutputStream() : null;
+        HashSet keys = new HashSet();
+        int added = 0;
+        final int size = entries.size();
+        for (int i = 0; i < size; i++) {
+            if (isDisposed())
+                return;
+            MailboxEntry entry = (MailboxEntry) entries.get(i);
+            Object key = mailbox.getIndexKey(entry);
+            keys.add(key);
+            if (docIds.containsKey(key))
+                continue;
+            Message message = mailbox.getIndexableMessage(entry);
+            if (message != null) {
+                add(key, message, journal);
+                ++added;
+            }
+        }
+        int before = removed;
+        Iterator it = docIds.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry mapEntry = (Map.Entry) it.next();
+            if (!keys.contains(mapEntry.getKey())) {
+                docs.set(((Integer)mapEntry.getValue()).intValue(), null);
+                it.remove();
+                ++removed;
+                if (journal != null)
+                    writeRecord(journal, REMOVE, mapEntry.getKey(), null, null);
+            }
+        }
+        if (added > 0 || removed > before) {
+            ++generation;
+            if (removed > docs.size() / 2) {
+                compact();
+                rewrite = true;
+            }
+            if (journal != null) {
+                journalRecords += added + removed - before;
+                if (rewrite || journalRecords > docIds.size())
+                    write();
+                else
+                    appendJournal(journal.toByteArray());
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            Log.debug("MailIndex.sync " + added + " added " +
+                (removed - before) + " removed " + elapsed + " ms");
+        } else if (rewrite && file != null)
+            write(); // The file was damaged.
+    }
+
+    // If journal is not null, a record of the message and its terms is added
+    // to it.
+    private void add(Object key, Message message, ByteArrayOutputStream journal)
+    {
+        final int id = docs.size();
+        docs.add(key);
+        docIds.put(key, Integer.valueOf(id));
+        HashSet headerSet = journal != null ? new HashSet() : null;
+        HashSet bodySet = journal != null ? new HashSet() : null;
+        Headers headers = message.getHeaders();
+        for (int i = 0; i < INDEXED_HEADERS.length; i++) {
+            String value = headers.getValue(INDEXED_HEADERS[i]);
+            if (value != null)
+                addTerms(RFC2047.decode(value), headerTerms, id, headerSet);
+        }
+        try {
+            message.parse();
+            Vector parts = message.getParts();
+            if (parts == null || parts.size() == 0)
+                addBody(message, id, bodySet);
+            else {
+                for (int i = 0; i < parts.size(); i++)
+                    addBody((MimePart) parts.get(i), id, bodySet);
+            }
+        }
+        catch (Exception e) {
+            // Malformed MIME structure. Whatever was indexed stays.
+            Log.debug(e);
+        }
+        if (journal != null)
+            writeRecord(journal, ADD, key, headerSet, bodySet);
+    }
+
+    private void addBody(MimePart part, int id, HashSet termSet)
+    {
+        if (part.isAttachment())
+            return;
+        String contentType = part.getContentType();
+        if (contentType != null) {
+            if (contentType.startsWith("multipart/"))
+                return; // The subparts are in the list too.
+            if (!contentType.startsWith("text/"))
+                return;
+        }
+        String body = part.getDecodedBody();
+        if (body == null)
+            return;
+        if (contentType != null && contentType.equals("text/html"))
+            body = stripTags(body);
+        addTerms(body, bodyTerms, id, termSet);
+    }
+
+    private static String stripTags(String s)
+    {
+        final int length = s.length();
+        StringBuffer sb = new StringBuffer(length);
+        boolean inTag = false;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '<')
+                inTag = true;
+            else if (c == '>') {
+                inTag = false;
+                sb.append(' ');
+            } else if (!inTag)
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // If termSet is not null, the terms are added to it as well.
+    private static void addTerms(String text, TreeMap terms, int id,
+        HashSet termSet)
+    {
+        final int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i)))
+                ++i;
+            final int begin = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i)))
+                ++i;
+            final int termLength = i - begin;
+            if (termLength >= MIN_TERM_LENGTH && termLength <= MAX_TERM_LENGTH) {
+                String term = text.substring(begin, i).toLowerCase();
+                addPosting(terms, term, id);
+                if (termSet != null)
+                    termSet.add(term);
+            }
+        }
+    }
+
+    private static void addPosting(TreeMap terms, String term, int id)
+    {
+        Postings postings = (Postings) terms.get(term);
+        if (postings == null) {
+            postings = new Postings();
+            terms.put(term, postings);
+        }
+        postings.add(id);
+    }
+
+    // Splits a search pattern into words the same way message text is split.
+    public static String[] getTerms(String pattern)
+    {
+        ArrayList list = new ArrayList();
+        final int length = pattern.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(pattern.charAt(i)))
+                ++i;
+            final int begin = i;
+            while (i < length && Character.isLetterOrDigit(pattern.charAt(i)))
+                ++i;
+            if (i > begin)
+                list.add(pattern.substring(begin, i).toLowerCase());
+        }
+        return (String[]) list.toArray(new String[list.size()]);
+    }
+
+    // Returns the ids of the messages that contain all of the given terms in
+    // the given fields (HEADER, BODY or both). If prefix is true, the last
+    // term matches any word that starts with it.
+    public synchronized BitSet search(String[] terms, int fields,
+        boolean prefix)
+    {
+        BitSet result = null;
+        for (int i = 0; i < terms.length; i++) {
+            final boolean isPrefix = prefix && i == terms.length-1;
+            BitSet matches = new BitSet(docs.size());
+            if ((fields & HEADER) != 0)
+                addMatches(headerTerms, terms[i], isPrefix, matches);
+            if ((fields & BODY) != 0)
+                addMatches(bodyTerms, terms[i], isPrefix, matches);
+            if (result == null)
+                result = matches;
+            else
+                result.and(matches);
+        }
+        if (result == null)
+            result = new BitSet();
+        // Postings may still refer to removed messages.
+        for (int id = result.nextSetBit(0); id >= 0; id = result.nextSetBit(id+1)) {
+            if (docs.get(id) == null)
+                result.clear(id);
+        }
+        return result;
+    }
+
+    private static void addMatches(TreeMap terms, String term, boolean prefix,
+        BitSet matches)
+    {
+        if (prefix) {
+            SortedMap map = terms.subMap(term, term + '\uffff');
+            Iterator it = map.values().iterator();
+            while (it.hasNext())
+                ((Postings)it.next()).addTo(matches);
+        } else {
+            Postings postings = (Postings) terms.get(term);
+            if (postings != null)
+                postings.addTo(matches);
+        }
+    }
+
+    // Renumbers the messages so the postings don't keep growing with the
+    // ids of removed messages.
+    private void compact()
+    {
+        final int size = docs.size();
+        int[] map = new int[size];
+        ArrayList newDocs = new ArrayList(size - removed);
+        for (int id = 0; id < size; id++) {
+            Object key = docs.get(id);
+            if (key != null) {
+                map[id] = newDocs.size();
+                docIds.put(key, Integer.valueOf(newDocs.size()));
+                newDocs.add(key);
+            } else
+                map[id] = -1;
+        }
+        docs.clear();
+        docs.addAll(newDocs);
+        removed = 0;
+        compact(headerTerms, map);
+        compact(bodyTerms, map);
+    }
+
+    private static void compact(TreeMap terms, int[] map)
+    {
+        Iterator it = terms.values().iterator();
+        while (it.hasNext()) {
+            Postings postings = (Postings) it.next();
+            postings.renumber(map);
+            if (postings.size == 0)
+                it.remove();
+        }
+    }
+
+    // Reads the snapshot and replays the journal. If the file is damaged or
+    // was written by another version, the index starts out empty and the
+    // file is written again after the next update.
+    private void read()
+    {
+        if (!file.isFile())
+            return;
+        long start = System.currentTimeMillis();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file.canonicalPath(), "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer bb =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (bb.remaining() < 8 || bb.getInt() != MAGIC ||
+                bb.getInt() != VERSION) {
+                Log.debug("MailIndex.read " + file + " wrong version");
+                rewrite = true;
+                return;
+            }
+            for (int i = bb.getInt(); i > 0; i--) {
+                Object key = readKey(bb);
+                docIds.put(key, Integer.valueOf(docs.size()));
+                docs.add(key);
+            }
+            readTerms(bb, headerTerms);
+            readTerms(bb, bodyTerms);
+            while (bb.hasRemaining()) {
+                final byte type = bb.get();
+                final Object key = readKey(bb);
+                if (type == ADD) {
+                    final int id = docs.size();
+                    docIds.put(key, Integer.valueOf(id));
+                    docs.add(key);
+                    for (int i = bb.getInt(); i > 0; i--)
+                        addPosting(headerTerms, readString(bb), id);
+                    for (int i = bb.getInt(); i > 0; i--)
+                        addPosting(bodyTerms, readString(bb), id);
+                } else if (type == REMOVE) {
+                    Integer id = (Integer) docIds.remove(key);
+                    if (id != null) {
+                        docs.set(id.intValue(), null);
+                        ++removed;
+                    }
+                } else
+                    throw new IllegalStateException("bad record " + type);
+                ++journalRecords;
+            }
+            Log.debug("MailIndex.read " + docIds.size() + " messages " +
+                journalRecords + " journal records " +
+                (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (Exception e) {
+            // Truncated or otherwise damaged. We'll write a new one.
+            Log.error(e);
+            docIds.clear();
+            docs.clear();
+            removed = 0;
+            headerTerms.clear();
+            bodyTerms.clear();
+            journalRecords = 0;
+            rewrite = true;
+        }
+        finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                }
+                catch (IOException e) {
+                    Log.error(e);
+                }
+            }
+        }
+    }
+
+    private static void readTerms(ByteBuffer bb, TreeMap terms)
+    {
+        for (int i = bb.getInt(); i > 0; i--) {
+            String term = readString(bb);
+            Postings postings = new Postings();
+            postings.size = bb.getInt();
+            postings.ids = new int[Math.max(postings.size, 2)];
+            for (int j = 0; j < postings.size; j++)
+                postings.ids[j] = bb.getInt();
+            terms.put(term, postings);
+        }
+    }
+
+    // Writes the whole index, without a journal.
+    private void write()
+    {
+        long start = System.currentTimeMillis();
+        if (removed > 0) {
+            compact();
+            ++generation;
+        }
+        try {
+            File temp = Utilities.getTempFile(file.getParentFile());
+            if (temp == null)
+                throw new IOException("no temporary file for " + file);
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(temp.getOutputStream(), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(docs.size());
+                for (int i = 0; i < docs.size(); i++)
+                    writeKey(out, docs.get(i));
+                writeTerms(out, headerTerms);
+                writeTerms(out, bodyTerms);
+                out.flush();
+            }
+            finally {
+                out.close();
+            }
+            if (!Utilities.deleteRename(temp, file))
+                throw new IOException("unable to rename " + temp + " to " + file);
+            journalRecords = 0;
+            rewrite = false;
+            Log.debug("MailIndex.write " + docs.size() + " messages " +
+                headerTerms.size() + " header terms " + bodyTerms.size() +
+                " body terms " + (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (IOException e) {
+            Log.error(e);
+            rewrite = true;
+        }
+    }
+
+    private static void writeTerms(DataOutputStream out, TreeMap terms)
+        throws IOException
+    {
+        out.writeInt(terms.size());
+        Iterator it = terms.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry mapEntry = (Map.Entry) it.next();
+            writeString(out, (String) mapEntry.getKey());
+            Postings postings = (Postings) mapEntry.getValue();
+            out.writeInt(postings.size);
+            for (int i = 0; i < postings.size; i++)
+                out.writeInt(postings.ids[i]);
+        }
+    }
+
+    private void appendJournal(byte[] bytes)
+    {
+        if (!file.isFile()) {
+            write();
+            return;
+        }
+        try {
+            FileOutputStream out =
+                new FileOutputStream(file.canonicalPath(), true);
+            try {
+                // One write, so a crash is unlikely to leave half a record.
+                out.write(bytes);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            Log.error(e);
+            rewrite = true;
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream journal, byte type,
+        Object key, HashSet headerSet, HashSet bodySet)
+    {
+        try {
+            DataOutputStream out = new DataOutputStream(journal);
+            out.writeByte(type);
+            writeKey(out, key);
+            if (type == ADD) {
+                writeTermSet(out, headerSet);
+                writeTermSet(out, bodySet);
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream.
+            Log.error(e);
+        }
+    }
+
+    private static void writeTermSet(DataOutputStream out, HashSet terms)
+        throws IOException
+    {
+        out.writeInt(terms.size());
+        for (Iterator it = terms.iterator(); it.hasNext();)
+            writeString(out, (String) it.next());
+    }
+
+    private static void writeKey(DataOutputStream out, Object key)
+        throws IOException
+    {
+        if (key instanceof Long) {
+            out.writeByte(LONG_KEY);
+            out.writeLong(((Long)key).longValue());
+        } else if (key instanceof String) {
+            out.writeByte(STRING_KEY);
+            writeString(out, (String) key);
+        } else
+            throw new IOException("key can't be saved: " + key);
+    }
+
+    private static Object readKey(ByteBuffer bb)
+    {
+        final byte kind = bb.get();
+        if (kind == LONG_KEY)
+            return Long.valueOf(bb.getLong());
+        if (kind == STRING_KEY)
+            return readString(bb);
+        throw new IllegalStateException("bad key " + kind);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer bb)
+    {
+        byte[] bytes = new byte[bb.getInt()];
+        bb.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    // Ids of the messages containing a term, in increasing order.
+    private static final class Postings
+    {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id)
+        {
+            if (size > 0 && ids[size-1] == id)
+                return; // Already seen in this message.
+            if (size == ids.length) {
+                int[] newIds = new int[size * 2];
+                System.arraycopy(ids, 0, newIds, 0, size);
+                ids = newIds;
+            }
+            ids[size++] = id;
+        }
+
+        void addTo(BitSet bits)
+        {
+            for (int i = 0; i < size; i++)
+                bits.set(ids[i]);
+        }
+
+        void renumber(int[] map)
+        {
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                int id = map[ids[i]];
+                if (id >= 0)
+                    ids[j++] = id;
+            }
+            size = j;
+        }
+    }
+}
@@ -86,7 +86,10 @@ public final class MailReader
 
     private final void fill() throws IOException
     {
+        // Don't touch pos or count if the read times out, so the caller can
+        // try again.
+        int n = inputStream.read(buf);
         pos = 0;
-        count = inputStream.read(buf);
+        count = n;
     }
 }
@@ -35,6 +35,7 @@ import org.armedbear.j.Display;
 import org.armedbear.j.Editor;
 import org.armedbear.j.EditorIterator;
 import org.armedbear.j.FastStringBuffer;
+import org.armedbear.j.File;
 import org.armedbear.j.History;
 import org.armedbear.j.InputDialog;
 import org.armedbear.j.Line;
@@ -277,6 +278,7 @@ public abstract class Mailbox extends Buffer
     private void tag(MailboxFilter filter)
     {
         Editor.currentEditor().setWaitCursor();
+        filter.setMailbox(this);
         for (Line line = getFirstLine(); line != null; line = line.next()) {
             if (line instanceof MailboxLine) {
                 MailboxEntry entry = ((MailboxLine)line).getMailboxEntry();
@@ -912,6 +914,9 @@ public abstract class Mailbox extends Buffer
 
     protected void refreshBuffer()
     {
+        updateMailIndex();
+        if (limitFilter != null)
+            limitFilter.setMailbox(this);
         if (getBooleanProperty(Property.GROUP_BY_THREAD)) {
             long start = System.currentTimeMillis();
             SortByThread sort = new SortByThread(entries);
@@ -967,6 +972,61 @@ public abstract class Mailbox extends Buffer
         }
     }
 
+    private MailIndex mailIndex;
+
+    public synchronized final MailIndex getMailIndex()
+    {
+        if (mailIndex == null)
+            mailIndex = new MailIndex(this, getMailIndexFile());
+        return mailIndex;
+    }
+
+    // The file the MailIndex is kept in, or null if it's only kept in
+    // memory. A mailbox that returns a file must return Long or String keys
+    // from getIndexKey() that identify the message from one session to the
+    // next.
+    protected File getMailIndexFile()
+    {
+        return null;
+    }
+
+    // Brings the index up to date in the background. Once a search has
+    // needed the index, it's kept up to date even if indexMail is false.
+    private void updateMailIndex()
+    {
+        if (entries == null)
+            return;
+        MailIndex index;
+        synchronized (this) {
+            index = mailIndex;
+        }
+        if (index == null && getBooleanProperty(Property.INDEX_MAIL))
+            index = getMailIndex();
+        if (index != null)
+            index.update(new ArrayList(entries));
+    }
+
+    protected final void disposeMailIndex()
+    {
+        synchronized (this) {
+            if (mailIndex != null)
+                mailIndex.dispose();
+        }
+    }
+
+    // Identifies the message in the mailbox's MailIndex.
+    public Object getIndexKey(MailboxEntry entry)
+    {
+        return entry;
+    }
+
+    // Returns the message if it can be read without going to the server, or
+    // null if it can't be indexed.
+    public Message getIndexableMessage(MailboxEntry entry)
+    {
+        return null;
+    }
+
     // Never returns null.
     private static List getMatchingEntries(List list, MailboxFilter filter)
     {
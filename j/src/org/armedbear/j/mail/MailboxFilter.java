@@ -196,6 +196,16 @@ public abstract class MailboxFilter
             case 'd':
                 filter = DateSentMailboxFilter.getMailboxFilter(reader);
                 break;
+            case 'h':
+                filter = new TextMailboxFilter(reader, MailIndex.HEADER);
+                break;
+            case 'b':
+                filter = new TextMailboxFilter(reader, MailIndex.BODY);
+                break;
+            case 'B':
+                filter = new TextMailboxFilter(reader,
+                    MailIndex.HEADER | MailIndex.BODY);
+                break;
             default:
                 Log.error("parseTilde() returning null, remainder = |" + reader.remainder() + "|");
                 throw new Exception();
@@ -203,5 +213,11 @@ public abstract class MailboxFilter
         return filter;
     }
 
+    // Called before the filter is applied to the entries of a mailbox, for
+    // filters that need more than the entries themselves.
+    public void setMailbox(Mailbox mb)
+    {
+    }
+
     public abstract boolean accept(MailboxEntry entry);
 }
@@ -47,14 +47,18 @@ public final class Mbox
 
     private final Mutex mutex = new Mutex();
     private final File file;
+    private final MboxReader reader;
 
     private long lastModified;
+    private long length;
+    private long tailChecksum;
     private ArrayList entries;
 
     private Mbox(File file)
     {
         this.file = file;
         Debug.assertTrue(file != null);
+        reader = new MboxReader(file);
     }
 
     public static synchronized Mbox getInstance(File file)
@@ -84,6 +88,7 @@ public final class Mbox
             Mbox mbox = (Mbox) iter.next();
             if (findMailbox(mbox) == null) {
                 Log.debug("removing Mbox for " + mbox.getFile());
+                mbox.getReader().close();
                 iter.remove();
             }
         }
@@ -109,37 +114,39 @@ public final class Mbox
         return file;
     }
 
+    // Not synchronized, so messages can be read while the mailbox is being
+    // scanned.
+    public final MboxReader getReader()
+    {
+        return reader;
+    }
+
     // Return a copy.
     public synchronized final List getEntries(ProgressNotifier progressNotifier)
     {
         Log.debug("Mbox.getEntries");
         Debug.assertTrue(isLocked());
-        if (entries != null) {
-            if (file.lastModified() > lastModified) {
-                Log.debug("mbox last modified later than entries last modified");
-                entries = null;
-            }
-        }
         if (entries == null) {
-            File summaryFile = getSummaryFile();
-            if (summaryFile.isFile() && summaryFile.lastModified() > file.lastModified()) {
+            MboxSummary summary = MboxSummary.read(getSummaryFile());
+            if (summary != null) {
                 Log.debug("using summary");
-                MboxSummary summary = MboxSummary.read(summaryFile);
-                if (summary != null) {
-                    Log.debug("summary is valid");
-                    if (summary.lastModified() == file.lastModified()) {
-                        if (summary.length() == file.length()) {
-                            entries = summary.getEntries();
-                            lastModified = file.lastModified();
-                        }
-                    }
-                }
+                entries = summary.getEntries();
+                lastModified = summary.lastModified();
+                length = summary.length();
+                tailChecksum = summary.tailChecksum();
             }
-            if (entries == null) {
-                Log.debug("entries == null, calling read...");
-                read(progressNotifier);
+        }
+        if (entries != null) {
+            if (file.lastModified() != lastModified || file.length() != length) {
+                Log.debug("mbox changed since entries were read");
+                if (!update(progressNotifier))
+                    entries = null;
             }
         }
+        if (entries == null) {
+            Log.debug("entries == null, calling read...");
+            read(progressNotifier);
+        }
         return new ArrayList(entries);
     }
 
@@ -168,90 +175,60 @@ public final class Mbox
     private synchronized void read(ProgressNotifier progressNotifier)
     {
         Log.debug("entering Mbox.read");
-        long start = System.currentTimeMillis();
         Debug.assertTrue(isLocked());
-        entries = new ArrayList(1000);
-        long messageStart = 0;
-        MailReader reader = null;
+        entries = new ArrayList();
+        if (!file.isFile())
+            return;
+        index(0, progressNotifier);
+        Log.debug("leaving Mbox.read");
+    }
+
+    // If the mailbox has only grown since the entries were read, rescan it
+    // from the start of the last known message (which may have grown too).
+    // Returns false if a full read is needed.
+    private synchronized boolean update(ProgressNotifier progressNotifier)
+    {
+        Debug.assertTrue(isLocked());
+        if (entries.size() == 0 || file.length() < length)
+            return false;
+        if (MboxIndexer.getTailChecksum(file, length) != tailChecksum) {
+            Log.debug("Mbox.update mailbox has been rewritten");
+            return false;
+        }
+        LocalMailboxEntry entry =
+            (LocalMailboxEntry) entries.remove(entries.size()-1);
+        if (!index(entry.getMessageStart(), progressNotifier)) {
+            entries.add(entry);
+            return false;
+        }
+        return true;
+    }
+
+    // Indexes the mailbox from start to the end of the file and appends the
+    // entries found. Returns false if the user cancels.
+    private boolean index(long start, ProgressNotifier progressNotifier)
+    {
+        long begin = System.currentTimeMillis();
+        final long modified = file.lastModified();
+        final long end = file.length();
         try {
-            if (!file.isFile())
-                return;
-            reader = new MailReader(file.getInputStream());
-            FastStringBuffer sb = new FastStringBuffer(1024);
-            boolean complete = false;
-            while (true) {
-                long here = reader.getOffset();
-                String text = reader.readLine();
-                if (text == null) {
-                    // End of file.
-                    Log.debug("read - end of file");
-                    if (entries.size() > 0) {
-                        LocalMailboxEntry entry =
-                            (LocalMailboxEntry) entries.get(entries.size()-1);
-                        entry.setSize((int)(here - messageStart));
-                        entry.setNextMessageStart(here);
-                    }
-                    complete = true;
-                    break;
-                }
-                if (text.startsWith("From ")) {
-                    if (entries.size() > 0) {
-                        LocalMailboxEntry entry =
-                            (LocalMailboxEntry) entries.get(entries.size()-1);
-                        entry.setSize((int)(here - messageStart));
-                        entry.setNextMessageStart(here);
-                        messageStart = here;
-                    }
-                    if (progressNotifier != null && progressNotifier.cancelled()) {
-                        Log.debug("Mbox.read cancelled!");
-                        break;
-                    }
-                    sb.setLength(0);
-                    while (true) {
-                        text = reader.readLine();
-                        if (text == null)
-                            return; // Shouldn't happen.
-                        if (text.length() == 0)
-                            break; // End of header.
-                        sb.append(text);
-                        sb.append('\n');
-                    }
-                    LocalMailboxEntry entry =
-                        new LocalMailboxEntry(entries.size()+1, here, sb.toString());
-                    entries.add(entry);
-                    if (progressNotifier != null) {
-                        sb.setLength(0);
-                        sb.append("Read ");
-                        sb.append(entries.size());
-                        sb.append(" message");
-                        if (entries.size() > 1)
-                            sb.append('s');
-                        progressNotifier.progress(sb.toString());
-                    }
-                }
-            }
-            if (complete) {
-                long elapsed = System.currentTimeMillis() - start;
-                Log.debug("Mbox.read " + elapsed + " ms");
-                // User did not cancel.
-                writeSummary();
-                Log.debug("Mbox.read - after writeSummary");
-                lastModified = file.lastModified();
-            }
+            MboxIndexer indexer = new MboxIndexer(file, progressNotifier);
+            List list = indexer.index(start, end, entries.size()+1);
+            if (list == null)
+                return false; // Cancelled.
+            entries.addAll(list);
+            lastModified = modified;
+            length = end;
+            tailChecksum = MboxIndexer.getTailChecksum(file, end);
+            long elapsed = System.currentTimeMillis() - begin;
+            Log.debug("Mbox.index " + list.size() + " messages from offset " +
+                start + " " + elapsed + " ms");
+            writeSummary();
+            return true;
         }
         catch (IOException e) {
             Log.error(e);
-        }
-        finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                }
-                catch (IOException e) {
-                    Log.error(e);
-                }
-            }
-            Log.debug("leaving Mbox.read");
+            return false;
         }
     }
 
@@ -363,12 +340,13 @@ public final class Mbox
         return File.getInstance(file.canonicalPath() + ".summary");
     }
 
-    // Called only from read().
+    // Called only from index().
     private void writeSummary()
     {
         Debug.assertTrue(isLocked());
         File summaryFile = getSummaryFile();
-        MboxSummary summary = new MboxSummary(file, entries);
+        MboxSummary summary =
+            new MboxSummary(file, entries, lastModified, length, tailChecksum);
         summary.write(summaryFile);
     }
 
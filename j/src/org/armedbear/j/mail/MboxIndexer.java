@@ -0,0 +1,298 @@
+/*
+ * MboxIndexer.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import org.armedbear.j.FastStringBuffer;
+import org.armedbear.j.File;
+import org.armedbear.j.Log;
+import org.armedbear.j.ProgressNotifier;
+
+// Finds the messages in an mbox file by scanning the raw bytes for lines
+// that start with "From ". Large ranges are split into chunks that are
+// scanned in parallel, each with its own positional reads; the results are
+// merged in order on the calling thread.
+//
+// The result is the same as reading the file line by line: a "From " line
+// in the header of a message is not a message boundary, and carriage
+// returns are dropped from the header text.
+public final class MboxIndexer
+{
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    // Size of the region at the end of the file that is checksummed to
+    // detect appends.
+    private static final int TAIL_SIZE = 4096;
+
+    private final File file;
+    private final ProgressNotifier progressNotifier;
+    private final int chunkSize;
+
+    private FileChannel channel;
+
+    public MboxIndexer(File file, ProgressNotifier progressNotifier)
+    {
+        this(file, progressNotifier, CHUNK_SIZE);
+    }
+
+    // For testing.
+    /*package*/ MboxIndexer(File file, ProgressNotifier progressNotifier,
+        int chunkSize)
+    {
+        this.file = file;
+        this.progressNotifier = progressNotifier;
+        this.chunkSize = chunkSize;
+    }
+
+    // Returns entries for the messages that start in the range from start
+    // (which must be the start of a line) to end, numbered from
+    // firstMessageNumber. Returns null if the user cancels.
+    public List index(long start, long end, int firstMessageNumber)
+        throws IOException
+    {
+        RandomAccessFile raf = file.getRandomAccessFile("r");
+        channel = raf.getChannel();
+        ForkJoinPool pool = null;
+        try {
+            ArrayList scanners = new ArrayList();
+            for (long pos = start; pos < end; pos += chunkSize)
+                scanners.add(new ChunkScanner(pos, Math.min(pos + chunkSize, end),
+                    end, pos == start));
+            if (scanners.size() > 1) {
+                pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+                for (int i = 0; i < scanners.size(); i++)
+                    pool.execute((ChunkScanner) scanners.get(i));
+            }
+            ArrayList entries = new ArrayList();
+            LocalMailboxEntry last = null;
+            long headerEnd = start;
+            FastStringBuffer sb = new FastStringBuffer();
+            for (int i = 0; i < scanners.size(); i++) {
+                ChunkScanner scanner = (ChunkScanner) scanners.get(i);
+                List list = (List) (pool != null ? scanner.join() : scanner.invoke());
+                if (scanner.exception != null)
+                    throw scanner.exception;
+                for (int j = 0; j < list.size(); j++) {
+                    Candidate candidate = (Candidate) list.get(j);
+                    if (candidate.start < headerEnd)
+                        continue; // In the header of the previous message.
+                    if (last != null) {
+                        last.setNextMessageStart(candidate.start);
+                        last.setSize((int)(candidate.start - last.getMessageStart()));
+                    }
+                    last = candidate.entry;
+                    last.setMessageNumber(firstMessageNumber + entries.size());
+                    entries.add(last);
+                    headerEnd = candidate.headerEnd;
+                }
+                if (progressNotifier != null) {
+                    if (progressNotifier.cancelled()) {
+                        Log.debug("MboxIndexer.index cancelled!");
+                        return null;
+                    }
+                    sb.setLength(0);
+                    sb.append("Read ");
+                    sb.append(firstMessageNumber - 1 + entries.size());
+                    sb.append(" message");
+                    if (firstMessageNumber - 1 + entries.size() != 1)
+                        sb.append('s');
+                    progressNotifier.progress(sb.toString());
+                }
+            }
+            if (last != null) {
+                last.setNextMessageStart(end);
+                last.setSize((int)(end - last.getMessageStart()));
+            }
+            return entries;
+        }
+        finally {
+            if (pool != null)
+                pool.shutdownNow();
+            channel = null;
+            raf.close();
+        }
+    }
+
+    // Returns a checksum of the bytes just before offset. If the checksum
+    // is unchanged and the file is no shorter, the file has probably only
+    // been appended to since then.
+    public static long getTailChecksum(File file, long offset)
+    {
+        RandomAccessFile raf = null;
+        try {
+            raf = file.getRandomAccessFile("r");
+            if (raf.length() < offset)
+                return -1;
+            final long start = Math.max(0, offset - TAIL_SIZE);
+            byte[] bytes = new byte[(int)(offset - start)];
+            raf.seek(start);
+            raf.readFully(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            return crc.getValue();
+        }
+        catch (IOException e) {
+            Log.error(e);
+            return -1;
+        }
+        finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                }
+                catch (IOException e) {
+                    Log.error(e);
+                }
+            }
+        }
+    }
+
+    private static final class Candidate
+    {
+        final long start;
+        final long headerEnd;
+        final LocalMailboxEntry entry;
+
+        Candidate(long start, long headerEnd, LocalMailboxEntry entry)
+        {
+            this.start = start;
+            this.headerEnd = headerEnd;
+            this.entry = entry;
+        }
+    }
+
+    // Finds the "From " lines that start in one chunk. Headers may extend
+    // past the end of the chunk (but not past the end of the range).
+    private final class ChunkScanner extends RecursiveTask
+    {
+        private final long chunkStart;
+        private final long chunkEnd;
+        private final long end;
+        private final boolean atLineStart;
+
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private long blockStart = -1;
+        private int blockLength;
+
+        IOException exception;
+
+        ChunkScanner(long chunkStart, long chunkEnd, long end,
+            boolean atLineStart)
+        {
+            this.chunkStart = chunkStart;
+            this.chunkEnd = chunkEnd;
+            this.end = end;
+            this.atLineStart = atLineStart;
+        }
+
+        protected Object compute()
+        {
+            ArrayList list = new ArrayList();
+            try {
+                long pos = chunkStart;
+                if (!atLineStart && get(pos - 1) != '\n')
+                    pos = nextLine(pos);
+                FastStringBuffer sb = new FastStringBuffer(1024);
+                while (pos < chunkEnd) {
+                    if (isFromLine(pos)) {
+                        // Header.
+                        sb.setLength(0);
+                        long here = nextLine(pos);
+                        while (here < end) {
+                            int c = get(here++);
+                            if (c == '\n') {
+                                if (sb.length() == 0 ||
+                                    sb.charAt(sb.length() - 1) == '\n')
+                                    break; // End of header.
+                                sb.append('\n');
+                            } else if (c != '\r')
+                                sb.append((char) c);
+                        }
+                        list.add(new Candidate(pos, here,
+                            new LocalMailboxEntry(0, pos, sb.toString())));
+                        pos = here;
+                    } else
+                        pos = nextLine(pos);
+                }
+            }
+            catch (IOException e) {
+                exception = e;
+            }
+            return list;
+        }
+
+        private boolean isFromLine(long pos) throws IOException
+        {
+            return pos + 5 <= end && get(pos) == 'F' && get(pos + 1) == 'r' &&
+                get(pos + 2) == 'o' && get(pos + 3) == 'm' &&
+                get(pos + 4) == ' ';
+        }
+
+        // Returns the offset of the start of the line after the one that
+        // contains pos, or end.
+        private long nextLine(long pos) throws IOException
+        {
+            while (pos < end) {
+                if (pos < blockStart || pos >= blockStart + blockLength)
+                    fill(pos);
+                final byte[] bytes = block.array();
+                int i = (int)(pos - blockStart);
+                while (i < blockLength) {
+                    if (bytes[i++] == '\n')
+                        return blockStart + i;
+                }
+                pos = blockStart + blockLength;
+            }
+            return end;
+        }
+
+        private int get(long pos) throws IOException
+        {
+            if (pos < blockStart || pos >= blockStart + blockLength)
+                fill(pos);
+            return block.array()[(int)(pos - blockStart)] & 0xff;
+        }
+
+        private void fill(long pos) throws IOException
+        {
+            block.clear();
+            final int length = (int) Math.min(BLOCK_SIZE, end - pos);
+            block.limit(length);
+            while (block.hasRemaining()) {
+                if (channel.read(block, pos + block.position()) < 0)
+                    throw new IOException("unexpected end of file " +
+                        file.canonicalPath());
+            }
+            blockStart = pos;
+            blockLength = length;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * MboxReader.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.armedbear.j.File;
+import org.armedbear.j.Log;
+
+// Shared reader for an mbox file. Reads whole messages with a single
+// positional read, so callers don't share a file pointer and nothing is
+// read a byte at a time.
+//
+// The file is reopened if it has been replaced or changed since it was
+// opened (LocalMailbox.rewriteMailbox() replaces it).
+public final class MboxReader
+{
+    private final File file;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long lastModified;
+    private long length;
+
+    public MboxReader(File file)
+    {
+        this.file = file;
+    }
+
+    // Returns the bytes from start (inclusive) to end (exclusive).
+    public synchronized byte[] read(long start, long end) throws IOException
+    {
+        if (end < start || end - start > Integer.MAX_VALUE)
+            throw new IOException("invalid range " + start + " " + end);
+        open();
+        byte[] bytes = new byte[(int)(end - start)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = start;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("unexpected end of file " +
+                    file.canonicalPath());
+            position += n;
+        }
+        return bytes;
+    }
+
+    private void open() throws IOException
+    {
+        if (channel != null) {
+            if (file.lastModified() == lastModified && file.length() == length)
+                return;
+            close();
+        }
+        lastModified = file.lastModified();
+        length = file.length();
+        raf = file.getRandomAccessFile("r");
+        channel = raf.getChannel();
+    }
+
+    public synchronized void close()
+    {
+        if (raf != null) {
+            try {
+                raf.close();
+            }
+            catch (IOException e) {
+                Log.error(e);
+            }
+            raf = null;
+            channel = null;
+        }
+    }
+}
@@ -21,31 +21,38 @@
 
 package org.armedbear.j.mail;
 
-import java.io.BufferedInputStream;
-import java.io.InvalidClassException;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 import org.armedbear.j.File;
 import org.armedbear.j.Log;
-import org.armedbear.j.Utilities;
 
-public final class MboxSummary implements Serializable
+public final class MboxSummary
 {
     private final ArrayList entries;
     private final String path;
     private long lastModified;
     private long length;
 
-    public MboxSummary(File mailboxFile, List entries)
+    // Checksum of the end of the mailbox (see MboxIndexer.getTailChecksum),
+    // used to tell whether the mailbox has only been appended to.
+    private long tailChecksum;
+
+    public MboxSummary(File mailboxFile, List entries, long lastModified,
+        long length, long tailChecksum)
+    {
+        this(new ArrayList(entries), mailboxFile.canonicalPath(), lastModified,
+            length, tailChecksum);
+    }
+
+    private MboxSummary(ArrayList entries, String path, long lastModified,
+        long length, long tailChecksum)
     {
-        this.entries = new ArrayList(entries);
-        path = mailboxFile.canonicalPath();
-        lastModified = mailboxFile.lastModified();
-        length = mailboxFile.length();
+        this.entries = entries;
+        this.path = path;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.tailChecksum = tailChecksum;
     }
 
     public synchronized ArrayList getEntries()
@@ -63,17 +70,22 @@ public final class MboxSummary implements Serializable
         return lastModified;
     }
 
+    public synchronized long tailChecksum()
+    {
+        return tailChecksum;
+    }
+
     public synchronized void write(File file)
     {
         try {
             Log.debug("MboxSummary.write");
             long start = System.currentTimeMillis();
-            File temp = Utilities.getTempFile();
-            ObjectOutputStream objectOut = new ObjectOutputStream(temp.getOutputStream());
-            objectOut.writeObject(this);
-            objectOut.flush();
-            objectOut.close();
-            Utilities.deleteRename(temp, file);
+            Properties properties = new Properties();
+            properties.setProperty("path", path);
+            properties.setProperty("lastModified", String.valueOf(lastModified));
+            properties.setProperty("length", String.valueOf(length));
+            properties.setProperty("tailChecksum", String.valueOf(tailChecksum));
+            new SummaryStore(SummaryStore.LOCAL, properties, entries).write(file);
             long elapsed = System.currentTimeMillis() - start;
             Log.debug("MboxSummary.write completed " + elapsed + " ms");
         }
@@ -82,39 +94,25 @@ public final class MboxSummary implements Serializable
         }
     }
 
+    // Returns the summary if the mailbox it describes still exists and is
+    // no shorter than it was. The caller checks whether it is current.
     public static MboxSummary read(File file)
     {
         Log.debug("MboxSummary.read");
-        if (file == null || !file.isFile())
+        SummaryStore store = SummaryStore.read(file);
+        if (store == null || store.getKind() != SummaryStore.LOCAL)
             return null;
-        ObjectInputStream in = null;
-        try {
-            in = new ObjectInputStream(new BufferedInputStream(file.getInputStream()));
-            MboxSummary summary = (MboxSummary) in.readObject();
-            File mailboxFile = File.getInstance(summary.path);
-            if (mailboxFile != null && mailboxFile.isFile()) {
-                if (summary.length == mailboxFile.length())
-                    if (summary.lastModified == mailboxFile.lastModified())
-                        return summary;
-            }
-        }
-        catch (InvalidClassException e) {
-            // Expected if an incompatible change has been made to the
-            // serialized class. No big deal.
-            Log.debug(e);
-        }
-        catch (Exception e) {
-            Log.error(e);
-        }
-        finally {
-            if (in != null) {
-                try {
-                    in.close();
-                }
-                catch (IOException e) {
-                    Log.error(e);
-                }
-            }
+        String path = store.getProperty("path");
+        if (path == null)
+            return null;
+        MboxSummary summary = new MboxSummary(store.getEntries(), path,
+            store.getLongProperty("lastModified"),
+            store.getLongProperty("length"),
+            store.getLongProperty("tailChecksum"));
+        File mailboxFile = File.getInstance(path);
+        if (mailboxFile != null && mailboxFile.isFile()) {
+            if (summary.length <= mailboxFile.length())
+                return summary;
         }
         return null;
     }
@@ -30,6 +30,11 @@ public final class NotTerm extends MailboxFilter
         this.filter = filter;
     }
 
+    public void setMailbox(Mailbox mb)
+    {
+        filter.setMailbox(mb);
+    }
+
     public final boolean accept(MailboxEntry entry)
     {
         return !filter.accept(entry);
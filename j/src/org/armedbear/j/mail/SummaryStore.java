@@ -0,0 +1,533 @@
+/*
+ * SummaryStore.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import org.armedbear.j.FastStringBuffer;
+import org.armedbear.j.File;
+import org.armedbear.j.Log;
+import org.armedbear.j.Utilities;
+
+// Saves a list of mailbox entries in a compact binary file, so a mailbox
+// can be reopened without parsing all its headers again.
+//
+// The file is laid out by column rather than by entry: all the flags, then
+// all the sizes, and so on. Each distinct string (subject, message id,
+// address, ...) is stored once in a string table, and each distinct
+// address once in an address table; the columns refer to them by index.
+// Reading the file is one pass over a mapped buffer, and entries that came
+// from the same correspondent or thread share their strings and addresses.
+//
+// Flag changes don't require rewriting the file. appendFlags() adds a
+// record to the journal at the end of the file, and read() applies the
+// journal to the entries. The journal goes away when the file is written
+// again.
+//
+// The file starts with a magic number and a version. A file written by
+// another version (or by the Java serialization we used to use) is simply
+// ignored, and the caller rebuilds it from the mailbox.
+public final class SummaryStore
+{
+    private static final int MAGIC = 0x6a53554d; // "jSUM"
+    private static final int VERSION = 1;
+
+    // Kinds of entries.
+    public static final int LOCAL = 1;
+    public static final int IMAP  = 2;
+
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private final int kind;
+    private final Properties properties;
+    private final ArrayList entries;
+
+    public SummaryStore(int kind, Properties properties, List entries)
+    {
+        this.kind = kind;
+        this.properties = properties;
+        this.entries = new ArrayList(entries);
+    }
+
+    public final int getKind()
+    {
+        return kind;
+    }
+
+    public final String getProperty(String key)
+    {
+        return properties.getProperty(key);
+    }
+
+    public final long getLongProperty(String key)
+    {
+        String s = properties.getProperty(key);
+        if (s != null) {
+            try {
+                return Long.parseLong(s);
+            }
+            catch (NumberFormatException e) {
+                Log.error(e);
+            }
+        }
+        return 0;
+    }
+
+    public final ArrayList getEntries()
+    {
+        return entries;
+    }
+
+    // Writes the file from scratch (via a temporary file, so a reader never
+    // sees half of it).
+    public void write(File file) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        final int n = entries.size();
+        Tables tables = new Tables();
+        for (int i = 0; i < n; i++)
+            tables.add((MailboxEntry) entries.get(i));
+        File temp = Utilities.getTempFile(file.getParentFile());
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(temp.getOutputStream(), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(kind);
+            out.writeInt(properties.size());
+            for (Enumeration e = properties.keys(); e.hasMoreElements();) {
+                String key = (String) e.nextElement();
+                writeString(out, key);
+                writeString(out, properties.getProperty(key));
+            }
+            out.writeInt(n);
+            // String table.
+            out.writeInt(tables.strings.size());
+            for (int i = 0; i < tables.strings.size(); i++)
+                writeString(out, (String) tables.strings.get(i));
+            // Address table.
+            out.writeInt(tables.addresses.size());
+            for (int i = 0; i < tables.addresses.size(); i++) {
+                MailAddress a = (MailAddress) tables.addresses.get(i);
+                out.writeInt(tables.indexOf(a.getPersonal()));
+                out.writeInt(tables.indexOf(a.getEncodedPersonal()));
+                out.writeInt(tables.indexOf(a.getAddress()));
+            }
+            // Columns.
+            for (int i = 0; i < n; i++)
+                out.writeInt(entry(i).flags & ~MailboxEntry.TAGGED);
+            for (int i = 0; i < n; i++)
+                out.writeInt(entry(i).messageNumber);
+            for (int i = 0; i < n; i++)
+                out.writeInt(entry(i).size);
+            for (int i = 0; i < n; i++)
+                out.writeLong(getTime(entry(i).date));
+            for (int i = 0; i < n; i++)
+                out.writeInt(tables.indexOf(entry(i).subject));
+            for (int i = 0; i < n; i++)
+                out.writeInt(tables.indexOf(entry(i).messageId));
+            for (int i = 0; i < n; i++)
+                out.writeInt(tables.indexOf(entry(i).inReplyTo));
+            for (int column = 0; column < 4; column++) {
+                for (int i = 0; i < n; i++) {
+                    MailAddress[] array = getAddresses(entry(i), column);
+                    out.writeInt(array != null ? array.length : -1);
+                }
+                for (int i = 0; i < n; i++) {
+                    MailAddress[] array = getAddresses(entry(i), column);
+                    if (array != null)
+                        for (int j = 0; j < array.length; j++)
+                            out.writeInt(tables.indexOf(array[j]));
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                String[] refs = entry(i).references;
+                out.writeInt(refs != null ? refs.length : -1);
+            }
+            for (int i = 0; i < n; i++) {
+                String[] refs = entry(i).references;
+                if (refs != null)
+                    for (int j = 0; j < refs.length; j++)
+                        out.writeInt(tables.indexOf(refs[j]));
+            }
+            if (kind == LOCAL) {
+                for (int i = 0; i < n; i++)
+                    out.writeLong(((LocalMailboxEntry)entry(i)).getMessageStart());
+                for (int i = 0; i < n; i++)
+                    out.writeLong(((LocalMailboxEntry)entry(i)).getNextMessageStart());
+                for (int i = 0; i < n; i++)
+                    out.writeInt(tables.indexOf(((LocalMailboxEntry)entry(i)).getUidl()));
+            } else {
+                for (int i = 0; i < n; i++)
+                    out.writeInt(((ImapMailboxEntry)entry(i)).getUid());
+                for (int i = 0; i < n; i++)
+                    out.writeLong(getTime(((ImapMailboxEntry)entry(i)).getArrival()));
+            }
+            out.flush();
+        }
+        finally {
+            out.close();
+        }
+        if (!Utilities.deleteRename(temp, file))
+            throw new IOException("unable to rename " + temp + " to " + file);
+        Log.debug("SummaryStore.write " + n + " entries " +
+            tables.strings.size() + " strings " + tables.addresses.size() +
+            " addresses " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private final MailboxEntry entry(int i)
+    {
+        return (MailboxEntry) entries.get(i);
+    }
+
+    // Adds a record to the journal. The key is the entry's UID for an IMAP
+    // summary, its message number for a local one. Returns false if there's
+    // no summary to add to.
+    public static boolean appendFlags(File file, int key, int flags)
+    {
+        if (file == null || !file.isFile())
+            return false;
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(file.canonicalPath(), true));
+            try {
+                // One write, so a crash can't leave half a record.
+                ByteBuffer bb = ByteBuffer.allocate(8);
+                bb.putInt(key);
+                bb.putInt(flags & ~MailboxEntry.TAGGED);
+                out.write(bb.array());
+            }
+            finally {
+                out.close();
+            }
+            return true;
+        }
+        catch (IOException e) {
+            Log.error(e);
+            return false;
+        }
+    }
+
+    // Returns null if the file doesn't exist or isn't a summary written by
+    // this version.
+    public static SummaryStore read(File file)
+    {
+        if (file == null || !file.isFile())
+            return null;
+        long start = System.currentTimeMillis();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file.canonicalPath(), "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer bb =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (bb.remaining() < 8 || bb.getInt() != MAGIC ||
+                bb.getInt() != VERSION) {
+                Log.debug("SummaryStore.read " + file + " wrong version");
+                return null;
+            }
+            SummaryStore store = read(bb);
+            Log.debug("SummaryStore.read " + store.entries.size() +
+                " entries " + (System.currentTimeMillis() - start) + " ms");
+            return store;
+        }
+        catch (Exception e) {
+            // Truncated or otherwise damaged. We'll write a new one.
+            Log.error(e);
+            return null;
+        }
+        finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                }
+                catch (IOException e) {
+                    Log.error(e);
+                }
+            }
+        }
+    }
+
+    private static SummaryStore read(ByteBuffer bb)
+    {
+        final int kind = bb.getInt();
+        if (kind != LOCAL && kind != IMAP)
+            throw new IllegalStateException("bad kind " + kind);
+        Properties properties = new Properties();
+        for (int i = bb.getInt(); i > 0; i--) {
+            String key = readString(bb);
+            properties.put(key, readString(bb));
+        }
+        final int n = bb.getInt();
+        String[] strings = new String[bb.getInt()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = readString(bb);
+        MailAddress[] addresses = new MailAddress[bb.getInt()];
+        for (int i = 0; i < addresses.length; i++) {
+            String personal = getString(strings, bb.getInt());
+            String encodedPersonal = getString(strings, bb.getInt());
+            String address = getString(strings, bb.getInt());
+            addresses[i] =
+                MailAddress.restore(personal, encodedPersonal, address);
+        }
+        // The entries themselves come from the last columns, so read the
+        // rest into arrays first.
+        int[] flags = readInts(bb, n);
+        int[] messageNumbers = readInts(bb, n);
+        int[] sizes = readInts(bb, n);
+        long[] dates = readLongs(bb, n);
+        int[] subjects = readInts(bb, n);
+        int[] messageIds = readInts(bb, n);
+        int[] inReplyTos = readInts(bb, n);
+        MailAddress[][][] addressColumns = new MailAddress[4][][];
+        for (int column = 0; column < 4; column++) {
+            int[] counts = readInts(bb, n);
+            MailAddress[][] arrays = new MailAddress[n][];
+            for (int i = 0; i < n; i++) {
+                if (counts[i] >= 0) {
+                    MailAddress[] array = new MailAddress[counts[i]];
+                    for (int j = 0; j < array.length; j++) {
+                        int index = bb.getInt();
+                        array[j] = index >= 0 ? addresses[index] : null;
+                    }
+                    arrays[i] = array;
+                }
+            }
+            addressColumns[column] = arrays;
+        }
+        int[] refCounts = readInts(bb, n);
+        String[][] refs = new String[n][];
+        for (int i = 0; i < n; i++) {
+            if (refCounts[i] >= 0) {
+                String[] array = new String[refCounts[i]];
+                for (int j = 0; j < array.length; j++)
+                    array[j] = getString(strings, bb.getInt());
+                refs[i] = array;
+            }
+        }
+        MailboxEntry[] array = new MailboxEntry[n];
+        if (kind == LOCAL) {
+            long[] starts = readLongs(bb, n);
+            long[] nextStarts = readLongs(bb, n);
+            int[] uidls = readInts(bb, n);
+            for (int i = 0; i < n; i++)
+                array[i] = new LocalMailboxEntry(messageNumbers[i], starts[i],
+                    nextStarts[i], getString(strings, uidls[i]));
+        } else {
+            int[] uids = readInts(bb, n);
+            long[] arrivals = readLongs(bb, n);
+            for (int i = 0; i < n; i++)
+                array[i] = new ImapMailboxEntry(uids[i], getDate(arrivals[i]));
+        }
+        ArrayList entries = new ArrayList(n);
+        for (int i = 0; i < n; i++) {
+            MailboxEntry entry = array[i];
+            entry.flags = flags[i];
+            entry.messageNumber = messageNumbers[i];
+            entry.size = sizes[i];
+            entry.date = getDate(dates[i]);
+            entry.subject = getString(strings, subjects[i]);
+            entry.messageId = getString(strings, messageIds[i]);
+            entry.inReplyTo = getString(strings, inReplyTos[i]);
+            entry.from = addressColumns[0][i];
+            entry.replyTo = addressColumns[1][i];
+            entry.to = addressColumns[2][i];
+            entry.cc = addressColumns[3][i];
+            entry.references = refs[i];
+            entries.add(entry);
+        }
+        // Journal. An incomplete record at the end is ignored.
+        if (bb.remaining() >= 8) {
+            HashMap map = new HashMap(n);
+            for (int i = 0; i < n; i++) {
+                int key = kind == IMAP ? ((ImapMailboxEntry)array[i]).getUid() :
+                    array[i].messageNumber;
+                map.put(Integer.valueOf(key), array[i]);
+            }
+            int count = 0;
+            while (bb.remaining() >= 8) {
+                MailboxEntry entry = (MailboxEntry) map.get(Integer.valueOf(bb.getInt()));
+                int f = bb.getInt();
+                if (entry != null)
+                    entry.flags = f;
+                ++count;
+            }
+            Log.debug("SummaryStore.read applied " + count + " journal records");
+        }
+        return new SummaryStore(kind, properties, entries);
+    }
+
+    private static int[] readInts(ByteBuffer bb, int n)
+    {
+        int[] array = new int[n];
+        bb.asIntBuffer().get(array);
+        bb.position(bb.position() + n * 4);
+        return array;
+    }
+
+    private static long[] readLongs(ByteBuffer bb, int n)
+    {
+        long[] array = new long[n];
+        bb.asLongBuffer().get(array);
+        bb.position(bb.position() + n * 8);
+        return array;
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer bb)
+    {
+        byte[] bytes = new byte[bb.getInt()];
+        bb.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static String getString(String[] strings, int index)
+    {
+        return index >= 0 ? strings[index] : null;
+    }
+
+    private static long getTime(RFC822Date date)
+    {
+        return date != null && date.getDate() != null ? date.getTime() : NO_DATE;
+    }
+
+    private static RFC822Date getDate(long time)
+    {
+        return time != NO_DATE ? new RFC822Date(new Date(time)) : null;
+    }
+
+    private static MailAddress[] getAddresses(MailboxEntry entry, int column)
+    {
+        switch (column) {
+            case 0:
+                return entry.from;
+            case 1:
+                return entry.replyTo;
+            case 2:
+                return entry.to;
+            default:
+                return entry.cc;
+        }
+    }
+
+    // The string and address tables, built while writing.
+    private static final class Tables
+    {
+        final ArrayList strings = new ArrayList();
+        final ArrayList addresses = new ArrayList();
+        private final HashMap stringMap = new HashMap();
+        private final HashMap addressMap = new HashMap();
+
+        void add(MailboxEntry entry)
+        {
+            addString(entry.subject);
+            addString(entry.messageId);
+            addString(entry.inReplyTo);
+            addString(entry.getUidl());
+            for (int column = 0; column < 4; column++) {
+                MailAddress[] array = getAddresses(entry, column);
+                if (array != null)
+                    for (int j = 0; j < array.length; j++)
+                        if (array[j] != null)
+                            addAddress(array[j]);
+            }
+            if (entry.references != null)
+                for (int j = 0; j < entry.references.length; j++)
+                    addString(entry.references[j]);
+        }
+
+        private void addString(String s)
+        {
+            if (s != null && !stringMap.containsKey(s)) {
+                stringMap.put(s, Integer.valueOf(strings.size()));
+                strings.add(s);
+            }
+        }
+
+        private void addAddress(MailAddress a)
+        {
+            String key = addressKey(a);
+            if (!addressMap.containsKey(key)) {
+                addressMap.put(key, Integer.valueOf(addresses.size()));
+                addresses.add(a);
+                addString(a.getPersonal());
+                addString(a.getEncodedPersonal());
+                addString(a.getAddress());
+            }
+        }
+
+        int indexOf(String s)
+        {
+            return s != null ? ((Integer)stringMap.get(s)).intValue() : -1;
+        }
+
+        int indexOf(MailAddress a)
+        {
+            if (a == null)
+                return -1;
+            return ((Integer)addressMap.get(addressKey(a))).intValue();
+        }
+
+        private static String addressKey(MailAddress a)
+        {
+            FastStringBuffer sb = new FastStringBuffer();
+            appendKey(sb, a.getPersonal());
+            appendKey(sb, a.getEncodedPersonal());
+            appendKey(sb, a.getAddress());
+            return sb.toString();
+        }
+
+        private static void appendKey(FastStringBuffer sb, String s)
+        {
+            // Null is different from any string.
+            if (s != null) {
+                sb.append('"');
+                sb.append(s);
+            }
+            sb.append('\0');
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * TextMailboxFilter.java
+ *
+ * Copyright (C) 2026
+ * $Id$
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import java.util.BitSet;
+import org.armedbear.j.FastStringReader;
+
+// Matches messages containing all of the words of the pattern in the given
+// fields, using the mailbox's MailIndex. A trailing '*' matches any word
+// starting with the last word of the pattern. Matching is always
+// case-insensitive.
+public final class TextMailboxFilter extends MailboxFilter
+{
+    private final String[] terms;
+    private final boolean prefix;
+    private final int fields;
+
+    private Mailbox mailbox;
+    private MailIndex index;
+    private int generation;
+    private BitSet matches;
+
+    public TextMailboxFilter(FastStringReader reader, int fields)
+    {
+        String pattern = reader.readToken();
+        terms = MailIndex.getTerms(pattern);
+        prefix = pattern.endsWith("*");
+        this.fields = fields;
+    }
+
+    public void setMailbox(Mailbox mb)
+    {
+        if (mb != mailbox) {
+            mailbox = mb;
+            matches = null;
+        }
+    }
+
+    public boolean accept(MailboxEntry entry)
+    {
+        if (mailbox == null || terms.length == 0)
+            return false;
+        MailIndex mailIndex = mailbox.getMailIndex();
+        if (matches == null || mailIndex != index ||
+            mailIndex.getGeneration() != generation) {
+            mailIndex.flush();
+            index = mailIndex;
+            generation = mailIndex.getGeneration();
+            matches = mailIndex.search(terms, fields, prefix);
+        }
+        int id = mailIndex.getDocId(entry);
+        return id >= 0 && matches.get(id);
+    }
+}
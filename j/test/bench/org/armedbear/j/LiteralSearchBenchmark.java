@@ -0,0 +1,166 @@
+/*
+ * LiteralSearchBenchmark.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.util.Random;
+
+// Measures searching 100,000 lines of text for literal patterns, case
+// sensitive and ignoring case, with LiteralMatcher compared with the old
+// way (String.indexOf(), and lowercasing each line to ignore case).
+//
+// Usage: ant bench, or
+//   java -cp build/classes:build/bench org.armedbear.j.LiteralSearchBenchmark [millis]
+public final class LiteralSearchBenchmark
+{
+    private static final String[] PATTERNS = {
+        "if", "return", "notFoundModCount", "zzzzzz"
+    };
+
+    private static final int LINES = 100000;
+
+    interface Finder
+    {
+        // Returns the number of lines that contain a match.
+        int find(String[] lines);
+    }
+
+    public static void main(String[] args)
+    {
+        final long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        final String[] lines = makeLines();
+        System.out.println(LINES + " lines, " + millis +
+                           " ms per run, lines per ms");
+        System.out.println("pattern             indexOf    matcher  lowercase" +
+                           " matcher -i");
+        for (int i = 0; i < PATTERNS.length; i++) {
+            final String pattern = PATTERNS[i];
+            final String lowerCasePattern = pattern.toLowerCase();
+            final LiteralMatcher matcher = new LiteralMatcher(pattern, false);
+            final LiteralMatcher ignoreCase = new LiteralMatcher(pattern, true);
+            Finder[] finders = {
+                new Finder() {
+                    public int find(String[] lines)
+                    {
+                        int count = 0;
+                        for (int j = 0; j < lines.length; j++)
+                            if (lines[j].indexOf(pattern) >= 0)
+                                ++count;
+                        return count;
+                    }
+                },
+                new Finder() {
+                    public int find(String[] lines)
+                    {
+                        int count = 0;
+                        for (int j = 0; j < lines.length; j++) {
+                            String s = lines[j];
+                            if (matcher.indexOf(s, 0, s.length()) >= 0)
+                                ++count;
+                        }
+                        return count;
+                    }
+                },
+                new Finder() {
+                    public int find(String[] lines)
+                    {
+                        int count = 0;
+                        for (int j = 0; j < lines.length; j++)
+                            if (lines[j].toLowerCase().indexOf(lowerCasePattern) >= 0)
+                                ++count;
+                        return count;
+                    }
+                },
+                new Finder() {
+                    public int find(String[] lines)
+                    {
+                        int count = 0;
+                        for (int j = 0; j < lines.length; j++) {
+                            String s = lines[j];
+                            if (ignoreCase.indexOf(s, 0, s.length()) >= 0)
+                                ++count;
+                        }
+                        return count;
+                    }
+                },
+            };
+            FastStringBuffer sb = new FastStringBuffer(pattern);
+            for (int j = sb.length(); j < 16; j++)
+                sb.append(' ');
+            for (int j = 0; j < finders.length; j++) {
+                run(finders[j], lines, millis / 4); // Warm up.
+                sb.append(pad(run(finders[j], lines, millis) / millis, 11));
+            }
+            System.out.println(sb.toString());
+        }
+    }
+
+    // Lines of Java-like text with mixed case.
+    private static String[] makeLines()
+    {
+        final String[] words = {
+            "if", "(", ")", "return", "null;", "final", "int", "index",
+            "String", "Position", "pos", "=", "new", "Line", "line.next();",
+            "{", "}", "LiteralMatcher", "getMatcher()", "//", "The", "buffer"
+        };
+        Random random = new Random(1);
+        String[] lines = new String[LINES];
+        FastStringBuffer sb = new FastStringBuffer();
+        for (int i = 0; i < LINES; i++) {
+            sb.setLength(0);
+            int indent = random.nextInt(4) * 4;
+            for (int j = 0; j < indent; j++)
+                sb.append(' ');
+            int n = random.nextInt(10);
+            for (int j = 0; j < n; j++) {
+                if (j > 0)
+                    sb.append(' ');
+                sb.append(words[random.nextInt(words.length)]);
+            }
+            lines[i] = sb.toString();
+        }
+        return lines;
+    }
+
+    // Returns the number of lines searched.
+    private static long run(Finder finder, String[] lines, long millis)
+    {
+        long count = 0;
+        int found = 0;
+        final long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            found += finder.find(lines);
+            count += lines.length;
+        }
+        if (found < 0)
+            throw new Error(); // Keep the results alive.
+        return count;
+    }
+
+    private static String pad(long n, int width)
+    {
+        String s = String.valueOf(n);
+        FastStringBuffer sb = new FastStringBuffer();
+        for (int i = s.length(); i < width; i++)
+            sb.append(' ');
+        sb.append(s);
+        return sb.toString();
+    }
+}
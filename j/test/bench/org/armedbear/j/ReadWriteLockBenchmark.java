@@ -0,0 +1,198 @@
+/*
+ * ReadWriteLockBenchmark.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+// Measures read throughput of ReadWriteLock with 1 to 16 reader threads and
+// one writer that takes the write lock once a millisecond, compared with a
+// single monitor (which is how the old lock worked).
+//
+// Usage: ant bench, or
+//   java -cp build/classes:build/bench org.armedbear.j.ReadWriteLockBenchmark [millis]
+public final class ReadWriteLockBenchmark
+{
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+    // Shared state that readers read and the writer changes.
+    private static volatile int a, b;
+
+    private static volatile boolean stop;
+
+    interface Reader
+    {
+        // Returns true if the read was consistent.
+        boolean read() throws InterruptedException;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        System.out.println("cpus " + Runtime.getRuntime().availableProcessors() +
+                           ", " + millis + " ms per run, reads per ms");
+        System.out.println("threads      monitor     readLock   optimistic");
+        for (int i = 0; i < THREADS.length; i++) {
+            final int n = THREADS[i];
+            long monitor = run(n, millis, MONITOR);
+            final ReadWriteLock lock1 = new ReadWriteLock();
+            long locked = run(n, millis, lock1, false);
+            final ReadWriteLock lock2 = new ReadWriteLock();
+            long optimistic = run(n, millis, lock2, true);
+            System.out.println(pad(n, 7) + pad(monitor / millis, 13) +
+                               pad(locked / millis, 13) +
+                               pad(optimistic / millis, 13));
+            System.out.println("        readLock:   " + lock1.getStatistics());
+            System.out.println("        optimistic: " + lock2.getStatistics());
+        }
+    }
+
+    private static final Object MONITOR = new Object();
+
+    private static long run(int n, long millis, final Object monitor)
+        throws Exception
+    {
+        Reader reader = new Reader() {
+            public boolean read()
+            {
+                synchronized (monitor) {
+                    return a == b;
+                }
+            }
+        };
+        Runnable writer = new Runnable() {
+            public void run()
+            {
+                synchronized (monitor) {
+                    ++a;
+                    ++b;
+                }
+            }
+        };
+        return run(n, millis, reader, writer);
+    }
+
+    private static long run(int n, long millis, final ReadWriteLock lock,
+        final boolean optimistic) throws Exception
+    {
+        Reader reader = new Reader() {
+            public boolean read() throws InterruptedException
+            {
+                if (optimistic) {
+                    long stamp = lock.tryOptimisticRead();
+                    int x = a;
+                    int y = b;
+                    if (lock.validate(stamp))
+                        return x == y;
+                }
+                lock.lockRead();
+                try {
+                    return a == b;
+                }
+                finally {
+                    lock.unlockRead();
+                }
+            }
+        };
+        Runnable writer = new Runnable() {
+            public void run()
+            {
+                try {
+                    lock.lockWrite();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    ++a;
+                    ++b;
+                }
+                finally {
+                    lock.unlockWrite();
+                }
+            }
+        };
+        return run(n, millis, reader, writer);
+    }
+
+    // Returns the total number of reads.
+    private static long run(int n, long millis, final Reader reader,
+        final Runnable writer) throws Exception
+    {
+        stop = false;
+        final long[] counts = new long[n];
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run()
+                {
+                    long count = 0;
+                    try {
+                        while (!stop) {
+                            if (!reader.read())
+                                failed[0] = true;
+                            ++count;
+                        }
+                    }
+                    catch (InterruptedException e) {}
+                    counts[index] = count;
+                }
+            };
+        }
+        Thread writerThread = new Thread() {
+            public void run()
+            {
+                while (!stop) {
+                    writer.run();
+                    try {
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        for (int i = 0; i < n; i++)
+            threads[i].start();
+        writerThread.start();
+        Thread.sleep(millis);
+        stop = true;
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            threads[i].join();
+            total += counts[i];
+        }
+        writerThread.join();
+        if (failed[0])
+            throw new Error("inconsistent read");
+        return total;
+    }
+
+    private static String pad(long n, int width)
+    {
+        String s = String.valueOf(n);
+        FastStringBuffer sb = new FastStringBuffer();
+        for (int i = s.length(); i < width; i++)
+            sb.append(' ');
+        sb.append(s);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * RegexBenchmark.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import gnu.regexp.RE;
+import gnu.regexp.REException;
+import gnu.regexp.REMatch;
+import java.util.Random;
+
+// Measures finding every match of some regular expressions used by the
+// editor in 10,000 lines of text, short lines and long lines, with the
+// interpreted gnu.regexp engine compared with java.util.regex.
+//
+// Usage: ant bench, or
+//   java -cp build/classes:build/bench org.armedbear.j.RegexBenchmark [millis]
+public final class RegexBenchmark
+{
+    private static final String[] PATTERNS = {
+        "\\s*=\\s*\"[^\"]*",
+        "</?[A-Za-z0-9]*",
+        "\\bPosition\\b",
+        "^\\s*(public|private)\\s+\\w+",
+        "[A-Z][a-z]+[A-Z]\\w*",
+    };
+
+    private static final int LINES = 10000;
+
+    public static void main(String[] args) throws REException
+    {
+        final long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        System.out.println(LINES + " lines, " + millis +
+                           " ms per run, lines per ms");
+        System.out.println("pattern                           short   short -j" +
+                           "       long    long -j");
+        final String[] shortLines = makeLines(10);
+        final String[] longLines = makeLines(200);
+        for (int i = 0; i < PATTERNS.length; i++) {
+            final String pattern = PATTERNS[i];
+            RE.setDefaultEngine(RE.ENGINE_INTERPRETED);
+            RE interpreted = new RE(pattern);
+            RE.setDefaultEngine(RE.ENGINE_JAVA);
+            RE java = new RE(pattern);
+            FastStringBuffer sb = new FastStringBuffer(pattern);
+            if (!java.isCompiled())
+                sb.append(" (not compiled)");
+            for (int j = sb.length(); j < 28; j++)
+                sb.append(' ');
+            String[][] texts = { shortLines, longLines };
+            for (int j = 0; j < texts.length; j++) {
+                run(interpreted, texts[j], millis / 4); // Warm up.
+                sb.append(pad(run(interpreted, texts[j], millis) / millis, 11));
+                run(java, texts[j], millis / 4);
+                sb.append(pad(run(java, texts[j], millis) / millis, 11));
+            }
+            System.out.println(sb.toString());
+        }
+    }
+
+    // Lines of Java-like text with the given number of words.
+    private static String[] makeLines(int maxWords)
+    {
+        final String[] words = {
+            "if", "(", ")", "return", "null;", "final", "int", "index",
+            "String", "Position", "pos", "=", "new", "Line", "line.next();",
+            "{", "}", "public", "private", "<a", "href=\"x.html\">", "</a>",
+            "getMatcher()", "//", "The", "buffer"
+        };
+        Random random = new Random(1);
+        String[] lines = new String[LINES];
+        FastStringBuffer sb = new FastStringBuffer();
+        for (int i = 0; i < LINES; i++) {
+            sb.setLength(0);
+            int indent = random.nextInt(4) * 4;
+            for (int j = 0; j < indent; j++)
+                sb.append(' ');
+            int n = random.nextInt(maxWords);
+            for (int j = 0; j < n; j++) {
+                if (j > 0)
+                    sb.append(' ');
+                sb.append(words[random.nextInt(words.length)]);
+            }
+            lines[i] = sb.toString();
+        }
+        return lines;
+    }
+
+    // Returns the number of lines searched.
+    private static long run(RE re, String[] lines, long millis)
+    {
+        long count = 0;
+        int found = 0;
+        final long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < lines.length; i++) {
+                String s = lines[i];
+                int index = 0;
+                REMatch match;
+                while ((match = re.getMatch(s, index)) != null) {
+                    ++found;
+                    index = Math.max(match.getEndIndex(),
+                                     match.getStartIndex() + 1);
+                    if (index > s.length())
+                        break;
+                }
+            }
+            count += lines.length;
+        }
+        if (found < 0)
+            throw new Error(); // Keep the results alive.
+        return count;
+    }
+
+    private static String pad(long n, int width)
+    {
+        String s = String.valueOf(n);
+        FastStringBuffer sb = new FastStringBuffer();
+        for (int i = s.length(); i < width; i++)
+            sb.append(' ');
+        sb.append(s);
+        return sb.toString();
+    }
+}
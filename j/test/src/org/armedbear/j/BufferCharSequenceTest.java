@@ -0,0 +1,130 @@
+/*
+ * BufferCharSequenceTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import gnu.regexp.RE;
+import gnu.regexp.REMatch;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferCharSequenceTest
+{
+    private static final String[] LINES = {
+        "first line", "", "foo", "bar baz", "foo", "bar", "last"
+    };
+
+    private static Line makeLines(String[] strings)
+    {
+        Line first = null;
+        Line last = null;
+        for (int i = 0; i < strings.length; i++) {
+            Line line = new TextLine(strings[i]);
+            line.setLineNumber(i);
+            line.setOriginalLineNumber(i);
+            if (last == null)
+                first = line;
+            else
+                line.insertAfter(last);
+            last = line;
+        }
+        return first;
+    }
+
+    private static String join(String[] strings)
+    {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < strings.length; i++) {
+            if (i > 0)
+                sb.append('\n');
+            sb.append(strings[i]);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void charAt()
+    {
+        BufferCharSequence seq =
+            new BufferCharSequence(new LineIndex(makeLines(LINES)));
+        String s = join(LINES);
+        assertEquals(s.length(), seq.length());
+        for (int i = 0; i < s.length(); i++)
+            assertEquals(s.charAt(i), seq.charAt(i));
+        for (int i = s.length(); i-- > 0;)
+            assertEquals(s.charAt(i), seq.charAt(i));
+        for (int i = 0; i < s.length(); i += 7)
+            assertEquals(s.charAt(s.length() - 1 - i),
+                seq.charAt(s.length() - 1 - i));
+        assertEquals(s, seq.toString());
+        assertEquals(s.substring(3, 20), seq.subSequence(3, 20));
+        try {
+            seq.charAt(s.length());
+            fail();
+        }
+        catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void positions()
+    {
+        Line first = makeLines(LINES);
+        BufferCharSequence seq = new BufferCharSequence(new LineIndex(first));
+        for (int i = 0; i <= seq.length(); i++) {
+            Position pos = seq.getPosition(i);
+            assertNotNull(pos);
+            assertEquals(i, seq.getOffset(pos));
+        }
+        Position pos = seq.getPosition(11);
+        assertSame(first.next(), pos.getLine());
+        assertEquals(0, pos.getOffset());
+        assertNull(seq.getPosition(seq.length() + 1));
+        assertEquals(-1, seq.getOffset(new Position(new TextLine("x"), 0)));
+    }
+
+    @Test
+    public void multilineRegExp() throws Exception
+    {
+        BufferCharSequence seq =
+            new BufferCharSequence(new LineIndex(makeLines(LINES)));
+        String s = join(LINES);
+        RE re = new RE("^foo\nbar", RE.REG_MULTILINE);
+        int index = 0;
+        while (true) {
+            REMatch expected = re.getMatch(s, index);
+            REMatch match = re.getMatch(seq.getCharIndexed(index, seq.length()),
+                0);
+            if (expected == null) {
+                assertNull(match);
+                break;
+            }
+            assertNotNull(match);
+            assertEquals(expected.getStartIndex(),
+                index + match.getStartIndex());
+            assertEquals(expected.getEndIndex(), index + match.getEndIndex());
+            index = expected.getEndIndex();
+        }
+        // The match must not run past the end of the view.
+        assertNull(re.getMatch(seq.getCharIndexed(0, 13), 0));
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * CacheTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CacheTest
+{
+    private static final String HEADERS =
+        "ETag: \"v1\"\r\n" +
+        "Last-Modified: Mon, 05 Oct 2026 10:00:00 GMT\r\n" +
+        "Content-Type: text/html\r\n";
+
+    private static File getHome() throws IOException
+    {
+        if (Directories.getTempDirectory() == null) {
+            java.io.File home = Files.createTempDirectory("home").toFile();
+            Directories.initialize(File.getInstance(home.getPath()));
+        }
+        return Directories.getEditorDirectory();
+    }
+
+    private static File getCacheDir() throws IOException
+    {
+        getHome();
+        java.io.File dir = Files.createTempDirectory("cache").toFile();
+        return File.getInstance(dir.getPath());
+    }
+
+    private static File content(int length) throws IOException
+    {
+        java.io.File file = java.io.File.createTempFile("content", null);
+        file.deleteOnExit();
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) ('a' + i % 26);
+        Files.write(file.toPath(), bytes);
+        return File.getInstance(file.getPath());
+    }
+
+    private static String read(File file) throws IOException
+    {
+        return new String(Files.readAllBytes(
+            new java.io.File(file.canonicalPath()).toPath()), "ISO8859_1");
+    }
+
+    @Test
+    public void catalogRoundTrip() throws Exception
+    {
+        File dir = getCacheDir();
+        Cache cache = new Cache(dir, 1000);
+        assertTrue(cache.initialize());
+        assertNotNull(cache.store("http://host/a", content(10), HEADERS,
+            "text/html", "UTF-8"));
+        assertNotNull(cache.store("http://host/b", content(20),
+            "Last-Modified: Tue, 06 Oct 2026 10:00:00 GMT\r\n", null, null));
+        // No validator, so not cached.
+        assertNull(cache.store("http://host/c", content(30),
+            "Content-Type: text/plain\r\n", "text/plain", null));
+        // A file the catalog doesn't know about.
+        File stray = File.getInstance(dir, "stray");
+        Files.write(new java.io.File(stray.canonicalPath()).toPath(),
+            new byte[1]);
+
+        Cache reloaded = new Cache(dir, 1000);
+        assertTrue(reloaded.initialize());
+        assertEquals(30, reloaded.size());
+        Cache.Entry a = reloaded.getEntry("http://host/a");
+        assertNotNull(a);
+        assertEquals("\"v1\"", a.getEtag());
+        assertEquals("Mon, 05 Oct 2026 10:00:00 GMT", a.getLastModified());
+        assertEquals("text/html", a.getContentType());
+        assertEquals("UTF-8", a.getEncoding());
+        assertEquals(10, a.length());
+        assertEquals(read(content(10)), read(reloaded.getFile(a)));
+        Cache.Entry b = reloaded.getEntry("http://host/b");
+        assertNotNull(b);
+        assertNull(b.getEtag());
+        assertEquals("Tue, 06 Oct 2026 10:00:00 GMT", b.getLastModified());
+        assertNull(b.getContentType());
+        assertNull(b.getEncoding());
+        assertNull(reloaded.getEntry("http://host/c"));
+        assertFalse(stray.exists());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception
+    {
+        File dir = getCacheDir();
+        // Entries may be at most a quarter of the limit.
+        Cache cache = new Cache(dir, 400);
+        assertTrue(cache.initialize());
+        assertNull(cache.store("http://host/big", content(101), HEADERS,
+            null, null));
+        String[] urls = { "http://host/a", "http://host/b", "http://host/c",
+                          "http://host/d" };
+        for (int i = 0; i < urls.length; i++)
+            assertNotNull(cache.store(urls[i], content(100), HEADERS, null,
+                null));
+        assertEquals(400, cache.size());
+        File b = cache.get("http://host/b");
+        assertTrue(b.isFile());
+        // Using the others makes b the least recently used.
+        assertNotNull(cache.getEntry("http://host/a"));
+        assertNotNull(cache.getEntry("http://host/c"));
+        assertNotNull(cache.getEntry("http://host/d"));
+        assertNotNull(cache.store("http://host/e", content(100), HEADERS,
+            null, null));
+        assertEquals(400, cache.size());
+        assertNull(cache.getEntry("http://host/b"));
+        assertFalse(b.exists());
+        assertNotNull(cache.getEntry("http://host/a"));
+        assertNotNull(cache.getEntry("http://host/c"));
+        assertNotNull(cache.getEntry("http://host/d"));
+        assertNotNull(cache.getEntry("http://host/e"));
+
+        // The catalog was saved when e was stored, in the order a, c, d, e,
+        // so a is next.
+        Cache reloaded = new Cache(dir, 400);
+        assertTrue(reloaded.initialize());
+        assertEquals(400, reloaded.size());
+        assertNotNull(reloaded.store("http://host/f", content(50), HEADERS,
+            null, null));
+        assertEquals(350, reloaded.size());
+        assertNull(reloaded.getEntry("http://host/a"));
+        assertNotNull(reloaded.getEntry("http://host/c"));
+        assertNotNull(reloaded.getEntry("http://host/e"));
+    }
+
+    // Answers each request on its own connection. The first request for a
+    // path gets the content with validators; a request with matching
+    // validators gets 304 with a new Last-Modified.
+    private static final class Server extends Thread
+    {
+        final ServerSocket serverSocket;
+        final ArrayList requests = new ArrayList();
+
+        Server() throws IOException
+        {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+            start();
+        }
+
+        final int getPort()
+        {
+            return serverSocket.getLocalPort();
+        }
+
+        public void run()
+        {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    serve(socket);
+                }
+            }
+            catch (IOException e) {}
+        }
+
+        private void serve(Socket socket) throws IOException
+        {
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "ISO8859_1"));
+            FastStringBuffer sb = new FastStringBuffer();
+            String s;
+            while ((s = reader.readLine()) != null && s.length() > 0) {
+                sb.append(s);
+                sb.append("\r\n");
+            }
+            String request = sb.toString();
+            synchronized (requests) {
+                requests.add(request);
+            }
+            String response;
+            if ("\"v1\"".equals(Cache.getHeader(request, "if-none-match")) &&
+                "Mon, 05 Oct 2026 10:00:00 GMT".equals(
+                    Cache.getHeader(request, "if-modified-since")))
+                response = "HTTP/1.1 304 Not Modified\r\n" +
+                    "Last-Modified: Wed, 07 Oct 2026 10:00:00 GMT\r\n" +
+                    "Connection: close\r\n\r\n";
+            else
+                response = "HTTP/1.1 200 OK\r\n" + HEADERS +
+                    "Content-Length: 5\r\n" +
+                    "Connection: close\r\n\r\nhello";
+            OutputStream out = socket.getOutputStream();
+            out.write(response.getBytes("ISO8859_1"));
+            out.flush();
+            socket.close();
+        }
+
+        final String getRequest(int i)
+        {
+            synchronized (requests) {
+                return (String) requests.get(i);
+            }
+        }
+    }
+
+    @Test
+    public void conditionalGet() throws Exception
+    {
+        File dir = getCacheDir();
+        Cache cache = new Cache(dir, 1000);
+        assertTrue(cache.initialize());
+        Server server = new Server();
+        String url = "http://127.0.0.1:" + server.getPort() + "/page";
+        try {
+            File file = cache.put(url);
+            assertNotNull(file);
+            assertEquals("hello", read(file));
+            assertNull(Cache.getHeader(server.getRequest(0), "if-none-match"));
+            Cache.Entry entry = cache.getEntry(url);
+            assertNotNull(entry);
+            assertEquals("\"v1\"", entry.getEtag());
+
+            // Now the request carries the validators, and the 304 keeps the
+            // cached content.
+            file = cache.put(url);
+            assertNotNull(file);
+            assertEquals("hello", read(file));
+            String request = server.getRequest(1);
+            assertEquals("\"v1\"", Cache.getHeader(request, "if-none-match"));
+            assertEquals("Mon, 05 Oct 2026 10:00:00 GMT",
+                Cache.getHeader(request, "if-modified-since"));
+            entry = cache.getEntry(url);
+            assertEquals("\"v1\"", entry.getEtag());
+            assertEquals("Wed, 07 Oct 2026 10:00:00 GMT",
+                entry.getLastModified());
+            assertEquals(5, cache.size());
+        }
+        finally {
+            server.serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * DirectoryCacheTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DirectoryCacheTest
+{
+    @Test
+    public void putGetPurge() throws Exception
+    {
+        DirectoryCache cache = new DirectoryCache();
+        File a = File.getInstance("ftp://example.com/pub");
+        File b = File.getInstance("ssh://user@example.org/tmp");
+        assertNull(cache.getListing(a));
+        cache.put(a, "listing a");
+        cache.put(b, "listing b");
+        assertEquals("listing a", cache.getListing(a));
+        assertEquals("listing b",
+            cache.getListing(File.getInstance("ssh://user@example.org/tmp")));
+        cache.purge(a);
+        assertNull(cache.getListing(a));
+        cache.put(a, "listing a");
+        cache.purge("example.org");
+        assertNull(cache.getListing(b));
+        assertEquals("listing a", cache.getListing(a));
+        // An empty listing removes the entry.
+        cache.put(a, "");
+        assertNull(cache.getListing(a));
+        String stats = cache.getStatistics();
+        assertTrue(stats, stats.indexOf("hits 3 ") >= 0);
+        assertTrue(stats, stats.indexOf("misses 4 ") >= 0);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception
+    {
+        DirectoryCache cache = new DirectoryCache();
+        char[] chars = new char[3 * 1024 * 1024];
+        Arrays.fill(chars, 'x');
+        String big = new String(chars);
+        File a = File.getInstance("ftp://example.com/a");
+        File b = File.getInstance("ftp://example.com/b");
+        File c = File.getInstance("ftp://example.net/c");
+        cache.put(a, big);
+        cache.put(b, big);
+        cache.getListing(a);
+        cache.put(c, big);
+        // c is the only entry for its host, so the least recently used
+        // entry of the other host goes.
+        assertNotNull(cache.getListing(a));
+        assertNull(cache.getListing(b));
+        assertNotNull(cache.getListing(c));
+        assertTrue(cache.getStatistics().indexOf("evictions 1") >= 0);
+    }
+}
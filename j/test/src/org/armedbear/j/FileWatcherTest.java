@@ -0,0 +1,86 @@
+/*
+ * FileWatcherTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FileWatcherTest
+{
+    private static final class Recorder implements FileWatcher.Listener
+    {
+        final List calls = new ArrayList();
+        final Set names = new HashSet();
+
+        public synchronized void filesChanged(File dir, Set changed)
+        {
+            calls.add(changed);
+            names.addAll(changed);
+            notifyAll();
+        }
+
+        // Waits until all the expected names have been reported.
+        synchronized void await(Set expected) throws InterruptedException
+        {
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (!names.containsAll(expected) &&
+                   System.currentTimeMillis() < deadline)
+                wait(100);
+            assertTrue(names.containsAll(expected));
+        }
+    }
+
+    @Test
+    public void coalescesEvents() throws Exception
+    {
+        java.io.File tmp = Files.createTempDirectory("watch").toFile();
+        File dir = File.getInstance(tmp.getPath());
+        FileWatcher watcher = new FileWatcher();
+        watcher.start();
+        Recorder recorder = new Recorder();
+        assertTrue(watcher.watch(dir, recorder));
+        assertTrue(watcher.isWatched(dir));
+        Set expected = new HashSet();
+        for (int i = 0; i < 50; i++) {
+            expected.add("f" + i);
+            FileOutputStream out =
+                new FileOutputStream(new java.io.File(tmp, "f" + i));
+            out.write(i);
+            out.close();
+        }
+        recorder.await(expected);
+        // A few calls, not one per event.
+        assertTrue(recorder.calls.size() < 10);
+        watcher.unwatch(dir, recorder);
+        assertFalse(watcher.isWatched(dir));
+        assertEquals(0, watcher.getWatchCount());
+        for (int i = 0; i < 50; i++)
+            new java.io.File(tmp, "f" + i).delete();
+        tmp.delete();
+    }
+}
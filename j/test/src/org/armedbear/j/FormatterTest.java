@@ -0,0 +1,258 @@
+/*
+ * FormatterTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// Checks that after random edits, parsing a buffer incrementally sets the
+// same line flags as parsing the edited text from scratch.
+public class FormatterTest implements Constants
+{
+    private static final int JAVA = 0;
+    private static final int C    = 1;
+    private static final int CSS  = 2;
+    private static final int HTML = 3;
+    private static final int LISP = 4;
+
+    // Characters that start or end comments, strings and the like.
+    private static final String[] ALPHABETS = {
+        "ab#if0\\\\/*\"' {}()",
+        "ab#if0\\\\/*\"' {}()",
+        "ab{}/*\"'\\\\ :;1.",
+        "ab<>!--/*\"'\\\\ =script/",
+        "ab (()\\\\\";#|'  \t:"
+    };
+
+    private static Formatter makeFormatter(int kind, Buffer buffer)
+    {
+        switch (kind) {
+            case JAVA:
+                return new JavaFormatter(buffer);
+            case C:
+                return new CFormatter(buffer, LANGUAGE_C);
+            case CSS:
+                return new CSSFormatter(buffer);
+            case HTML:
+                return new HtmlFormatter(buffer);
+            default:
+                return new LispFormatter(buffer);
+        }
+    }
+
+    private static Buffer makeBuffer(List lines)
+    {
+        Buffer buffer = new Buffer() {};
+        for (int i = 0; i < lines.size(); i++)
+            buffer.appendLine((String) lines.get(i));
+        buffer.renumber();
+        return buffer;
+    }
+
+    private static String randomLine(Random random, int kind)
+    {
+        final String alphabet = ALPHABETS[kind];
+        FastStringBuffer sb = new FastStringBuffer();
+        if (kind == C && random.nextInt(5) == 0)
+            sb.append(random.nextBoolean() ? "#if 0" : "#endif");
+        else if (kind == HTML && random.nextInt(5) == 0)
+            sb.append(random.nextBoolean() ? "<script>" : "</script>");
+        int length = random.nextInt(10);
+        for (int i = 0; i < length; i++)
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+    private static String getFlags(Buffer buffer)
+    {
+        FastStringBuffer sb = new FastStringBuffer();
+        for (Line line = buffer.getFirstLine(); line != null; line = line.next()) {
+            sb.append(String.valueOf(line.flags()));
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+
+    private static void checkIncrementalParse(int kind)
+    {
+        Random random = new Random(5 + kind);
+        for (int n = 0; n < 500; n++) {
+            List lines = new ArrayList();
+            int count = 1 + random.nextInt(8);
+            for (int i = 0; i < count; i++)
+                lines.add(randomLine(random, kind));
+            Buffer buffer = makeBuffer(lines);
+            Formatter formatter = makeFormatter(kind, buffer);
+            formatter.parseBuffer();
+            for (int k = 0; k < 5; k++) {
+                int index = random.nextInt(lines.size());
+                Line line = buffer.getLine(index);
+                String s = randomLine(random, kind);
+                int edit = random.nextInt(4);
+                if (edit == 0 && index > 0) {
+                    // Remove the line.
+                    lines.remove(index);
+                    Line prev = line.previous();
+                    Line next = line.next();
+                    prev.setNext(next);
+                    if (next != null)
+                        next.setPrevious(prev);
+                } else if (edit == 1) {
+                    // Insert a line after it.
+                    lines.add(index + 1, s);
+                    new TextLine(s).insertAfter(line);
+                } else {
+                    lines.set(index, s);
+                    Buffer expected = makeBuffer(lines);
+                    makeFormatter(kind, expected).parseBuffer();
+                    // Nothing else changes before the next parse, so only
+                    // the edited line and the lines after it are scanned.
+                    formatter.parseBuffer();
+                    line.setText(s);
+                    formatter.parseBuffer();
+                    assertEquals(kind + " " + lines, getFlags(expected),
+                        getFlags(buffer));
+                    continue;
+                }
+                buffer.renumber();
+                formatter.parseBuffer();
+                Buffer expected = makeBuffer(lines);
+                makeFormatter(kind, expected).parseBuffer();
+                assertEquals(kind + " " + lines, getFlags(expected),
+                    getFlags(buffer));
+            }
+        }
+    }
+
+    @Test
+    public void javaIncrementalParse()
+    {
+        checkIncrementalParse(JAVA);
+    }
+
+    @Test
+    public void cIncrementalParse()
+    {
+        checkIncrementalParse(C);
+    }
+
+    @Test
+    public void cssIncrementalParse()
+    {
+        checkIncrementalParse(CSS);
+    }
+
+    @Test
+    public void htmlIncrementalParse()
+    {
+        checkIncrementalParse(HTML);
+    }
+
+    @Test
+    public void lispIncrementalParse()
+    {
+        checkIncrementalParse(LISP);
+    }
+
+    @Test
+    public void lispEscapedNewline()
+    {
+        List lines = new ArrayList();
+        lines.add("'(a #\\");
+        lines.add("b)");
+        lines.add("c");
+        Buffer buffer = makeBuffer(lines);
+        Formatter formatter = makeFormatter(LISP, buffer);
+        formatter.parseBuffer();
+        // The line after the escaped line separator keeps its flags.
+        assertEquals(0, buffer.getLine(1).flags());
+        buffer.getLine(2).setText("d");
+        formatter.parseBuffer();
+        assertEquals(0, buffer.getLine(1).flags());
+    }
+
+    @Test
+    public void editScansOnlyChangedLines()
+    {
+        List lines = new ArrayList();
+        for (int i = 0; i < 100; i++)
+            lines.add("int i" + i + ";");
+        Buffer buffer = makeBuffer(lines);
+        Formatter formatter = makeFormatter(JAVA, buffer);
+        formatter.parseBuffer();
+        // Make the last line look out of date without changing its text.
+        Line last = buffer.getLine(99);
+        last.setFlags(-1);
+        last.setParsed(formatter, -1, 0);
+        formatter.parseBuffer();
+        assertEquals(-1, last.flags());
+        buffer.getFirstLine().setText("int j;");
+        formatter.parseBuffer();
+        assertEquals(-1, last.flags());
+        // Inserting a line walks the whole buffer.
+        new TextLine("int k;").insertAfter(buffer.getFirstLine());
+        formatter.parseBuffer();
+        assertEquals(0, last.flags());
+    }
+
+    @Test
+    public void editInOtherBufferDoesNotRescan()
+    {
+        List lines = new ArrayList();
+        for (int i = 0; i < 10; i++)
+            lines.add("int i" + i + ";");
+        Buffer buffer = makeBuffer(lines);
+        Formatter formatter = makeFormatter(JAVA, buffer);
+        formatter.parseBuffer();
+        Line last = buffer.getLine(9);
+        last.setFlags(-1);
+        last.setParsed(formatter, -1, 0);
+        Buffer other = makeBuffer(lines);
+        Formatter otherFormatter = makeFormatter(JAVA, other);
+        otherFormatter.parseBuffer();
+        other.getFirstLine().setText("int j;");
+        new TextLine("int k;").insertAfter(other.getFirstLine());
+        otherFormatter.parseBuffer();
+        formatter.parseBuffer();
+        assertEquals(-1, last.flags());
+    }
+
+    @Test
+    public void linesParsedByOtherFormatterAreRescanned()
+    {
+        List lines = new ArrayList();
+        for (int i = 0; i < 10; i++)
+            lines.add("int i" + i + ";");
+        Buffer buffer = makeBuffer(lines);
+        Formatter formatter = makeFormatter(JAVA, buffer);
+        formatter.parseBuffer();
+        makeFormatter(JAVA, buffer).parseBuffer();
+        Line last = buffer.getLine(9);
+        last.setFlags(-1);
+        // The lines were last parsed by the other formatter.
+        formatter.parseBuffer();
+        assertEquals(0, last.flags());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * HttpConnectionTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HttpConnectionTest
+{
+    // Serves a fixed number of requests on each connection, then closes it.
+    // "/chunked" gets a chunked response, anything else a response with a
+    // Content-Length.
+    private static final class Server extends Thread
+    {
+        final ServerSocket serverSocket;
+        final int requestsPerConnection;
+        volatile int connections;
+
+        Server(int requestsPerConnection) throws IOException
+        {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            this.requestsPerConnection = requestsPerConnection;
+            setDaemon(true);
+            start();
+        }
+
+        final int getPort()
+        {
+            return serverSocket.getLocalPort();
+        }
+
+        public void run()
+        {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    ++connections;
+                    serve(socket);
+                }
+            }
+            catch (IOException e) {}
+        }
+
+        private void serve(Socket socket) throws IOException
+        {
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "ISO8859_1"));
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < requestsPerConnection; i++) {
+                String requestLine = reader.readLine();
+                if (requestLine == null)
+                    break;
+                String s;
+                while ((s = reader.readLine()) != null && s.length() > 0)
+                    ;
+                String path = requestLine.split(" ")[1];
+                String response;
+                if (path.equals("/chunked"))
+                    response = "HTTP/1.1 200 OK\r\n" +
+                        "Transfer-Encoding: chunked\r\n\r\n" +
+                        "5\r\nchunk\r\n" + "6;x=y\r\ned bod\r\n" +
+                        "1\r\ny\r\n" + "0\r\n\r\n";
+                else
+                    response = "HTTP/1.1 200 OK\r\n" +
+                        "Content-Length: " + path.length() + "\r\n\r\n" + path;
+                out.write(response.getBytes("ISO8859_1"));
+                out.flush();
+            }
+            socket.close();
+        }
+    }
+
+    private static String get(int port, String path) throws IOException
+    {
+        while (true) {
+            HttpConnection c = HttpConnection.open("127.0.0.1", port, false, null);
+            HttpConnection.Response response;
+            try {
+                c.sendRequest("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+                response = c.readResponse();
+            }
+            catch (IOException e) {
+                c.close();
+                if (!c.isReused())
+                    throw e;
+                continue; // Try again on a new connection.
+            }
+            assertEquals(200, response.getStatusCode());
+            InputStream in = response.getBody();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[3];
+            int n;
+            while ((n = in.read(buf)) >= 0)
+                out.write(buf, 0, n);
+            c.release();
+            return out.toString("ISO8859_1");
+        }
+    }
+
+    @Test
+    public void keepAlive() throws Exception
+    {
+        HttpConnection.closeIdleConnections();
+        Server server = new Server(3);
+        final int port = server.getPort();
+        assertEquals("/a", get(port, "/a"));
+        assertEquals("chunked body", get(port, "/chunked"));
+        assertEquals("/bcd", get(port, "/bcd"));
+        assertEquals(1, server.connections);
+        // The server has closed the connection, so this one has to make a
+        // new connection.
+        assertEquals("/e", get(port, "/e"));
+        assertEquals(2, server.connections);
+        server.serverSocket.close();
+        HttpConnection.closeIdleConnections();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * KeyMapTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.awt.event.KeyEvent;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyMapTest implements Constants
+{
+    private static final String[] COMMANDS = { "up", "down", "left", "right" };
+
+    // The mapping the lookup should find: the last one that matches.
+    private static KeyMapping find(KeyMap keyMap, char keyChar, int keyCode,
+        int modifiers)
+    {
+        KeyMapping[] mappings = keyMap.getMappings();
+        modifiers &= 0x0f;
+        for (int i = mappings.length; i-- > 0;) {
+            KeyMapping mapping = mappings[i];
+            if (keyCode == 0 && modifiers == 0) {
+                if (keyChar == mapping.getKeyChar())
+                    return mapping;
+            } else if (mapping.getKeyChar() == 0 &&
+                       keyCode == mapping.getKeyCode() &&
+                       modifiers == mapping.getModifiers())
+                return mapping;
+        }
+        return null;
+    }
+
+    @Test
+    public void lookupFindsLastMatchingMapping()
+    {
+        Random random = new Random(25);
+        KeyMap keyMap = new KeyMap();
+        KeyMap other = new KeyMap();
+        for (int n = 0; n < 2000; n++) {
+            char keyChar = (char) ('a' + random.nextInt(4));
+            int keyCode = KeyEvent.VK_A + random.nextInt(4);
+            int modifiers = random.nextInt(4) == 0 ? 0 : random.nextInt(16);
+            String command = COMMANDS[random.nextInt(COMMANDS.length)];
+            switch (random.nextInt(6)) {
+                case 0:
+                    keyMap.mapKey(keyChar, command);
+                    break;
+                case 1:
+                    keyMap.mapKey(keyCode, modifiers, command);
+                    break;
+                case 2:
+                    keyMap.unmapKey(keyChar);
+                    break;
+                case 3:
+                    keyMap.unmapKey(keyCode, modifiers);
+                    break;
+                case 4:
+                    // Adds mappings for keys that may already be mapped.
+                    other.mapKey(keyCode, modifiers, command);
+                    keyMap.addMappingsForCommand(command, other);
+                    break;
+                default:
+                    break;
+            }
+            keyChar = (char) ('a' + random.nextInt(5));
+            keyCode = random.nextInt(3) == 0 ? 0 : KeyEvent.VK_A + random.nextInt(5);
+            modifiers = random.nextInt(16) | (random.nextInt(8) == 0 ? 0x40 : 0);
+            assertSame(find(keyMap, keyChar, keyCode, modifiers),
+                keyMap.lookup(keyChar, keyCode, modifiers));
+        }
+    }
+
+    @Test
+    public void lookupEventSequenceFollowsPrefixKeys()
+    {
+        KeyMap keyMap = new KeyMap();
+        KeyMap prefix = new KeyMap();
+        assertTrue(keyMap.mapKey("Ctrl X", prefix));
+        prefix.mapKey(KeyEvent.VK_S, CTRL_MASK, "save");
+        EventSequence es = new EventSequence();
+        es.addEvent(new JEvent(JEvent.KEY_PRESSED, KeyEvent.VK_X, '\0',
+            CTRL_MASK));
+        es.addEvent(new JEvent(JEvent.KEY_PRESSED, KeyEvent.VK_S, '\0',
+            CTRL_MASK));
+        KeyMapping mapping = keyMap.lookupEventSequence(es);
+        assertNotNull(mapping);
+        assertEquals("save", mapping.getCommand());
+        prefix.unmapKey(KeyEvent.VK_S, CTRL_MASK);
+        assertNull(keyMap.lookupEventSequence(es));
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * LineIndexTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LineIndexTest
+{
+    private static Line makeLines(String[] strings)
+    {
+        Line first = null;
+        Line last = null;
+        for (int i = 0; i < strings.length; i++) {
+            Line line = new TextLine(strings[i]);
+            line.setLineNumber(i);
+            line.setOriginalLineNumber(i);
+            if (last == null)
+                first = line;
+            else
+                line.insertAfter(last);
+            last = line;
+        }
+        return first;
+    }
+
+    @Test
+    public void getLine()
+    {
+        Line first = makeLines(new String[] { "one", "two", "three" });
+        LineIndex index = new LineIndex(first);
+        assertEquals(3, index.getLineCount());
+        assertSame(first, index.getLine(0));
+        assertSame(first.next().next(), index.getLine(2));
+        assertNull(index.getLine(3));
+        assertNull(index.getLine(-1));
+    }
+
+    @Test
+    public void offsets()
+    {
+        // Offsets:  "ab" 0-1, sep 2; "" 3; "cde" 4-6, sep 7.
+        Line first = makeLines(new String[] { "ab", "", "cde" });
+        Line second = first.next();
+        Line third = second.next();
+        LineIndex index = new LineIndex(first);
+
+        assertEquals(0, index.getAbsoluteOffset(new Position(first, 0)));
+        assertEquals(3, index.getAbsoluteOffset(new Position(second, 0)));
+        assertEquals(6, index.getAbsoluteOffset(new Position(third, 2)));
+
+        Position pos = index.getPosition(2);
+        assertSame(first, pos.getLine());
+        assertEquals(2, pos.getOffset());
+        pos = index.getPosition(3);
+        assertSame(second, pos.getLine());
+        assertEquals(0, pos.getOffset());
+        pos = index.getPosition(7);
+        assertSame(third, pos.getLine());
+        assertEquals(3, pos.getOffset());
+        assertNull(index.getPosition(8));
+    }
+
+    @Test
+    public void textChanges()
+    {
+        Line first = makeLines(new String[] { "ab", "cd", "e" });
+        Line second = first.next();
+        Line third = second.next();
+        LineIndex index = new LineIndex(first);
+        first.setText("abc");
+        assertTrue(index.isValid());
+        assertTrue(index.isCurrent(0));
+        assertEquals(4, index.getAbsoluteOffset(new Position(second, 0)));
+        assertEquals(7, index.getStart(2));
+        assertEquals(8, index.getTextLength());
+        assertSame(first, index.getPosition(3).getLine());
+        third.setText("efgh");
+        second.setText("");
+        assertEquals(5, index.getStart(2));
+        assertEquals(1, index.findLineContaining(4));
+        Position pos = index.getPosition(9);
+        assertSame(third, pos.getLine());
+        assertEquals(4, pos.getOffset());
+        assertNull(index.getPosition(10));
+        assertEquals(-1, index.findLineContaining(-1));
+    }
+
+    @Test
+    public void randomTextChanges()
+    {
+        Random random = new Random(1);
+        String[] strings = new String[37];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = "";
+        Line first = makeLines(strings);
+        LineIndex index = new LineIndex(first);
+        for (int n = 0; n < 500; n++) {
+            Line line = index.getLine(random.nextInt(strings.length));
+            FastStringBuffer sb = new FastStringBuffer();
+            for (int i = random.nextInt(20); i-- > 0;)
+                sb.append('x');
+            line.setText(sb.toString());
+            LineIndex expected = new LineIndex(first);
+            // The new index took over the lines; give them back.
+            for (Line l = first; l != null; l = l.next())
+                ((AbstractLine) l).setIndex(index);
+            assertEquals(expected.getTextLength(), index.getTextLength());
+            for (int i = 0; i < strings.length; i++)
+                assertEquals(expected.getStart(i), index.getStart(i));
+            long offset = random.nextInt((int) index.getTextLength() + 1);
+            assertEquals(expected.findLine(offset), index.findLine(offset));
+        }
+    }
+
+    @Test
+    public void linkChanges()
+    {
+        Line first = makeLines(new String[] { "ab", "cd" });
+        LineIndex index = new LineIndex(first);
+        new TextLine("x").insertAfter(first);
+        assertFalse(index.isValid());
+        // A line removed from the buffer is no longer indexed.
+        Line second = first.next();
+        LineIndex newIndex = new LineIndex(first);
+        first.setNext(second.next());
+        second.next().setPrevious(first);
+        assertFalse(newIndex.isValid());
+        newIndex = new LineIndex(first);
+        assertEquals(2, newIndex.getLineCount());
+        second.setText("long line");
+        assertTrue(newIndex.isValid());
+        assertEquals(5, newIndex.getTextLength());
+    }
+
+    @Test
+    public void bufferKeepsIndexAcrossTextChanges()
+    {
+        Buffer buffer = new Buffer() {};
+        buffer.appendLine("one");
+        buffer.appendLine("two");
+        buffer.appendLine("three");
+        buffer.renumber();
+        LineIndex index = buffer.getLineIndex();
+        Line second = buffer.getLine(1);
+        second.setText("2");
+        buffer.incrementModCount();
+        assertSame(index, buffer.getLineIndex());
+        assertEquals(6, buffer.getAbsoluteOffset(
+            new Position(buffer.getLine(2), 0)));
+        assertSame(second, buffer.getPosition(5).getLine());
+        new TextLine("new").insertAfter(second);
+        buffer.renumber();
+        assertNotSame(index, buffer.getLineIndex());
+        assertEquals(4, buffer.getLineCount());
+        assertEquals("new", buffer.getLine(2).getText());
+        assertTrue(buffer.contains(second));
+    }
+
+    @Test
+    public void outputLimitIsExact()
+    {
+        Preferences preferences = Editor.preferences();
+        int saved = preferences.getIntegerProperty(Property.SHELL_OUTPUT_LIMIT);
+        preferences.setProperty(Property.SHELL_OUTPUT_LIMIT, 5);
+        try {
+            Buffer buffer = new Buffer() {{ initializeUndo(); }};
+            buffer.appendLine("0");
+            buffer.renumber();
+            int next = 1;
+            for (int round = 0; round < 4; round++) {
+                Line last = buffer.getLine(buffer.getLineCount() - 1);
+                for (int i = 0; i < 3; i++)
+                    buffer.appendLine(String.valueOf(next++));
+                buffer.renumberAfter(last);
+                buffer.enforceOutputLimit(Property.SHELL_OUTPUT_LIMIT);
+                final int count = Math.min(next, 5);
+                assertEquals(count, buffer.getLineCount());
+                int n = 0;
+                for (Line line = buffer.getFirstLine(); line != null;
+                     line = line.next()) {
+                    assertEquals(n, line.lineNumber());
+                    assertEquals(String.valueOf(next - count + n),
+                        line.getText());
+                    assertSame(line, buffer.getLine(n));
+                    ++n;
+                }
+                assertEquals(count, n);
+                assertTrue(buffer.getFirstLine().isBefore(
+                    buffer.getFirstLine().next()));
+            }
+            // A full renumber agrees with the numbers after trimming.
+            buffer.renumber();
+            assertEquals(4, buffer.getLine(4).lineNumber());
+            assertEquals(String.valueOf(next - 1), buffer.getLine(4).getText());
+        }
+        finally {
+            preferences.setProperty(Property.SHELL_OUTPUT_LIMIT, saved);
+        }
+    }
+
+    @Test
+    public void findOriginal()
+    {
+        Line first = makeLines(new String[] { "a", "b", "c", "d" });
+        // Insert a new line (no original line number) after "b" and remove
+        // "c".
+        Line b = first.next();
+        Line c = b.next();
+        Line d = c.next();
+        Line inserted = new TextLine("new");
+        inserted.insertAfter(b);
+        inserted.setNext(d);
+        d.setPrevious(inserted);
+        LineIndex index = new LineIndex(first);
+
+        assertSame(b, index.findOriginal(1, true));
+        assertNull(index.findOriginal(2, true));
+        assertSame(d, index.findOriginal(2, false));
+        assertSame(d, index.findOriginal(3, true));
+        assertNull(index.findOriginal(4, false));
+    }
+}
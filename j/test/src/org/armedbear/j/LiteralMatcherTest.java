@@ -0,0 +1,86 @@
+/*
+ * LiteralMatcherTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LiteralMatcherTest
+{
+    // Includes characters that share a low byte with 'a' and 'b'.
+    private static final String ALPHABET = "abAB\u0161\u0162 ";
+
+    private static String random(Random random, int length)
+    {
+        StringBuffer sb = new StringBuffer(length);
+        for (int i = 0; i < length; i++)
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return sb.toString();
+    }
+
+    @Test
+    public void sameAsString()
+    {
+        Random random = new Random(1);
+        for (int n = 0; n < 2000; n++) {
+            String s = random(random, random.nextInt(40));
+            String pattern = random(random, random.nextInt(4));
+            LiteralMatcher matcher = new LiteralMatcher(pattern, false);
+            LiteralMatcher ignoreCase = new LiteralMatcher(pattern, true);
+            String lower = s.toLowerCase();
+            String lowerPattern = pattern.toLowerCase();
+            for (int i = -1; i <= s.length() + 1; i++) {
+                assertEquals(s.indexOf(pattern, i),
+                    matcher.indexOf(s, i, s.length()));
+                assertEquals(lower.indexOf(lowerPattern, i),
+                    ignoreCase.indexOf(s, i, s.length()));
+                assertEquals(s.lastIndexOf(pattern, i),
+                    matcher.lastIndexOf(s, i));
+                assertEquals(lower.lastIndexOf(lowerPattern, i),
+                    ignoreCase.lastIndexOf(s, i));
+            }
+        }
+    }
+
+    @Test
+    public void end()
+    {
+        LiteralMatcher matcher = new LiteralMatcher("bc", false);
+        assertEquals(-1, matcher.indexOf("abcd", 0, 2));
+        assertEquals(1, matcher.indexOf("abcd", 0, 3));
+    }
+
+    @Test
+    public void extendsMatcher()
+    {
+        LiteralMatcher abc = new LiteralMatcher("abc", true);
+        assertTrue(new LiteralMatcher("abcd", true).extendsMatcher(abc));
+        assertTrue(new LiteralMatcher("aBcD", false).extendsMatcher(abc));
+        assertFalse(new LiteralMatcher("abd", true).extendsMatcher(abc));
+        assertFalse(new LiteralMatcher("ab", true).extendsMatcher(abc));
+        LiteralMatcher exact = new LiteralMatcher("Abc", false);
+        assertFalse(new LiteralMatcher("abcd", true).extendsMatcher(exact));
+        assertTrue(new LiteralMatcher("Abcd", false).extendsMatcher(exact));
+        assertFalse(new LiteralMatcher("abcd", false).extendsMatcher(exact));
+    }
+}
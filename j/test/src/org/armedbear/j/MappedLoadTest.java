@@ -0,0 +1,157 @@
+/*
+ * MappedLoadTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MappedLoadTest
+{
+    private static final class TestBuffer extends SystemBuffer
+    {
+        int loadFinishedCalls;
+        boolean success;
+
+        TestBuffer(File file)
+        {
+            super(file);
+        }
+
+        protected void loadFinished(boolean success)
+        {
+            ++loadFinishedCalls;
+            this.success = success;
+        }
+    }
+
+    // About 5 MB of lines, some of them not ASCII, separated by sep.
+    private static byte[] makeText(String sep, boolean finalSeparator)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 100000; i++) {
+            if (i > 0)
+                out.write(sep.getBytes("UTF-8"));
+            String s = "line " + i + " of a large file";
+            if (i % 7 == 0)
+                s = s.concat(" caf\u00e9 \u20ac");
+            out.write(s.getBytes("UTF-8"));
+        }
+        if (finalSeparator)
+            out.write(sep.getBytes("UTF-8"));
+        return out.toByteArray();
+    }
+
+    private static java.io.File write(byte[] bytes) throws IOException
+    {
+        java.io.File tmp = java.io.File.createTempFile("mapped", null);
+        tmp.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(tmp);
+        out.write(bytes);
+        out.close();
+        return tmp;
+    }
+
+    private static void checkRoundTrip(String sep, boolean finalSeparator)
+        throws Exception
+    {
+        byte[] bytes = makeText(sep, finalSeparator);
+        java.io.File tmp = write(bytes);
+        File file = File.getInstance(tmp.getPath());
+        TestBuffer buffer = new TestBuffer(file);
+        buffer.loadMapped(file, "UTF-8");
+        assertEquals(1, buffer.loadFinishedCalls);
+        assertTrue(buffer.success);
+        assertTrue(buffer.isLoaded());
+        Line first = buffer.getFirstLine();
+        assertTrue(first instanceof MappedLine);
+        assertEquals("line 0 of a large file caf\u00e9 \u20ac", first.getText());
+        assertEquals("line 1 of a large file", first.next().getText());
+        int count = 0;
+        for (Line line = first; line != null; line = line.next())
+            ++count;
+        assertEquals(finalSeparator ? 100001 : 100000, count);
+
+        // Unchanged, the file is written back byte for byte.
+        java.io.File copy = java.io.File.createTempFile("mapped", null);
+        copy.deleteOnExit();
+        assertTrue(buffer.writeFile(File.getInstance(copy.getPath())));
+        assertTrue(Arrays.equals(bytes, Files.readAllBytes(copy.toPath())));
+
+        // Edit a line and save over the mapped file itself. That goes
+        // through a temporary file.
+        if (Directories.getTempDirectory() == null) {
+            java.io.File home = Files.createTempDirectory("home").toFile();
+            Directories.initialize(File.getInstance(home.getPath()));
+        }
+        first.next().setText("edited");
+        buffer.writeBuffer();
+        String expected = new String(bytes, "UTF-8").replaceFirst(
+            "line 1 of a large file", "edited");
+        assertEquals(expected,
+            new String(Files.readAllBytes(tmp.toPath()), "UTF-8"));
+        // The lines that were not edited still read the same text.
+        String[] lines = expected.split(sep, -1);
+        count = 0;
+        for (Line line = first; line != null; line = line.next())
+            assertEquals(lines[count++], line.getText());
+        assertEquals("line 99999 of a large file",
+            (finalSeparator ? buffer.getLastLine().previous() :
+             buffer.getLastLine()).getText());
+        buffer._empty();
+        copy.delete();
+        tmp.delete();
+    }
+
+    @Test
+    public void loadAndWriteBack() throws Exception
+    {
+        checkRoundTrip("\n", true);
+        checkRoundTrip("\r\n", false);
+    }
+
+    @Test
+    public void failedLoadLeavesBufferEmpty() throws Exception
+    {
+        java.io.File tmp = java.io.File.createTempFile("mapped", null);
+        tmp.delete();
+        File file = File.getInstance(tmp.getPath());
+        TestBuffer buffer = new TestBuffer(file);
+        try {
+            buffer.loadMapped(file, "UTF-8");
+            fail();
+        }
+        catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(1, buffer.loadFinishedCalls);
+        assertFalse(buffer.success);
+        assertFalse(buffer.isLoaded());
+        assertNull(buffer.getFirstLine());
+        assertNull(buffer.getLastLine());
+    }
+}
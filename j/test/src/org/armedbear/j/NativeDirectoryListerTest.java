@@ -0,0 +1,263 @@
+/*
+ * NativeDirectoryListerTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class NativeDirectoryListerTest
+{
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private java.io.File dir;
+
+    private java.io.File makeFile(String name, int size, long date)
+        throws Exception
+    {
+        java.io.File file = new java.io.File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[size]);
+        out.close();
+        assertTrue(file.setLastModified(date));
+        return file;
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        assumeTrue(NativeDirectoryLister.isSupported());
+        dir = Files.createTempDirectory("lister").toFile();
+        final long now = System.currentTimeMillis();
+        makeFile("a", 300, now - 3 * HOUR);
+        makeFile("B", 100, now - 1 * HOUR);
+        makeFile("c", 200, now - 2 * HOUR);
+        makeFile("d", 100, now - 4 * HOUR);
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(2001, Calendar.FEBRUARY, 3, 4, 5);
+        java.io.File old =
+            makeFile("old file.txt", 12345, cal.getTimeInMillis());
+        Files.setPosixFilePermissions(old.toPath(),
+            PosixFilePermissions.fromString("rwxr-x---"));
+        assertTrue(new java.io.File(dir, "Dir").mkdir());
+        Path path = dir.toPath();
+        Files.createSymbolicLink(path.resolve("link"), Paths.get("a"));
+        Files.createSymbolicLink(path.resolve("zlink"), Paths.get("missing"));
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (dir != null) {
+            java.io.File[] files = dir.listFiles();
+            for (int i = 0; i < files.length; i++)
+                files[i].delete();
+            dir.delete();
+        }
+    }
+
+    private List list(int sortBy, String filter) throws Exception
+    {
+        return NativeDirectoryLister.list(File.getInstance(dir.getPath()),
+            sortBy,
+            filter != null ? new DirectoryFilenameFilter(filter) : null);
+    }
+
+    private static List getNames(List entries)
+    {
+        ArrayList names = new ArrayList();
+        for (int i = 0; i < entries.size(); i++)
+            names.add(((DirectoryEntry) entries.get(i)).getName());
+        return names;
+    }
+
+    // The names in list that are also in names, in the order of list.
+    private static String getOrder(List list, String[] names)
+    {
+        Set set = new HashSet();
+        for (int i = 0; i < names.length; i++)
+            set.add(names[i]);
+        FastStringBuffer sb = new FastStringBuffer();
+        for (int i = 0; i < list.size(); i++) {
+            String name = (String) list.get(i);
+            if (set.contains(name)) {
+                if (sb.length() > 0)
+                    sb.append(' ');
+                sb.append(name);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static DirectoryEntry find(List entries, String name)
+    {
+        for (int i = 0; i < entries.size(); i++) {
+            DirectoryEntry entry = (DirectoryEntry) entries.get(i);
+            if (entry.getName().equals(name))
+                return entry;
+        }
+        fail(name);
+        return null;
+    }
+
+    @Test
+    public void sortOrders() throws Exception
+    {
+        List names = getNames(list(Directory.SORT_BY_NAME, null));
+        assertEquals("[., .., a, B, c, d, Dir, link, old file.txt, zlink]",
+            names.toString());
+        String[] files = { "a", "B", "c", "d", "old file.txt" };
+        // Most recent first.
+        assertEquals("B c a d old file.txt",
+            getOrder(getNames(list(Directory.SORT_BY_DATE, null)), files));
+        // Biggest first, then by name.
+        assertEquals("old file.txt a c B d",
+            getOrder(getNames(list(Directory.SORT_BY_SIZE, null)), files));
+    }
+
+    @Test
+    public void entries() throws Exception
+    {
+        List entries = list(Directory.SORT_BY_NAME, null);
+        DirectoryEntry a = find(entries, "a");
+        assertTrue(a.getString().startsWith("-"));
+        assertEquals(300, a.getSize());
+        // A recent file shows the time, an old one the year.
+        assertTrue(a.getString().matches(
+            ".* [A-Z][a-z][a-z] [ 123]\\d \\d\\d:\\d\\d a"));
+        DirectoryEntry old = find(entries, "old file.txt");
+        assertTrue(old.getString().startsWith("-rwxr-x--- "));
+        assertTrue(old.getString().endsWith(
+            " 12345 Feb  3  2001 old file.txt"));
+        assertTrue(find(entries, "Dir").getString().startsWith("d"));
+        DirectoryEntry link = find(entries, "link");
+        assertTrue(link.getString().startsWith("l"));
+        assertTrue(link.getString().endsWith(" link -> a"));
+        // The size of a link is the length of its target.
+        assertEquals(1, link.getSize());
+        // A link to nothing is still listed.
+        assertTrue(find(entries, "zlink").getString().endsWith(
+            " zlink -> missing"));
+        // Columns line up, and the name can be found again from the text.
+        int nameColumn = -1;
+        for (int i = 0; i < entries.size(); i++) {
+            DirectoryEntry entry = (DirectoryEntry) entries.get(i);
+            String s = entry.getString();
+            assertEquals(entry.getName(), DirectoryEntry.getName(s));
+            if (nameColumn < 0)
+                nameColumn = DirectoryEntry.getNameColumn(s);
+            else
+                assertEquals(s, nameColumn, DirectoryEntry.getNameColumn(s));
+        }
+    }
+
+    @Test
+    public void filter() throws Exception
+    {
+        // Directories are always included.
+        assertEquals("[., .., Dir, old file.txt]",
+            getNames(list(Directory.SORT_BY_NAME, "*.txt")).toString());
+    }
+
+    @Test
+    public void fifo() throws Exception
+    {
+        java.io.File fifo = new java.io.File(dir, "fifo");
+        Process process = new ProcessBuilder(new String[] { "mkfifo",
+            fifo.getPath() }).start();
+        assumeTrue(process.waitFor() == 0);
+        DirectoryEntry entry = find(list(Directory.SORT_BY_NAME, null), "fifo");
+        assertTrue(entry.getString().startsWith("p"));
+    }
+
+    @Test
+    public void devices() throws Exception
+    {
+        assumeTrue(new java.io.File("/dev/null").exists());
+        List entries = NativeDirectoryLister.list(File.getInstance("/dev"),
+            Directory.SORT_BY_NAME, new DirectoryFilenameFilter("null"));
+        DirectoryEntry entry = find(entries, "null");
+        // Major and minor device numbers instead of a size, as in ls.
+        assertTrue(entry.getString(), entry.getString().matches(
+            "crw-rw-rw- +\\d+ \\S+ +\\S+ +1, +3 .* null"));
+        assertEquals(-1, entry.getSize());
+    }
+
+    // Runs ls in the C locale. Returns null if it can't be run.
+    private List runLs(String options)
+    {
+        try {
+            ProcessBuilder pb = new ProcessBuilder(new String[] { "ls",
+                options, dir.getPath() });
+            pb.environment().put("LC_ALL", "C");
+            pb.redirectErrorStream(true);
+            Process process = pb.start();
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream()));
+            ArrayList lines = new ArrayList();
+            String s;
+            while ((s = reader.readLine()) != null) {
+                if (!s.startsWith("total "))
+                    lines.add(s);
+            }
+            reader.close();
+            return process.waitFor() == 0 ? lines : null;
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Test
+    public void sameAsLs() throws Exception
+    {
+        List lines = runLs("-la");
+        assumeTrue(lines != null);
+        Set expected = new HashSet();
+        for (int i = 0; i < lines.size(); i++) {
+            // Drop the ACL or security context marker that some versions of
+            // ls add after the mode.
+            expected.add(((String) lines.get(i)).replaceFirst(
+                "^(\\S{10})[.+]", "$1"));
+        }
+        List entries = list(Directory.SORT_BY_NAME, null);
+        Set actual = new HashSet();
+        for (int i = 0; i < entries.size(); i++)
+            actual.add(((DirectoryEntry) entries.get(i)).getString());
+        assertEquals(expected, actual);
+    }
+}
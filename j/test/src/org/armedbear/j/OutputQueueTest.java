@@ -0,0 +1,118 @@
+/*
+ * OutputQueueTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import javax.swing.SwingUtilities;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutputQueueTest
+{
+    @Test
+    public void coalescesInOrder() throws Exception
+    {
+        final StringBuffer received = new StringBuffer();
+        final int[] calls = new int[1];
+        final OutputQueue queue = new OutputQueue() {
+            protected void process(String s)
+            {
+                assertTrue(SwingUtilities.isEventDispatchThread());
+                received.append(s);
+                ++calls[0];
+            }
+        };
+        StringBuffer expected = new StringBuffer();
+        // More chunks than the ring holds, so put() has to wait.
+        for (int i = 0; i < 5000; i++) {
+            String s = String.valueOf(i) + '\n';
+            expected.append(s);
+            queue.put(s);
+        }
+        // Flush whatever is left.
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run()
+            {
+                queue.flush();
+            }
+        });
+        assertEquals(expected.toString(), received.toString());
+        assertTrue(calls[0] < 5000);
+        assertEquals(5000 - calls[0], queue.getDroppedRepaints());
+    }
+
+    @Test
+    public void keepsStderrSeparate() throws Exception
+    {
+        final StringBuffer received = new StringBuffer();
+        final OutputQueue queue = new OutputQueue() {
+            protected void process(String s)
+            {
+                received.append("out:").append(s).append(';');
+            }
+
+            protected void processError(String s)
+            {
+                received.append("err:").append(s).append(';');
+            }
+        };
+        final Throwable[] thrown = new Throwable[1];
+        // put() on the event dispatch thread could wait forever.
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run()
+            {
+                try {
+                    queue.put("x");
+                }
+                catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        });
+        assertTrue(thrown[0] instanceof AssertionException);
+        // Hold up the event dispatch thread so all the chunks are taken by
+        // one flush.
+        final Object lock = new Object();
+        synchronized (lock) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run()
+                {
+                    synchronized (lock) {
+                        queue.flush();
+                    }
+                }
+            });
+            queue.put("a");
+            queue.put("b");
+            queue.put("c", true);
+            queue.put("d", true);
+            queue.put("e");
+            queue.put("f", true);
+        }
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run()
+            {
+                queue.flush();
+            }
+        });
+        assertEquals("out:ab;err:cd;out:e;err:f;", received.toString());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * RECacheTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import gnu.regexp.RE;
+import gnu.regexp.REException;
+import gnu.regexp.REMatch;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RECacheTest
+{
+    private static final String[] ATOMS = {
+        "a", "b", "A", ".", "[ab]", "[^a]", "\\w", "\\W", "\\s", "\\d", "\\b",
+        "\\B", "^", "$", "\\<", "\\>", "[a-c]", "[A-Z]", "\\n", "[\\w-]",
+        "[]a]", "\\.", "{", "\\1", "(ab|ba)", "(a|ab)", "(?:x|ab|b)"
+    };
+
+    private static final String[] QUANTIFIERS = {
+        "", "", "", "*", "+", "?", "{1,2}", "{2}", "*?", "{1,}"
+    };
+
+    private static final String ALPHABET = "abAB \n1_x.";
+
+    @After
+    public void restoreEngine()
+    {
+        RE.setDefaultEngine(RE.ENGINE_JAVA);
+    }
+
+    @Test
+    public void cachesByPatternAndFlags() throws REException
+    {
+        RE re = RECache.getRE("fo+");
+        assertSame(re, RECache.getRE("fo+"));
+        assertSame(re, RECache.getRE("fo+", 0));
+        assertNotSame(re, RECache.getRE("fo+", RE.REG_ICASE));
+        assertNotSame(re, RECache.getRE("fo*"));
+        RE.setDefaultEngine(RE.ENGINE_INTERPRETED);
+        RE interpreted = RECache.getRE("fo+");
+        assertNotSame(re, interpreted);
+        assertFalse(interpreted.isCompiled());
+    }
+
+    @Test
+    public void compilesCommonPatterns() throws REException
+    {
+        assertTrue(new RE("^\\s*(public|private)\\s+\\w+").isCompiled());
+        assertTrue(new RE("[^ \t]+\\.java$", RE.REG_ICASE).isCompiled());
+        // Alternatives where leftmost-longest and leftmost-first differ.
+        assertFalse(new RE("a|ab").isCompiled());
+        assertFalse(new RE("(ab)+").isCompiled());
+    }
+
+    @Test
+    public void sameMatchesAsInterpreter()
+    {
+        Random random = new Random(24);
+        int compiled = 0;
+        for (int n = 0; n < 3000; n++) {
+            String pattern = randomPattern(random, 0);
+            int flags = random.nextInt(4) == 0 ? RE.REG_ICASE : 0;
+            if (random.nextInt(4) == 0)
+                flags |= RE.REG_MULTILINE;
+            RE interpreted, java;
+            try {
+                RE.setDefaultEngine(RE.ENGINE_INTERPRETED);
+                interpreted = new RE(pattern, flags);
+                RE.setDefaultEngine(RE.ENGINE_JAVA);
+                java = new RE(pattern, flags);
+            }
+            catch (REException e) {
+                continue;
+            }
+            if (!java.isCompiled())
+                continue;
+            ++compiled;
+            for (int i = 0; i < 10; i++) {
+                String input = randomInput(random);
+                for (int index = 0; index <= input.length(); index++) {
+                    String message = "/" + pattern + "/ " + flags + " \"" +
+                        input + "\" " + index;
+                    assertEquals(message,
+                        toString(interpreted, interpreted.getMatch(input, index)),
+                        toString(interpreted, java.getMatch(input, index)));
+                    assertEquals(message, interpreted.isMatch(input, index),
+                        java.isMatch(input, index));
+                }
+            }
+        }
+        assertTrue(compiled > 500);
+    }
+
+    private static String randomPattern(Random random, int depth)
+    {
+        FastStringBuffer sb = new FastStringBuffer();
+        int n = 1 + random.nextInt(4);
+        for (int i = 0; i < n; i++) {
+            int k = random.nextInt(10);
+            if (k == 0 && depth < 2) {
+                sb.append('(');
+                sb.append(randomPattern(random, depth + 1));
+                sb.append(')');
+            } else if (k == 1 && depth < 2) {
+                sb.append("(?:");
+                sb.append(randomPattern(random, depth + 1));
+                sb.append(')');
+            } else
+                sb.append(ATOMS[random.nextInt(ATOMS.length)]);
+            sb.append(QUANTIFIERS[random.nextInt(QUANTIFIERS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String randomInput(Random random)
+    {
+        FastStringBuffer sb = new FastStringBuffer();
+        int length = random.nextInt(8);
+        for (int i = 0; i < length; i++)
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return sb.toString();
+    }
+
+    private static String toString(RE re, REMatch match)
+    {
+        if (match == null)
+            return "null";
+        FastStringBuffer sb = new FastStringBuffer();
+        sb.append(String.valueOf(match.getStartIndex()));
+        sb.append(',');
+        sb.append(String.valueOf(match.getEndIndex()));
+        for (int i = 1; i <= re.getNumSubs(); i++) {
+            sb.append(' ');
+            sb.append(String.valueOf(match.getStartIndex(i)));
+            sb.append(':');
+            sb.append(String.valueOf(match.getEndIndex(i)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * ReadWriteLockTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReadWriteLockTest
+{
+    @Test
+    public void writeIsReentrant() throws Exception
+    {
+        ReadWriteLock lock = new ReadWriteLock();
+        lock.lockWrite();
+        lock.lockWrite();
+        assertTrue(lock.isWriteLocked());
+        lock.unlockWrite();
+        assertTrue(lock.isWriteLocked());
+        lock.unlockWrite();
+        assertFalse(lock.isWriteLocked());
+    }
+
+    @Test
+    public void readUnderWriteDowngrades() throws Exception
+    {
+        final ReadWriteLock lock = new ReadWriteLock();
+        lock.lockWrite();
+        lock.lockRead();
+        lock.unlockWrite();
+        assertFalse(lock.isWriteLocked());
+        // Still holding the read lock, so another writer has to wait.
+        Thread writer = new Thread() {
+            public void run()
+            {
+                try {
+                    lock.lockWrite();
+                    lock.unlockWrite();
+                }
+                catch (InterruptedException e) {}
+            }
+        };
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+        lock.unlockRead();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+    }
+
+    @Test
+    public void nestedReadWithWaitingWriter() throws Exception
+    {
+        final ReadWriteLock lock = new ReadWriteLock();
+        lock.lockRead();
+        Thread writer = new Thread() {
+            public void run()
+            {
+                try {
+                    lock.lockWrite();
+                    lock.unlockWrite();
+                }
+                catch (InterruptedException e) {}
+            }
+        };
+        writer.start();
+        while (lock.getWriteWaits() == 0)
+            Thread.sleep(10);
+        // Must not block behind the waiting writer.
+        lock.lockRead();
+        lock.unlockRead();
+        lock.unlockRead();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+    }
+
+    @Test
+    public void readReleasedOnAnotherThread() throws Exception
+    {
+        // As IList does: lock on one thread, unlock on a worker.
+        final ReadWriteLock lock = new ReadWriteLock();
+        lock.lockRead();
+        final Throwable[] error = new Throwable[1];
+        Thread worker = new Thread() {
+            public void run()
+            {
+                try {
+                    lock.unlockRead();
+                }
+                catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        };
+        worker.start();
+        worker.join(5000);
+        assertNull(error[0]);
+        // Must not deadlock.
+        lock.lockWrite();
+        assertTrue(lock.isWriteLockedByCurrentThread());
+        lock.unlockWrite();
+        assertFalse(lock.isWriteLocked());
+    }
+
+    @Test
+    public void nestedReadsUnderWriteDowngrade() throws Exception
+    {
+        ReadWriteLock lock = new ReadWriteLock();
+        lock.lockWrite();
+        lock.lockRead();
+        lock.lockRead();
+        lock.unlockWrite();
+        lock.unlockRead();
+        lock.unlockRead();
+        // Both read holds are gone.
+        lock.lockWrite();
+        lock.unlockWrite();
+    }
+
+    @Test
+    public void optimisticRead() throws Exception
+    {
+        ReadWriteLock lock = new ReadWriteLock();
+        long stamp = lock.tryOptimisticRead();
+        assertTrue(lock.validate(stamp));
+        lock.lockWrite();
+        assertEquals(0, lock.tryOptimisticRead());
+        lock.unlockWrite();
+        assertFalse(lock.validate(stamp));
+        assertEquals(1, lock.getOptimisticFailures());
+    }
+
+    @Test
+    public void tracksReadHolds() throws Exception
+    {
+        final ReadWriteLock lock = new ReadWriteLock();
+        assertFalse(lock.holdsReadLock());
+        lock.lockRead();
+        lock.lockRead();
+        assertTrue(lock.holdsReadLock());
+        lock.unlockRead();
+        assertTrue(lock.holdsReadLock());
+        lock.unlockRead();
+        assertFalse(lock.holdsReadLock());
+
+        // Downgraded reads are held by this thread.
+        lock.lockWrite();
+        lock.lockRead();
+        lock.unlockWrite();
+        assertTrue(lock.holdsReadLock());
+        lock.unlockRead();
+        assertFalse(lock.holdsReadLock());
+
+        // A hold released on another thread is forgotten.
+        lock.lockRead();
+        Thread worker = new Thread() {
+            public void run()
+            {
+                assertFalse(lock.holdsReadLock());
+                lock.unlockRead();
+            }
+        };
+        worker.start();
+        worker.join(5000);
+        assertFalse(lock.holdsReadLock());
+    }
+}
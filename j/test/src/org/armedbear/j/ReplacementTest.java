@@ -0,0 +1,234 @@
+/*
+ * ReplacementTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReplacementTest
+{
+    private static Buffer makeBuffer(String[] lines)
+    {
+        Buffer buffer = new Buffer() {
+            {
+                initializeUndo();
+            }
+        };
+        for (int i = 0; i < lines.length; i++)
+            buffer.appendLine(lines[i]);
+        buffer.renumber();
+        return buffer;
+    }
+
+    private static String getText(Buffer buffer)
+    {
+        FastStringBuffer sb = new FastStringBuffer();
+        for (Line line = buffer.getFirstLine(); line != null; line = line.next()) {
+            if (line != buffer.getFirstLine())
+                sb.append('\n');
+            sb.append(line.getText());
+        }
+        return sb.toString();
+    }
+
+    private static Replacement makeReplacement(String pattern,
+        String replaceWith, boolean regularExpression)
+    {
+        Replacement replacement = new Replacement(null);
+        replacement.setPattern(pattern);
+        replacement.setReplaceWith(replaceWith);
+        replacement.setRegularExpression(regularExpression);
+        return replacement;
+    }
+
+    private static int replaceAll(Replacement replacement, Buffer buffer)
+    {
+        return replacement.replaceAll(buffer,
+            new Position(buffer.getFirstLine(), 0));
+    }
+
+    @Test
+    public void plainPattern()
+    {
+        Buffer buffer = makeBuffer(new String[] { "foo bar foo", "", "xfoo" });
+        Replacement replacement = makeReplacement("foo", "baz", false);
+        assertEquals(3, replaceAll(replacement, buffer));
+        assertEquals("baz bar baz\n\nxbaz", getText(buffer));
+        assertEquals(3, replacement.getReplacementCount());
+        assertTrue(buffer.isModified());
+    }
+
+    @Test
+    public void ignoreCaseKeepsCase()
+    {
+        Buffer buffer = makeBuffer(new String[] { "Foo FOO foo" });
+        Replacement replacement = makeReplacement("foo", "baz", false);
+        replacement.setIgnoreCase(true);
+        assertEquals(3, replaceAll(replacement, buffer));
+        assertEquals("Baz BAZ baz", getText(buffer));
+    }
+
+    @Test
+    public void regularExpression()
+    {
+        Buffer buffer = makeBuffer(new String[] { "a=1 b=22", "c" });
+        Replacement replacement =
+            makeReplacement("(\\w+)=(\\d+)", "\\2=\\1", true);
+        assertEquals(2, replaceAll(replacement, buffer));
+        assertEquals("1=a 22=b\nc", getText(buffer));
+    }
+
+    @Test
+    public void wholeWordsOnly()
+    {
+        Buffer buffer = makeBuffer(new String[] { "foo food foo_x (foo)" });
+        Replacement replacement = makeReplacement("foo", "bar", false);
+        replacement.setWholeWordsOnly(true);
+        assertEquals(2, replaceAll(replacement, buffer));
+        assertEquals("bar food foo_x (bar)", getText(buffer));
+    }
+
+    @Test
+    public void startsAtPosition()
+    {
+        Buffer buffer = makeBuffer(new String[] { "aa aa", "aa" });
+        Replacement replacement = makeReplacement("aa", "b", false);
+        assertEquals(2, replacement.replaceAll(buffer,
+            new Position(buffer.getFirstLine(), 1)));
+        assertEquals("aa b\nb", getText(buffer));
+    }
+
+    @Test
+    public void restrictedToSelection()
+    {
+        Buffer buffer =
+            makeBuffer(new String[] { "aa aa", "aa aa aa", "aa" });
+        Line first = buffer.getFirstLine();
+        Line second = first.next();
+        Region region = new Region(buffer, new Position(first, 3),
+            new Position(second, 5));
+        Replacement replacement = makeReplacement("aa", "bbbb", false);
+        replacement.setRestrictToSelection(true);
+        replacement.setRegion(region);
+        assertEquals(3, replacement.replaceAll(buffer, region.getBegin()));
+        assertEquals("aa bbbb\nbbbb bbbb aa\naa", getText(buffer));
+        // The end of the region moves with the text before it.
+        assertSame(second, region.getEndLine());
+        assertEquals(9, region.getEndOffset());
+    }
+
+    @Test
+    public void emptyMatches()
+    {
+        Buffer buffer = makeBuffer(new String[] { "axxb", "" });
+        Replacement replacement = makeReplacement("x*", "-", true);
+        assertEquals(5, replaceAll(replacement, buffer));
+        // The same as String.replaceAll().
+        assertEquals("axxb".replaceAll("x*", "-") + "\n-", getText(buffer));
+    }
+
+    @Test
+    public void undoAndRedo() throws InterruptedException
+    {
+        Buffer buffer = makeBuffer(new String[] { "one two", "three", "two" });
+        final int modCount = buffer.getModCount();
+        Replacement replacement = makeReplacement("two", "2", false);
+        assertEquals(2, replaceAll(replacement, buffer));
+        assertEquals("one 2\nthree\n2", getText(buffer));
+        UndoManager undoManager = buffer.getUndoManager();
+        assertTrue(undoManager.canUndo());
+        buffer.lockWrite();
+        try {
+            undoManager.undo();
+            assertEquals("one two\nthree\ntwo", getText(buffer));
+            assertEquals(modCount, buffer.getModCount());
+            undoManager.redo();
+            assertEquals("one 2\nthree\n2", getText(buffer));
+            assertTrue(buffer.isModified());
+        }
+        finally {
+            buffer.unlockWrite();
+        }
+        assertFalse(undoManager.canRedo());
+    }
+
+    @Test
+    public void multilinePattern() throws InterruptedException
+    {
+        Buffer buffer = makeBuffer(new String[] {
+            "a {", "}", "keep", "b {", "}", "c {x}" });
+        Line keep = buffer.getLine(2);
+        Line last = buffer.getLine(5);
+        Replacement replacement = makeReplacement("\\{\n\\}", "{}", true);
+        replacement.setMultiline(true);
+        assertEquals(2, replaceAll(replacement, buffer));
+        assertEquals("a {}\nkeep\nb {}\nc {x}", getText(buffer));
+        // Only the lines the occurrences span are changed.
+        assertSame(keep, buffer.getLine(1));
+        assertSame(last, buffer.getLine(3));
+        assertEquals(4, buffer.getLineCount());
+        // Splitting lines.
+        replacement = makeReplacement("\\{(\\w*)\\}", "{\\n\\1\\n}", true);
+        replacement.setMultiline(true);
+        assertEquals(3, replaceAll(replacement, buffer));
+        assertEquals("a {\n\n}\nkeep\nb {\n\n}\nc {\nx\n}",
+            getText(buffer));
+        assertSame(keep, buffer.getLine(3));
+        assertEquals(10, buffer.getLineCount());
+        UndoManager undoManager = buffer.getUndoManager();
+        buffer.lockWrite();
+        try {
+            undoManager.undo();
+            assertEquals("a {}\nkeep\nb {}\nc {x}", getText(buffer));
+            assertSame(keep, buffer.getLine(1));
+            undoManager.undo();
+            assertEquals("a {\n}\nkeep\nb {\n}\nc {x}", getText(buffer));
+            assertSame(keep, buffer.getLine(2));
+            assertEquals(6, buffer.getLineCount());
+            undoManager.redo();
+            undoManager.redo();
+            assertEquals("a {\n\n}\nkeep\nb {\n\n}\nc {\nx\n}",
+                getText(buffer));
+            assertEquals(3, buffer.getLine(3).lineNumber());
+        }
+        finally {
+            buffer.unlockWrite();
+        }
+    }
+
+    @Test
+    public void multilineRestrictedToSelection()
+    {
+        Buffer buffer = makeBuffer(new String[] { "x", "x", "x", "x" });
+        Region region = new Region(buffer,
+            new Position(buffer.getFirstLine(), 0),
+            new Position(buffer.getLine(2), 1));
+        Replacement replacement = makeReplacement("x\nx", "z", true);
+        replacement.setMultiline(true);
+        replacement.setRestrictToSelection(true);
+        replacement.setRegion(region);
+        assertEquals(1, replacement.replaceAll(buffer, region.getBegin()));
+        assertEquals("z\nx\nx", getText(buffer));
+        assertSame(buffer.getLine(1), region.getEndLine());
+        assertEquals(1, region.getEndOffset());
+    }
+}
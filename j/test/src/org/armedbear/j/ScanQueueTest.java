@@ -0,0 +1,122 @@
+/*
+ * ScanQueueTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanQueueTest
+{
+    @Test(timeout = 10000)
+    public void resultsArriveAsTasksFinish() throws InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        ScanQueue queue = new ScanQueue("test", 2, 4);
+        try {
+            // The first task can't finish until the second one's result
+            // has been taken.
+            queue.submit(new Callable() {
+                public Object call() throws InterruptedException
+                {
+                    assertTrue(release.await(5, TimeUnit.SECONDS));
+                    return "slow";
+                }
+            });
+            queue.submit(new Callable() {
+                public Object call()
+                {
+                    return "fast";
+                }
+            });
+            assertEquals("fast", queue.take());
+            assertFalse(queue.isEmpty());
+            release.countDown();
+            assertEquals("slow", queue.take());
+            assertTrue(queue.isEmpty());
+        }
+        finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failedTaskDoesNotStopTheOthers() throws InterruptedException
+    {
+        ScanQueue queue = new ScanQueue("test", 3, 100);
+        try {
+            for (int i = 0; i < 30; i++) {
+                final int n = i;
+                queue.submit(new Callable() {
+                    public Object call()
+                    {
+                        if (n % 10 == 3)
+                            throw new IllegalStateException("task " + n);
+                        return new Integer(n);
+                    }
+                });
+            }
+            Set results = new HashSet();
+            int failures = 0;
+            while (!queue.isEmpty()) {
+                Object result = queue.take();
+                if (result == null)
+                    ++failures;
+                else
+                    results.add(result);
+            }
+            assertEquals(3, failures);
+            assertEquals(27, results.size());
+            assertFalse(queue.hasResult());
+        }
+        finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void fullUntilAResultIsTaken() throws InterruptedException
+    {
+        ScanQueue queue = new ScanQueue("test", 1, 2);
+        try {
+            Callable task = new Callable() {
+                public Object call()
+                {
+                    return "done";
+                }
+            };
+            queue.submit(task);
+            assertFalse(queue.isFull());
+            queue.submit(task);
+            assertTrue(queue.isFull());
+            assertEquals("done", queue.take());
+            assertFalse(queue.isFull());
+        }
+        finally {
+            queue.shutdown();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * TagFileTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TagFileTest
+{
+    private static TagFile.Entry entry(String path, String[] names)
+    {
+        ArrayList lines = new ArrayList();
+        for (int i = 0; i < names.length; i++)
+            lines.add(names[i] + '\0' + path + '\0' + "  void f()");
+        return new TagFile.Entry(path, 1000, 42, lines);
+    }
+
+    private static TagFile write(List entries) throws Exception
+    {
+        java.io.File tmp = java.io.File.createTempFile("tags", null);
+        tmp.deleteOnExit();
+        File file = File.getInstance(tmp.getPath());
+        TagFile.write(file, entries);
+        TagFile tagFile = TagFile.open(file);
+        assertNotNull(tagFile);
+        return tagFile;
+    }
+
+    @Test
+    public void lookup() throws Exception
+    {
+        TagFile tagFile = write(Arrays.asList(new Object[] {
+            entry("/src/Foo.java", new String[] { "Foo.bar", "Foo.qux" }),
+            entry("/src/Baz.java", new String[] { "Baz.Bar", "zed" }),
+        }));
+        assertEquals(4, tagFile.size());
+        assertEquals(2, tagFile.lookup("bar").size());
+        assertEquals(2, tagFile.lookup("Other::BAR").size());
+        assertEquals(1, tagFile.lookup("zed").size());
+        assertEquals(0, tagFile.lookup("nope").size());
+        assertEquals("Foo.qux",
+            ((GlobalTag)tagFile.lookup("qux").get(0)).getName());
+        assertEquals(4, tagFile.getAllTags().size());
+    }
+
+    @Test
+    public void empty() throws Exception
+    {
+        // Written when the last source file of a directory is removed.
+        TagFile tagFile = write(new ArrayList());
+        assertEquals(0, tagFile.size());
+        assertEquals(0, tagFile.lookup("bar").size());
+        assertEquals(0, tagFile.getAllTags().size());
+        assertEquals(0, tagFile.getEntries(true).size());
+    }
+
+    @Test
+    public void entries() throws Exception
+    {
+        TagFile tagFile = write(Arrays.asList(new Object[] {
+            entry("/src/Foo.java", new String[] { "Foo.bar", "Foo.qux" }),
+            entry("/src/Empty.java", new String[0]),
+        }));
+        List entries = tagFile.getEntries(true);
+        assertEquals(2, entries.size());
+        TagFile.Entry foo = (TagFile.Entry) entries.get(0);
+        assertEquals("/src/Foo.java", foo.path);
+        assertEquals(1000, foo.lastModified);
+        assertEquals(42, foo.length);
+        assertEquals(2, foo.lines.size());
+        assertEquals(0, ((TagFile.Entry)entries.get(1)).lines.size());
+        assertNull(((TagFile.Entry)tagFile.getEntries(false).get(0)).lines);
+    }
+
+    @Test
+    public void longPath() throws Exception
+    {
+        // Longer than a short can hold.
+        FastStringBuffer sb = new FastStringBuffer("/src");
+        while (sb.length() < 70000)
+            sb.append("/directory");
+        sb.append("/Foo.java");
+        final String path = sb.toString();
+        TagFile tagFile = write(Arrays.asList(new Object[] {
+            entry(path, new String[] { "Foo.bar" }),
+            entry("/src/Baz.java", new String[] { "Baz.qux" }),
+        }));
+        List entries = tagFile.getEntries(true);
+        assertEquals(2, entries.size());
+        assertEquals(path, ((TagFile.Entry)entries.get(0)).path);
+        assertEquals(1, ((TagFile.Entry)entries.get(0)).lines.size());
+        assertEquals("/src/Baz.java", ((TagFile.Entry)entries.get(1)).path);
+        assertEquals(42, ((TagFile.Entry)entries.get(1)).length);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * TrigramIndexTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j;
+
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrigramIndexTest
+{
+    private static List literals(String pattern)
+    {
+        return TrigramIndex.getLiterals(pattern, true);
+    }
+
+    @Test
+    public void plainLiterals()
+    {
+        assertEquals(Arrays.asList(new String[] { "foo(", "bar" }),
+            TrigramIndex.getLiterals("foo(\nbar", false));
+        assertNull(TrigramIndex.getLiterals("ab", false));
+    }
+
+    @Test
+    public void regexLiterals()
+    {
+        assertEquals(Arrays.asList(new String[] { "word" }),
+            literals("\\bword\\b"));
+        assertEquals(Arrays.asList(new String[] { "cde" }),
+            literals("ab*cde"));
+        assertEquals(Arrays.asList(new String[] { "abc" }),
+            literals("x{2,3}abc"));
+        assertEquals(Arrays.asList(new String[] { "a.b" }),
+            literals("a\\.b"));
+        assertEquals(Arrays.asList(new String[] { "foo", "bar" }),
+            literals("foo.*bar"));
+        assertNull(literals("foo|bar"));
+        assertNull(literals("(foo)"));
+        assertNull(literals("\\w+"));
+    }
+
+    @Test
+    public void characterClasses()
+    {
+        // The class ends at the second ']'.
+        assertEquals(Arrays.asList(new String[] { "xyz" }),
+            literals("[\\]abc]xyz"));
+        assertEquals(Arrays.asList(new String[] { "xyz" }),
+            literals("[]abc]xyz"));
+        assertEquals(Arrays.asList(new String[] { "xyz" }),
+            literals("[^]a]xyz"));
+        assertEquals(Arrays.asList(new String[] { "foo" }),
+            literals("[[:alpha:]]foo"));
+        assertEquals(Arrays.asList(new String[] { "foo", "bar" }),
+            literals("foo[a-z\\\\]bar"));
+        assertNull(literals("foo[abc"));
+    }
+
+    private static void write(java.io.File file, String s) throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(s.getBytes("UTF-8"));
+        out.close();
+    }
+
+    @Test
+    public void query() throws Exception
+    {
+        java.io.File tmp = Files.createTempDirectory("trigram").toFile();
+        java.io.File sub = new java.io.File(tmp, "sub");
+        sub.mkdir();
+        java.io.File a = new java.io.File(tmp, "a.txt");
+        java.io.File b = new java.io.File(sub, "b.txt");
+        java.io.File c = new java.io.File(tmp, "c.txt");
+        write(a, "Hello World\nfoo bar\n");
+        // Dotted capital I, which String.toLowerCase() turns into two
+        // characters.
+        write(b, "\u0130STANBUL\n");
+        write(c, "nothing\n");
+        java.io.File indexFile = java.io.File.createTempFile("trigram", null);
+        File root = File.getInstance(tmp.getPath());
+        TrigramIndex index =
+            new TrigramIndex(root, File.getInstance(indexFile.getPath()));
+        assertEquals(3, index.update(null, "UTF-8"));
+        String pathA = File.getInstance(a.getPath()).canonicalPath();
+        String pathB = File.getInstance(b.getPath()).canonicalPath();
+
+        Set set = index.query(TrigramIndex.getLiterals("WORLD", false));
+        assertEquals(1, set.size());
+        assertTrue(set.contains(pathA));
+        // Matches don't span lines.
+        assertEquals(0,
+            index.query(TrigramIndex.getLiterals("ldfoo", false)).size());
+        assertTrue(index.query(literals("hello.*world")).contains(pathA));
+        assertEquals(0, index.query(literals("hello.*planet")).size());
+        assertTrue(index.query(
+            TrigramIndex.getLiterals("\u0130stanbul", false)).contains(pathB));
+        assertTrue(index.query(
+            TrigramIndex.getLiterals("istanbul", false)).contains(pathB));
+        // Too short to use the index.
+        assertNull(index.query(Arrays.asList(new String[] { "no" })));
+
+        // A changed file is reindexed.
+        write(c, "Hello World\n");
+        c.setLastModified(c.lastModified() + 2000);
+        assertEquals(1, index.update(null, "UTF-8"));
+        assertEquals(2,
+            index.query(TrigramIndex.getLiterals("world", false)).size());
+
+        a.delete();
+        b.delete();
+        c.delete();
+        sub.delete();
+        tmp.delete();
+        indexFile.delete();
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * ImapSessionTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImapSessionTest
+{
+    // Just enough of an IMAP server to log in, select a folder, store
+    // flags and idle.
+    private static final class Server extends Thread
+    {
+        final ServerSocket serverSocket;
+        final String capabilities;
+        final boolean loginCapabilities;
+        final List stores = new ArrayList();
+        volatile boolean pipelined;
+        volatile int idles;
+        volatile int dones;
+        volatile String select;
+        private boolean qresync;
+        private OutputStream out;
+
+        Server(String capabilities, boolean loginCapabilities)
+            throws IOException
+        {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            this.capabilities = capabilities;
+            this.loginCapabilities = loginCapabilities;
+            setDaemon(true);
+            start();
+        }
+
+        ImapSession getSession() throws Exception
+        {
+            ImapURL url = ImapURL.parseURL("{test@127.0.0.1:" +
+                serverSocket.getLocalPort() + "}INBOX");
+            return ImapSession.getSession(url, "test", "secret");
+        }
+
+        synchronized void send(String s) throws IOException
+        {
+            out.write(s.concat("\r\n").getBytes("ISO8859_1"));
+            out.flush();
+        }
+
+        public void run()
+        {
+            try {
+                while (true)
+                    serve(serverSocket.accept());
+            }
+            catch (IOException e) {}
+        }
+
+        private void serve(Socket socket) throws IOException
+        {
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "ISO8859_1"));
+            out = socket.getOutputStream();
+            send("* OK fake server ready");
+            String s;
+            while ((s = reader.readLine()) != null) {
+                String[] words = s.split(" ");
+                String tag = words[0];
+                String command = words[1].toLowerCase();
+                if (command.equals("login")) {
+                    send(tag + (loginCapabilities ?
+                        " OK [CAPABILITY " + capabilities + "] logged in" :
+                        " OK logged in"));
+                } else if (command.equals("capability")) {
+                    send("* CAPABILITY " + capabilities);
+                    send(tag + " OK done");
+                } else if (command.equals("enable")) {
+                    qresync = true;
+                    send("* ENABLED QRESYNC");
+                    send(tag + " OK enabled");
+                } else if (command.equals("select") || command.equals("examine")) {
+                    select = s;
+                    send("* 3 EXISTS");
+                    send("* 0 RECENT");
+                    send("* OK [UIDVALIDITY 42] ok");
+                    if (s.endsWith("(condstore)"))
+                        send("* OK [HIGHESTMODSEQ 715194045007] ok");
+                    send(tag + (command.equals("select") ?
+                        " OK [READ-WRITE] done" : " OK [READ-ONLY] done"));
+                } else if (command.equals("uid")) {
+                    if (stores.isEmpty()) {
+                        // Give the client a moment to send the rest.
+                        try {
+                            Thread.sleep(100);
+                        }
+                        catch (InterruptedException e) {}
+                        pipelined = reader.ready();
+                    }
+                    stores.add(words[3]);
+                    send(tag + " OK stored");
+                } else if (command.equals("idle")) {
+                    send("+ idling");
+                    ++idles;
+                    s = reader.readLine();
+                    if (s == null)
+                        break;
+                    assertEquals("DONE", s);
+                    ++dones;
+                    send(tag + " OK idle done");
+                } else if (command.equals("noop") && qresync) {
+                    send("* VANISHED 2:3");
+                    send(tag + " OK done");
+                } else if (command.equals("logout")) {
+                    send("* BYE bye");
+                    send(tag + " OK logged out");
+                    break;
+                } else
+                    send(tag + " OK done");
+            }
+            socket.close();
+        }
+    }
+
+    @Test
+    public void getMessageSets()
+    {
+        int[] uids = new int[] { 9, 1, 2, 3, 7, 12, 10, 11, 5 };
+        List sets = ImapSession.getMessageSets(uids, 1000);
+        assertEquals(Arrays.asList(new String[] { "1:3,5,7,9:12" }), sets);
+        sets = ImapSession.getMessageSets(uids, 3);
+        assertEquals(Arrays.asList(new String[] { "1:3", "5,7", "9:12" }), sets);
+        assertTrue(ImapSession.getMessageSets(new int[0], 1000).isEmpty());
+        int[] parsed = ImapSession.parseMessageSet("1:3,5,9:7");
+        assertEquals("[1, 2, 3, 5, 7, 8, 9]", Arrays.toString(parsed));
+    }
+
+    @Test
+    public void condstore() throws Exception
+    {
+        Server server = new Server("IMAP4rev1 ENABLE CONDSTORE QRESYNC", true);
+        ImapSession session = server.getSession();
+        assertTrue(session.verifyConnected());
+        assertTrue(session.isQresyncEnabled());
+        assertTrue(session.reselect("INBOX"));
+        assertTrue(server.select.endsWith("select \"INBOX\" (condstore)"));
+        assertEquals(715194045007L, session.getHighestModSeq());
+        assertEquals(3, session.getMessageCount());
+        // The server reports two messages gone in response to NOOP.
+        assertTrue(session.verifyConnected());
+        assertEquals(1, session.getMessageCount());
+        session.logout();
+        // Without CONDSTORE, no mod-sequences.
+        server.serverSocket.close();
+        server = new Server("IMAP4rev1", true);
+        session = server.getSession();
+        assertTrue(session.verifyConnected());
+        assertFalse(session.isQresyncEnabled());
+        assertTrue(session.reselect("INBOX"));
+        assertTrue(server.select.endsWith("select \"INBOX\""));
+        assertEquals(0, session.getHighestModSeq());
+        session.logout();
+        server.serverSocket.close();
+    }
+
+    @Test
+    public void pipelinedStore() throws Exception
+    {
+        Server server = new Server("IMAP4rev1 IDLE", false);
+        ImapSession session = server.getSession();
+        assertTrue(session.verifyConnected());
+        // Capabilities weren't in the LOGIN response, so we asked.
+        assertTrue(session.hasCapability("idle"));
+        assertTrue(session.reselect("INBOX"));
+        assertEquals(3, session.getMessageCount());
+        int[] uids = new int[10000];
+        for (int i = 0; i < uids.length; i++)
+            uids[i] = (uids.length - i) * 2; // Descending, no ranges.
+        assertTrue(session.uidStore(uids, "+flags.silent (\\Seen)"));
+        assertTrue(server.pipelined);
+        // A handful of commands, not one per message.
+        assertTrue(server.stores.size() < 30);
+        TreeSet stored = new TreeSet();
+        for (int i = 0; i < server.stores.size(); i++) {
+            String[] uidSet = ((String)server.stores.get(i)).split(",");
+            for (int j = 0; j < uidSet.length; j++)
+                stored.add(Integer.valueOf(uidSet[j]));
+        }
+        assertEquals(uids.length, stored.size());
+        assertEquals(Integer.valueOf(2), stored.first());
+        assertEquals(Integer.valueOf(20000), stored.last());
+        session.logout();
+        server.serverSocket.close();
+    }
+
+    @Test
+    public void idle() throws Exception
+    {
+        Server server = new Server("IMAP4rev1 IDLE", true);
+        final int[] changes = new int[1];
+        Runnable listener = new Runnable() {
+            public void run()
+            {
+                synchronized (changes) {
+                    ++changes[0];
+                    changes.notifyAll();
+                }
+            }
+        };
+        ImapIdleThread thread = new ImapIdleThread(server.getSession().copy(),
+            "INBOX", listener, 200);
+        thread.start();
+        // Wait until IDLE has been renewed at least once.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.idles < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertTrue(server.dones >= 1);
+        assertTrue(thread.isIdling());
+        server.send("* 3 EXISTS"); // No change.
+        server.send("* 4 EXISTS");
+        synchronized (changes) {
+            deadline = System.currentTimeMillis() + 10000;
+            while (changes[0] == 0 && System.currentTimeMillis() < deadline)
+                changes.wait(100);
+            assertEquals(1, changes[0]);
+        }
+        thread.stopIdling();
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertFalse(thread.isIdling());
+        server.serverSocket.close();
+    }
+}
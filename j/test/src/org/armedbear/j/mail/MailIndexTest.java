@@ -0,0 +1,236 @@
+/*
+ * MailIndexTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.armedbear.j.Directories;
+import org.armedbear.j.File;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MailIndexTest
+{
+    private static final String MBOX =
+        "From - Mon Oct  5 10:00:00 2026\n" +
+        "From: Jane Doe <jane@example.com>\n" +
+        "Subject: Quarterly report\n" +
+        "\n" +
+        "The deployment went fine.\n" +
+        "\n" +
+        "From - Mon Oct  5 11:00:00 2026\n" +
+        "From: joe@example.org\n" +
+        "Subject: =?iso-8859-1?q?Caf=E9?= lunch\n" +
+        "Content-Type: text/plain; charset=iso-8859-1\n" +
+        "Content-Transfer-Encoding: quoted-printable\n" +
+        "\n" +
+        "Meet at the caf=E9 after the deploy=\n" +
+        "ed build.\n" +
+        "\n" +
+        "From - Mon Oct  5 12:00:00 2026\n" +
+        "From: bob@example.net\n" +
+        "Subject: pictures\n" +
+        "Content-Type: multipart/mixed; boundary=\"xyz\"\n" +
+        "\n" +
+        "--xyz\n" +
+        "Content-Type: text/html\n" +
+        "\n" +
+        "<p class=\"report\">Holiday pictures</p>\n" +
+        "--xyz\n" +
+        "Content-Type: application/octet-stream\n" +
+        "Content-Disposition: attachment; filename=\"a.bin\"\n" +
+        "\n" +
+        "report report report\n" +
+        "--xyz--\n" +
+        "\n";
+
+    private static List limit(Mailbox mb, String pattern)
+    {
+        MailboxFilter filter = MailboxFilter.getMailboxFilter(pattern);
+        assertNotNull(filter);
+        filter.setMailbox(mb);
+        List list = new ArrayList();
+        List entries = mb.getEntries();
+        for (int i = 0; i < entries.size(); i++) {
+            MailboxEntry entry = (MailboxEntry) entries.get(i);
+            if (filter.accept(entry))
+                list.add(new Integer(entry.getMessageNumber()));
+        }
+        return list;
+    }
+
+    private static List list(int a, int b)
+    {
+        List list = new ArrayList();
+        if (a > 0)
+            list.add(new Integer(a));
+        if (b > 0)
+            list.add(new Integer(b));
+        return list;
+    }
+
+    @Test
+    public void search() throws Exception
+    {
+        java.io.File tmp = Files.createTempFile("mbox", null).toFile();
+        tmp.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(tmp);
+        out.write(MBOX.getBytes("ISO-8859-1"));
+        out.close();
+        File file = File.getInstance(tmp.getPath());
+        // Mailbox properties are kept under ~/.j.
+        java.io.File home = Files.createTempDirectory("home").toFile();
+        Directories.initialize(File.getInstance(home.getPath()));
+        LocalMailbox mb = new LocalMailbox(new LocalMailboxURL(file));
+        Mbox mbox = Mbox.getInstance(file);
+        assertTrue(mbox.lock());
+        List entries = mbox.getEntries(null);
+        mbox.unlock();
+        assertEquals(3, entries.size());
+        mb.setEntries(entries);
+        MailIndex index = mb.getMailIndex();
+        index.update(new ArrayList(entries));
+        index.flush();
+
+        assertEquals(list(1, 0), limit(mb, "~b deployment"));
+        // Quoted-printable soft line break.
+        assertEquals(list(2, 0), limit(mb, "~b deployed"));
+        assertEquals(list(1, 2), limit(mb, "~b deploy*"));
+        assertEquals(list(2, 0), limit(mb, "~b CAF\u00c9"));
+        assertEquals(list(2, 0), limit(mb, "~h caf\u00e9"));
+        // Headers aren't body, attachments and markup aren't indexed.
+        assertEquals(list(0, 0), limit(mb, "~b quarterly"));
+        assertEquals(list(1, 0), limit(mb, "~B report"));
+        assertEquals(list(3, 0), limit(mb, "~b holiday"));
+        assertEquals(list(0, 0), limit(mb, "~b class"));
+        // All the words must match.
+        assertEquals(list(2, 0), limit(mb, "~b 'meet build'"));
+        assertEquals(list(0, 0), limit(mb, "~b 'meet deployment'"));
+        // Boolean terms.
+        assertEquals(list(1, 3), limit(mb, "~b deployment | ~b pictures"));
+        assertEquals(list(2, 3), limit(mb, "!~b deployment"));
+        assertEquals(list(2, 0), limit(mb, "~b deploy* ~f joe"));
+
+        // Expunged messages drop out.
+        entries.remove(0);
+        int generation = index.getGeneration();
+        index.update(new ArrayList(entries));
+        index.flush();
+        assertTrue(index.getGeneration() != generation);
+        assertEquals(2, index.size());
+        assertEquals(list(2, 0), limit(mb, "~b deploy*"));
+        index.dispose();
+        file.delete();
+        File.getInstance(file.canonicalPath() + ".index").delete();
+    }
+
+    // Reads the index from its file, with a mailbox that can't read any
+    // messages, so only what was saved is found.
+    private static MailIndex reload(File file, List entries)
+    {
+        LocalMailbox mb = new LocalMailbox(new LocalMailboxURL(file)) {
+            public Message getIndexableMessage(MailboxEntry entry)
+            {
+                return null;
+            }
+        };
+        MailIndex index = new MailIndex(mb,
+            File.getInstance(file.canonicalPath() + ".index"));
+        index.update(new ArrayList(entries));
+        index.flush();
+        return index;
+    }
+
+    private static boolean matches(MailIndex index, MailboxEntry entry,
+        String word)
+    {
+        String[] terms = { word };
+        return index.search(terms, MailIndex.BODY, false).get(
+            index.getDocId(entry));
+    }
+
+    @Test
+    public void persistence() throws Exception
+    {
+        java.io.File tmp = Files.createTempFile("mbox", null).toFile();
+        tmp.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(tmp);
+        out.write(MBOX.getBytes("ISO-8859-1"));
+        out.close();
+        File file = File.getInstance(tmp.getPath());
+        File indexFile = File.getInstance(file.canonicalPath() + ".index");
+        java.io.File home = Files.createTempDirectory("home").toFile();
+        Directories.initialize(File.getInstance(home.getPath()));
+        LocalMailbox mb = new LocalMailbox(new LocalMailboxURL(file));
+        Mbox mbox = Mbox.getInstance(file);
+        assertTrue(mbox.lock());
+        List entries = mbox.getEntries(null);
+        mbox.unlock();
+        mb.setEntries(entries);
+        MailboxEntry first = (MailboxEntry) entries.get(0);
+        MailboxEntry last = (MailboxEntry) entries.get(2);
+
+        // The first update writes the file.
+        MailIndex index = mb.getMailIndex();
+        index.update(new ArrayList(entries.subList(0, 2)));
+        index.flush();
+        assertTrue(indexFile.isFile());
+        MailIndex reloaded = reload(file, entries.subList(0, 2));
+        assertEquals(2, reloaded.size());
+        assertTrue(matches(reloaded, first, "deployment"));
+
+        // An appended message goes in the journal.
+        long length = indexFile.length();
+        index.update(new ArrayList(entries));
+        index.flush();
+        assertTrue(indexFile.length() > length);
+        reloaded = reload(file, entries);
+        assertEquals(3, reloaded.size());
+        assertTrue(matches(reloaded, last, "holiday"));
+        assertTrue(matches(reloaded, first, "deployment"));
+
+        // So does an expunged one.
+        entries.remove(0);
+        index.update(new ArrayList(entries));
+        index.flush();
+        reloaded = reload(file, entries);
+        assertEquals(2, reloaded.size());
+        assertEquals(-1, reloaded.getDocId(first));
+        assertTrue(matches(reloaded, last, "holiday"));
+        assertFalse(reloaded.search(new String[] { "deployment" },
+            MailIndex.BODY, false).get(0));
+
+        // A damaged file is ignored and written again.
+        out = new FileOutputStream(indexFile.canonicalPath(), true);
+        out.write(new byte[] { 9, 9 });
+        out.close();
+        reloaded = reload(file, entries);
+        assertEquals(0, reloaded.size());
+        reloaded = reload(file, entries);
+        assertEquals(0, reloaded.size());
+        index.dispose();
+        file.delete();
+        indexFile.delete();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * MboxIndexerTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.armedbear.j.FastStringBuffer;
+import org.armedbear.j.File;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MboxIndexerTest
+{
+    private static String makeMessage(int n, Random random)
+    {
+        final String eol = n % 3 == 2 ? "\r\n" : "\n";
+        FastStringBuffer sb = new FastStringBuffer();
+        sb.append("From sender" + n + "@example.com Mon Jan  5 10:00:00 2026");
+        sb.append(eol);
+        sb.append("Subject: message " + n + eol);
+        sb.append("Message-ID: <" + n + "@example.com>" + eol);
+        if (n % 4 == 1) {
+            // Not a message boundary, since it's in the header.
+            sb.append("From nowhere in the header" + eol);
+        }
+        sb.append("X-UIDL: uidl" + n + eol);
+        sb.append("X-J-Status: " + (n % 8) + eol);
+        sb.append(eol);
+        int lines = random.nextInt(6);
+        for (int i = 0; i < lines; i++) {
+            if (random.nextInt(4) == 0)
+                sb.append(">From the body" + eol);
+            else {
+                int length = random.nextInt(60);
+                for (int j = 0; j < length; j++)
+                    sb.append((char) ('a' + random.nextInt(26)));
+                sb.append(eol);
+            }
+        }
+        sb.append(eol);
+        return sb.toString();
+    }
+
+    private static String makeMbox(int first, int count, long seed)
+    {
+        Random random = new Random(seed);
+        FastStringBuffer sb = new FastStringBuffer();
+        for (int n = first; n < first + count; n++)
+            sb.append(makeMessage(n, random));
+        return sb.toString();
+    }
+
+    private static void write(java.io.File file, String s, boolean append)
+        throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file, append);
+        out.write(s.getBytes("ISO-8859-1"));
+        out.close();
+    }
+
+    // What Mbox.read() did before MboxIndexer: read the file a line at a
+    // time and start a message at each "From " line outside a header.
+    private static List readOld(java.io.File file) throws IOException
+    {
+        ArrayList entries = new ArrayList();
+        MailReader reader = new MailReader(new FileInputStream(file));
+        try {
+            FastStringBuffer sb = new FastStringBuffer(1024);
+            long messageStart = 0;
+            while (true) {
+                long here = reader.getOffset();
+                String text = reader.readLine();
+                if (text == null || text.startsWith("From ")) {
+                    if (entries.size() > 0) {
+                        LocalMailboxEntry entry =
+                            (LocalMailboxEntry) entries.get(entries.size()-1);
+                        entry.setSize((int)(here - messageStart));
+                        entry.setNextMessageStart(here);
+                        messageStart = here;
+                    }
+                    if (text == null)
+                        break;
+                    sb.setLength(0);
+                    while (true) {
+                        text = reader.readLine();
+                        if (text == null || text.length() == 0)
+                            break;
+                        sb.append(text);
+                        sb.append('\n');
+                    }
+                    entries.add(new LocalMailboxEntry(entries.size()+1, here,
+                        sb.toString()));
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    private static void assertSameEntries(String message, List expected,
+        List actual)
+    {
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            LocalMailboxEntry a = (LocalMailboxEntry) expected.get(i);
+            LocalMailboxEntry b = (LocalMailboxEntry) actual.get(i);
+            String s = message + " entry " + i;
+            assertEquals(s, a.getMessageNumber(), b.getMessageNumber());
+            assertEquals(s, a.getMessageStart(), b.getMessageStart());
+            assertEquals(s, a.getNextMessageStart(), b.getNextMessageStart());
+            assertEquals(s, a.getSize(), b.getSize());
+            assertEquals(s, a.getSubject(), b.getSubject());
+            assertEquals(s, a.getMessageId(), b.getMessageId());
+            assertEquals(s, a.getUidl(), b.getUidl());
+            assertEquals(s, a.getFlags(), b.getFlags());
+        }
+    }
+
+    private static java.io.File getTempFile() throws IOException
+    {
+        java.io.File tmp = Files.createTempFile("mbox", null).toFile();
+        tmp.deleteOnExit();
+        return tmp;
+    }
+
+    @Test
+    public void sameAsLineByLine() throws Exception
+    {
+        java.io.File tmp = getTempFile();
+        write(tmp, makeMbox(1, 200, 1), false);
+        File file = File.getInstance(tmp.getPath());
+        List expected = readOld(tmp);
+        assertEquals(200, expected.size());
+        // One chunk, then many.
+        int[] chunkSizes = { Integer.MAX_VALUE, 4096, 1000, 97 };
+        for (int i = 0; i < chunkSizes.length; i++) {
+            MboxIndexer indexer = new MboxIndexer(file, null, chunkSizes[i]);
+            assertSameEntries("chunk size " + chunkSizes[i], expected,
+                indexer.index(0, tmp.length(), 1));
+        }
+    }
+
+    @Test
+    public void chunkBoundaryInFromLine() throws Exception
+    {
+        java.io.File tmp = getTempFile();
+        write(tmp, makeMbox(1, 20, 2), false);
+        File file = File.getInstance(tmp.getPath());
+        List expected = readOld(tmp);
+        // Put the end of the first chunk just before, at, and in each
+        // "From " line, in the header, and in the "From " line in the
+        // header of the messages that have one.
+        String text = new String(Files.readAllBytes(tmp.toPath()),
+            "ISO-8859-1");
+        ArrayList offsets = new ArrayList();
+        for (int i = text.indexOf("From "); i >= 0;
+             i = text.indexOf("From ", i + 1)) {
+            for (int d = -2; d <= 6; d++)
+                offsets.add(new Integer(i + d));
+        }
+        for (int i = 0; i < offsets.size(); i++) {
+            int chunkSize = ((Integer) offsets.get(i)).intValue();
+            if (chunkSize <= 0)
+                continue;
+            MboxIndexer indexer = new MboxIndexer(file, null, chunkSize);
+            assertSameEntries("chunk size " + chunkSize, expected,
+                indexer.index(0, tmp.length(), 1));
+        }
+    }
+
+    @Test
+    public void resumesAfterAppend() throws Exception
+    {
+        java.io.File tmp = getTempFile();
+        String before = makeMbox(1, 30, 3);
+        write(tmp, before, false);
+        File file = File.getInstance(tmp.getPath());
+        java.io.File summaryFile = new java.io.File(tmp.getPath() + ".summary");
+        summaryFile.deleteOnExit();
+        Mbox mbox = Mbox.getInstance(file);
+        assertTrue(mbox.lock());
+        try {
+            List entries = mbox.getEntries(null);
+            assertSameEntries("first read", readOld(tmp), entries);
+            final long checksum =
+                MboxIndexer.getTailChecksum(file, tmp.length());
+
+            // Append to the last message and add some more.
+            final long length = tmp.length();
+            write(tmp, "more of the last message\n\n" + makeMbox(31, 10, 4),
+                true);
+            tmp.setLastModified(tmp.lastModified() + 2000);
+            assertEquals(checksum, MboxIndexer.getTailChecksum(file, length));
+            List updated = mbox.getEntries(null);
+            assertSameEntries("after append", readOld(tmp), updated);
+            // The entries before the last one were kept, not read again.
+            for (int i = 0; i < entries.size() - 1; i++)
+                assertSame(entries.get(i), updated.get(i));
+
+            // Resuming in the middle of a message's body, where the scan
+            // starts when the last message has grown, gives the same result
+            // as a full scan.
+            LocalMailboxEntry last =
+                (LocalMailboxEntry) entries.get(entries.size() - 1);
+            List tail = new MboxIndexer(file, null, 256).index(
+                last.getMessageStart(), tmp.length(), entries.size());
+            List expected = readOld(tmp);
+            assertSameEntries("resumed scan",
+                expected.subList(entries.size() - 1, expected.size()), tail);
+
+            // Changing the text before the old end of the file means a full
+            // read.
+            write(tmp, before.replaceFirst("Subject: message 30",
+                "Subject: message YY") + makeMbox(31, 10, 4), false);
+            tmp.setLastModified(tmp.lastModified() + 4000);
+            assertTrue(MboxIndexer.getTailChecksum(file, length) != checksum);
+            List reread = mbox.getEntries(null);
+            assertSameEntries("after rewrite", readOld(tmp), reread);
+            assertNotSame(entries.get(0), reread.get(0));
+            assertEquals("message YY",
+                ((MailboxEntry) reread.get(29)).getSubject());
+        }
+        finally {
+            mbox.unlock();
+            summaryFile.delete();
+        }
+    }
+}
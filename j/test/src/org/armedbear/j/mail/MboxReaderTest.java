@@ -0,0 +1,273 @@
+/*
+ * MboxReaderTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.armedbear.j.FastStringBuffer;
+import org.armedbear.j.File;
+import org.armedbear.j.Headers;
+import org.armedbear.j.Utilities;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MboxReaderTest
+{
+    // Header lines, then the body, of each message in the sample mbox.
+    private static final String[][] MESSAGES = {
+        { "From: a@example.com\nSubject: plain\n",
+          "One line.\n" },
+        { "From: b@example.com\r\nSubject: crlf\r\n" +
+          "Content-Type: text/plain; charset=utf-8\r\n",
+          // "caf\u00e9 \u20ac" in UTF-8.
+          "caf\u00c3\u00a9 \u00e2\u0082\u00ac\r\n" +
+          ">From the start of a line\r\n\r\n" },
+        { "From: c@example.com\nSubject: \u00e9t\u00e9 in 8-bit\n" +
+          "Content-Type: text/plain; charset=iso-8859-1\n",
+          "\u00e9t\u00e9\n\n\n" },
+        { "From: d@example.com\nSubject: empty body\n", "" },
+        { "From: e@example.com\rSubject: bare cr\r", "Old Mac.\r" },
+        { "From: f@example.com\nSubject: last\n", "No newline at the end" },
+    };
+
+    private static byte[] getBytes(String s)
+    {
+        // The strings above hold one byte per char.
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) s.charAt(i);
+        return bytes;
+    }
+
+    // Writes the sample mbox and returns the offset of each message, and
+    // then the length of the file.
+    private static long[] writeMbox(java.io.File file) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long[] offsets = new long[MESSAGES.length + 1];
+        for (int i = 0; i < MESSAGES.length; i++) {
+            offsets[i] = out.size();
+            String separator = MESSAGES[i][0].indexOf('\n') < 0 ? "\r" :
+                MESSAGES[i][0].indexOf('\r') < 0 ? "\n" : "\r\n";
+            out.write(getBytes("From sender Mon Jan  5 10:00:00 2026" +
+                separator + MESSAGES[i][0] + separator + MESSAGES[i][1]));
+        }
+        offsets[MESSAGES.length] = out.size();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(out.toByteArray());
+        fos.close();
+        return offsets;
+    }
+
+    private static String getCharset(String header)
+    {
+        Headers headers = Headers.parse(header);
+        String contentType = headers.getValue(Headers.CONTENT_TYPE);
+        return contentType != null ?
+            Utilities.getCharsetFromContentType(contentType) : null;
+    }
+
+    // The way LocalMailbox.getMessage() read a message before MboxReader:
+    // the header with RandomAccessFile.readLine(), then the rest of the
+    // message from the file pointer.
+    private static String[] readOld(java.io.File file, long start, long end)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(start);
+            String text = raf.readLine();
+            assertTrue(text.startsWith("From "));
+            FastStringBuffer sb = new FastStringBuffer();
+            while (true) {
+                text = raf.readLine();
+                if (text == null || text.length() == 0)
+                    break;
+                sb.append(text);
+                sb.append("\r\n");
+            }
+            String header = sb.toString();
+            byte[] bytes = new byte[(int) (end - raf.getFilePointer())];
+            raf.readFully(bytes);
+            String body = new String(bytes,
+                Utilities.getEncodingFromCharset(getCharset(header)));
+            return new String[] { header, body };
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static String[] readNew(MboxReader reader, long start, long end)
+        throws IOException
+    {
+        byte[] bytes = reader.read(start, end);
+        int[] bodyStart = new int[1];
+        String header =
+            LocalMailbox.TestHelper.getMessageHeader(bytes, bodyStart);
+        assertNotNull(header);
+        String body = LocalMailbox.TestHelper.getMessageBody(bytes,
+            bodyStart[0], getCharset(header));
+        return new String[] { header, body };
+    }
+
+    private static java.io.File getTempFile() throws IOException
+    {
+        java.io.File tmp = Files.createTempFile("mbox", null).toFile();
+        tmp.deleteOnExit();
+        return tmp;
+    }
+
+    @Test
+    public void sameAsOldReader() throws Exception
+    {
+        java.io.File tmp = getTempFile();
+        long[] offsets = writeMbox(tmp);
+        MboxReader reader = new MboxReader(File.getInstance(tmp.getPath()));
+        try {
+            // Last to first, so each read goes back in the file.
+            for (int i = MESSAGES.length - 1; i >= 0; i--) {
+                long start = offsets[i];
+                long end = offsets[i + 1];
+                String[] expected = readOld(tmp, start, end);
+                String[] actual = readNew(reader, start, end);
+                assertEquals("header " + i, expected[0], actual[0]);
+                assertEquals("body " + i, expected[1], actual[1]);
+            }
+            // The body is decoded with the charset from the header.
+            String[] message = readNew(reader, offsets[1], offsets[2]);
+            assertTrue(message[0].endsWith("charset=utf-8\r\n"));
+            assertTrue(message[1].startsWith("caf\u00e9 \u20ac\r\n"));
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void reopensChangedFile() throws Exception
+    {
+        java.io.File tmp = getTempFile();
+        long[] offsets = writeMbox(tmp);
+        File file = File.getInstance(tmp.getPath());
+        MboxReader reader = new MboxReader(file);
+        try {
+            byte[] first = reader.read(offsets[0], offsets[1]);
+            // Replace the file, as LocalMailbox.rewriteMailbox() does, with
+            // the first message dropped.
+            byte[] all = Files.readAllBytes(tmp.toPath());
+            java.io.File replacement = getTempFile();
+            FileOutputStream out = new FileOutputStream(replacement);
+            out.write(all, (int) offsets[1], all.length - (int) offsets[1]);
+            out.close();
+            assertTrue(tmp.delete());
+            assertTrue(replacement.renameTo(tmp));
+            tmp.setLastModified(tmp.lastModified() + 2000);
+            byte[] second = reader.read(0, offsets[2] - offsets[1]);
+            assertTrue(Arrays.equals(
+                Arrays.copyOfRange(all, (int) offsets[1], (int) offsets[2]),
+                second));
+            assertFalse(Arrays.equals(first, second));
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void badRanges() throws Exception
+    {
+        java.io.File tmp = getTempFile();
+        long[] offsets = writeMbox(tmp);
+        MboxReader reader = new MboxReader(File.getInstance(tmp.getPath()));
+        try {
+            assertEquals(0, reader.read(offsets[1], offsets[1]).length);
+            try {
+                reader.read(offsets[1], offsets[0]);
+                fail();
+            }
+            catch (IOException e) {
+                // Expected.
+            }
+            try {
+                reader.read(0, offsets[MESSAGES.length] + 1);
+                fail();
+            }
+            catch (IOException e) {
+                // Expected.
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void concurrentReads() throws Exception
+    {
+        java.io.File tmp = getTempFile();
+        final long[] offsets = writeMbox(tmp);
+        final byte[] all = Files.readAllBytes(tmp.toPath());
+        final MboxReader reader =
+            new MboxReader(File.getInstance(tmp.getPath()));
+        final List failures = new ArrayList();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                public void run()
+                {
+                    try {
+                        for (int k = 0; k < 500; k++) {
+                            int i = (k + offset) % MESSAGES.length;
+                            byte[] bytes =
+                                reader.read(offsets[i], offsets[i + 1]);
+                            byte[] expected = Arrays.copyOfRange(all,
+                                (int) offsets[i], (int) offsets[i + 1]);
+                            if (!Arrays.equals(expected, bytes)) {
+                                synchronized (failures) {
+                                    failures.add("message " + i);
+                                }
+                            }
+                        }
+                    }
+                    catch (IOException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++)
+            threads[t].join();
+        reader.close();
+        assertEquals(new ArrayList(), failures);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * SummaryStoreTest.java
+ *
+ * Copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.armedbear.j.mail;
+
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import org.armedbear.j.File;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SummaryStoreTest
+{
+    private static File getTempFile() throws Exception
+    {
+        java.io.File tmp = Files.createTempFile("summary", null).toFile();
+        tmp.deleteOnExit();
+        return File.getInstance(tmp.getPath());
+    }
+
+    private static ImapMailboxEntry makeEntry(int uid, String subject,
+        MailAddress[] from)
+    {
+        ImapMailboxEntry entry =
+            new ImapMailboxEntry(uid, new RFC822Date(new Date(uid * 1000L)));
+        entry.messageNumber = uid;
+        entry.size = uid * 10;
+        entry.flags = MailboxEntry.SEEN | MailboxEntry.TAGGED;
+        entry.subject = subject;
+        entry.from = from;
+        entry.messageId = "<" + uid + "@example.com>";
+        entry.references = new String[] { "<1@example.com>" };
+        return entry;
+    }
+
+    @Test
+    public void imapRoundTrip() throws Exception
+    {
+        MailAddress[] from =
+            MailAddress.parseAddresses("\"Jane Doe\" <jane@example.com>");
+        List entries = new ArrayList();
+        for (int uid = 1; uid <= 100; uid++)
+            entries.add(makeEntry(uid, uid % 2 == 0 ? "even" : null, from));
+        Properties properties = new Properties();
+        properties.setProperty("uidValidity", "42");
+        File file = getTempFile();
+        new SummaryStore(SummaryStore.IMAP, properties, entries).write(file);
+
+        SummaryStore store = SummaryStore.read(file);
+        assertNotNull(store);
+        assertEquals(SummaryStore.IMAP, store.getKind());
+        assertEquals(42, store.getLongProperty("uidValidity"));
+        List list = store.getEntries();
+        assertEquals(100, list.size());
+        for (int i = 0; i < 100; i++) {
+            ImapMailboxEntry a = (ImapMailboxEntry) entries.get(i);
+            ImapMailboxEntry b = (ImapMailboxEntry) list.get(i);
+            assertEquals(a.getUid(), b.getUid());
+            assertEquals(a.getArrival().getTime(), b.getArrival().getTime());
+            assertNull(b.getDate());
+            assertEquals(a.getSize(), b.getSize());
+            assertEquals(a.getMessageNumber(), b.getMessageNumber());
+            // TAGGED isn't persistent.
+            assertEquals(MailboxEntry.SEEN, b.getFlags());
+            assertEquals(a.subject, b.subject);
+            assertEquals(a.getMessageId(), b.getMessageId());
+            assertEquals(Arrays.asList(a.getReferences()),
+                Arrays.asList(b.getReferences()));
+            assertEquals(1, b.getFrom().length);
+            assertEquals(from[0], b.getFrom()[0]);
+            assertNull(b.getTo());
+        }
+        // Entries share addresses.
+        assertSame(((MailboxEntry)list.get(0)).getFrom()[0],
+            ((MailboxEntry)list.get(1)).getFrom()[0]);
+
+        // Flag changes go in the journal.
+        assertTrue(SummaryStore.appendFlags(file, 7, MailboxEntry.DELETED));
+        assertTrue(SummaryStore.appendFlags(file, 7, MailboxEntry.FLAGGED));
+        assertTrue(SummaryStore.appendFlags(file, 9999, MailboxEntry.FLAGGED));
+        // Half a record, as if we crashed while appending.
+        FileOutputStream out = new FileOutputStream(file.canonicalPath(), true);
+        out.write(new byte[] { 0, 0, 0, 8, 0 });
+        out.close();
+        list = SummaryStore.read(file).getEntries();
+        assertEquals(MailboxEntry.FLAGGED,
+            ((MailboxEntry)list.get(6)).getFlags());
+        assertEquals(MailboxEntry.SEEN, ((MailboxEntry)list.get(7)).getFlags());
+        file.delete();
+    }
+
+    @Test
+    public void localRoundTrip() throws Exception
+    {
+        String headers = "From: joe@example.org\r\n" +
+            "To: jane@example.com, Bob <bob@example.net>\r\n" +
+            "Subject: hello\r\n" +
+            "Date: Mon, 5 Oct 2026 10:00:00 +0000\r\n" +
+            "X-UIDL: abc\r\n" +
+            "X-J-Status: 1\r\n\r\n";
+        LocalMailboxEntry entry = new LocalMailboxEntry(1, 123, headers);
+        entry.setNextMessageStart(456);
+        File file = getTempFile();
+        new SummaryStore(SummaryStore.LOCAL, new Properties(),
+            Arrays.asList(new Object[] { entry })).write(file);
+        SummaryStore store = SummaryStore.read(file);
+        LocalMailboxEntry copy = (LocalMailboxEntry) store.getEntries().get(0);
+        assertEquals(123, copy.getMessageStart());
+        assertEquals(456, copy.getNextMessageStart());
+        assertEquals("abc", copy.getUidl());
+        assertEquals("hello", copy.getSubject());
+        assertEquals(entry.getDate().getTime(), copy.getDate().getTime());
+        assertEquals(2, copy.getTo().length);
+        assertEquals(entry.getTo()[1], copy.getTo()[1]);
+        assertEquals(MailboxEntry.SEEN, copy.getFlags());
+        file.delete();
+    }
+
+    @Test
+    public void rejectsOtherFormats() throws Exception
+    {
+        File file = getTempFile();
+        FileOutputStream out = new FileOutputStream(file.canonicalPath());
+        out.write("not a summary".getBytes());
+        out.close();
+        assertNull(SummaryStore.read(file));
+        file.delete();
+    }
+}